@@ -19,11 +19,19 @@ import com.esri.militaryapps.model.DomNodeAndDocument;
 import com.esri.militaryapps.model.Geomessage;
 import com.esri.militaryapps.util.Utilities;
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
@@ -33,7 +41,29 @@ import org.w3c.dom.Node;
 
 /**
  * A controller for ArcGIS Runtime advanced symbology. Use this class when you want to use
- * MessageGroupLayer, MessageProcessor, SymbolDictionary, and MIL-STD-2525C symbols.
+ * MessageGroupLayer, MessageProcessor, SymbolDictionary, and MIL-STD-2525C symbols.<br/>
+ * <br/>
+ * If the MapController reports its spatial reference (see
+ * MapController.getSpatialReferenceWkid()), updates to symbols outside the visible
+ * extent plus a margin are deferred instead of drawn: only the latest update for
+ * each symbol is kept, and deferred updates are drawn when the extent changes to
+ * include them. A symbol that was drawn inside the extent is drawn once more when
+ * it moves out, so it does not linger at its last visible position. Removals are
+ * never deferred.<br/>
+ * <br/>
+ * handleGeomessage may be called from many threads at once, as MessageController
+ * does. Messages for the same symbol, by message type and ID, are processed one
+ * at a time, in the order in which they are handled, in one of LOCK_STRIPES
+ * serial lanes that admit threads first come, first served; messages for other
+ * symbols are processed in parallel. A "removeall" message waits in every lane.
+ * Implementations of processMessage and the other abstract methods must
+ * therefore be safe to call from several threads, and must not call back into
+ * this controller.<br/>
+ * <br/>
+ * Rendering goes through batch methods, such as processMessages and
+ * displaySpotReports, which by default call the single-item methods in a loop.
+ * SDK adapters can override them to use bulk graphics APIs. handleGeomessages
+ * and extent changes pass many messages to each batch call.
  */
 public abstract class AdvancedSymbolController {
     
@@ -50,12 +80,40 @@ public abstract class AdvancedSymbolController {
         OUTBOUND_MESSAGE_TYPE_TRANSLATIONS.put("spot_report", "spotrep");
     }
     
+    /**
+     * The default culling margin, as a fraction of the visible extent's width and
+     * height added on each side.
+     */
+    public static final double DEFAULT_CULLING_MARGIN = 0.25;
+    
+    //The culling extent when culling is disabled or impossible
+    private static final double[] NO_CULLING = new double[0];
+    
+    /**
+     * The number of serial lanes that order the processing of each symbol's messages.
+     */
+    public static final int LOCK_STRIPES = 64;
+    
+    private static final int WKID_WGS1984 = 4326;
+    
     private final MapController mapController;
-    private final HashSet<String> highlightedIds = new HashSet<String>();
-    private final HashMap<String, Integer> spotReportIdToGraphicId = new HashMap<String, Integer>();
+    private final Set<String> highlightedIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Integer> spotReportIdToGraphicId = new ConcurrentHashMap<String, Integer>();
+    private final SerialLane[] lanes = new SerialLane[LOCK_STRIPES];
+    //Culling state, guarded by itself; keys are message type + '\u0000' + ID
+    private final LinkedHashMap<String, Geomessage> deferredMessages = new LinkedHashMap<String, Geomessage>();
+    private final HashSet<String> drawnInExtent = new HashSet<String>();
+    //Symbols handled since culling was re-enabled; the others may have been drawn while it was off
+    private final HashSet<String> handledSinceEnabled = new HashSet<String>();
     
-    private boolean showLabels = true;
-    private Set<String> messageTypesSupported = null;
+    private volatile boolean showLabels = true;
+    private volatile Set<String> messageTypesSupported = null;
+    private boolean cullingEnabled = true;
+    private boolean cullingReenabled = false;
+    private double cullingMargin = DEFAULT_CULLING_MARGIN;
+    private boolean cullingExtentStale = true;
+    private long cullingExtentVersion = 0;
+    private double[] cullingExtent = null;
     
     /**
      * Instantiates a new AdvancedSymbolController.
@@ -63,6 +121,19 @@ public abstract class AdvancedSymbolController {
      */
     public AdvancedSymbolController(MapController mapController) {
         this.mapController = mapController;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new SerialLane();
+        }
+        if (null != mapController) {
+            mapController.addExtentListener(new MapExtentListener() {
+
+                @Override
+                public void extentChanged() {
+                    onExtentChanged();
+                }
+
+            });
+        }
     }
     
     /**
@@ -173,11 +244,13 @@ public abstract class AdvancedSymbolController {
     }    
 
     private boolean messageTypeExists(String messageType) {
-        if (null == messageTypesSupported) {
-            messageTypesSupported = new HashSet<String>(Arrays.asList(getMessageTypesSupported()));
+        Set<String> types = messageTypesSupported;
+        if (null == types) {
+            types = new HashSet<String>(Arrays.asList(getMessageTypesSupported()));
+            messageTypesSupported = types;
         }
         
-        return messageTypesSupported.contains(messageType);
+        return types.contains(messageType);
     }
     
     /**
@@ -214,46 +287,322 @@ public abstract class AdvancedSymbolController {
      */
     protected abstract void removeSpotReportGraphic(int graphicId);
         
+    /**
+     * Processes a batch of Geomessages, one at a time, by calling processMessage
+     * for each of them. Override this method if your SDK can add, update, and
+     * remove many symbols in one call. The messages are for distinct symbols.
+     * @param messages the Geomessages to process.
+     * @return the number of Geomessages processed successfully.
+     */
+    protected int processMessages(List<Geomessage> messages) {
+        int processed = 0;
+        for (Geomessage message : messages) {
+            if (processMessage(message)) {
+                processed++;
+            }
+        }
+        return processed;
+    }
+    
+    /**
+     * Displays or updates a batch of spot reports, one at a time, by calling
+     * displaySpotReport for each of them. Override this method if your SDK can
+     * add and update many graphics in one call. The spot reports are distinct.
+     * @param xy the spot reports' coordinates, as x0, y0, x1, y1, and so on.
+     * @param wkids the WKIDs of the spot reports' coordinates.
+     * @param graphicIds the graphic IDs of the existing graphics, with null for
+     *                   new reports.
+     * @param geomessages the spot reports.
+     * @return the graphic IDs of the created or updated graphics, with null for
+     *         graphics that could not be displayed.
+     */
+    protected Integer[] displaySpotReports(double[] xy, int[] wkids, Integer[] graphicIds, Geomessage[] geomessages) {
+        Integer[] newGraphicIds = new Integer[geomessages.length];
+        for (int i = 0; i < geomessages.length; i++) {
+            newGraphicIds[i] = displaySpotReport(xy[2 * i], xy[2 * i + 1], wkids[i], graphicIds[i], geomessages[i]);
+        }
+        return newGraphicIds;
+    }
+    
+    /**
+     * Removes a batch of graphics from the spot reports layer, one at a time, by
+     * calling removeSpotReportGraphic for each of them. Override this method if
+     * your SDK can remove many graphics in one call.
+     * @param graphicIds the graphic IDs of the spot reports to remove.
+     */
+    protected void removeSpotReportGraphics(int[] graphicIds) {
+        for (int graphicId : graphicIds) {
+            removeSpotReportGraphic(graphicId);
+        }
+    }
+    
+    /**
+     * Highlights and un-highlights a batch of Geomessages, one at a time, by calling
+     * processHighlightMessage for each of them. Override this method if your SDK
+     * can highlight many symbols in one call. The Geomessages are distinct.
+     * @param geomessageIds the Geomessage IDs.
+     * @param messageTypes the message types.
+     * @param highlight for each Geomessage, true if it should be highlighted and
+     *                  false if it should be un-highlighted.
+     * @return the number of Geomessages highlighted or un-highlighted successfully.
+     */
+    protected int processHighlightMessages(String[] geomessageIds, String[] messageTypes, boolean[] highlight) {
+        int processed = 0;
+        for (int i = 0; i < geomessageIds.length; i++) {
+            if (processHighlightMessage(geomessageIds[i], messageTypes[i], highlight[i])) {
+                processed++;
+            }
+        }
+        return processed;
+    }
+    
     /**
      * Processes a Geomessage, adding, modifying, or removing a symbol on the map
      * if appropriate.
      * @param geomessage the Geomessage to process.
      */
     protected void processGeomessage(Geomessage geomessage) {
-        final String messageType = AdvancedSymbolController.getInboundMessageTypeName(
-                (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME));
-        geomessage.setProperty(Geomessage.TYPE_FIELD_NAME, messageType);
-        String messageAction = (String) geomessage.getProperty(Geomessage.ACTION_FIELD_NAME);
-        if (Geomessage.ACTION_REMOVE_ALL.equals(messageAction)) {
-            clearLayer(getMessageLayerName(messageType), false);
-            if (SpotReportController.REPORT_TYPE.equals(messageType)) {
-                spotReportIdToGraphicId.clear();
+        processGeomessages(Collections.singletonList(geomessage));
+    }
+    
+    /**
+     * Processes Geomessages in order, adding, modifying, or removing symbols on
+     * the map if appropriate. Consecutive messages for distinct symbols go to
+     * the batch methods, such as processMessages, together.
+     * @param geomessages the Geomessages to process.
+     */
+    protected void processGeomessages(List<Geomessage> geomessages) {
+        int size = geomessages.size();
+        String[] keys = new String[size];
+        for (int i = 0; i < size; i++) {
+            Geomessage geomessage = geomessages.get(i);
+            String messageType = AdvancedSymbolController.getInboundMessageTypeName(
+                    (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME));
+            geomessage.setProperty(Geomessage.TYPE_FIELD_NAME, messageType);
+            if (!Geomessage.ACTION_REMOVE_ALL.equals(geomessage.getProperty(Geomessage.ACTION_FIELD_NAME))) {
+                keys[i] = getCullingKey(messageType, geomessage.getId());
+            }
+        }
+        RenderBatch batch = new RenderBatch();
+        boolean[] stripes = new boolean[lanes.length];
+        long[] tickets = new long[lanes.length];
+        int runStart = 0;
+        for (int i = 0; i <= size; i++) {
+            if (i < size && null != keys[i]) {
+                stripes[getStripe(keys[i])] = true;
+                continue;
+            }
+            if (runStart < i) {
+                //Wait for every symbol in the run at once
+                lockStripes(stripes, tickets);
+                try {
+                    for (int j = runStart; j < i; j++) {
+                        Geomessage geomessage = geomessages.get(j);
+                        String messageType = (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME);
+                        if (!isCulled(messageType, geomessage, keys[j], lanes[getStripe(keys[j])].point)) {
+                            stageGeomessage(messageType, geomessage, keys[j], batch);
+                        }
+                    }
+                    applyBatch(batch);
+                } finally {
+                    unlockStripes(stripes);
+                }
+                Arrays.fill(stripes, false);
+            }
+            if (i < size) {
+                //A removeall waits for the messages in progress
+                Arrays.fill(stripes, true);
+                lockStripes(stripes, tickets);
+                try {
+                    Geomessage geomessage = geomessages.get(i);
+                    String messageType = (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME);
+                    clearLayer(getMessageLayerName(messageType), false);
+                    if (SpotReportController.REPORT_TYPE.equals(messageType)) {
+                        spotReportIdToGraphicId.clear();
+                    }
+                    forgetCulledMessages(messageType);
+                    stageGeomessage(messageType, geomessage, null, batch);
+                    applyBatch(batch);
+                } finally {
+                    unlockStripes(stripes);
+                }
+                Arrays.fill(stripes, false);
             }
+            runStart = i + 1;
+        }
+    }
+    
+    private int getStripe(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % lanes.length;
+    }
+    
+    /**
+     * Takes a ticket in each of the stripes' lanes and waits for all of them.
+     * The tickets are taken together, so threads that need several lanes queue
+     * in the same order in each and cannot deadlock.
+     */
+    private void lockStripes(boolean[] stripes, long[] tickets) {
+        synchronized (lanes) {
+            for (int i = 0; i < stripes.length; i++) {
+                if (stripes[i]) {
+                    tickets[i] = lanes[i].nextTicket++;
+                }
+            }
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[i]) {
+                lanes[i].await(tickets[i]);
+            }
+        }
+    }
+    
+    private void unlockStripes(boolean[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            if (stripes[i]) {
+                lanes[i].advance();
+            }
+        }
+    }
+    
+    /**
+     * A first-come, first-served lock for the symbols of one stripe. Unlike a
+     * non-fair lock, it does not let a later thread go ahead of one that is
+     * already waiting.
+     */
+    private static class SerialLane {
+        
+        //Guarded by the lanes array
+        private long nextTicket = 0;
+        //Guarded by this
+        private long servingTicket = 0;
+        //Used only by the thread that holds this lane
+        private final double[] point = new double[2];
+        
+        private synchronized void await(long ticket) {
+            boolean interrupted = false;
+            while (servingTicket != ticket) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private synchronized void advance() {
+            servingTicket++;
+            notifyAll();
+        }
+        
+    }
+    
+    /**
+     * The calls to the batch methods that a run of Geomessages needs. The
+     * Geomessages in a batch are for distinct symbols.
+     */
+    private static class RenderBatch {
+        
+        private final HashSet<String> keys = new HashSet<String>();
+        private final ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
+        private final ArrayList<Geomessage> highlightMessages = new ArrayList<Geomessage>();
+        private boolean[] highlights = new boolean[16];
+        private final ArrayList<Geomessage> spotReports = new ArrayList<Geomessage>();
+        private double[] spotReportXy = new double[32];
+        private int[] spotReportWkids = new int[16];
+        private boolean[] spotReportDisplays = new boolean[16];
+        private boolean[] spotReportRemoves = new boolean[16];
+        private final ArrayList<Geomessage> labelMessages = new ArrayList<Geomessage>();
+        private double[] labelXy = new double[32];
+        private int[] labelWkids = new int[16];
+        
+        private void addLabelPoint(Geomessage geomessage, double x, double y, int wkid) {
+            int index = labelMessages.size();
+            if (index == labelWkids.length) {
+                labelXy = Arrays.copyOf(labelXy, index * 4);
+                labelWkids = Arrays.copyOf(labelWkids, index * 2);
+            }
+            labelMessages.add(geomessage);
+            labelXy[2 * index] = x;
+            labelXy[2 * index + 1] = y;
+            labelWkids[index] = wkid;
+        }
+        
+        private void addHighlight(Geomessage geomessage, boolean highlight) {
+            int index = highlightMessages.size();
+            if (index == highlights.length) {
+                highlights = Arrays.copyOf(highlights, index * 2);
+            }
+            highlightMessages.add(geomessage);
+            highlights[index] = highlight;
+        }
+        
+        private void addSpotReport(Geomessage geomessage, boolean display, double x, double y, int wkid,
+                boolean remove) {
+            int index = spotReports.size();
+            if (index == spotReportWkids.length) {
+                spotReportXy = Arrays.copyOf(spotReportXy, index * 4);
+                spotReportWkids = Arrays.copyOf(spotReportWkids, index * 2);
+                spotReportDisplays = Arrays.copyOf(spotReportDisplays, index * 2);
+                spotReportRemoves = Arrays.copyOf(spotReportRemoves, index * 2);
+            }
+            spotReports.add(geomessage);
+            spotReportXy[2 * index] = x;
+            spotReportXy[2 * index + 1] = y;
+            spotReportWkids[index] = wkid;
+            spotReportDisplays[index] = display;
+            spotReportRemoves[index] = remove;
+        }
+        
+        private void clear() {
+            keys.clear();
+            messages.clear();
+            highlightMessages.clear();
+            spotReports.clear();
+            labelMessages.clear();
+        }
+        
+    }
+    
+    /**
+     * Adds the work to display, update, remove, or highlight a Geomessage's symbol
+     * to a batch, applying the batch first if it already has the symbol. The caller
+     * holds the symbol's lock.
+     * @param key the symbol's culling key, or null for a removeall message.
+     */
+    private void stageGeomessage(String messageType, Geomessage geomessage, String key, RenderBatch batch) {
+        if (null != key && !batch.keys.add(key)) {
+            applyBatch(batch);
+            batch.keys.add(key);
         }
         if (SpotReportController.REPORT_TYPE.equals(messageType)) {
+            if (null == geomessage.getId()) {
+                //A removeall, or a spot report that cannot be tracked without an ID
+                return;
+            }
             geomessage.setProperty(Geomessage.ID_FIELD_NAME, geomessage.getId());
             //Use a single symbol for all spot reports
+            boolean display = false;
+            double x = 0;
+            double y = 0;
+            int wkid = 0;
             String controlPointsString = (String) geomessage.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME);
             if (null != controlPointsString) {
                 StringTokenizer tok = new StringTokenizer(controlPointsString, ",");
                 if (2 == tok.countTokens()) {
-                    double x = Double.parseDouble(tok.nextToken());
-                    double y = Double.parseDouble(tok.nextToken());
-                    int wkid = Integer.parseInt((String) geomessage.getProperty(Geomessage.WKID_FIELD_NAME));
-                    Integer currentGraphicId = spotReportIdToGraphicId.get(geomessage.getId());
-                    int newGraphicId = displaySpotReport(x, y, wkid, currentGraphicId, geomessage);
-                    if (null == currentGraphicId || currentGraphicId != newGraphicId) {
-                        spotReportIdToGraphicId.put(geomessage.getId(), newGraphicId);
-                    }
+                    x = Double.parseDouble(tok.nextToken());
+                    y = Double.parseDouble(tok.nextToken());
+                    wkid = Integer.parseInt((String) geomessage.getProperty(Geomessage.WKID_FIELD_NAME));
+                    display = true;
                 }
             }
-            if ("remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
-                if (spotReportIdToGraphicId.containsKey(geomessage.getId())) {
-                    removeSpotReportGraphic(spotReportIdToGraphicId.get(geomessage.getId()));
-                    synchronized (spotReportIdToGraphicId) {
-                        spotReportIdToGraphicId.remove(geomessage.getId());
-                    }
-                }
+            boolean remove = "remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()));
+            if (display || remove) {
+                batch.addSpotReport(geomessage, display, x, y, wkid, remove);
             }
         } else {
             //Let the MessageProcessor handle other types of reports
@@ -284,16 +633,12 @@ public abstract class AdvancedSymbolController {
                     StringTokenizer tok = new StringTokenizer(controlPoints, ",; ");
                     if (2 <= tok.countTokens()) {
                         try {
-                            Double x = Double.parseDouble(tok.nextToken());
-                            Double y = Double.parseDouble(tok.nextToken());
+                            double x = Double.parseDouble(tok.nextToken());
+                            double y = Double.parseDouble(tok.nextToken());
                             String wkid = (String) geomessage.getProperty(Geomessage.WKID_FIELD_NAME);
-                            if (null != wkid) {
-                                double[] lonLat = mapController.projectPoint(x, y, Integer.parseInt(wkid), 4326);
-                                x = lonLat[0];
-                                y = lonLat[1];
-                            }
-                            geomessage.setProperty("x", x);
-                            geomessage.setProperty("y", y);
+                            //Projected with the rest of the batch
+                            batch.addLabelPoint(geomessage, x, y,
+                                    null == wkid ? WKID_WGS1984 : Integer.parseInt(wkid));
                         } catch (NumberFormatException nfe) {
                             logger.log(Level.SEVERE, "_control_points or WKID NumberFormatException", nfe);
                         }
@@ -301,29 +646,456 @@ public abstract class AdvancedSymbolController {
                 }
             }
             
-            processMessage(geomessage);
+            batch.messages.add(geomessage);
+            if (null == geomessage.getId()) {
+                return;
+            }
             
-            boolean needToHighlight = false;
-            boolean needToUnhighlight = false;
             boolean previouslyHighlighted = highlightedIds.contains(geomessage.getId());
             boolean nowHighlighted = "1".equals(geomessage.getProperty("status911"));
-            if (previouslyHighlighted) {
-                needToUnhighlight = !nowHighlighted;
-            } else {
-                needToHighlight = nowHighlighted;
-            }
-            if (needToHighlight || needToUnhighlight) {
-                processHighlightMessage(
-                        geomessage.getId(),
-                        (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME),
-                        needToHighlight);                
-                if (needToHighlight) {
-                    highlightedIds.add(geomessage.getId());
+            if (previouslyHighlighted != nowHighlighted) {
+                batch.addHighlight(geomessage, nowHighlighted);
+            }
+        }
+    }
+    
+    /**
+     * Makes a batch's calls to the batch methods, updates the symbol state to match,
+     * and clears the batch. The caller holds the locks of the batch's symbols.
+     */
+    private void applyBatch(RenderBatch batch) {
+        int count = batch.labelMessages.size();
+        if (0 < count) {
+            projectLabelPoints(batch, count);
+        }
+        
+        if (!batch.messages.isEmpty()) {
+            processMessages(batch.messages);
+        }
+        
+        count = batch.highlightMessages.size();
+        if (0 < count) {
+            String[] ids = new String[count];
+            String[] types = new String[count];
+            for (int i = 0; i < count; i++) {
+                Geomessage geomessage = batch.highlightMessages.get(i);
+                ids[i] = geomessage.getId();
+                types[i] = (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME);
+            }
+            boolean[] highlights = Arrays.copyOf(batch.highlights, count);
+            processHighlightMessages(ids, types, highlights);
+            for (int i = 0; i < count; i++) {
+                if (highlights[i]) {
+                    highlightedIds.add(ids[i]);
                 } else {
-                    highlightedIds.remove(geomessage.getId());
+                    highlightedIds.remove(ids[i]);
                 }
             }
         }
+        
+        count = 0;
+        int spotReportCount = batch.spotReports.size();
+        for (int i = 0; i < spotReportCount; i++) {
+            if (batch.spotReportDisplays[i]) {
+                count++;
+            }
+        }
+        if (0 < count) {
+            double[] xy = new double[2 * count];
+            int[] wkids = new int[count];
+            Integer[] graphicIds = new Integer[count];
+            Geomessage[] geomessages = new Geomessage[count];
+            int index = 0;
+            for (int i = 0; i < spotReportCount; i++) {
+                if (batch.spotReportDisplays[i]) {
+                    geomessages[index] = batch.spotReports.get(i);
+                    xy[2 * index] = batch.spotReportXy[2 * i];
+                    xy[2 * index + 1] = batch.spotReportXy[2 * i + 1];
+                    wkids[index] = batch.spotReportWkids[i];
+                    graphicIds[index] = spotReportIdToGraphicId.get(geomessages[index].getId());
+                    index++;
+                }
+            }
+            Integer[] newGraphicIds = displaySpotReports(xy, wkids, graphicIds, geomessages);
+            for (int i = 0; i < count; i++) {
+                if (null != newGraphicIds[i]) {
+                    spotReportIdToGraphicId.put(geomessages[i].getId(), newGraphicIds[i]);
+                }
+            }
+        }
+        
+        //Removals come after displays, which may have created the graphics to remove
+        int[] removedGraphicIds = new int[spotReportCount];
+        count = 0;
+        for (int i = 0; i < spotReportCount; i++) {
+            if (batch.spotReportRemoves[i]) {
+                Integer graphicId = spotReportIdToGraphicId.remove(batch.spotReports.get(i).getId());
+                if (null != graphicId) {
+                    removedGraphicIds[count++] = graphicId;
+                }
+            }
+        }
+        if (0 < count) {
+            removeSpotReportGraphics(Arrays.copyOf(removedGraphicIds, count));
+        }
+        
+        batch.clear();
+    }
+    
+    /**
+     * Projects a batch's label points to WGS 1984 with one projectPoints call per
+     * WKID, which is usually one call in all, and sets the x and y properties.
+     */
+    private void projectLabelPoints(RenderBatch batch, int count) {
+        double[] xy = batch.labelXy;
+        int[] wkids = batch.labelWkids;
+        //Group the points by WKID in place
+        int groupStart = 0;
+        while (groupStart < count) {
+            int wkid = wkids[groupStart];
+            int groupEnd = groupStart + 1;
+            for (int i = groupEnd; i < count; i++) {
+                if (wkids[i] == wkid) {
+                    if (i != groupEnd) {
+                        swapLabelPoints(batch, i, groupEnd);
+                    }
+                    groupEnd++;
+                }
+            }
+            if (WKID_WGS1984 != wkid) {
+                mapController.projectPoints(xy, 2 * groupStart, groupEnd - groupStart, wkid, WKID_WGS1984);
+            }
+            groupStart = groupEnd;
+        }
+        for (int i = 0; i < count; i++) {
+            Geomessage geomessage = batch.labelMessages.get(i);
+            geomessage.setProperty("x", xy[2 * i]);
+            geomessage.setProperty("y", xy[2 * i + 1]);
+        }
+    }
+    
+    private static void swapLabelPoints(RenderBatch batch, int i, int j) {
+        double[] xy = batch.labelXy;
+        double x = xy[2 * i];
+        double y = xy[2 * i + 1];
+        xy[2 * i] = xy[2 * j];
+        xy[2 * i + 1] = xy[2 * j + 1];
+        xy[2 * j] = x;
+        xy[2 * j + 1] = y;
+        int wkid = batch.labelWkids[i];
+        batch.labelWkids[i] = batch.labelWkids[j];
+        batch.labelWkids[j] = wkid;
+        batch.labelMessages.set(i, batch.labelMessages.set(j, batch.labelMessages.get(i)));
+    }
+    
+    /**
+     * Returns true if updates outside the visible extent are deferred.
+     * @return true if updates outside the visible extent are deferred.
+     */
+    public boolean isCullingEnabled() {
+        synchronized (deferredMessages) {
+            return cullingEnabled;
+        }
+    }
+    
+    /**
+     * Sets whether updates outside the visible extent are deferred. Culling also
+     * requires a MapController that reports its spatial reference. Disabling
+     * culling draws every deferred update. After culling is enabled again, each
+     * symbol is drawn once more the first time it is outside the visible extent,
+     * since it might have been drawn inside it meanwhile.
+     * @param cullingEnabled true if updates outside the visible extent should be
+     *                       deferred. The default is true.
+     */
+    public void setCullingEnabled(boolean cullingEnabled) {
+        synchronized (deferredMessages) {
+            if (this.cullingEnabled != cullingEnabled) {
+                this.cullingEnabled = cullingEnabled;
+                //Nothing is tracked while culling is off
+                drawnInExtent.clear();
+                handledSinceEnabled.clear();
+                cullingReenabled = cullingEnabled;
+            }
+            invalidateCullingExtent();
+        }
+        flushDeferredMessages();
+    }
+    
+    /**
+     * Returns the culling margin.
+     * @return the culling margin, as a fraction of the visible extent's width and
+     *         height added on each side.
+     */
+    public double getCullingMargin() {
+        synchronized (deferredMessages) {
+            return cullingMargin;
+        }
+    }
+    
+    /**
+     * Sets the culling margin. Symbols this close to the visible extent are drawn,
+     * so that they are current when the map pans a little.
+     * @param cullingMargin the margin, as a fraction of the visible extent's width
+     *                      and height added on each side. The default is
+     *                      DEFAULT_CULLING_MARGIN.
+     */
+    public void setCullingMargin(double cullingMargin) {
+        synchronized (deferredMessages) {
+            this.cullingMargin = Math.max(0, cullingMargin);
+            invalidateCullingExtent();
+        }
+        flushDeferredMessages();
+    }
+    
+    /**
+     * Returns the number of symbols with deferred updates.
+     * @return the number of symbols with deferred updates.
+     */
+    public int getDeferredMessageCount() {
+        synchronized (deferredMessages) {
+            return deferredMessages.size();
+        }
+    }
+    
+    /**
+     * Recomputes the visible extent and draws the deferred updates that are now
+     * inside it. This controller calls this method when its MapController fires
+     * an extent change.
+     */
+    public void onExtentChanged() {
+        synchronized (deferredMessages) {
+            invalidateCullingExtent();
+        }
+        flushDeferredMessages();
+    }
+    
+    private static String getCullingKey(String messageType, String id) {
+        return messageType + '\u0000' + id;
+    }
+    
+    /**
+     * Returns true if a Geomessage is an update outside the visible extent that
+     * should be deferred, in which case it is kept as the symbol's latest deferred
+     * update. The caller holds the symbol's lane, whose point buffer is xy.
+     */
+    private boolean isCulled(String messageType, Geomessage geomessage, String key, double[] xy) {
+        if (null == geomessage.getId()) {
+            return false;
+        }
+        if ("remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
+            synchronized (deferredMessages) {
+                deferredMessages.remove(key);
+                drawnInExtent.remove(key);
+                handledSinceEnabled.remove(key);
+            }
+            return false;
+        }
+        while (true) {
+            //Call the MapController before taking the lock
+            double[] extent = getCullingExtent();
+            if (NO_CULLING == extent) {
+                return false;
+            }
+            Boolean inside = null == extent ? null : isInExtent(geomessage, extent, xy);
+            synchronized (deferredMessages) {
+                boolean maybeDrawn = cullingReenabled && handledSinceEnabled.add(key);
+                if (null == extent) {
+                    //It might be visible, so draw it once more if it turns out to be outside
+                    drawnInExtent.add(key);
+                    return false;
+                }
+                if (null == inside || inside) {
+                    deferredMessages.remove(key);
+                    drawnInExtent.add(key);
+                    return false;
+                }
+                if (drawnInExtent.remove(key) || maybeDrawn) {
+                    //Draw it once more so it leaves the visible extent
+                    deferredMessages.remove(key);
+                    return false;
+                }
+                if (cullingExtentStale || extent != cullingExtent) {
+                    //The extent changed meanwhile, and its flush would miss this update
+                    continue;
+                }
+                deferredMessages.put(key, geomessage);
+                return true;
+            }
+        }
+    }
+    
+    private void forgetCulledMessages(String messageType) {
+        String prefix = getCullingKey(messageType, "");
+        synchronized (deferredMessages) {
+            Iterator<String> keys = deferredMessages.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().startsWith(prefix)) {
+                    keys.remove();
+                }
+            }
+            keys = drawnInExtent.iterator();
+            while (keys.hasNext()) {
+                if (keys.next().startsWith(prefix)) {
+                    keys.remove();
+                }
+            }
+            keys = handledSinceEnabled.iterator();
+            while (keys.hasNext()) {
+                if (keys.next().startsWith(prefix)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Processes the deferred updates that are inside the visible extent, or all
+     * of them if culling is no longer possible.
+     */
+    private void flushDeferredMessages() {
+        String[] keys;
+        Geomessage[] messages;
+        synchronized (deferredMessages) {
+            if (deferredMessages.isEmpty()) {
+                return;
+            }
+            keys = deferredMessages.keySet().toArray(new String[deferredMessages.size()]);
+            messages = deferredMessages.values().toArray(new Geomessage[keys.length]);
+        }
+        double[] extent = getCullingExtent();
+        double[] xy = new double[2];
+        ArrayList<Map.Entry<String, Geomessage>> flushed = new ArrayList<Map.Entry<String, Geomessage>>();
+        for (int i = 0; i < keys.length; i++) {
+            if (null == extent || NO_CULLING == extent || !Boolean.FALSE.equals(isInExtent(messages[i], extent, xy))) {
+                flushed.add(new AbstractMap.SimpleImmutableEntry<String, Geomessage>(keys[i], messages[i]));
+            }
+        }
+        boolean[] stripes = new boolean[lanes.length];
+        for (Map.Entry<String, Geomessage> entry : flushed) {
+            stripes[getStripe(entry.getKey())] = true;
+        }
+        RenderBatch batch = new RenderBatch();
+        lockStripes(stripes, new long[lanes.length]);
+        try {
+            for (Map.Entry<String, Geomessage> entry : flushed) {
+                String key = entry.getKey();
+                Geomessage message = entry.getValue();
+                synchronized (deferredMessages) {
+                    //Skip it if a newer message for the symbol came in meanwhile
+                    if (message != deferredMessages.get(key)) {
+                        continue;
+                    }
+                    deferredMessages.remove(key);
+                    if (NO_CULLING != extent) {
+                        drawnInExtent.add(key);
+                    }
+                }
+                stageGeomessage((String) message.getProperty(Geomessage.TYPE_FIELD_NAME), message, key, batch);
+            }
+            applyBatch(batch);
+        } finally {
+            unlockStripes(stripes);
+        }
+    }
+    
+    /**
+     * Marks the culling extent for recomputing. The caller holds deferredMessages.
+     */
+    private void invalidateCullingExtent() {
+        cullingExtentStale = true;
+        cullingExtentVersion++;
+    }
+    
+    /**
+     * Returns the visible extent plus the margin, in the map's spatial reference,
+     * as minX, minY, maxX, maxY; null if the extent is unknown; or NO_CULLING if
+     * culling is disabled or impossible. The caller must not hold deferredMessages,
+     * since this method may call the MapController.
+     */
+    private double[] getCullingExtent() {
+        boolean enabled;
+        double margin;
+        long version;
+        synchronized (deferredMessages) {
+            if (!cullingExtentStale) {
+                return cullingExtent;
+            }
+            enabled = cullingEnabled;
+            margin = cullingMargin;
+            version = cullingExtentVersion;
+        }
+        double[] extent = computeCullingExtent(enabled, margin);
+        synchronized (deferredMessages) {
+            //Keep it only if the extent did not change while it was computed
+            if (version == cullingExtentVersion) {
+                cullingExtentStale = false;
+                cullingExtent = extent;
+            }
+        }
+        return extent;
+    }
+    
+    private double[] computeCullingExtent(boolean enabled, double margin) {
+        if (!enabled || null == mapController || 0 == mapController.getSpatialReferenceWkid()) {
+            return NO_CULLING;
+        }
+        int width = mapController.getWidth();
+        int height = mapController.getHeight();
+        if (0 >= width || 0 >= height) {
+            return null;
+        }
+        //The corners' bounding box covers a rotated map too
+        double[] extent = {
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+        int[][] corners = {{0, 0}, {width, 0}, {0, height}, {width, height}};
+        for (int[] corner : corners) {
+            double[] point = mapController.toMapPoint(corner[0], corner[1]);
+            if (null == point || Double.isNaN(point[0]) || Double.isNaN(point[1])) {
+                return null;
+            }
+            extent[0] = Math.min(extent[0], point[0]);
+            extent[1] = Math.min(extent[1], point[1]);
+            extent[2] = Math.max(extent[2], point[0]);
+            extent[3] = Math.max(extent[3], point[1]);
+        }
+        double marginX = (extent[2] - extent[0]) * margin;
+        double marginY = (extent[3] - extent[1]) * margin;
+        extent[0] -= marginX;
+        extent[1] -= marginY;
+        extent[2] += marginX;
+        extent[3] += marginY;
+        return extent;
+    }
+    
+    /**
+     * Returns whether a Geomessage's first control point is inside an extent in
+     * the map's spatial reference, or null if the point is unknown. The point is
+     * projected in xy.
+     */
+    private Boolean isInExtent(Geomessage geomessage, double[] extent, double[] xy) {
+        if (!geomessage.getFirstControlPoint(xy)) {
+            return null;
+        }
+        int wkid = WKID_WGS1984;
+        Object wkidString = geomessage.getProperty(Geomessage.WKID_FIELD_NAME);
+        if (null != wkidString) {
+            try {
+                wkid = Integer.parseInt(wkidString.toString().trim());
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+        try {
+            mapController.projectPoints(xy, wkid, mapController.getSpatialReferenceWkid());
+        } catch (RuntimeException re) {
+            return null;
+        }
+        if (Double.isNaN(xy[0]) || Double.isNaN(xy[1])) {
+            return null;
+        }
+        return extent[0] <= xy[0] && xy[0] <= extent[2] && extent[1] <= xy[1] && xy[1] <= extent[3];
     }
     
     /**
@@ -364,6 +1136,15 @@ public abstract class AdvancedSymbolController {
         processGeomessage(geomessage);
     }
     
+    /**
+     * Handles Geomessages in order, as handleGeomessage does, but passes them to
+     * the batch methods, such as processMessages, in as few calls as possible.
+     * @param geomessages the Geomessages to handle.
+     */
+    public void handleGeomessages(List<Geomessage> geomessages) {
+        processGeomessages(geomessages);
+    }
+    
     /**
      * Returns true if labels display on advanced symbology.
      * @return true if labels display on advanced symbology.
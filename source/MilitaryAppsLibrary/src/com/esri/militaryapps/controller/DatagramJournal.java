@@ -0,0 +1,562 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of received datagrams, for after-action review and for
+ * replaying real traffic without a network. Set a DatagramJournal as a
+ * MessageController's DatagramRecorder to record every datagram it receives, and
+ * use a JournalReplayer to feed the journal back through a MessageController.<br/>
+ * <br/>
+ * Each record holds the receive time, the sender's address, and the raw bytes of
+ * one datagram. Records are appended to memory-mapped segment files of a fixed
+ * size in one directory; each journal session starts a new segment. Each segment
+ * has a sparse index file with the receive time and offset of the segment's
+ * first record and of one record every INDEX_INTERVAL bytes, so seeking to a time
+ * reads only a few records. Each record has a CRC-32 checksum and its length is
+ * written last, so a record cut off by a crash ends the segment when it is read.
+ */
+public class DatagramJournal implements DatagramRecorder {
+
+    private static final Logger logger = Logger.getLogger(DatagramJournal.class.getName());
+
+    /**
+     * The default size of a segment file, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
+
+    /**
+     * The number of segment bytes between index entries.
+     */
+    public static final int INDEX_INTERVAL = 1 << 16;
+
+    private static final int MAGIC = 0x444a524e;//"DJRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int INDEX_ENTRY_LENGTH = 12;
+    private static final int MIN_SEGMENT_SIZE = 1 << 17;
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String INDEX_SUFFIX = ".index";
+
+    /**
+     * A segment file and its sparse index.
+     */
+    private static class Segment {
+
+        private final int number;
+        private final File file;
+        private final File indexFile;
+        private long[] indexTimes = new long[16];
+        private int[] indexOffsets = new int[16];
+        private int indexCount = 0;
+
+        Segment(File directory, int number) {
+            this.number = number;
+            String name = String.format("%08d", number);
+            file = new File(directory, name + SEGMENT_SUFFIX);
+            indexFile = new File(directory, name + INDEX_SUFFIX);
+        }
+
+        void addIndexEntry(long time, int offset) {
+            if (indexCount == indexTimes.length) {
+                indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+            }
+            indexTimes[indexCount] = time;
+            indexOffsets[indexCount++] = offset;
+        }
+
+        /**
+         * Returns the offset of the last indexed record received at or before a
+         * time, or of the first record if there is none.
+         */
+        int findOffset(long time) {
+            int low = 0;
+            int high = indexCount - 1;
+            int found = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (indexTimes[middle] <= time) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return 0 > found ? HEADER_LENGTH : indexOffsets[found];
+        }
+
+    }
+
+    /**
+     * Reads records from the journal in order, across segments. A cursor that
+     * reaches the end of the segment being written returns false from next(),
+     * and returns the records appended since on later calls.
+     */
+    public final class Cursor {
+
+        private int segmentIndex;
+        private int position;
+        private ByteBuffer buffer = null;
+        private boolean pending = false;
+        private final CRC32 checksum = new CRC32();
+        private byte[] payload = new byte[2048];
+        private long receiveTime;
+        private SocketAddress sender;
+        private int dataOffset;
+        private int dataLength;
+        private long nextRecordPosition;
+
+        private Cursor(int segmentIndex, int position) {
+            this.segmentIndex = segmentIndex;
+            this.position = position;
+        }
+
+        /**
+         * Moves to the next record.
+         * @return true if there is a next record, or false if the cursor is at the
+         *         end of the journal.
+         * @throws IOException if a segment cannot be read.
+         */
+        public boolean next() throws IOException {
+            if (pending) {
+                pending = false;
+                return true;
+            }
+            synchronized (DatagramJournal.this) {
+                while (segmentIndex < segments.size()) {
+                    Segment segment = segments.get(segmentIndex);
+                    if (null == buffer) {
+                        buffer = segment == activeSegment ? activeBuffer.duplicate() : mapReadOnly(segment.file);
+                    }
+                    if (readRecord()) {
+                        nextRecordPosition = ((long) segment.number << 32) | position;
+                        return true;
+                    }
+                    if (segment == activeSegment) {
+                        //Wait for more records
+                        return false;
+                    }
+                    segmentIndex++;
+                    position = HEADER_LENGTH;
+                    buffer = null;
+                }
+                return false;
+            }
+        }
+
+        /**
+         * @return the current record's receive time, in milliseconds since the epoch.
+         */
+        public long getReceiveTime() {
+            return receiveTime;
+        }
+
+        /**
+         * @return the current record's sender, or null if it is unknown.
+         */
+        public SocketAddress getSender() {
+            return sender;
+        }
+
+        /**
+         * @return the buffer that holds the current record's datagram. The buffer
+         *         is reused by the next call to next().
+         */
+        public byte[] getData() {
+            return payload;
+        }
+
+        /**
+         * @return the offset of the current record's datagram in getData().
+         */
+        public int getOffset() {
+            return dataOffset;
+        }
+
+        /**
+         * @return the length of the current record's datagram.
+         */
+        public int getLength() {
+            return dataLength;
+        }
+
+        /**
+         * Returns the position in the journal just after the current record. Unlike
+         * a receive time, a position tells apart records received in the same
+         * millisecond, so openCursorAt(long) resumes exactly where this cursor is.
+         * @return the position after the current record.
+         */
+        public long getNextRecordPosition() {
+            return nextRecordPosition;
+        }
+
+        /**
+         * Releases the segment this cursor is reading.
+         */
+        public void close() {
+            buffer = null;
+            segmentIndex = Integer.MAX_VALUE;
+        }
+
+        private void skipTo(long time) throws IOException {
+            while (next()) {
+                if (receiveTime >= time) {
+                    pending = true;
+                    return;
+                }
+            }
+        }
+
+        private boolean readRecord() {
+            if (position + RECORD_HEADER_LENGTH > buffer.limit()) {
+                return false;
+            }
+            int length = buffer.getInt(position);
+            if (0 >= length || length > buffer.limit() - position - RECORD_HEADER_LENGTH) {
+                return false;
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            buffer.position(position + RECORD_HEADER_LENGTH);
+            buffer.get(payload, 0, length);
+            checksum.reset();
+            checksum.update(payload, 0, length);
+            if (buffer.getInt(position + 4) != (int) checksum.getValue()) {
+                return false;
+            }
+            position += RECORD_HEADER_LENGTH + length;
+            ByteBuffer in = ByteBuffer.wrap(payload, 0, length);
+            receiveTime = in.getLong();
+            int addressLength = in.get();
+            sender = null;
+            if (0 < addressLength) {
+                byte[] address = new byte[addressLength];
+                in.get(address);
+                int port = in.getChar();
+                try {
+                    sender = new InetSocketAddress(InetAddress.getByAddress(address), port);
+                } catch (UnknownHostException uhe) {
+                    //Leave the sender unknown
+                }
+            }
+            dataOffset = in.position();
+            dataLength = length - dataOffset;
+            return true;
+        }
+
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private final CRC32 crc = new CRC32();
+
+    private Segment activeSegment = null;
+    private MappedByteBuffer activeBuffer = null;
+    private MappedByteBuffer indexBuffer = null;
+    private int lastIndexedOffset = 0;
+    private byte[] record = new byte[2048];
+    private boolean closed = false;
+
+    /**
+     * Opens a journal with the default segment size, creating the directory if
+     * it does not exist.
+     * @param directory the journal's directory.
+     * @throws IOException if the journal cannot be opened.
+     */
+    public DatagramJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a journal, creating the directory if it does not exist.
+     * @param directory the journal's directory.
+     * @param segmentSize the size of each new segment file, in bytes.
+     * @throws IOException if the journal cannot be opened.
+     */
+    public DatagramJournal(File directory, int segmentSize) throws IOException {
+        if (MIN_SEGMENT_SIZE > segmentSize) {
+            throw new IllegalArgumentException("Segment size must be at least " + MIN_SEGMENT_SIZE);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        File[] files = directory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.getName().matches("\\d{8}" + SEGMENT_SUFFIX.replace(".", "\\."));
+            }
+
+        });
+        for (File file : files) {
+            Segment segment = new Segment(directory, Integer.parseInt(file.getName().substring(0, 8)));
+            loadIndex(segment);
+            segments.add(segment);
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+
+            @Override
+            public int compare(Segment segment1, Segment segment2) {
+                return segment1.number < segment2.number ? -1 : (segment1.number == segment2.number ? 0 : 1);
+            }
+
+        });
+    }
+
+    /**
+     * Appends a datagram to the journal.
+     * @param receiveTime the time the datagram was received, in milliseconds since the epoch.
+     * @param sender the datagram's sender, or null.
+     * @param data the buffer that holds the datagram.
+     * @param offset the datagram's offset in the buffer.
+     * @param length the datagram's length.
+     * @throws IOException if a new segment cannot be created.
+     */
+    public synchronized void append(long receiveTime, SocketAddress sender, byte[] data, int offset, int length)
+            throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        byte[] address = null;
+        int port = 0;
+        if (sender instanceof InetSocketAddress && null != ((InetSocketAddress) sender).getAddress()) {
+            address = ((InetSocketAddress) sender).getAddress().getAddress();
+            port = ((InetSocketAddress) sender).getPort();
+        }
+        int recordLength = 8 + 1 + (null == address ? 0 : address.length + 2) + length;
+        if (RECORD_HEADER_LENGTH + recordLength > segmentSize - HEADER_LENGTH) {
+            throw new IllegalArgumentException("Datagram is longer than a segment");
+        }
+        if (record.length < recordLength) {
+            record = new byte[Math.max(recordLength, record.length * 2)];
+        }
+        ByteBuffer out = ByteBuffer.wrap(record);
+        out.putLong(receiveTime);
+        if (null == address) {
+            out.put((byte) 0);
+        } else {
+            out.put((byte) address.length);
+            out.put(address);
+            out.putChar((char) port);
+        }
+        out.put(data, offset, length);
+
+        if (null == activeBuffer || activeBuffer.remaining() < RECORD_HEADER_LENGTH + recordLength) {
+            startSegment();
+        }
+        int start = activeBuffer.position();
+        if (HEADER_LENGTH == start || start - lastIndexedOffset >= INDEX_INTERVAL) {
+            indexBuffer.putLong(receiveTime).putInt(start);
+            activeSegment.addIndexEntry(receiveTime, start);
+            lastIndexedOffset = start;
+        }
+        crc.reset();
+        crc.update(record, 0, recordLength);
+        activeBuffer.putInt(start + 4, (int) crc.getValue());
+        activeBuffer.position(start + RECORD_HEADER_LENGTH);
+        activeBuffer.put(record, 0, recordLength);
+        //Write the length last, so a cut-off record reads as the end of the segment
+        activeBuffer.putInt(start, recordLength);
+    }
+
+    @Override
+    public void recordDatagram(long receiveTime, SocketAddress sender, byte[] data, int offset, int length) {
+        try {
+            append(receiveTime, sender, data, offset, length);
+        } catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Could not journal datagram", ioe);
+        } catch (IllegalStateException ise) {
+            //Closed; drop the datagram
+        }
+    }
+
+    /**
+     * Opens a cursor at the first record received at or after a time.
+     * @param time the time, in milliseconds since the epoch. Long.MIN_VALUE opens
+     *             the cursor at the start of the journal.
+     * @return the cursor.
+     * @throws IOException if a segment cannot be read.
+     */
+    public Cursor openCursor(long time) throws IOException {
+        Cursor cursor;
+        synchronized (this) {
+            int segmentIndex = 0;
+            for (int i = 1; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (0 < segment.indexCount && segment.indexTimes[0] <= time) {
+                    segmentIndex = i;
+                }
+            }
+            int position = segments.isEmpty() ? HEADER_LENGTH : segments.get(segmentIndex).findOffset(time);
+            cursor = new Cursor(segmentIndex, position);
+        }
+        cursor.skipTo(time);
+        return cursor;
+    }
+
+    /**
+     * Opens a cursor at a position returned by Cursor.getNextRecordPosition().
+     * @param recordPosition the position.
+     * @return the cursor, whose first call to next() moves to the record at the
+     *         position.
+     */
+    public synchronized Cursor openCursorAt(long recordPosition) {
+        int number = (int) (recordPosition >>> 32);
+        int offset = (int) recordPosition;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).number == number) {
+                return new Cursor(i, offset);
+            }
+            if (segments.get(i).number > number) {
+                return new Cursor(i, HEADER_LENGTH);
+            }
+        }
+        return new Cursor(segments.size(), HEADER_LENGTH);
+    }
+
+    /**
+     * @return the receive time of the journal's first record, or Long.MIN_VALUE
+     *         if the journal is empty.
+     */
+    public synchronized long getFirstTime() {
+        for (Segment segment : segments) {
+            if (0 < segment.indexCount) {
+                return segment.indexTimes[0];
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the number of segment files.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Writes the records appended so far to the storage device.
+     */
+    public synchronized void flush() {
+        if (null != activeBuffer) {
+            activeBuffer.force();
+            indexBuffer.force();
+        }
+    }
+
+    /**
+     * Flushes and closes the journal. Cursors can still read the records.
+     */
+    public synchronized void close() {
+        flush();
+        closed = true;
+    }
+
+    private void startSegment() throws IOException {
+        flush();
+        int number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+        Segment segment = new Segment(directory, number);
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        try {
+            activeBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+        activeBuffer.putInt(MAGIC).putInt(VERSION);
+        raf = new RandomAccessFile(segment.indexFile, "rw");
+        try {
+            int indexSize = (segmentSize / INDEX_INTERVAL + 2) * INDEX_ENTRY_LENGTH;
+            indexBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        } finally {
+            raf.close();
+        }
+        lastIndexedOffset = 0;
+        activeSegment = segment;
+        segments.add(segment);
+    }
+
+    private static ByteBuffer mapReadOnly(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads a segment's index file, or rebuilds the index from the segment if
+     * the index file is missing.
+     */
+    private void loadIndex(Segment segment) throws IOException {
+        if (segment.indexFile.exists()) {
+            ByteBuffer index = mapReadOnly(segment.indexFile);
+            while (index.remaining() >= INDEX_ENTRY_LENGTH) {
+                long time = index.getLong();
+                int offset = index.getInt();
+                if (0 == offset) {
+                    break;
+                }
+                segment.addIndexEntry(time, offset);
+            }
+            return;
+        }
+        ByteBuffer in = mapReadOnly(segment.file);
+        if (in.limit() < HEADER_LENGTH || MAGIC != in.getInt(0) || VERSION != in.getInt(4)) {
+            throw new IOException("Not a journal segment: " + segment.file);
+        }
+        int position = HEADER_LENGTH;
+        int lastIndexed = 0;
+        while (position + RECORD_HEADER_LENGTH + 8 <= in.limit()) {
+            int length = in.getInt(position);
+            if (8 > length || length > in.limit() - position - RECORD_HEADER_LENGTH) {
+                break;
+            }
+            if (HEADER_LENGTH == position || position - lastIndexed >= INDEX_INTERVAL) {
+                segment.addIndexEntry(in.getLong(position + RECORD_HEADER_LENGTH), position);
+                lastIndexed = position;
+            }
+            position += RECORD_HEADER_LENGTH + length;
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.net.SocketAddress;
+
+/**
+ * Interface for classes that record the raw datagrams a MessageController receives.
+ * @see MessageController#setDatagramRecorder(DatagramRecorder)
+ */
+public interface DatagramRecorder {
+
+    /**
+     * Called on the receive thread for each inbound datagram, before it is processed.
+     * The buffer is reused after this method returns, so copy what you need.
+     * @param receiveTime the time the datagram was received, in milliseconds since the epoch.
+     * @param sender the datagram's sender.
+     * @param data the buffer that holds the datagram.
+     * @param offset the datagram's offset in the buffer.
+     * @param length the datagram's length.
+     */
+    void recordDatagram(long receiveTime, SocketAddress sender, byte[] data, int offset, int length);
+
+}
@@ -0,0 +1,489 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.GeomessageDeltaEncoder;
+import com.esri.militaryapps.model.GeomessagesPacker;
+import com.esri.militaryapps.model.Location;
+import com.esri.militaryapps.model.LocationProvider;
+import com.esri.militaryapps.util.Utilities;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A controller that broadcasts position reports for many units, such as every
+ * vehicle in a convoy reported through one gateway. Each unit has its own unique
+ * ID, username, vehicle type, symbol ID code, period, and priority. Per-unit state
+ * is kept in parallel arrays indexed by unit.<br/>
+ * <br/>
+ * Every tick, the controller finds the units whose reports are due, orders them by
+ * priority (units with 911 status first, then higher priority values), and packs
+ * their reports into as few datagrams as possible. Reports for units with 911
+ * status, or whose 911 status just changed, are packed separately and sent on
+ * the MessageController's emergency lane. A change in 911 status is reported
+ * right away, without waiting for the next tick. Ticks and 911 changes send
+ * one at a time, so a unit's reports go out in the order in which they were
+ * built.<br/>
+ * <br/>
+ * A unit's first report is offset by a phase within its period, chosen by the
+ * ReportScheduler's phase mode, so units added together do not all report on
+ * the same tick.
+ * @see PositionReportController
+ */
+public class FleetPositionReportController {
+
+    /**
+     * The default number of milliseconds between ticks.
+     */
+    public static final int DEFAULT_TICK_INTERVAL = 100;
+
+    private static final Logger logger = Logger.getLogger(FleetPositionReportController.class.getName());
+    private static final int INITIAL_CAPACITY = 16;
+    //Sort keys hold the 911 flag, then the inverted priority, then the unit's slot
+    private static final int UNIT_BITS = 30;
+    private static final long UNIT_MASK = (1L << UNIT_BITS) - 1;
+    //A unit's first report time is set on the first tick after it has a location
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final MessageController messageController;
+    private final ReportScheduler scheduler;
+    private final Object sendLock = new Object();
+    private final GeomessageDeltaEncoder deltaEncoder = new GeomessageDeltaEncoder(1);
+    private final HashMap<String, Integer> unitIndexes = new HashMap<String, Integer>();
+
+    //Per-unit state, indexed by unit
+    private String[] uniqueIds = new String[INITIAL_CAPACITY];
+    private String[] usernames = new String[INITIAL_CAPACITY];
+    private String[] vehicleTypes = new String[INITIAL_CAPACITY];
+    private String[] symbolIdCodes = new String[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] headings = new double[INITIAL_CAPACITY];
+    private long[] fixTimes = new long[INITIAL_CAPACITY];
+    private long[] nextReportTimes = new long[INITIAL_CAPACITY];
+    private int[] periods = new int[INITIAL_CAPACITY];
+    private int[] priorities = new int[INITIAL_CAPACITY];
+    private boolean[] hasLocation = new boolean[INITIAL_CAPACITY];
+    private boolean[] status911 = new boolean[INITIAL_CAPACITY];
+    private boolean[] status911Changed = new boolean[INITIAL_CAPACITY];
+
+    private int unitSlotCount = 0;
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeSlotCount = 0;
+    private long[] dueKeys = new long[INITIAL_CAPACITY];
+
+    private boolean enabled = false;
+    private int tickInterval = DEFAULT_TICK_INTERVAL;
+    private ScheduledFuture<?> tickTask = null;
+
+    /**
+     * Creates a new FleetPositionReportController that uses the shared ReportScheduler.
+     * @param messageController the transmitter of position report messages.
+     */
+    public FleetPositionReportController(MessageController messageController) {
+        this(messageController, ReportScheduler.getSharedScheduler());
+    }
+
+    /**
+     * Creates a new FleetPositionReportController.
+     * @param messageController the transmitter of position report messages.
+     * @param scheduler the scheduler that runs this controller's ticks.
+     */
+    public FleetPositionReportController(MessageController messageController, ReportScheduler scheduler) {
+        this.messageController = messageController;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds a unit, or updates the unit's settings if a unit with the same unique
+     * ID was already added. The unit's reports start once it has a location.
+     * @param uniqueId the unit's unique ID.
+     * @param username the username used in the unit's position reports.
+     * @param vehicleType the vehicle type used in the unit's position reports.
+     * @param symbolIdCode the symbol ID code (SIC or SIDC) for the unit's position reports.
+     * @param period the minimum number of milliseconds between the unit's position
+     *               reports. A non-positive number means PositionReportController.DEFAULT_PERIOD.
+     * @param priority the unit's priority. When many reports are due at once, units
+     *                 with higher priority values go first.
+     */
+    public synchronized void addUnit(String uniqueId, String username, String vehicleType,
+            String symbolIdCode, int period, int priority) {
+        Integer existing = unitIndexes.get(uniqueId);
+        int unit;
+        if (null != existing) {
+            unit = existing;
+        } else {
+            unit = allocateSlot();
+            unitIndexes.put(uniqueId, unit);
+            uniqueIds[unit] = uniqueId;
+            hasLocation[unit] = false;
+            status911[unit] = false;
+            status911Changed[unit] = false;
+            nextReportTimes[unit] = NOT_STARTED;
+        }
+        usernames[unit] = username;
+        vehicleTypes[unit] = vehicleType;
+        symbolIdCodes[unit] = symbolIdCode;
+        periods[unit] = 0 < period ? period : PositionReportController.DEFAULT_PERIOD;
+        priorities[unit] = priority;
+    }
+
+    /**
+     * Removes a unit. This controller stops sending reports for the unit.
+     * @param uniqueId the unit's unique ID.
+     * @return true if the unit had been added.
+     */
+    public synchronized boolean removeUnit(String uniqueId) {
+        Integer unit = unitIndexes.remove(uniqueId);
+        if (null == unit) {
+            return false;
+        }
+        uniqueIds[unit] = null;
+        usernames[unit] = null;
+        vehicleTypes[unit] = null;
+        symbolIdCodes[unit] = null;
+        hasLocation[unit] = false;
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = unit;
+        deltaEncoder.reset(uniqueId);
+        return true;
+    }
+
+    /**
+     * Returns the number of units.
+     * @return the number of units.
+     */
+    public synchronized int getUnitCount() {
+        return unitIndexes.size();
+    }
+
+    /**
+     * Sets a unit's location. This method has no effect if the unit has not been added.
+     * @param uniqueId the unit's unique ID.
+     * @param longitude the unit's longitude.
+     * @param latitude the unit's latitude.
+     * @param heading the unit's heading, in degrees.
+     * @param fixTime the time of the location fix, in milliseconds since the epoch.
+     */
+    public synchronized void setLocation(String uniqueId, double longitude, double latitude,
+            double heading, long fixTime) {
+        Integer unit = unitIndexes.get(uniqueId);
+        if (null != unit) {
+            longitudes[unit] = longitude;
+            latitudes[unit] = latitude;
+            headings[unit] = heading;
+            fixTimes[unit] = fixTime;
+            hasLocation[unit] = true;
+        }
+    }
+
+    /**
+     * Sets a unit's location. This method has no effect if the unit has not been added.
+     * @param uniqueId the unit's unique ID.
+     * @param location the unit's location.
+     */
+    public void setLocation(String uniqueId, Location location) {
+        long fixTime = null == location.getTimestamp()
+                ? System.currentTimeMillis() : location.getTimestamp().getTimeInMillis();
+        setLocation(uniqueId, location.getLongitude(), location.getLatitude(), location.getHeading(), fixTime);
+    }
+
+    /**
+     * Returns a LocationListener that sets the specified unit's location, so that
+     * a LocationController for each unit can feed this controller.
+     * @param uniqueId the unit's unique ID.
+     * @return a LocationListener for the unit.
+     */
+    public LocationListener createLocationListener(final String uniqueId) {
+        return new LocationListener() {
+
+            @Override
+            public void onLocationChanged(Location location) {
+                setLocation(uniqueId, location);
+            }
+
+            @Override
+            public void onStateChanged(LocationProvider.LocationProviderState state) {
+
+            }
+
+        };
+    }
+
+    /**
+     * Activates or deactivates 911 (emergency) status for a unit. If the controller
+     * is enabled, activating or deactivating 911 status sends the unit's report
+     * right away on the emergency lane.
+     * @param uniqueId the unit's unique ID.
+     * @param status911 true to activate 911 status.
+     */
+    public synchronized void setStatus911(String uniqueId, boolean status911) {
+        Integer unit = unitIndexes.get(uniqueId);
+        if (null != unit && this.status911[unit] != status911) {
+            this.status911[unit] = status911;
+            status911Changed[unit] = true;
+            nextReportTimes[unit] = 0;
+            if (enabled) {
+                scheduler.executeUrgent(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        sendDueReports(System.currentTimeMillis());
+                    }
+
+                });
+            }
+        }
+    }
+
+    /**
+     * Sets a unit's period.
+     * @param uniqueId the unit's unique ID.
+     * @param period the minimum number of milliseconds between the unit's position
+     *               reports. A non-positive number means PositionReportController.DEFAULT_PERIOD.
+     */
+    public synchronized void setPeriod(String uniqueId, int period) {
+        Integer unit = unitIndexes.get(uniqueId);
+        if (null != unit) {
+            periods[unit] = 0 < period ? period : PositionReportController.DEFAULT_PERIOD;
+            nextReportTimes[unit] = Math.min(nextReportTimes[unit], System.currentTimeMillis() + periods[unit]);
+        }
+    }
+
+    /**
+     * Sets a unit's priority.
+     * @param uniqueId the unit's unique ID.
+     * @param priority the unit's priority. When many reports are due at once, units
+     *                 with higher priority values go first.
+     */
+    public synchronized void setPriority(String uniqueId, int priority) {
+        Integer unit = unitIndexes.get(uniqueId);
+        if (null != unit) {
+            priorities[unit] = priority;
+        }
+    }
+
+    /**
+     * Sets the number of periods between full position reports for each unit. See
+     * PositionReportController.setKeyframeInterval(int) for details. Reports on
+     * the emergency lane are always full reports.
+     * @param keyframeInterval the number of periods between full position reports.
+     *                         Values less than 1 are treated as 1.
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        deltaEncoder.setKeyframeInterval(Math.max(1, keyframeInterval));
+    }
+
+    /**
+     * @return the number of periods between full position reports for each unit.
+     */
+    public int getKeyframeInterval() {
+        return deltaEncoder.getKeyframeInterval();
+    }
+
+    /**
+     * Sets whether this controller should send position reports or not.
+     * @param enabled true if this controller should send position reports.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (this.enabled != enabled) {
+            this.enabled = enabled;
+            if (enabled) {
+                startTicking();
+            } else if (null != tickTask) {
+                tickTask.cancel(false);
+                tickTask = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the controller is sending position reports.
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of milliseconds between ticks.
+     */
+    public synchronized int getTickInterval() {
+        return tickInterval;
+    }
+
+    /**
+     * Sets the number of milliseconds between ticks. Each unit's reports are sent
+     * on the first tick after they are due, so the tick interval should be shorter
+     * than the shortest unit period.
+     * @param tickInterval the number of milliseconds between ticks. A non-positive
+     *                     number means DEFAULT_TICK_INTERVAL.
+     */
+    public synchronized void setTickInterval(int tickInterval) {
+        this.tickInterval = 0 < tickInterval ? tickInterval : DEFAULT_TICK_INTERVAL;
+        if (enabled) {
+            startTicking();
+        }
+    }
+
+    private void startTicking() {
+        if (null != tickTask) {
+            tickTask.cancel(false);
+        }
+        tickTask = scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                sendDueReports(System.currentTimeMillis());
+            }
+
+        }, 0, tickInterval);
+    }
+
+    /**
+     * Sends the reports that are due at the specified time, packed into as few
+     * datagrams as possible. The controller calls this method every tick when it
+     * is enabled.
+     * @param now the current time, in milliseconds since the epoch.
+     * @return the number of reports sent.
+     */
+    public int sendDueReports(long now) {
+        //Only ticks and 911 changes wait on this lock; unit updates never do
+        synchronized (sendLock) {
+            String[] dueIds;
+            Map<String, String>[] dueFields;
+            int urgentCount = 0;
+            synchronized (this) {
+                //Find due units, and sort them by urgency, then priority, then slot
+                int dueCount = 0;
+                for (int unit = 0; unit < unitSlotCount; unit++) {
+                    if (null == uniqueIds[unit] || !hasLocation[unit]) {
+                        continue;
+                    }
+                    if (NOT_STARTED == nextReportTimes[unit]) {
+                        //Offset each unit's first report so a large fleet does not report in one burst
+                        nextReportTimes[unit] = now + getFirstReportPhase(unit);
+                    }
+                    if (now >= nextReportTimes[unit]) {
+                        if (dueKeys.length == dueCount) {
+                            dueKeys = Arrays.copyOf(dueKeys, dueKeys.length * 2);
+                        }
+                        boolean urgent = status911[unit] || status911Changed[unit];
+                        if (urgent) {
+                            urgentCount++;
+                            status911Changed[unit] = false;
+                        }
+                        dueKeys[dueCount++] = (urgent ? 0L : 1L << 62)
+                                | (((long) Integer.MAX_VALUE - priorities[unit]) << UNIT_BITS)
+                                | unit;
+                        nextReportTimes[unit] = now + periods[unit];
+                    }
+                }
+                Arrays.sort(dueKeys, 0, dueCount);
+
+                //Copy what the reports need so they can be built outside the lock
+                dueIds = new String[dueCount];
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                Map<String, String>[] fields = new Map[dueCount];
+                dueFields = fields;
+                for (int i = 0; i < dueCount; i++) {
+                    int unit = (int) (dueKeys[i] & UNIT_MASK);
+                    dueIds[i] = uniqueIds[unit];
+                    dueFields[i] = PositionReportController.createReportFields(
+                            symbolIdCodes[unit], vehicleTypes[unit], usernames[unit],
+                            longitudes[unit], latitudes[unit], fixTimes[unit],
+                            headings[unit], status911[unit]);
+                }
+            }
+
+            if (0 == dueIds.length) {
+                return 0;
+            }
+            GeomessagesPacker packer = new GeomessagesPacker(MessageController.MAX_MESSAGE_LENGTH);
+            int sent = 0;
+            for (int i = 0; i < dueIds.length; i++) {
+                if (i == urgentCount) {
+                    sendDatagrams(packer, true);
+                }
+                try {
+                    if (i < urgentCount) {
+                        //Emergency reports are keyframes, so a receiver that missed one can read them
+                        deltaEncoder.reset(dueIds[i]);
+                    }
+                    Map<String, String> encodedFields = deltaEncoder.encode(dueIds[i], dueFields[i]);
+                    packer.add(Utilities.nodeToString(
+                            PositionReportController.createReportDocument(dueIds[i], encodedFields).getNode()));
+                    sent++;
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "Could not create position report for " + dueIds[i], t);
+                }
+            }
+            sendDatagrams(packer, urgentCount == dueIds.length);
+            return sent;
+        }
+    }
+
+    private long getFirstReportPhase(int unit) {
+        switch (scheduler.getPhaseMode()) {
+            case HASH:
+                return ReportScheduler.getHashPhase(uniqueIds[unit], periods[unit]);
+            case EVEN:
+                return ReportScheduler.getEvenPhase(unit, periods[unit]);
+            default:
+                return 0;
+        }
+    }
+
+    private void sendDatagrams(GeomessagesPacker packer, boolean urgent) {
+        for (byte[] datagram : packer.finish()) {
+            try {
+                messageController.sendMessage(datagram, urgent);
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "Could not send position reports", t);
+            }
+        }
+    }
+
+    private int allocateSlot() {
+        if (0 < freeSlotCount) {
+            return freeSlots[--freeSlotCount];
+        }
+        if (unitSlotCount == uniqueIds.length) {
+            int capacity = uniqueIds.length * 2;
+            uniqueIds = Arrays.copyOf(uniqueIds, capacity);
+            usernames = Arrays.copyOf(usernames, capacity);
+            vehicleTypes = Arrays.copyOf(vehicleTypes, capacity);
+            symbolIdCodes = Arrays.copyOf(symbolIdCodes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            headings = Arrays.copyOf(headings, capacity);
+            fixTimes = Arrays.copyOf(fixTimes, capacity);
+            nextReportTimes = Arrays.copyOf(nextReportTimes, capacity);
+            periods = Arrays.copyOf(periods, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+            hasLocation = Arrays.copyOf(hasLocation, capacity);
+            status911 = Arrays.copyOf(status911, capacity);
+            status911Changed = Arrays.copyOf(status911Changed, capacity);
+        }
+        return unitSlotCount++;
+    }
+
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays the datagrams in a DatagramJournal through a MessageController, so that
+ * its listeners see the recorded traffic as if it were arriving from the network.
+ * Replay runs at the recorded pace (speed 1), N times faster (speed N), or as fast
+ * as possible (speed MAX_SPEED), and can seek to any time in the journal.<br/>
+ * <br/>
+ * Call start() to replay on a background thread, or replay(long, long) to replay
+ * a time range on the calling thread.
+ */
+public class JournalReplayer {
+
+    private static final Logger logger = Logger.getLogger(JournalReplayer.class.getName());
+
+    /**
+     * The speed that replays datagrams as fast as possible.
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final DatagramJournal journal;
+    private final MessageController messageController;
+    private final Object lock = new Object();
+
+    //Guarded by lock
+    private double speed = 1;
+    private long seekTime = Long.MIN_VALUE;
+    private boolean seekPending = true;
+    private long position = Long.MIN_VALUE;
+    private boolean resumable = false;
+    private long resumePosition = 0;
+    private Thread replayThread = null;
+
+    /**
+     * Creates a new JournalReplayer that starts at the beginning of the journal.
+     * @param journal the journal to replay.
+     * @param messageController the controller whose listeners receive the datagrams.
+     */
+    public JournalReplayer(DatagramJournal journal, MessageController messageController) {
+        this.journal = journal;
+        this.messageController = messageController;
+    }
+
+    /**
+     * @return the replay speed.
+     */
+    public double getSpeed() {
+        synchronized (lock) {
+            return speed;
+        }
+    }
+
+    /**
+     * Sets the replay speed. Speed 1 replays at the recorded pace, 2 replays twice
+     * as fast, and MAX_SPEED replays without waiting. The default is 1.
+     * @param speed the replay speed, which must be positive.
+     */
+    public void setSpeed(double speed) {
+        if (!(0 < speed)) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        synchronized (lock) {
+            this.speed = speed;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Moves replay to the first datagram received at or after a time.
+     * @param time the time, in milliseconds since the epoch.
+     */
+    public void seek(long time) {
+        synchronized (lock) {
+            seekTime = time;
+            seekPending = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the receive time of the last datagram replayed, or Long.MIN_VALUE
+     *         if none has been replayed.
+     */
+    public long getPosition() {
+        synchronized (lock) {
+            return position;
+        }
+    }
+
+    /**
+     * Replays the datagrams received in a time range on the calling thread, as
+     * fast as possible, regardless of the replay speed.
+     * @param fromTime the start of the range, in milliseconds since the epoch.
+     * @param toTime the end of the range, exclusive.
+     * @return the number of datagrams replayed.
+     * @throws IOException if the journal cannot be read.
+     */
+    public int replay(long fromTime, long toTime) throws IOException {
+        DatagramJournal.Cursor cursor = journal.openCursor(fromTime);
+        int count = 0;
+        try {
+            while (cursor.next() && cursor.getReceiveTime() < toTime) {
+                inject(cursor);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * Starts replaying on a background thread from the current position. Replay
+     * stops at the end of the journal.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (null != replayThread) {
+                return;
+            }
+            replayThread = new Thread("JournalReplayer") {
+
+                @Override
+                public void run() {
+                    try {
+                        replayLoop();
+                    } catch (IOException ioe) {
+                        logger.log(Level.SEVERE, "Could not read journal", ioe);
+                    } catch (InterruptedException ie) {
+                        //Stopped
+                    } finally {
+                        synchronized (lock) {
+                            if (replayThread == Thread.currentThread()) {
+                                replayThread = null;
+                            }
+                        }
+                    }
+                }
+
+            };
+            replayThread.setDaemon(true);
+            replayThread.start();
+        }
+    }
+
+    /**
+     * Stops replaying. The next call to start() resumes after the last datagram
+     * replayed.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (lock) {
+            thread = replayThread;
+            replayThread = null;
+        }
+        if (null != thread) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return true if replay is running on a background thread.
+     */
+    public boolean isRunning() {
+        synchronized (lock) {
+            return null != replayThread;
+        }
+    }
+
+    private void replayLoop() throws IOException, InterruptedException {
+        DatagramJournal.Cursor cursor = null;
+        //The recorded time and wall-clock time that pacing is measured from
+        long anchorTime = 0;
+        long anchorNanos = 0;
+        double anchorSpeed = 0;
+        try {
+            while (true) {
+                synchronized (lock) {
+                    if (replayThread != Thread.currentThread()) {
+                        return;
+                    }
+                    if (seekPending || null == cursor) {
+                        if (null != cursor) {
+                            cursor.close();
+                        }
+                        if (seekPending || !resumable) {
+                            seekPending = false;
+                            resumable = false;
+                            cursor = journal.openCursor(seekTime);
+                        } else {
+                            //Resume after the last record replayed, even if later records share its time
+                            cursor = journal.openCursorAt(resumePosition);
+                        }
+                        anchorSpeed = 0;
+                    }
+                }
+                if (!cursor.next()) {
+                    return;
+                }
+                long time = cursor.getReceiveTime();
+                synchronized (lock) {
+                    while (!seekPending) {
+                        if (anchorSpeed != speed) {
+                            //Start pacing from this datagram
+                            anchorSpeed = speed;
+                            anchorTime = time;
+                            anchorNanos = System.nanoTime();
+                        }
+                        if (Double.isInfinite(speed)) {
+                            break;
+                        }
+                        long dueNanos = anchorNanos + (long) ((time - anchorTime) * 1000000.0 / speed);
+                        long waitMillis = (dueNanos - System.nanoTime()) / 1000000;
+                        if (0 >= waitMillis) {
+                            break;
+                        }
+                        lock.wait(waitMillis);
+                        if (replayThread != Thread.currentThread()) {
+                            return;
+                        }
+                    }
+                    if (seekPending) {
+                        continue;
+                    }
+                    position = time;
+                    resumePosition = cursor.getNextRecordPosition();
+                    resumable = true;
+                }
+                inject(cursor);
+            }
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void inject(DatagramJournal.Cursor cursor) {
+        messageController.processDatagram(cursor.getSender(), cursor.getData(), cursor.getOffset(),
+                cursor.getLength(), cursor.getReceiveTime());
+    }
+
+}
@@ -17,12 +17,15 @@ package com.esri.militaryapps.controller;
 
 import com.esri.militaryapps.controller.LocationController.LocationMode;
 import com.esri.militaryapps.model.MapConfig;
+import com.esri.militaryapps.util.MgrsConverter;
+import com.esri.militaryapps.util.ProjectionEngine;
 import com.esri.militaryapps.util.Utilities;
 
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -51,8 +54,10 @@ public abstract class MapController implements LocationListener {
     
     private final List<MapControllerListener> listeners = new ArrayList<MapControllerListener>();
     private final List<MapConfigListener> mapConfigListeners = new ArrayList<MapConfigListener>();
+    private final List<MapExtentListener> extentListeners = new ArrayList<MapExtentListener>();
     
     private boolean mapReady = false;
+    private volatile boolean useMgrsConverter = false;
     private final LocationController locationController;
     
     /**
@@ -119,6 +124,24 @@ public abstract class MapController implements LocationListener {
         mapConfigListeners.remove(listener);
     }
 
+    /**
+     * Adds a MapExtentListener to this MapController.
+     * @param listener the listener to add.
+     */
+    public void addExtentListener(MapExtentListener listener) {
+        extentListeners.add(listener);
+    }
+    
+    /**
+     * Removes a MapExtentListener from this MapController. This method has
+     * no effect if this MapController does not have a reference to the specified
+     * listener.
+     * @param listener the listener to remove.
+     */
+    public void removeExtentListener(MapExtentListener listener) {
+        extentListeners.remove(listener);
+    }
+
     /**
      * Called by an implementing class when layers are added or removed.
      * @param isOverlay true if and only if an overlay layer was added or removed.
@@ -148,6 +171,15 @@ public abstract class MapController implements LocationListener {
         }
     }
     
+    /**
+     * Called by an implementing class when the map's visible extent changes.
+     */
+    protected void fireExtentChanged() {
+        for (MapExtentListener listener : extentListeners) {
+            listener.extentChanged();
+        }
+    }
+    
     /**
      * Resets the map and any controllers created by the map. Subclasses may override
      * this method, calling super.reset() in the overriding method.
@@ -389,6 +421,55 @@ public abstract class MapController implements LocationListener {
      */
     public abstract String pointToMgrs(double x, double y, int wkid);
     
+    /**
+     * Converts many X/Y points in the same spatial reference to Military Grid
+     * Reference System (MGRS) strings. By default, this implementation calls
+     * pointToMgrs for each point; override it if your SDK can convert many points
+     * in one call. If useMgrsConverter is set and ProjectionEngine supports the
+     * spatial reference, it converts the points with an MgrsConverter instead,
+     * without calling the SDK.
+     * @param xy the points' coordinates, interleaved: x0, y0, x1, y1, etc.
+     * @param wkid the WKID for the points' spatial reference.
+     * @return the MGRS strings, one per point, in the same order as the points.
+     */
+    public String[] pointsToMgrs(double[] xy, int wkid) {
+        String[] mgrs;
+        if (useMgrsConverter && ProjectionEngine.isSupported(wkid)) {
+            double[] lonLat = Arrays.copyOf(xy, xy.length & ~1);
+            ProjectionEngine.project(lonLat, 0, lonLat.length / 2, wkid, ProjectionEngine.WKID_WGS1984);
+            mgrs = new MgrsConverter().encode(lonLat);
+        } else {
+            mgrs = new String[xy.length / 2];
+        }
+        for (int i = 0; i < mgrs.length; i++) {
+            //Let the SDK handle what MgrsConverter cannot
+            if (null == mgrs[i]) {
+                mgrs[i] = pointToMgrs(xy[2 * i], xy[2 * i + 1], wkid);
+            }
+        }
+        return mgrs;
+    }
+    
+    /**
+     * Returns true if pointsToMgrs uses an MgrsConverter where it can.
+     * @return true if pointsToMgrs uses an MgrsConverter where it can.
+     */
+    public boolean isUseMgrsConverter() {
+        return useMgrsConverter;
+    }
+    
+    /**
+     * Sets whether pointsToMgrs converts points with an MgrsConverter, at 1-meter
+     * precision, instead of calling pointToMgrs. The converter's strings have no
+     * spaces and no zone number padding, which may differ from the SDK's format.
+     * @param useMgrsConverter true if pointsToMgrs should use an MgrsConverter for
+     *                         spatial references that ProjectionEngine supports.
+     *                         The default is false.
+     */
+    public void setUseMgrsConverter(boolean useMgrsConverter) {
+        this.useMgrsConverter = useMgrsConverter;
+    }
+    
     /**
      * Projects a point from one spatial reference to another.
      * @param x the original X-value.
@@ -401,4 +482,52 @@ public abstract class MapController implements LocationListener {
      */
     public abstract double[] projectPoint(double x, double y, int fromWkid, int toWkid);
     
+    /**
+     * Projects points in place, as projectPoint does for one point. If the WKIDs
+     * are equal, the points are left as they are.
+     * @param xy the points, as x0, y0, x1, y1, and so on. The projected points
+     *           replace them.
+     * @param fromWkid the WKID for the original spatial reference.
+     * @param toWkid the WKID for the destination spatial reference.
+     */
+    public void projectPoints(double[] xy, int fromWkid, int toWkid) {
+        projectPoints(xy, 0, xy.length / 2, fromWkid, toWkid);
+    }
+    
+    /**
+     * Projects some of the points in an array in place, as projectPoint does for
+     * one point. If the WKIDs are equal, the points are left as they are. This
+     * implementation projects between the spatial references that ProjectionEngine
+     * supports without calling the SDK, and calls projectPoint for each point
+     * otherwise; override it if your SDK can project many points in one call.
+     * @param xy the points, as x0, y0, x1, y1, and so on. The projected points
+     *           replace them.
+     * @param offset the index in xy of the first point's X-value.
+     * @param count the number of points to project.
+     * @param fromWkid the WKID for the original spatial reference.
+     * @param toWkid the WKID for the destination spatial reference.
+     */
+    public void projectPoints(double[] xy, int offset, int count, int fromWkid, int toWkid) {
+        if (ProjectionEngine.project(xy, offset, count, fromWkid, toWkid)) {
+            return;
+        }
+        int end = offset + 2 * count;
+        for (int i = offset; i < end; i += 2) {
+            double[] point = projectPoint(xy[i], xy[i + 1], fromWkid, toWkid);
+            xy[i] = point[0];
+            xy[i + 1] = point[1];
+        }
+    }
+    
+    /**
+     * Returns the WKID of the map's spatial reference, the spatial reference of
+     * the points that toMapPoint returns. This implementation returns 0, meaning
+     * unknown; override it to enable features that need it, such as viewport
+     * culling in AdvancedSymbolController.
+     * @return the WKID of the map's spatial reference, or 0 if it is unknown.
+     */
+    public int getSpatialReferenceWkid() {
+        return 0;
+    }
+    
 }
@@ -16,18 +16,31 @@
 package com.esri.militaryapps.controller;
 
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageDeltaDecoder;
 import com.esri.militaryapps.model.GeomessagesReader;
+import com.esri.militaryapps.model.MessageFragmenter;
+import com.esri.militaryapps.model.MessageReassembler;
 import com.esri.militaryapps.util.Utilities;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
@@ -38,19 +51,147 @@ import org.xml.sax.SAXException;
 /**
  * A controller that sends messages to listening clients and receives inbound messages.
  * This implementation sends and receives UDP broadcasts. You can use this controller
- * in send-only mode by calling setBindAndListen(false).
+ * in send-only mode by calling setBindAndListen(false).<br/>
+ * <br/>
+ * Messages longer than MAX_MESSAGE_LENGTH are split into fragments before sending
+ * and put back together when received. Keyframes and deltas sent with a
+ * GeomessageDeltaEncoder are rebuilt into full Geomessages before listeners
+ * see them.<br/>
+ * <br/>
+ * Emergency traffic has its own lane. Urgent outbound messages (see
+ * sendMessage(byte[], boolean)) use their own socket, so they never wait for a
+ * routine send in progress. Inbound messages with 911 status are delivered to
+ * listeners ahead of routine messages for other IDs still waiting to be delivered.
+ * Messages with the same type and ID are always delivered in the order received,
+ * so a newer routine report never undoes an older emergency, or the other way
+ * around; an emergency message waiting behind a routine message for its ID raises
+ * that message to the emergency lane instead. A "removeall" message is delivered
+ * after every earlier message of its type and before every later one.<br/>
+ * <br/>
+ * A DatagramRecorder, such as a DatagramJournal, can record every datagram as it
+ * is received, and processDatagram injects recorded datagrams back into the
+ * listener pipeline.
+ * @see MessageFragmenter
+ * @see MessageReassembler
+ * @see GeomessageDeltaDecoder
  */
 public class MessageController {
     
-    private static final int MAX_MESSAGE_LENGTH = 6000;
+    /**
+     * The maximum length of an outbound datagram, in bytes. Longer messages are
+     * sent as multiple fragments.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 6000;
+    
+    /**
+     * The maximum payload of a UDP datagram. Inbound datagrams from other senders
+     * may be longer than MAX_MESSAGE_LENGTH, so the inbound buffer is this size.
+     */
+    private static final int MAX_INBOUND_DATAGRAM_LENGTH = 65507;
     private static final Logger logger = Logger.getLogger(MessageController.class.getName());
+    //IPTOS_LOWDELAY; networks that honor the type of service field forward urgent datagrams first
+    private static final int URGENT_TRAFFIC_CLASS = 0x10;
+    private static final List<Geomessage> NO_GEOMESSAGES = Collections.emptyList();
+
+    /**
+     * Delivers one inbound datagram or Geomessage to one listener. Tasks for
+     * emergency messages sort first; otherwise tasks run in arrival order. Tasks
+     * with a lane key run one at a time, in arrival order, within their lane. A
+     * task with a message type but no lane key is a removeall, which runs after
+     * the tasks of its type that arrived before it and before those that arrive
+     * after it.
+     */
+    private abstract class DispatchTask implements Runnable, Comparable<DispatchTask> {
+
+        private final String messageType;
+        private final String laneKey;
+        private final long sequence = dispatchSequenceCounter.getAndIncrement();
+        //Guarded by the dispatch queue while queued, and by lanes otherwise
+        private boolean urgent;
+
+        DispatchTask(boolean urgent, String messageType, String laneKey) {
+            this.urgent = urgent;
+            this.messageType = messageType;
+            this.laneKey = laneKey;
+        }
+
+        abstract void deliver();
+
+        @Override
+        public void run() {
+            try {
+                deliver();
+            } finally {
+                if (null != laneKey) {
+                    finishLaneTask(this);
+                } else if (null != messageType) {
+                    finishRemoveAllTask(this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(DispatchTask other) {
+            if (urgent != other.urgent) {
+                return urgent ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+    }
+
+    /**
+     * The tasks for one message type and ID. Only the lane's head task is in the
+     * dispatch queue; the others wait here until it finishes.
+     */
+    private static class DispatchLane {
+
+        private DispatchTask head;
+        private final ArrayDeque<DispatchTask> waiting = new ArrayDeque<DispatchTask>();
+
+    }
+
+    /**
+     * A removeall for one message type that is waiting for, or running after, the
+     * lanes of its type that were open when it arrived. Later tasks of its type
+     * are held here until it finishes.
+     */
+    private static class RemoveAllBarrier {
+
+        private final DispatchTask removeAll;
+        private int openLaneCount = 0;
+        private final ArrayDeque<DispatchTask> held = new ArrayDeque<DispatchTask>();
+
+        private RemoveAllBarrier(DispatchTask removeAll) {
+            this.removeAll = removeAll;
+        }
+
+    }
+
+    /**
+     * Returns true if a Geomessage has 911 (emergency) status.
+     */
+    static boolean isStatus911(Geomessage message) {
+        Object status911 = message.getProperty("status911");
+        return "1".equals(status911) || "true".equals(status911);
+    }
 
     private final DatagramSocket outboundUdpSocket;
     private final DatagramPacket outboundPacket;
+    private final DatagramSocket urgentUdpSocket;
+    private final DatagramPacket urgentPacket;
+    private final ThreadPoolExecutor dispatchExecutor;
+    private final AtomicLong dispatchSequenceCounter = new AtomicLong();
+    private final HashMap<String, DispatchLane> lanes = new HashMap<String, DispatchLane>();
+    //Guarded by lanes
+    private final HashMap<String, RemoveAllBarrier> removeAllBarriers = new HashMap<String, RemoveAllBarrier>();
     private final DatagramPacket inboundPacket;
     private final Set<MessageControllerListener> listeners = new HashSet<MessageControllerListener>();
     private final GeomessagesReader reader;
     private final Object inboundLock = new Object();
+    private final MessageFragmenter fragmenter = new MessageFragmenter(MAX_MESSAGE_LENGTH);
+    private final MessageReassembler reassembler = new MessageReassembler();
+    private final GeomessageDeltaDecoder deltaDecoder = new GeomessageDeltaDecoder();
     
     private Thread inboundThread = null;
     private DatagramSocket inboundUdpSocket = null;
@@ -60,6 +201,7 @@ public class MessageController {
             "position_report"
             ));
     private boolean bindAndListen = true;
+    private volatile DatagramRecorder datagramRecorder = null;
 
     /**
      * Creates a MessageController for the given UDP port.
@@ -86,8 +228,39 @@ public class MessageController {
         outboundUdpSocket = theSocket;
         outboundPacket = thePacket;
         
-        byte[] byteArray = new byte[MAX_MESSAGE_LENGTH];
-        inboundPacket = new DatagramPacket(byteArray, MAX_MESSAGE_LENGTH);
+        theSocket = null;
+        thePacket = null;
+        try {
+            theSocket = new DatagramSocket();
+            thePacket = new DatagramPacket(new byte[0], 0);
+            thePacket.setPort(messagingPort);
+            try {
+                theSocket.setTrafficClass(URGENT_TRAFFIC_CLASS);
+            } catch (SocketException se) {
+                logger.log(Level.FINE, "Could not set traffic class for urgent messages", se);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+        urgentUdpSocket = theSocket;
+        urgentPacket = thePacket;
+        
+        int dispatchThreadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+        dispatchExecutor = new ThreadPoolExecutor(dispatchThreadCount, dispatchThreadCount,
+                30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MessageController-dispatch");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        dispatchExecutor.allowCoreThreadTimeOut(true);
+        
+        byte[] byteArray = new byte[MAX_INBOUND_DATAGRAM_LENGTH];
+        inboundPacket = new DatagramPacket(byteArray, MAX_INBOUND_DATAGRAM_LENGTH);
         
         GeomessagesReader theReader = null;
         try {
@@ -139,22 +312,58 @@ public class MessageController {
     }
     
     /**
-     * Sends a UDP broadcast.
+     * Sends a UDP broadcast. If the message is longer than MAX_MESSAGE_LENGTH,
+     * it is sent as multiple fragments, which a receiving MessageController puts
+     * back together.
      * @param bytes the message.
      * @throws IOException if the message cannot be sent.
      */
     public void sendMessage(byte[] bytes) throws IOException {
-        synchronized (outboundPacket) {
-            outboundPacket.setData(bytes);
-            outboundPacket.setLength(bytes.length);
+        sendMessage(bytes, false);
+    }
+    
+    /**
+     * Sends a UDP broadcast.
+     * @param doc the DOM document to be converted to a string and broadcast.
+     * @param urgent true if the message is an emergency message. See sendMessage(byte[], boolean).
+     */
+    public void sendMessage(Document doc, boolean urgent) throws TransformerException, IOException {
+        sendMessage(Utilities.documentToString(doc).getBytes(), urgent);
+    }
+    
+    /**
+     * Sends a UDP broadcast. If the message is longer than MAX_MESSAGE_LENGTH,
+     * it is sent as multiple fragments, which a receiving MessageController puts
+     * back together.
+     * @param bytes the message.
+     * @param urgent true if the message is an emergency message, such as a report
+     *               with 911 status. Urgent messages are sent through a separate
+     *               socket marked for low delay, so they do not wait for routine
+     *               messages being sent on other threads.
+     * @throws IOException if the message cannot be sent.
+     */
+    public void sendMessage(byte[] bytes, boolean urgent) throws IOException {
+        List<byte[]> datagrams;
+        try {
+            datagrams = fragmenter.fragment(bytes);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException(iae.getMessage(), iae);
+        }
+        DatagramSocket socket = urgent ? urgentUdpSocket : outboundUdpSocket;
+        DatagramPacket packet = urgent ? urgentPacket : outboundPacket;
+        synchronized (packet) {
             Set<InetAddress> udpBroadcastAddresses = Utilities.getUdpBroadcastAddresses();
-            for (InetAddress addr : udpBroadcastAddresses) {
-                if (null != addr) {
-                    outboundPacket.setAddress(addr);
-                    try {
-                        outboundUdpSocket.send(outboundPacket);
-                    } catch (Throwable t) {
-                        logger.log(Level.WARNING, "Could not send message to address " + addr, t);
+            for (byte[] datagram : datagrams) {
+                packet.setData(datagram);
+                packet.setLength(datagram.length);
+                for (InetAddress addr : udpBroadcastAddresses) {
+                    if (null != addr) {
+                        packet.setAddress(addr);
+                        try {
+                            socket.send(packet);
+                        } catch (Throwable t) {
+                            logger.log(Level.WARNING, "Could not send message to address " + addr, t);
+                        }
                     }
                 }
             }
@@ -163,7 +372,10 @@ public class MessageController {
             List<Geomessage> messages = reader.parseMessages(new String(bytes));
             synchronized (messages) {
                 for (int i = 0; i < messages.size(); i++) {
-                    Geomessage message = messages.get(i);
+                    Geomessage message = deltaDecoder.decode(messages.get(i));
+                    if (null == message) {
+                        continue;
+                    }
                     String messageType = AdvancedSymbolController.getInboundMessageTypeName((String) message.getProperty("_type"));
                     synchronized (listeners) {
                         for (MessageControllerListener listener : listeners) {
@@ -181,6 +393,165 @@ public class MessageController {
         }
     }
     
+    /**
+     * Processes a datagram as if this controller had received it: reassembles
+     * fragments, decodes deltas, and notifies listeners. The receive thread calls
+     * this method for each datagram; call it from any thread to inject datagrams
+     * from another source, such as a JournalReplayer.
+     * @param sender the datagram's sender, which identifies the fragments of a message.
+     * @param data the buffer that holds the datagram.
+     * @param offset the datagram's offset in the buffer.
+     * @param length the datagram's length.
+     * @param receiveTime the time the datagram was received, in milliseconds since the epoch.
+     */
+    public void processDatagram(SocketAddress sender, byte[] data, int offset, int length, long receiveTime) {
+        final String msgString;
+        if (MessageFragmenter.isFragment(data, offset, length)) {
+            byte[] message = reassembler.addFragment(sender, data, offset, length, receiveTime);
+            if (null == message) {
+                //Wait for the rest of the fragments
+                return;
+            }
+            msgString = new String(message);
+        } else {
+            msgString = new String(data, offset, length);
+        }
+        List<Geomessage> messages;
+        try {
+            messages = reader.parseMessages(msgString);
+        } catch (SAXException ex) {
+            logger.log(Level.FINE, "Couldn't get Geomessages from string: '" + msgString + "'", ex);
+            messages = NO_GEOMESSAGES;
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Couldn't get Geomessages from string: '" + msgString + "'", ex);
+            messages = NO_GEOMESSAGES;
+        }
+        ArrayList<Geomessage> decodedMessages = new ArrayList<Geomessage>(messages.size());
+        boolean datagramUrgent = false;
+        synchronized (messages) {
+            for (Geomessage receivedMessage : messages) {
+                Geomessage message = deltaDecoder.decode(receivedMessage);
+                //A null message is a delta without a keyframe; wait for the next keyframe
+                if (null != message) {
+                    decodedMessages.add(message);
+                    datagramUrgent |= isStatus911(message);
+                }
+            }
+        }
+        synchronized (listeners) {
+            for (final MessageControllerListener listener : listeners) {
+                dispatch(new DispatchTask(datagramUrgent, null, null) {
+
+                    @Override
+                    void deliver() {
+                        listener.datagramReceived(msgString);
+                    }
+
+                });
+            }
+            for (final Geomessage message : decodedMessages) {
+                if (null != senderUsername
+                        && senderUsername.equals(message.getProperty("uniquedesignation"))) {
+                    continue;
+                }
+                boolean urgent = isStatus911(message);
+                String messageType = TrackRegistry.getMessageType(message);
+                String laneKey = null;
+                if (null != message.getId()) {
+                    laneKey = messageType + '\u0000' + message.getId();
+                } else if (!Geomessage.ACTION_REMOVE_ALL.equalsIgnoreCase(TrackRegistry.getAction(message))) {
+                    //Neither a track nor a removeall, so it need not be ordered
+                    messageType = null;
+                }
+                for (final MessageControllerListener listener : listeners) {
+                    dispatch(new DispatchTask(urgent, messageType, laneKey) {
+
+                        @Override
+                        void deliver() {
+                            listener.geomessageReceived(message);
+                        }
+
+                    });
+                }
+            }
+        }
+    }
+    
+    private void dispatch(DispatchTask task) {
+        if (null != task.messageType) {
+            synchronized (lanes) {
+                RemoveAllBarrier barrier = removeAllBarriers.get(task.messageType);
+                if (null != barrier) {
+                    barrier.held.add(task);
+                    return;
+                }
+                if (null == task.laneKey) {
+                    //Wait for the open lanes of the removeall's type, which take no new tasks meanwhile
+                    barrier = new RemoveAllBarrier(task);
+                    for (DispatchLane lane : lanes.values()) {
+                        if (task.messageType.equals(lane.head.messageType)) {
+                            barrier.openLaneCount++;
+                        }
+                    }
+                    removeAllBarriers.put(task.messageType, barrier);
+                    if (0 < barrier.openLaneCount) {
+                        return;
+                    }
+                    dispatchExecutor.execute(task);
+                    return;
+                }
+                DispatchLane lane = lanes.get(task.laneKey);
+                if (null != lane) {
+                    lane.waiting.add(task);
+                    if (task.urgent && !lane.head.urgent && dispatchExecutor.remove(lane.head)) {
+                        //The head has not started yet; move it to the emergency lane
+                        lane.head.urgent = true;
+                        dispatchExecutor.execute(lane.head);
+                    }
+                    return;
+                }
+                lane = new DispatchLane();
+                lane.head = task;
+                lanes.put(task.laneKey, lane);
+            }
+        }
+        dispatchExecutor.execute(task);
+    }
+
+    private void finishLaneTask(DispatchTask task) {
+        DispatchTask next;
+        synchronized (lanes) {
+            DispatchLane lane = lanes.get(task.laneKey);
+            next = lane.waiting.poll();
+            if (null == next) {
+                lanes.remove(task.laneKey);
+                RemoveAllBarrier barrier = removeAllBarriers.get(task.messageType);
+                if (null != barrier && 0 == --barrier.openLaneCount) {
+                    dispatchExecutor.execute(barrier.removeAll);
+                }
+                return;
+            }
+            for (DispatchTask waiting : lane.waiting) {
+                if (waiting.urgent) {
+                    next.urgent = true;
+                    break;
+                }
+            }
+            lane.head = next;
+        }
+        dispatchExecutor.execute(next);
+    }
+
+    private void finishRemoveAllTask(DispatchTask task) {
+        synchronized (lanes) {
+            RemoveAllBarrier barrier = removeAllBarriers.remove(task.messageType);
+            //Dispatch the held tasks in order; a held removeall puts up the next barrier
+            for (DispatchTask held : barrier.held) {
+                dispatch(held);
+            }
+        }
+    }
+    
     /**
      * Tells this controller to bind a socket to the specified port and start
      * receiving messages, notifying this controller's listeners as appropriate.
@@ -206,45 +577,18 @@ public class MessageController {
                                     //This probably means the socket was closed and it's time to stop receiving.
                                     break;
                                 }
-                                final String msgString = new String(inboundPacket.getData(), inboundPacket.getOffset(), inboundPacket.getLength());
-                                synchronized (listeners) {
-                                    for (final MessageControllerListener listener : listeners) {
-                                        new Thread() {
-
-                                            @Override
-                                            public void run() {
-                                                listener.datagramReceived(msgString);
-                                            }
-
-                                        }.start();
-                                    }
-                                }
-                                try {
-                                    List<Geomessage> messages = reader.parseMessages(msgString);
-                                    synchronized (messages) {
-                                        for (final Geomessage message : messages) {
-                                            synchronized (listeners) {
-                                                for (final MessageControllerListener listener : listeners) {
-                                                    new Thread() {
-
-                                                        @Override
-                                                        public void run() {
-                                                            if (null == senderUsername ||
-                                                                    !senderUsername.equals(message.getProperty("uniquedesignation"))) {
-                                                                listener.geomessageReceived(message);
-                                                            }
-                                                        }
-
-                                                    }.start();                                    
-                                                }
-                                            }
-                                        }
+                                long receiveTime = System.currentTimeMillis();
+                                DatagramRecorder recorder = datagramRecorder;
+                                if (null != recorder) {
+                                    try {
+                                        recorder.recordDatagram(receiveTime, inboundPacket.getSocketAddress(),
+                                                inboundPacket.getData(), inboundPacket.getOffset(), inboundPacket.getLength());
+                                    } catch (Throwable t) {
+                                        logger.log(Level.SEVERE, "DatagramRecorder failed", t);
                                     }
-                                } catch (SAXException ex) {
-                                    logger.log(Level.FINE, "Couldn't get Geomessages from string: '" + msgString + "'", ex);
-                                } catch (IOException ex) {
-                                    logger.log(Level.FINE, "Couldn't get Geomessages from string: '" + msgString + "'", ex);
                                 }
+                                processDatagram(inboundPacket.getSocketAddress(), inboundPacket.getData(),
+                                        inboundPacket.getOffset(), inboundPacket.getLength(), receiveTime);
                             }
                         } catch (IOException ex) {
                             logger.log(Level.SEVERE, null, ex);
@@ -293,6 +637,7 @@ public class MessageController {
             boolean changed = this.port != port;
             this.port = port;
             outboundPacket.setPort(port);
+            urgentPacket.setPort(port);
             if (changed && null != inboundThread && inboundThread.isAlive()) {
                 new Thread() {
 
@@ -366,4 +711,22 @@ public class MessageController {
         this.bindAndListen = listen;
     }
     
+    /**
+     * Returns the recorder that receives every inbound datagram, or null.
+     * @return the recorder that receives every inbound datagram, or null.
+     */
+    public DatagramRecorder getDatagramRecorder() {
+        return datagramRecorder;
+    }
+
+    /**
+     * Sets a recorder that receives every inbound datagram, including fragments,
+     * before it is processed. The recorder runs on the receive thread, so it
+     * should return quickly.
+     * @param datagramRecorder the recorder, or null to stop recording.
+     */
+    public void setDatagramRecorder(DatagramRecorder datagramRecorder) {
+        this.datagramRecorder = datagramRecorder;
+    }
+
 }
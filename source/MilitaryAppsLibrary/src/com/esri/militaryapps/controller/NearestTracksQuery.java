@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.Location;
+import com.esri.militaryapps.model.LocationProvider;
+import com.esri.militaryapps.util.Utilities;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A repeated query for the k tracks nearest to a moving location, such as the ten
+ * nearest friendly units or the nearest unit with 911 status. Add a NearestTracksQuery
+ * to a LocationController as a listener to run the query on every location change,
+ * or call update(double, double) directly.<br/>
+ * <br/>
+ * Each query reuses the previous results. If the location moved d meters since the
+ * last query and the k-th nearest track was r meters away, the new k nearest tracks
+ * are all within r + d meters unless tracks moved away in the meantime, so the search
+ * is limited to that distance and falls back to an unlimited search only when it
+ * finds fewer than k tracks. If neither the location nor the index changed, the
+ * previous results are returned without searching.
+ */
+public class NearestTracksQuery implements LocationListener {
+
+    private final TrackSpatialIndex index;
+    private final int k;
+    private final TrackSpatialIndex.TrackFilter filter;
+
+    private final ArrayList<Geomessage> results = new ArrayList<Geomessage>();
+    private double[] distances;
+    private boolean queried = false;
+    private double lastLongitude;
+    private double lastLatitude;
+    private long lastVersion;
+
+    /**
+     * Creates a new NearestTracksQuery.
+     * @param index the index to query.
+     * @param k the maximum number of tracks to find.
+     * @param filter the filter that tracks must pass, or null to accept all tracks.
+     */
+    public NearestTracksQuery(TrackSpatialIndex index, int k, TrackSpatialIndex.TrackFilter filter) {
+        this.index = index;
+        this.k = k;
+        this.filter = filter;
+        distances = new double[Math.max(0, k)];
+    }
+
+    /**
+     * Runs the query for a new location.
+     * @param lon the location's longitude.
+     * @param lat the location's latitude.
+     * @return the tracks found, nearest first. The list is replaced, not modified,
+     *         by later queries.
+     */
+    public synchronized List<Geomessage> update(double lon, double lat) {
+        long version = index.getVersion();
+        double moved = queried
+                ? Utilities.calculateDistanceMeters(lastLongitude, lastLatitude, lon, lat)
+                : Double.POSITIVE_INFINITY;
+        if (0 == moved && version == lastVersion) {
+            return getResults();
+        }
+        double bound = Double.POSITIVE_INFINITY;
+        if (queried && results.size() == k && 0 < k) {
+            bound = distances[k - 1] + moved;
+        }
+        results.clear();
+        int found = index.queryNearest(lon, lat, k, bound, filter, results, distances);
+        if (found < k && !Double.isInfinite(bound)) {
+            //Tracks moved away since the last query; search without a limit
+            results.clear();
+            index.queryNearest(lon, lat, k, Double.POSITIVE_INFINITY, filter, results, distances);
+        }
+        queried = true;
+        lastLongitude = lon;
+        lastLatitude = lat;
+        lastVersion = version;
+        return getResults();
+    }
+
+    /**
+     * @return the tracks found by the last query, nearest first.
+     */
+    public synchronized List<Geomessage> getResults() {
+        return new ArrayList<Geomessage>(results);
+    }
+
+    /**
+     * @return the distances, in meters, of the tracks found by the last query.
+     */
+    public synchronized double[] getDistances() {
+        return Arrays.copyOf(distances, results.size());
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        update(location.getLongitude(), location.getLatitude());
+    }
+
+    @Override
+    public void onStateChanged(LocationProvider.LocationProviderState state) {
+
+    }
+
+}
@@ -0,0 +1,703 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.util.Utilities;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A store of the current Geomessage of every track, keyed by Geomessage ID, that
+ * keeps its data outside the Java heap, for relays that track hundreds of
+ * thousands of entities without long garbage collection pauses. Heap use stays
+ * flat as tracks are added; all per-track data lives in three direct ByteBuffers:
+ * <ul>
+ * <li>Fixed-width slots of numeric fields: the first control point, the time
+ *     (datetimevalid), and numeric properties such as direction and speed.</li>
+ * <li>A string arena that holds each track's ID and its other properties. Arena
+ *     blocks come in power-of-two sizes with a free list per size, and a block is
+ *     rewritten in place when an update fits in it.</li>
+ * <li>An open-addressing hash index from ID to slot, with linear probing.</li>
+ * </ul>
+ * A numeric field is stored in its slot only if formatting the stored number
+ * gives back the original text, so get(String) returns a Geomessage with exactly
+ * the properties that were put. Other values are stored as text.<br/>
+ * <br/>
+ * Add an OffHeapTrackStore to a MessageController as a listener to keep it
+ * current, or call put and remove directly. Message types are translated as
+ * TrackRegistry translates them.
+ */
+public class OffHeapTrackStore implements MessageControllerListener {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ACTION_REMOVE = "REMOVE";
+    private static final String ALTERNATE_ACTION_FIELD_NAME = "_Action";
+    private static final String DATETIME_FIELD_NAME = "datetimevalid";
+
+    /**
+     * Properties that are stored as numbers when possible.
+     */
+    private static final String[] NUMERIC_FIELD_NAMES = {
+        Geomessage.WKID_FIELD_NAME, "direction", "speed", "status911", "quantity", "fuel_state"
+    };
+    private static final HashMap<String, Integer> NUMERIC_FIELDS = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < NUMERIC_FIELD_NAMES.length; i++) {
+            NUMERIC_FIELDS.put(NUMERIC_FIELD_NAMES[i], i);
+        }
+    }
+
+    //Slot layout
+    private static final int MASK_OFFSET = 0;
+    private static final int INTEGRAL_MASK_OFFSET = 4;
+    private static final int ID_OFFSET = 8;
+    private static final int TEXT_OFFSET = 12;
+    private static final int TYPE_OFFSET = 16;
+    private static final int X_OFFSET = 24;
+    private static final int Y_OFFSET = 32;
+    private static final int TIME_OFFSET = 40;
+    private static final int NUMERIC_OFFSET = 48;
+    private static final int SLOT_SIZE = NUMERIC_OFFSET + 8 * NUMERIC_FIELD_NAMES.length;
+    private static final int USED = 1;
+    private static final int HAS_CONTROL_POINT = 1 << 1;
+    private static final int HAS_TIME = 1 << 2;
+    private static final int FIRST_NUMERIC_BIT = 3;
+
+    //Arena block layout: size class, length, data
+    private static final int BLOCK_HEADER_LENGTH = 8;
+    private static final int MIN_BLOCK_BITS = 4;
+    private static final int SIZE_CLASS_COUNT = 28;
+
+    //Index entry layout: hash, slot + 1 (0 means empty)
+    private static final int ENTRY_LENGTH = 8;
+
+    private static final int NONE = -1;
+
+    private ByteBuffer slots;
+    private int slotCapacity;
+    private int slotCount = 0;
+    private int freeSlot = NONE;
+
+    private ByteBuffer arena;
+    private int arenaTop = BLOCK_HEADER_LENGTH;//0 is the null reference
+    private final int[] freeBlocks = new int[SIZE_CLASS_COUNT];
+
+    private ByteBuffer index;
+    private int indexMask;
+    private int size = 0;
+
+    private final ArrayList<String> typeNames = new ArrayList<String>();
+    private final HashMap<String, Integer> typeCodes = new HashMap<String, Integer>();
+    private byte[] scratch = new byte[1024];
+    private int scratchLength = 0;
+
+    /**
+     * Creates a new OffHeapTrackStore with room for 1024 tracks before it grows.
+     */
+    public OffHeapTrackStore() {
+        this(1024);
+    }
+
+    /**
+     * Creates a new OffHeapTrackStore.
+     * @param initialCapacity the number of tracks the store holds before it grows.
+     */
+    public OffHeapTrackStore(int initialCapacity) {
+        slotCapacity = Math.max(16, initialCapacity);
+        slots = ByteBuffer.allocateDirect(slotCapacity * SLOT_SIZE);
+        arena = ByteBuffer.allocateDirect(slotCapacity * 256);
+        int indexCapacity = Integer.highestOneBit(slotCapacity * 2 - 1) << 1;
+        index = ByteBuffer.allocateDirect(indexCapacity * ENTRY_LENGTH);
+        indexMask = indexCapacity - 1;
+        Arrays.fill(freeBlocks, 0);
+    }
+
+    private static String getAction(Geomessage geomessage) {
+        Object action = geomessage.getProperty(Geomessage.ACTION_FIELD_NAME);
+        if (null == action) {
+            action = geomessage.getProperty(ALTERNATE_ACTION_FIELD_NAME);
+        }
+        return null == action ? null : action.toString();
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the number of tracks in this store.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of direct memory this store has allocated.
+     */
+    public synchronized long getOffHeapBytes() {
+        return (long) slots.capacity() + arena.capacity() + index.capacity();
+    }
+
+    /**
+     * Adds or replaces a track. The Geomessage is copied; the store keeps no
+     * reference to it.
+     * @param geomessage the track's Geomessage.
+     * @return true if the track is new, or false if it replaced a track with the
+     *         same ID. Geomessages without an ID are ignored and return false.
+     */
+    public synchronized boolean put(Geomessage geomessage) {
+        String id = geomessage.getId();
+        if (null == id) {
+            return false;
+        }
+        byte[] idBytes = id.getBytes(UTF8);
+        int hash = hash(idBytes, idBytes.length);
+        int entry = findEntry(idBytes, hash);
+        int slot;
+        boolean added = 0 > entry;
+        if (added) {
+            slot = allocateSlot();
+            slots.putInt(slot + ID_OFFSET, writeBlock(0, idBytes, idBytes.length));
+            slots.putInt(slot + TEXT_OFFSET, 0);
+            int emptyEntry = -entry - 1;
+            index.putInt(emptyEntry, hash);
+            index.putInt(emptyEntry + 4, slot / SLOT_SIZE + 1);
+            size++;
+            if (size * 2 > indexMask + 1) {
+                growIndex();
+            }
+        } else {
+            slot = (index.getInt(entry + 4) - 1) * SLOT_SIZE;
+        }
+        writeFields(slot, geomessage);
+        return added;
+    }
+
+    /**
+     * Returns a track.
+     * @param id the track's Geomessage ID.
+     * @return a new Geomessage with the track's properties, or null if there is
+     *         no such track.
+     */
+    public synchronized Geomessage get(String id) {
+        int slot = findSlot(id);
+        return NONE == slot ? null : readTrack(slot);
+    }
+
+    /**
+     * @param id a Geomessage ID.
+     * @return true if this store has a track with the ID.
+     */
+    public synchronized boolean contains(String id) {
+        return NONE != findSlot(id);
+    }
+
+    /**
+     * Gets a track's first control point without reading its other properties.
+     * @param id the track's Geomessage ID.
+     * @param xy a two-element array that receives the point's x- and y-coordinates.
+     * @return true if the track exists and its first control point is stored as numbers.
+     */
+    public synchronized boolean getControlPoint(String id, double[] xy) {
+        int slot = findSlot(id);
+        if (NONE == slot || 0 == (slots.getInt(slot + MASK_OFFSET) & HAS_CONTROL_POINT)) {
+            return false;
+        }
+        xy[0] = slots.getDouble(slot + X_OFFSET);
+        xy[1] = slots.getDouble(slot + Y_OFFSET);
+        return true;
+    }
+
+    /**
+     * Removes a track.
+     * @param id the track's Geomessage ID.
+     * @return true if the track was removed.
+     */
+    public synchronized boolean remove(String id) {
+        if (null == id) {
+            return false;
+        }
+        byte[] idBytes = id.getBytes(UTF8);
+        int entry = findEntry(idBytes, hash(idBytes, idBytes.length));
+        if (0 > entry) {
+            return false;
+        }
+        int slot = (index.getInt(entry + 4) - 1) * SLOT_SIZE;
+        removeEntry(entry);
+        freeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Removes every track of a message type. This visits every slot.
+     * @param messageType the message type, such as PositionReportController.REPORT_TYPE.
+     * @return the number of tracks removed.
+     */
+    public synchronized int removeAll(String messageType) {
+        Integer typeCode = typeCodes.get(messageType);
+        if (null == typeCode) {
+            return 0;
+        }
+        int removed = 0;
+        for (int slot = 0; slot < slotCount * SLOT_SIZE; slot += SLOT_SIZE) {
+            if (0 != (slots.getInt(slot + MASK_OFFSET) & USED) && typeCode == slots.getInt(slot + TYPE_OFFSET)) {
+                int idRef = slots.getInt(slot + ID_OFFSET);
+                copyBlockToScratch(idRef);
+                removeEntry(findEntry(Arrays.copyOf(scratch, scratchLength), hash(scratch, scratchLength)));
+                freeSlot(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every track. The store's direct memory is kept for reuse.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i <= indexMask; i++) {
+            index.putLong(i * ENTRY_LENGTH, 0);
+        }
+        slotCount = 0;
+        freeSlot = NONE;
+        arenaTop = BLOCK_HEADER_LENGTH;
+        Arrays.fill(freeBlocks, 0);
+        size = 0;
+    }
+
+    @Override
+    public void geomessageReceived(Geomessage geomessage) {
+        String action = getAction(geomessage);
+        if (Geomessage.ACTION_REMOVE_ALL.equalsIgnoreCase(action)) {
+            removeAll(TrackRegistry.getMessageType(geomessage));
+        } else if (ACTION_REMOVE.equalsIgnoreCase(action)) {
+            remove(geomessage.getId());
+        } else {
+            put(geomessage);
+        }
+    }
+
+    @Override
+    public void datagramReceived(String contents) {
+
+    }
+
+    private void writeFields(int slot, Geomessage geomessage) {
+        int mask = USED;
+        int integralMask = 0;
+        int typeCode = NONE;
+        scratchLength = 0;
+        for (Map.Entry<String, Object> property : geomessage.getProperties().entrySet()) {
+            String name = property.getKey();
+            Object valueObject = property.getValue();
+            String value = null == valueObject ? null : valueObject.toString();
+            if (null != value) {
+                if (Geomessage.TYPE_FIELD_NAME.equals(name)) {
+                    typeCode = getTypeCode(TrackRegistry.getMessageType(geomessage));
+                    if (value.equals(typeNames.get(typeCode))) {
+                        continue;
+                    }
+                } else if (Geomessage.CONTROL_POINTS_FIELD_NAME.equals(name)) {
+                    if (parseControlPoint(slot, value)) {
+                        mask |= HAS_CONTROL_POINT;
+                        continue;
+                    }
+                } else if (DATETIME_FIELD_NAME.equals(name)) {
+                    if (parseTime(slot, value)) {
+                        mask |= HAS_TIME;
+                        continue;
+                    }
+                } else {
+                    Integer field = NUMERIC_FIELDS.get(name);
+                    if (null != field) {
+                        int offset = slot + NUMERIC_OFFSET + 8 * field;
+                        int bit = 1 << (FIRST_NUMERIC_BIT + field);
+                        if (isIntegral(value)) {
+                            slots.putDouble(offset, Long.parseLong(value));
+                            mask |= bit;
+                            integralMask |= bit;
+                            continue;
+                        }
+                        if (isDecimal(value)) {
+                            slots.putDouble(offset, Double.parseDouble(value));
+                            mask |= bit;
+                            continue;
+                        }
+                    }
+                }
+            }
+            putString(name);
+            putString(value);
+        }
+        //A null name ends the text properties
+        putVarInt(0);
+        slots.putInt(slot + MASK_OFFSET, mask);
+        slots.putInt(slot + INTEGRAL_MASK_OFFSET, integralMask);
+        slots.putInt(slot + TYPE_OFFSET, typeCode);
+        slots.putInt(slot + TEXT_OFFSET, writeBlock(slots.getInt(slot + TEXT_OFFSET), scratch, scratchLength));
+    }
+
+    private Geomessage readTrack(int slot) {
+        Geomessage track = new Geomessage();
+        copyBlockToScratch(slots.getInt(slot + ID_OFFSET));
+        track.setId(new String(scratch, 0, scratchLength, UTF8));
+        int mask = slots.getInt(slot + MASK_OFFSET);
+        int integralMask = slots.getInt(slot + INTEGRAL_MASK_OFFSET);
+        int typeCode = slots.getInt(slot + TYPE_OFFSET);
+        if (NONE != typeCode) {
+            track.setProperty(Geomessage.TYPE_FIELD_NAME, typeNames.get(typeCode));
+        }
+        if (0 != (mask & HAS_CONTROL_POINT)) {
+            track.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME,
+                    Double.toString(slots.getDouble(slot + X_OFFSET)) + ","
+                    + Double.toString(slots.getDouble(slot + Y_OFFSET)));
+        }
+        if (0 != (mask & HAS_TIME)) {
+            synchronized (Utilities.DATE_FORMAT_GEOMESSAGE) {
+                track.setProperty(DATETIME_FIELD_NAME,
+                        Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date(slots.getLong(slot + TIME_OFFSET))));
+            }
+        }
+        for (int field = 0; field < NUMERIC_FIELD_NAMES.length; field++) {
+            int bit = 1 << (FIRST_NUMERIC_BIT + field);
+            if (0 != (mask & bit)) {
+                double value = slots.getDouble(slot + NUMERIC_OFFSET + 8 * field);
+                track.setProperty(NUMERIC_FIELD_NAMES[field],
+                        0 != (integralMask & bit) ? Long.toString((long) value) : Double.toString(value));
+            }
+        }
+        copyBlockToScratch(slots.getInt(slot + TEXT_OFFSET));
+        ByteBuffer in = ByteBuffer.wrap(scratch, 0, scratchLength);
+        while (true) {
+            String name = getString(in);
+            if (null == name) {
+                break;
+            }
+            track.setProperty(name, getString(in));
+        }
+        return track;
+    }
+
+    private boolean parseControlPoint(int slot, String value) {
+        int comma = value.indexOf(',');
+        if (0 > comma || 0 <= value.indexOf(',', comma + 1)) {
+            return false;
+        }
+        String xString = value.substring(0, comma);
+        String yString = value.substring(comma + 1);
+        if (!isDecimal(xString) || !isDecimal(yString)) {
+            return false;
+        }
+        slots.putDouble(slot + X_OFFSET, Double.parseDouble(xString));
+        slots.putDouble(slot + Y_OFFSET, Double.parseDouble(yString));
+        return true;
+    }
+
+    private boolean parseTime(int slot, String value) {
+        synchronized (Utilities.DATE_FORMAT_GEOMESSAGE) {
+            try {
+                Date date = Utilities.DATE_FORMAT_GEOMESSAGE.parse(value);
+                if (!value.equals(Utilities.DATE_FORMAT_GEOMESSAGE.format(date))) {
+                    return false;
+                }
+                slots.putLong(slot + TIME_OFFSET, date.getTime());
+                return true;
+            } catch (ParseException pe) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns true if a string is a long that formats back to the same string.
+     */
+    private static boolean isIntegral(String value) {
+        try {
+            long parsed = Long.parseLong(value);
+            //Values beyond 2^53 would not survive the trip through a double
+            return Math.abs(parsed) < (1L << 53) && Long.toString(parsed).equals(value);
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if a string is a double that formats back to the same string.
+     */
+    private static boolean isDecimal(String value) {
+        try {
+            return Double.toString(Double.parseDouble(value)).equals(value);
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    private int getTypeCode(String messageType) {
+        Integer code = typeCodes.get(messageType);
+        if (null == code) {
+            code = typeNames.size();
+            typeNames.add(messageType);
+            typeCodes.put(messageType, code);
+        }
+        return code;
+    }
+
+    private int findSlot(String id) {
+        if (null == id) {
+            return NONE;
+        }
+        byte[] idBytes = id.getBytes(UTF8);
+        int entry = findEntry(idBytes, hash(idBytes, idBytes.length));
+        return 0 > entry ? NONE : (index.getInt(entry + 4) - 1) * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the byte offset of the index entry for an ID, or -(offset + 1) of
+     * the empty entry where it would go.
+     */
+    private int findEntry(byte[] idBytes, int hash) {
+        int i = hash & indexMask;
+        while (true) {
+            int entry = i * ENTRY_LENGTH;
+            int slotPlusOne = index.getInt(entry + 4);
+            if (0 == slotPlusOne) {
+                return -entry - 1;
+            }
+            if (hash == index.getInt(entry)
+                    && blockEquals(slots.getInt((slotPlusOne - 1) * SLOT_SIZE + ID_OFFSET), idBytes)) {
+                return entry;
+            }
+            i = (i + 1) & indexMask;
+        }
+    }
+
+    /**
+     * Removes an index entry, shifting later entries of the probe sequence back.
+     */
+    private void removeEntry(int entry) {
+        int i = entry / ENTRY_LENGTH;
+        int j = i;
+        while (true) {
+            j = (j + 1) & indexMask;
+            int slotPlusOne = index.getInt(j * ENTRY_LENGTH + 4);
+            if (0 == slotPlusOne) {
+                break;
+            }
+            int home = index.getInt(j * ENTRY_LENGTH) & indexMask;
+            //Move the entry back unless its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                index.putLong(i * ENTRY_LENGTH, index.getLong(j * ENTRY_LENGTH));
+                i = j;
+            }
+        }
+        index.putLong(i * ENTRY_LENGTH, 0);
+        size--;
+    }
+
+    private void growIndex() {
+        ByteBuffer oldIndex = index;
+        int oldCapacity = indexMask + 1;
+        int capacity = oldCapacity * 2;
+        index = ByteBuffer.allocateDirect(capacity * ENTRY_LENGTH);
+        indexMask = capacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            int slotPlusOne = oldIndex.getInt(i * ENTRY_LENGTH + 4);
+            if (0 != slotPlusOne) {
+                int hash = oldIndex.getInt(i * ENTRY_LENGTH);
+                int j = hash & indexMask;
+                while (0 != index.getInt(j * ENTRY_LENGTH + 4)) {
+                    j = (j + 1) & indexMask;
+                }
+                index.putInt(j * ENTRY_LENGTH, hash);
+                index.putInt(j * ENTRY_LENGTH + 4, slotPlusOne);
+            }
+        }
+    }
+
+    private int allocateSlot() {
+        int slot;
+        if (NONE != freeSlot) {
+            slot = freeSlot;
+            freeSlot = slots.getInt(slot + ID_OFFSET);
+        } else {
+            if (slotCount == slotCapacity) {
+                slotCapacity *= 2;
+                slots = copy(slots, slotCapacity * SLOT_SIZE);
+            }
+            slot = slotCount++ * SLOT_SIZE;
+        }
+        return slot;
+    }
+
+    private void freeSlot(int slot) {
+        freeBlock(slots.getInt(slot + ID_OFFSET));
+        freeBlock(slots.getInt(slot + TEXT_OFFSET));
+        slots.putInt(slot + MASK_OFFSET, 0);
+        slots.putInt(slot + TEXT_OFFSET, 0);
+        slots.putInt(slot + ID_OFFSET, freeSlot);
+        freeSlot = slot;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer, int capacity) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        copy.put(source);
+        copy.clear();
+        return copy;
+    }
+
+    /**
+     * Writes bytes to an arena block, reusing the given block if they fit in it.
+     * @return the block's reference.
+     */
+    private int writeBlock(int ref, byte[] bytes, int length) {
+        if (0 != ref && (1 << (arena.getInt(ref) + MIN_BLOCK_BITS)) < BLOCK_HEADER_LENGTH + length) {
+            freeBlock(ref);
+            ref = 0;
+        }
+        if (0 == ref) {
+            ref = allocateBlock(BLOCK_HEADER_LENGTH + length);
+        }
+        arena.putInt(ref + 4, length);
+        ByteBuffer out = arena.duplicate();
+        out.position(ref + BLOCK_HEADER_LENGTH);
+        out.put(bytes, 0, length);
+        return ref;
+    }
+
+    private int allocateBlock(int length) {
+        int sizeClass = 0;
+        while ((1 << (sizeClass + MIN_BLOCK_BITS)) < length) {
+            sizeClass++;
+        }
+        int ref = freeBlocks[sizeClass];
+        if (0 != ref) {
+            freeBlocks[sizeClass] = arena.getInt(ref + 4);
+        } else {
+            int blockSize = 1 << (sizeClass + MIN_BLOCK_BITS);
+            if (arenaTop + blockSize > arena.capacity()) {
+                int capacity = arena.capacity();
+                while (arenaTop + blockSize > capacity) {
+                    capacity *= 2;
+                }
+                arena = copy(arena, capacity);
+            }
+            ref = arenaTop;
+            arenaTop += blockSize;
+        }
+        arena.putInt(ref, sizeClass);
+        return ref;
+    }
+
+    private void freeBlock(int ref) {
+        if (0 != ref) {
+            int sizeClass = arena.getInt(ref);
+            arena.putInt(ref + 4, freeBlocks[sizeClass]);
+            freeBlocks[sizeClass] = ref;
+        }
+    }
+
+    private boolean blockEquals(int ref, byte[] bytes) {
+        if (arena.getInt(ref + 4) != bytes.length) {
+            return false;
+        }
+        int data = ref + BLOCK_HEADER_LENGTH;
+        for (int i = 0; i < bytes.length; i++) {
+            if (arena.get(data + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copyBlockToScratch(int ref) {
+        int length = arena.getInt(ref + 4);
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ByteBuffer in = arena.duplicate();
+        in.position(ref + BLOCK_HEADER_LENGTH);
+        in.get(scratch, 0, length);
+        scratchLength = length;
+    }
+
+    private void ensureScratchCapacity(int extra) {
+        if (scratchLength + extra > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchLength + extra));
+        }
+    }
+
+    private void putVarInt(int value) {
+        ensureScratchCapacity(5);
+        while (0 != (value & ~0x7f)) {
+            scratch[scratchLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        scratch[scratchLength++] = (byte) value;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length plus one, or 0 for null, followed by
+     * its UTF-8 bytes.
+     */
+    private void putString(String value) {
+        if (null == value) {
+            putVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        putVarInt(bytes.length + 1);
+        ensureScratchCapacity(bytes.length);
+        System.arraycopy(bytes, 0, scratch, scratchLength, bytes.length);
+        scratchLength += bytes.length;
+    }
+
+    private static int getVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (0 != (b & 0x80));
+        return value;
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = getVarInt(in) - 1;
+        if (0 > length) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+}
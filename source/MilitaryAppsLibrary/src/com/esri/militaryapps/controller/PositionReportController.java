@@ -17,19 +17,41 @@ package com.esri.militaryapps.controller;
 
 import com.esri.militaryapps.model.DomNodeAndDocument;
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageDeltaEncoder;
 import com.esri.militaryapps.model.Location;
 import com.esri.militaryapps.model.LocationProvider;
 import com.esri.militaryapps.util.Utilities;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.parsers.ParserConfigurationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 /**
- * A controller that broadcasts position reports including current location.
+ * A controller that broadcasts position reports including current location.<br/>
+ * <br/>
+ * By default every report is sent in full. Call setKeyframeInterval(int) with
+ * a value greater than 1 to send a full report (keyframe) only every N periods
+ * and, in between, only the fields that changed since the last keyframe. A
+ * receiving MessageController rebuilds full reports from the deltas. Reports
+ * that have 911 status, or that clear it, are always sent in full.<br/>
+ * <br/>
+ * In adaptive mode (see setAdaptive(boolean)), the controller still checks every
+ * period but sends a report only when receivers' dead-reckoned picture of the unit
+ * would be wrong: when the real location drifts too far from the position predicted
+ * from the last sent report's location, speed, and heading; when the heading changes
+ * too much; when 911 status changes; or when the heartbeat interval passes.<br/>
+ * <br/>
+ * onLocationChanged(Location) never waits for a report to be built or sent. It
+ * stores a copy of the location in a latest-value slot, and the report task reads
+ * whatever location is latest when it runs. The controller keeps timing statistics
+ * for sends and for location handoffs; see getReportCount() and related methods.
+ * @see GeomessageDeltaEncoder
  */
 public class PositionReportController implements LocationListener {
     
@@ -38,6 +60,21 @@ public class PositionReportController implements LocationListener {
      */
     public static final int DEFAULT_PERIOD = 1000;
     
+    /**
+     * The default adaptive-mode drift threshold, in meters.
+     */
+    public static final double DEFAULT_DRIFT_THRESHOLD = 20;
+    
+    /**
+     * The default adaptive-mode heading change threshold, in degrees.
+     */
+    public static final double DEFAULT_HEADING_THRESHOLD = 15;
+    
+    /**
+     * The default adaptive-mode heartbeat interval, in milliseconds.
+     */
+    public static final int DEFAULT_HEARTBEAT_INTERVAL = 30000;
+    
     /**
      * The type string for this controller's Geomessages.
      */
@@ -47,22 +84,55 @@ public class PositionReportController implements LocationListener {
     private static final String WKID_WGS1984 = "4326";
     
     private final MessageController messageController;
-    private final Object lastLocationLock = new Object();
-    private final Timer periodTimer = new Timer(true);
+    private final AtomicReference<Location> latestLocation = new AtomicReference<Location>();
+    private final Object sendLock = new Object();
+    private final ReportScheduler scheduler;
+    private final GeomessageDeltaEncoder deltaEncoder = new GeomessageDeltaEncoder(1);
+    private final Runnable sendTask = new Runnable() {
+
+        @Override
+        public void run() {
+            sendPositionReport();
+        }
+    };
 
     private boolean enabled = false;
     private int period = DEFAULT_PERIOD;
-    private Location lastLocation = null;
     private String username = null;
     private String vehicleType = null;
     private String uniqueId = null;
     private String symbolIdCode = null;
     private boolean status911 = false;
-    private TimerTask periodTimerTask = null;
+    private ReportScheduler.ScheduledReport periodTask = null;
+    private boolean adaptive = false;
+    private double driftThreshold = DEFAULT_DRIFT_THRESHOLD;
+    private double headingThreshold = DEFAULT_HEADING_THRESHOLD;
+    private int heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    
+    //The last report sent, for dead reckoning in adaptive mode
+    private boolean reportSent = false;
+    private long lastSentTime;
+    private double lastSentLongitude;
+    private double lastSentLatitude;
+    private double lastSentSpeed;
+    private double lastSentHeading;
+    private long lastSentFixTime;
+    private boolean lastSentStatus911;
+    private final double[] predictedLonLat = new double[2];
+    
+    //Statistics
+    private final AtomicLong reportCount = new AtomicLong();
+    private final AtomicLong totalSendNanos = new AtomicLong();
+    private final AtomicLong maxSendNanos = new AtomicLong();
+    private final AtomicLong locationUpdateCount = new AtomicLong();
+    private final AtomicLong totalLocationHandoffNanos = new AtomicLong();
+    private final AtomicLong maxLocationHandoffNanos = new AtomicLong();
+    private final AtomicLong lastLocationAge = new AtomicLong(-1);
     
     /**
      * Instantiates a PositionReportController, which will start sending position
      * reports after setEnabled(true) has been called and a location is available.
+     * The controller uses the shared ReportScheduler.
      * @param locationController the LocationController that provides positions.
      * @param messageController the transmitter of position report messages.
      *                                  Other objects may use this controller at
@@ -75,6 +145,29 @@ public class PositionReportController implements LocationListener {
             String vehicleType,
             String uniqueId,
             String symbolIdCode) {
+        this(locationController, messageController, username, vehicleType, uniqueId, symbolIdCode,
+                ReportScheduler.getSharedScheduler());
+    }
+    
+    /**
+     * Instantiates a PositionReportController, which will start sending position
+     * reports after setEnabled(true) has been called and a location is available.
+     * @param locationController the LocationController that provides positions.
+     * @param messageController the transmitter of position report messages.
+     *                                  Other objects may use this controller at
+     *                                  the same time.
+     * @param scheduler the scheduler that runs this controller's periodic reports.
+     *                  Many controllers can share one scheduler.
+     */
+    public PositionReportController(
+            LocationController locationController,
+            MessageController messageController,
+            String username,
+            String vehicleType,
+            String uniqueId,
+            String symbolIdCode,
+            ReportScheduler scheduler) {
+        this.scheduler = scheduler;
         this.messageController = messageController;
         this.username = username;
         this.vehicleType = vehicleType;
@@ -86,12 +179,14 @@ public class PositionReportController implements LocationListener {
 
     @Override
     public void onLocationChanged(Location location) {
-        synchronized (lastLocationLock) {
-            boolean startTimer = null == lastLocation;
-            lastLocation = location;
-            if (startTimer && enabled) {
-                startTimer();
-            }
+        long start = System.nanoTime();
+        Location previous = latestLocation.getAndSet(new Location(location));
+        long handoffNanos = System.nanoTime() - start;
+        locationUpdateCount.incrementAndGet();
+        totalLocationHandoffNanos.addAndGet(handoffNanos);
+        updateMax(maxLocationHandoffNanos, handoffNanos);
+        if (null == previous && enabled) {
+            startTimer();
         }
     }
 
@@ -101,57 +196,143 @@ public class PositionReportController implements LocationListener {
     }
     
     private synchronized void startTimer() {
-        if (null != periodTimerTask) {
-            periodTimerTask.cancel();
+        if (null != periodTask) {
+            periodTask.cancel();
+        }
+        //The scheduler offsets the first run so that units do not report in step
+        periodTask = scheduler.scheduleReport(uniqueId, sendTask, period);
+    }
+    
+    private synchronized void stopTimer() {
+        if (null != periodTask) {
+            periodTask.cancel();
+            periodTask = null;
         }
-        periodTimerTask = new TimerTask() {
-
-            @Override
-            public void run() {
-                sendPositionReport();
-            }
-        };
-        periodTimer.scheduleAtFixedRate(periodTimerTask, 0, period);
     }
 
     private void sendPositionReport() {
         if (enabled) {
-            synchronized (lastLocationLock) {
-                if (null != lastLocation) {
+            //Only report tasks wait on this lock; location updates never do
+            synchronized (sendLock) {
+                Location location = latestLocation.get();
+                long now = System.currentTimeMillis();
+                if (null != location && (!adaptive || isReportDue(location, now))) {
+                    long start = System.nanoTime();
                     try {
-                        DomNodeAndDocument nodeAndDocument = Utilities.createGeomessageDocument();
-                        Document doc = nodeAndDocument.getDocument();
-                        Node geomessageElement = nodeAndDocument.getNode();
-
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.TYPE_FIELD_NAME, AdvancedSymbolController.getOutboundMessageTypeName(REPORT_TYPE));
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.ID_FIELD_NAME, uniqueId);
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.SIC_FIELD_NAME, symbolIdCode);
-                        Utilities.addTextElement(doc, geomessageElement, "type", vehicleType);
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.WKID_FIELD_NAME, WKID_WGS1984);
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.CONTROL_POINTS_FIELD_NAME, lastLocation.getLongitude() + "," + lastLocation.getLatitude());
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.ACTION_FIELD_NAME, "UPDATE");
-                        Utilities.addTextElement(doc, geomessageElement, "uniquedesignation", username);
-                        String dateString = Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date());
-                        Utilities.addTextElement(doc, geomessageElement, "datetimesubmitted", dateString);
-                        Utilities.addTextElement(doc, geomessageElement, "datetimevalid", Utilities.DATE_FORMAT_GEOMESSAGE.format(lastLocation.getTimestamp().getTime()));
-                        Utilities.addTextElement(doc, geomessageElement, "direction", Long.toString(Math.round(lastLocation.getHeading())));
-                        Utilities.addTextElement(doc, geomessageElement, "status911", status911 ? "1" : "0");
-
-                        messageController.sendMessage(doc);
+                        boolean reportStatus911 = status911;
+                        long fixTime = getFixTime(location, now);
+                        Map<String, String> fields = createReportFields(
+                                symbolIdCode, vehicleType, username,
+                                location.getLongitude(), location.getLatitude(),
+                                fixTime, location.getHeading(), reportStatus911);
+                        //Reports with 911 status, or that clear it, take the emergency lane
+                        boolean urgent = reportStatus911 || (reportSent && lastSentStatus911);
+                        if (urgent) {
+                            //Send a keyframe, which receivers that missed the last one can still read
+                            deltaEncoder.reset(uniqueId);
+                        }
+                        Document doc = createReportDocument(uniqueId, deltaEncoder.encode(uniqueId, fields)).getDocument();
+                        messageController.sendMessage(doc, urgent);
+                        
+                        reportSent = true;
+                        lastSentTime = now;
+                        lastSentLongitude = location.getLongitude();
+                        lastSentLatitude = location.getLatitude();
+                        lastSentSpeed = location.getSpeed();
+                        lastSentHeading = location.getHeading();
+                        lastSentFixTime = fixTime;
+                        lastSentStatus911 = reportStatus911;
+                        lastLocationAge.set(now - fixTime);
                     } catch (Throwable t) {
                         logger.log(Level.SEVERE, "Could not send position report", t);
                     }
+                    long sendNanos = System.nanoTime() - start;
+                    reportCount.incrementAndGet();
+                    totalSendNanos.addAndGet(sendNanos);
+                    updateMax(maxSendNanos, sendNanos);
                 }
             }
         }
     }
     
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Creates the fields, other than the ID, of a position report.
+     */
+    static Map<String, String> createReportFields(
+            String symbolIdCode,
+            String vehicleType,
+            String username,
+            double longitude,
+            double latitude,
+            long fixTime,
+            double heading,
+            boolean status911) {
+        LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put(Geomessage.TYPE_FIELD_NAME, AdvancedSymbolController.getOutboundMessageTypeName(REPORT_TYPE));
+        fields.put(Geomessage.SIC_FIELD_NAME, symbolIdCode);
+        fields.put("type", vehicleType);
+        fields.put(Geomessage.WKID_FIELD_NAME, WKID_WGS1984);
+        fields.put(Geomessage.CONTROL_POINTS_FIELD_NAME, longitude + "," + latitude);
+        fields.put(Geomessage.ACTION_FIELD_NAME, "UPDATE");
+        fields.put("uniquedesignation", username);
+        //SimpleDateFormat is not thread-safe, and reports are built on several threads
+        synchronized (Utilities.DATE_FORMAT_GEOMESSAGE) {
+            fields.put("datetimesubmitted", Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date()));
+            fields.put("datetimevalid", Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date(fixTime)));
+        }
+        fields.put("direction", Long.toString(Math.round(heading)));
+        fields.put("status911", status911 ? "1" : "0");
+        return fields;
+    }
+    
+    /**
+     * Creates a geomessage document from a position report's ID and fields.
+     */
+    static DomNodeAndDocument createReportDocument(String uniqueId, Map<String, String> fields)
+            throws ParserConfigurationException {
+        DomNodeAndDocument nodeAndDocument = Utilities.createGeomessageDocument();
+        Document doc = nodeAndDocument.getDocument();
+        Node geomessageElement = nodeAndDocument.getNode();
+        Utilities.addTextElement(doc, geomessageElement, Geomessage.ID_FIELD_NAME, uniqueId);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            Utilities.addTextElement(doc, geomessageElement, field.getKey(), field.getValue());
+        }
+        return nodeAndDocument;
+    }
+    
+    private static long getFixTime(Location location, long defaultTime) {
+        return null == location.getTimestamp() ? defaultTime : location.getTimestamp().getTimeInMillis();
+    }
+    
+    /**
+     * Decides whether an adaptive-mode report is due, by comparing the location
+     * with the position dead-reckoned from the last sent report.
+     */
+    private boolean isReportDue(Location location, long now) {
+        if (!reportSent
+                || status911 != lastSentStatus911
+                || now - lastSentTime >= heartbeatInterval) {
+            return true;
+        }
+        double headingChange = Math.abs(Utilities.fixAngleDegrees(location.getHeading() - lastSentHeading, -180, 180));
+        if (headingChange > headingThreshold) {
+            return true;
+        }
+        double elapsedSeconds = Math.max(0, getFixTime(location, now) - lastSentFixTime) / 1000.0;
+        Utilities.calculateDestination(lastSentLongitude, lastSentLatitude,
+                lastSentHeading, lastSentSpeed * elapsedSeconds, predictedLonLat);
+        double drift = Utilities.calculateDistanceMeters(predictedLonLat[0], predictedLonLat[1],
+                location.getLongitude(), location.getLatitude());
+        return drift > driftThreshold;
+    }
+    
     /**
      * Sets whether this controller should send position reports or not. If currently
      * disabled, enabling the controller immediately starts sending position reports
@@ -163,6 +344,8 @@ public class PositionReportController implements LocationListener {
         this.enabled = enabled;
         if (enabled && changed) {
             startTimer();
+        } else if (!enabled && changed) {
+            stopTimer();
         }
     }
 
@@ -198,6 +381,165 @@ public class PositionReportController implements LocationListener {
         }
     }
 
+    /**
+     * @return true if the controller is in adaptive mode, sending a report only
+     *         when dead reckoning from the last report is no longer accurate enough.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Sets whether the controller is in adaptive mode. In adaptive mode, the controller
+     * checks every period but sends a report only when the location drifts more than
+     * the drift threshold from the position dead-reckoned from the last sent report,
+     * when the heading changes more than the heading threshold, when 911 status changes,
+     * or when the heartbeat interval has passed since the last report. The default
+     * is false, meaning a report is sent every period.
+     * @param adaptive true to send reports only when needed.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return the adaptive-mode drift threshold, in meters.
+     */
+    public double getDriftThreshold() {
+        return driftThreshold;
+    }
+
+    /**
+     * @param driftThreshold the distance, in meters, that the real location may drift
+     *                       from the dead-reckoned position before an adaptive-mode
+     *                       report is sent. The default is DEFAULT_DRIFT_THRESHOLD.
+     */
+    public void setDriftThreshold(double driftThreshold) {
+        this.driftThreshold = driftThreshold;
+    }
+
+    /**
+     * @return the adaptive-mode heading change threshold, in degrees.
+     */
+    public double getHeadingThreshold() {
+        return headingThreshold;
+    }
+
+    /**
+     * @param headingThreshold the heading change, in degrees, since the last report
+     *                         that causes an adaptive-mode report to be sent. The
+     *                         default is DEFAULT_HEADING_THRESHOLD.
+     */
+    public void setHeadingThreshold(double headingThreshold) {
+        this.headingThreshold = headingThreshold;
+    }
+
+    /**
+     * @return the adaptive-mode heartbeat interval, in milliseconds.
+     */
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * @param heartbeatInterval the maximum number of milliseconds between adaptive-mode
+     *                          reports, even when the unit is stationary or moving
+     *                          as predicted. The default is DEFAULT_HEARTBEAT_INTERVAL.
+     */
+    public void setHeartbeatInterval(int heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * @return the number of periods between full position reports. 1 means
+     *         every report is a full report.
+     */
+    public int getKeyframeInterval() {
+        return deltaEncoder.getKeyframeInterval();
+    }
+
+    /**
+     * Sets the number of periods between full position reports (keyframes), including
+     * the keyframe. In between keyframes, reports carry only the fields that changed
+     * since the last keyframe. The default is 1, meaning every report is a full
+     * report; use the default if receivers other than MessageController need to
+     * read this controller's position reports.
+     * @param keyframeInterval the number of periods between full position reports.
+     *                         Values less than 1 are treated as 1.
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        deltaEncoder.setKeyframeInterval(Math.max(1, keyframeInterval));
+    }
+
+    /**
+     * @return the number of position reports this controller has built and tried
+     *         to send, including any that failed.
+     */
+    public long getReportCount() {
+        return reportCount.get();
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent building and sending position
+     *         reports.
+     */
+    public long getTotalSendNanos() {
+        return totalSendNanos.get();
+    }
+
+    /**
+     * @return the longest time, in nanoseconds, spent building and sending one
+     *         position report.
+     */
+    public long getMaxSendNanos() {
+        return maxSendNanos.get();
+    }
+
+    /**
+     * @return the number of locations this controller has received.
+     */
+    public long getLocationUpdateCount() {
+        return locationUpdateCount.get();
+    }
+
+    /**
+     * @return the total time, in nanoseconds, that onLocationChanged(Location)
+     *         spent handing locations to this controller.
+     */
+    public long getTotalLocationHandoffNanos() {
+        return totalLocationHandoffNanos.get();
+    }
+
+    /**
+     * @return the longest time, in nanoseconds, that one call to onLocationChanged(Location)
+     *         spent handing a location to this controller.
+     */
+    public long getMaxLocationHandoffNanos() {
+        return maxLocationHandoffNanos.get();
+    }
+
+    /**
+     * @return the age, in milliseconds, of the location in the last position report
+     *         sent, measured from the location's timestamp, or -1 if no report
+     *         has been sent.
+     */
+    public long getLastLocationAge() {
+        return lastLocationAge.get();
+    }
+
+    /**
+     * Resets this controller's statistics to zero.
+     */
+    public void resetStatistics() {
+        reportCount.set(0);
+        totalSendNanos.set(0);
+        maxSendNanos.set(0);
+        locationUpdateCount.set(0);
+        totalLocationHandoffNanos.set(0);
+        maxLocationHandoffNanos.set(0);
+        lastLocationAge.set(-1);
+    }
+
     /**
      * @return the username used in position reports.
      */
@@ -275,13 +617,16 @@ public class PositionReportController implements LocationListener {
     }
 
     /**
+     * Activates or deactivates 911 (emergency) status. If the controller is enabled,
+     * a change is reported right away instead of waiting for the next period, on
+     * the scheduler's and the MessageController's emergency lanes.
      * @param status911 true to activate 911 (emergency) status.
      */
     public void setStatus911(final boolean status911) {
         boolean changed = status911 != this.status911;
         this.status911 = status911;
-        if (changed) {
-            startTimer();
+        if (changed && enabled) {
+            scheduler.executeUrgent(sendTask);
         }
     }
     
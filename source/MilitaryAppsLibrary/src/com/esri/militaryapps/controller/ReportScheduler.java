@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs periodic report tasks for any number of controllers on a small, fixed pool
+ * of daemon threads. Many PositionReportControllers can share one ReportScheduler,
+ * so simulating or relaying reports for thousands of units does not need a thread
+ * per unit. By default every PositionReportController uses the shared scheduler
+ * returned by getSharedScheduler().<br/>
+ * <br/>
+ * Reports scheduled with scheduleReport(String, Runnable, long) do not all start
+ * at once. Each report's first run is offset by a phase within its period, chosen
+ * according to the scheduler's PhaseMode. Each run is also moved by a random jitter,
+ * so that devices whose clocks drift into step do not stay in step. This keeps
+ * units that start together from sending in synchronized bursts.<br/>
+ * <br/>
+ * Emergency reports go through executeUrgent(Runnable), which runs them on a
+ * dedicated thread so they never wait behind queued routine reports.
+ */
+public class ReportScheduler {
+
+    /**
+     * How a ReportScheduler chooses the phase of a report's first run within its period.
+     */
+    public enum PhaseMode {
+        /**
+         * Reports run as soon as they are scheduled.
+         */
+        NONE,
+        /**
+         * A report's phase is the hash of its key modulo its period, so a unit
+         * always gets the same phase, and different units on different devices
+         * usually get different phases.
+         */
+        HASH,
+        /**
+         * Reports scheduled on this scheduler are spread evenly over the period,
+         * in order of scheduling. Each new report falls in the middle of the
+         * largest gap left by the reports before it.
+         */
+        EVEN
+    }
+
+    /**
+     * The default jitter, as a fraction of the period.
+     */
+    public static final double DEFAULT_JITTER = 0.1;
+
+    /**
+     * The default phase mode.
+     */
+    public static final PhaseMode DEFAULT_PHASE_MODE = PhaseMode.HASH;
+
+    private static final Logger logger = Logger.getLogger(ReportScheduler.class.getName());
+    private static final AtomicInteger schedulerCount = new AtomicInteger();
+
+    private static ReportScheduler sharedScheduler = null;
+
+    /**
+     * Returns the scheduler shared by all controllers that are not given a scheduler
+     * of their own. The shared scheduler has one thread per available processor,
+     * and at least two.
+     * @return the shared scheduler.
+     */
+    public static synchronized ReportScheduler getSharedScheduler() {
+        if (null == sharedScheduler) {
+            sharedScheduler = new ReportScheduler(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        }
+        return sharedScheduler;
+    }
+
+    /**
+     * Returns the phase given to a report in HASH mode.
+     * @param key the report's key, such as a unique ID.
+     * @param period the report's period.
+     * @return the phase, from 0 (inclusive) to period (exclusive).
+     */
+    public static long getHashPhase(String key, long period) {
+        if (null == key || 0 >= period) {
+            return 0;
+        }
+        return (key.hashCode() & 0x7fffffffL) % period;
+    }
+
+    /**
+     * Returns the phase given to a report in EVEN mode. The phases of the reports
+     * with indexes 0, 1, 2, 3, ... are 0, 1/2, 1/4, 3/4, ... of the period (the
+     * van der Corput sequence), so any number of reports is spread nearly evenly.
+     * @param index the number of reports scheduled before this one.
+     * @param period the report's period.
+     * @return the phase, from 0 (inclusive) to period (exclusive).
+     */
+    public static long getEvenPhase(int index, long period) {
+        if (0 >= period) {
+            return 0;
+        }
+        double fraction = (Integer.reverse(index) & 0xffffffffL) / 4294967296.0;
+        return Math.min(period - 1, (long) (fraction * period));
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ExecutorService urgentExecutor;
+    private final AtomicInteger evenPhaseIndex = new AtomicInteger();
+
+    private volatile double jitter = DEFAULT_JITTER;
+    private volatile PhaseMode phaseMode = DEFAULT_PHASE_MODE;
+
+    /**
+     * Creates a new ReportScheduler.
+     * @param threadCount the number of threads that run report tasks.
+     */
+    public ReportScheduler(int threadCount) {
+        final int schedulerNumber = schedulerCount.incrementAndGet();
+        executor = new ScheduledThreadPoolExecutor(threadCount, new ThreadFactory() {
+
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "ReportScheduler-" + schedulerNumber + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        //Cancelled tasks leave the queue right away, so rescheduling often is cheap
+        executor.setRemoveOnCancelPolicy(true);
+        urgentExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ReportScheduler-" + schedulerNumber + "-urgent");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+
+        });
+    }
+
+    /**
+     * Runs a task periodically. An exception thrown by the task is logged and
+     * does not stop later runs.
+     * @param task the task.
+     * @param initialDelay the number of milliseconds before the first run.
+     * @param period the number of milliseconds between the starts of consecutive runs.
+     * @return a ScheduledFuture that can be used to cancel the task.
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable task, long initialDelay, long period) {
+        return executor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "Report task failed", t);
+                }
+            }
+
+        }, initialDelay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a report periodically, starting at a phase within the period chosen
+     * by this scheduler's phase mode and with this scheduler's jitter applied to
+     * each run. Jitter does not accumulate: each run is near its nominal time.
+     * If a run is late by more than a period, the missed runs are skipped. An
+     * exception thrown by the task is logged and does not stop later runs.
+     * @param key the report's key, such as the unique ID of the unit reporting.
+     *            Used in HASH mode.
+     * @param task the task.
+     * @param period the number of milliseconds between nominal runs.
+     * @return a ScheduledReport that can be used to cancel the report.
+     */
+    public ScheduledReport scheduleReport(String key, Runnable task, long period) {
+        long phase;
+        switch (phaseMode) {
+            case HASH:
+                phase = getHashPhase(key, period);
+                break;
+            case EVEN:
+                phase = getEvenPhase(evenPhaseIndex.getAndIncrement(), period);
+                break;
+            default:
+                phase = 0;
+        }
+        ScheduledReport report = new ScheduledReport(task, period, (long) (jitter * period));
+        report.start(phase);
+        return report;
+    }
+
+    /**
+     * Runs a task once, as soon as possible. An exception thrown by the task is logged.
+     * @param task the task.
+     */
+    public void execute(final Runnable task) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "Report task failed", t);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Runs an emergency task once, as soon as possible, on a thread reserved for
+     * emergency tasks. The task does not wait for routine tasks, even when many
+     * routine tasks are due. An exception thrown by the task is logged.
+     * @param task the task.
+     */
+    public void executeUrgent(final Runnable task) {
+        urgentExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "Urgent report task failed", t);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * @return the jitter, as a fraction of the period.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Sets the jitter for reports scheduled after this call. Each run of a report
+     * is moved earlier or later by a random amount up to this fraction of the period.
+     * The default is DEFAULT_JITTER.
+     * @param jitter the jitter, as a fraction of the period, from 0 to 0.5. Values
+     *               outside that range are clamped.
+     */
+    public void setJitter(double jitter) {
+        this.jitter = Math.max(0, Math.min(0.5, jitter));
+    }
+
+    /**
+     * @return the phase mode.
+     */
+    public PhaseMode getPhaseMode() {
+        return phaseMode;
+    }
+
+    /**
+     * Sets the phase mode for reports scheduled after this call. The default
+     * is DEFAULT_PHASE_MODE.
+     * @param phaseMode the phase mode.
+     */
+    public void setPhaseMode(PhaseMode phaseMode) {
+        this.phaseMode = null == phaseMode ? PhaseMode.NONE : phaseMode;
+    }
+
+    /**
+     * Stops this scheduler. Tasks already running are allowed to finish, but no
+     * more tasks are run. Do not shut down the shared scheduler.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        urgentExecutor.shutdown();
+    }
+
+    /**
+     * A report scheduled with scheduleReport(String, Runnable, long). The report
+     * reschedules itself after each run so that each run can have its own jitter.
+     */
+    public final class ScheduledReport implements Runnable {
+
+        private final Runnable task;
+        private final long periodNanos;
+        private final long jitterNanos;
+
+        private long nominalTime;
+        private boolean cancelled = false;
+        private ScheduledFuture<?> future = null;
+
+        private ScheduledReport(Runnable task, long period, long jitter) {
+            this.task = task;
+            this.periodNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, period));
+            this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitter);
+        }
+
+        private synchronized void start(long phase) {
+            nominalTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(phase);
+            scheduleNext();
+        }
+
+        private void scheduleNext() {
+            long offset = 0 < jitterNanos ? ThreadLocalRandom.current().nextLong(-jitterNanos, jitterNanos + 1) : 0;
+            long delay = Math.max(0, nominalTime + offset - System.nanoTime());
+            future = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "Report task failed", t);
+            }
+            synchronized (this) {
+                if (!cancelled && !executor.isShutdown()) {
+                    nominalTime += periodNanos;
+                    long now = System.nanoTime();
+                    if (nominalTime < now - periodNanos) {
+                        //Skip missed runs instead of sending a burst to catch up
+                        nominalTime += (now - nominalTime) / periodNanos * periodNanos;
+                    }
+                    scheduleNext();
+                }
+            }
+        }
+
+        /**
+         * Stops this report. A run already in progress is allowed to finish.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (null != future) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * @return true if this report has been cancelled.
+         */
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+    }
+
+}
@@ -19,10 +19,15 @@ package com.esri.militaryapps.controller;
 
 import com.esri.militaryapps.model.DomNodeAndDocument;
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessagesPacker;
 import com.esri.militaryapps.model.SpotReport;
 import com.esri.militaryapps.util.Utilities;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -83,6 +88,66 @@ public class SpotReportController {
         }
     }
 
+    /**
+     * Sends many spot reports out to UDP clients. This method simply calls
+     * sendSpotReports(spotReports, uniqueDesignation, false).
+     * @param spotReports the spot reports to send.
+     * @param uniqueDesignation a unique designation for the sender.
+     * @throws IOException
+     */
+    public void sendSpotReports(Collection<SpotReport> spotReports, String uniqueDesignation)
+            throws IOException, ParserConfigurationException, TransformerException {
+        sendSpotReports(spotReports, uniqueDesignation, false);
+    }
+
+    /**
+     * Sends many spot reports out to UDP clients, such as a backlog of reports
+     * saved during a communications outage. Locations are converted to MGRS with
+     * one MapController.pointsToMgrs call per spatial reference, and the reports
+     * are packed into as few datagrams as possible.
+     * @param spotReports the spot reports to send. Null elements are skipped.
+     * @param uniqueDesignation a unique designation for the sender.
+     * @param isUpdate false if the spot reports' IDs should be regenerated so as
+     * to be new unique spot reports; true otherwise.
+     * @throws IOException
+     */
+    public void sendSpotReports(Collection<SpotReport> spotReports, String uniqueDesignation, boolean isUpdate)
+            throws IOException, ParserConfigurationException, TransformerException {
+        //Group the reports by spatial reference for batch MGRS conversion
+        LinkedHashMap<Integer, List<SpotReport>> reportsByWkid = new LinkedHashMap<Integer, List<SpotReport>>();
+        for (SpotReport spotReport : spotReports) {
+            if (null != spotReport) {
+                if (!isUpdate) {
+                    spotReport.regenerateMessageId();
+                }
+                List<SpotReport> reports = reportsByWkid.get(spotReport.getLocationWkid());
+                if (null == reports) {
+                    reports = new ArrayList<SpotReport>();
+                    reportsByWkid.put(spotReport.getLocationWkid(), reports);
+                }
+                reports.add(spotReport);
+            }
+        }
+
+        GeomessagesPacker packer = new GeomessagesPacker(MessageController.MAX_MESSAGE_LENGTH);
+        for (Integer wkid : reportsByWkid.keySet()) {
+            List<SpotReport> reports = reportsByWkid.get(wkid);
+            double[] xy = new double[reports.size() * 2];
+            for (int i = 0; i < reports.size(); i++) {
+                xy[2 * i] = reports.get(i).getLocationX();
+                xy[2 * i + 1] = reports.get(i).getLocationY();
+            }
+            String[] mgrs = mapController.pointsToMgrs(xy, wkid);
+            for (int i = 0; i < reports.size(); i++) {
+                DomNodeAndDocument nodeAndDocument = createSpotReportDocument(reports.get(i), uniqueDesignation, mgrs[i]);
+                packer.add(Utilities.nodeToString(nodeAndDocument.getNode()));
+            }
+        }
+        for (byte[] datagram : packer.finish()) {
+            messageController.sendMessage(datagram);
+        }
+    }
+
     /**
      * Converts a SpotReport to a string.
      * @param spotReport the SpotReport.
@@ -95,6 +160,16 @@ public class SpotReportController {
      */
     public String getSpotReportAsString(SpotReport spotReport, String senderUniqueDesignation)
             throws ParserConfigurationException, TransformerException {
+        //Convert as sendSpotReports does, so that every report's MGRS has the same format
+        String mgrs = mapController.pointsToMgrs(
+                new double[] { spotReport.getLocationX(), spotReport.getLocationY() },
+                spotReport.getLocationWkid())[0];
+        return Utilities.documentToString(
+                createSpotReportDocument(spotReport, senderUniqueDesignation, mgrs).getDocument());
+    }
+
+    private DomNodeAndDocument createSpotReportDocument(SpotReport spotReport, String senderUniqueDesignation, String mgrs)
+            throws ParserConfigurationException {
         Date theTime;
         if (null != spotReport.getTime()) {
             theTime = spotReport.getTime().getTime();
@@ -126,10 +201,7 @@ public class SpotReportController {
         // salute format attributes
         Utilities.addTextElement(doc, geomessageElement, "size", spotReport.getSize().toString());
         Utilities.addTextElement(doc, geomessageElement, "activity", spotReport.getActivity().toString());
-        Utilities.addTextElement(doc, geomessageElement, "location", mapController.pointToMgrs(
-                spotReport.getLocationX(),
-                spotReport.getLocationY(),
-                spotReport.getLocationWkid()));
+        Utilities.addTextElement(doc, geomessageElement, "location", mgrs);
         Utilities.addTextElement(doc, geomessageElement, "unit", spotReport.getUnit().toString());
         Utilities.addTextElement(doc, geomessageElement, "equipment", spotReport.getEquipment().toString());
 
@@ -140,7 +212,7 @@ public class SpotReportController {
         Utilities.addTextElement(doc, geomessageElement, "timeobserved", Utilities.DATE_FORMAT_GEOMESSAGE.format(theTime));
         Utilities.addTextElement(doc, geomessageElement, "datetimesubmitted", Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date()));
         
-        return Utilities.documentToString(doc);
+        return nodeAndDocument;
     }
     
 }
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Coalesces Geomessages on their way to an AdvancedSymbolController, so that a
+ * unit that reports many times per second is drawn at most once per frame. Only
+ * the latest update for each symbol, by message type and ID, is kept until the
+ * next frame; then the pending messages go to the AdvancedSymbolController in
+ * one batch, in the order in which their symbols were first updated since the
+ * last frame.<br/>
+ * <br/>
+ * Removals are never coalesced away. A "remove" message drops the symbol's
+ * pending update and is delivered in order, and a "removeall" message drops
+ * every pending message of its type. An update that arrives after a removal
+ * is delivered after it.<br/>
+ * <br/>
+ * Add a SymbolUpdateCoalescer to a MessageController as a listener, or call
+ * submit(Geomessage), instead of passing messages to the AdvancedSymbolController
+ * directly. Call setEnabled(true) to deliver pending messages at the frame rate,
+ * or call flush() directly.
+ */
+public class SymbolUpdateCoalescer implements MessageControllerListener {
+
+    /**
+     * The default number of batches delivered per second.
+     */
+    public static final double DEFAULT_FRAME_RATE = 10;
+
+    private final AdvancedSymbolController symbolController;
+    private final ReportScheduler scheduler;
+    private final Object flushLock = new Object();
+
+    private LinkedHashMap<String, Geomessage> pending = new LinkedHashMap<String, Geomessage>();
+    private long removalCount = 0;
+    private long coalescedCount = 0;
+    private double frameRate = DEFAULT_FRAME_RATE;
+    private boolean enabled = false;
+    private ScheduledFuture<?> frameTask = null;
+
+    /**
+     * Creates a new SymbolUpdateCoalescer that uses the shared ReportScheduler.
+     * @param symbolController the AdvancedSymbolController that draws the messages.
+     */
+    public SymbolUpdateCoalescer(AdvancedSymbolController symbolController) {
+        this(symbolController, ReportScheduler.getSharedScheduler());
+    }
+
+    /**
+     * Creates a new SymbolUpdateCoalescer.
+     * @param symbolController the AdvancedSymbolController that draws the messages.
+     * @param scheduler the scheduler that runs this object's frames.
+     */
+    public SymbolUpdateCoalescer(AdvancedSymbolController symbolController, ReportScheduler scheduler) {
+        this.symbolController = symbolController;
+        this.scheduler = scheduler;
+    }
+
+    private static String getKey(String messageType, String id) {
+        return messageType + '\u0000' + id;
+    }
+
+    /**
+     * Queues a Geomessage for the next batch, replacing the pending update for
+     * the same symbol, if any.
+     * @param geomessage the Geomessage.
+     */
+    public void submit(Geomessage geomessage) {
+        String messageType = AdvancedSymbolController.getInboundMessageTypeName(
+                (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME));
+        synchronized (this) {
+            if (Geomessage.ACTION_REMOVE_ALL.equals(geomessage.getProperty(Geomessage.ACTION_FIELD_NAME))) {
+                String prefix = getKey(messageType, "");
+                Iterator<String> keys = pending.keySet().iterator();
+                while (keys.hasNext()) {
+                    if (keys.next().startsWith(prefix)) {
+                        keys.remove();
+                        coalescedCount++;
+                    }
+                }
+                putRemoval(geomessage);
+            } else if (null == geomessage.getId()) {
+                putRemoval(geomessage);
+            } else {
+                String key = getKey(messageType, geomessage.getId());
+                if ("remove".equalsIgnoreCase((String) geomessage.getProperty(symbolController.getActionPropertyName()))) {
+                    if (null != pending.remove(key)) {
+                        coalescedCount++;
+                    }
+                    putRemoval(geomessage);
+                } else if (null != pending.put(key, geomessage)) {
+                    coalescedCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a message that must not be replaced, under a key of its own.
+     */
+    private void putRemoval(Geomessage geomessage) {
+        //No message type contains '\u0001'
+        pending.put("\u0001" + removalCount++, geomessage);
+    }
+
+    /**
+     * Delivers the pending messages to the AdvancedSymbolController.
+     * @return the number of messages delivered.
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            ArrayList<Geomessage> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return 0;
+                }
+                batch = new ArrayList<Geomessage>(pending.values());
+                pending = new LinkedHashMap<String, Geomessage>();
+            }
+            symbolController.handleGeomessages(batch);
+            return batch.size();
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for the next batch.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of messages that were dropped because a newer message
+     *         for the same symbol replaced them before they were delivered.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return the number of batches delivered per second while enabled.
+     */
+    public synchronized double getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Sets the number of batches delivered per second while enabled.
+     * @param frameRate the number of batches per second. The default is DEFAULT_FRAME_RATE.
+     */
+    public synchronized void setFrameRate(double frameRate) {
+        if (!(0 < frameRate)) {
+            throw new IllegalArgumentException("Frame rate must be positive");
+        }
+        this.frameRate = frameRate;
+        if (enabled) {
+            frameTask.cancel(false);
+            scheduleFrames();
+        }
+    }
+
+    /**
+     * Starts or stops delivering pending messages at the frame rate. Stopping
+     * delivers the pending messages one last time. The default is false.
+     * @param enabled true to deliver pending messages at the frame rate.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (this) {
+            if (this.enabled == enabled) {
+                return;
+            }
+            this.enabled = enabled;
+            if (enabled) {
+                scheduleFrames();
+                return;
+            }
+            frameTask.cancel(false);
+            frameTask = null;
+        }
+        flush();
+    }
+
+    /**
+     * @return true if this object delivers pending messages at the frame rate.
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    private void scheduleFrames() {
+        long period = Math.max(1, Math.round(1000.0 / frameRate));
+        frameTask = scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                flush();
+            }
+
+        }, period, period);
+    }
+
+    @Override
+    public void geomessageReceived(Geomessage geomessage) {
+        submit(geomessage);
+    }
+
+    @Override
+    public void datagramReceived(String contents) {
+
+    }
+
+}
@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.util.TimingWheel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes tracks that stop reporting from a TrackRegistry. Each message type has
+ * a time to live (TTL): a track expires when the registry has received nothing
+ * for it for that long. By default, position reports expire after five missed
+ * PositionReportController.DEFAULT_PERIOD periods, and other types, such as chem
+ * lights and spot reports, never expire.<br/>
+ * <br/>
+ * Deadlines are kept in a hierarchical TimingWheel, so each report refreshes its
+ * track's deadline in constant time. When a track expires, it is removed from the
+ * registry, which notifies the registry's listeners; then TrackExpiryListeners
+ * are notified, and the AdvancedSymbolController, if any, handles a "remove"
+ * Geomessage for the track, just as if one had been received. A track that is
+ * updated while it expires is kept.<br/>
+ * <br/>
+ * Call setEnabled(true) to check for expired tracks every tick, or call expire(long)
+ * directly.
+ */
+public class TrackExpiry implements TrackRegistryListener {
+
+    private static final Logger logger = Logger.getLogger(TrackExpiry.class.getName());
+
+    /**
+     * The default time to live of position reports, in milliseconds.
+     */
+    public static final long DEFAULT_POSITION_REPORT_TTL = 5L * PositionReportController.DEFAULT_PERIOD;
+
+    /**
+     * The default number of milliseconds between checks for expired tracks.
+     */
+    public static final int DEFAULT_TICK_INTERVAL = 250;
+
+    private final TrackRegistry registry;
+    private final ReportScheduler scheduler;
+    private final TimingWheel wheel;
+    private final HashMap<String, Long> timesToLive = new HashMap<String, Long>();
+    private final HashMap<String, Integer> handles = new HashMap<String, Integer>();
+    private final CopyOnWriteArrayList<TrackExpiryListener> listeners = new CopyOnWriteArrayList<TrackExpiryListener>();
+    private final ArrayList<Geomessage> expiredTracks = new ArrayList<Geomessage>();
+    private final TimingWheel.Expirer expirer = new TimingWheel.Expirer() {
+
+        @Override
+        public void expired(int handle, long deadline) {
+            Geomessage track = tracks[handle];
+            freeHandle(getKey(TrackRegistry.getMessageType(track), track.getId()), handle);
+            expiredTracks.add(track);
+        }
+
+    };
+
+    private Geomessage[] tracks = new Geomessage[64];
+    private int handleCount = 0;
+    private int[] freeHandles = new int[64];
+    private int freeHandleCount = 0;
+    private volatile AdvancedSymbolController symbolController = null;
+    private boolean enabled = false;
+    private ScheduledFuture<?> tickTask = null;
+
+    /**
+     * Creates a new TrackExpiry that uses the shared ReportScheduler and adds
+     * itself to a TrackRegistry as a listener.
+     * @param registry the registry whose tracks expire.
+     */
+    public TrackExpiry(TrackRegistry registry) {
+        this(registry, ReportScheduler.getSharedScheduler());
+    }
+
+    /**
+     * Creates a new TrackExpiry and adds it to a TrackRegistry as a listener.
+     * @param registry the registry whose tracks expire.
+     * @param scheduler the scheduler that runs this object's ticks.
+     */
+    public TrackExpiry(TrackRegistry registry, ReportScheduler scheduler) {
+        this.registry = registry;
+        this.scheduler = scheduler;
+        wheel = new TimingWheel(DEFAULT_TICK_INTERVAL, System.currentTimeMillis());
+        timesToLive.put(PositionReportController.REPORT_TYPE, DEFAULT_POSITION_REPORT_TTL);
+        registry.addListener(this);
+    }
+
+    private static String getKey(String messageType, String id) {
+        return messageType + '\u0000' + id;
+    }
+
+    /**
+     * Sets the time to live of a message type. The new value applies from each
+     * track's next update.
+     * @param messageType the message type, such as PositionReportController.REPORT_TYPE.
+     * @param timeToLive the number of milliseconds after its last update that a
+     *                   track of this type expires. A non-positive number means
+     *                   tracks of this type never expire.
+     */
+    public synchronized void setTimeToLive(String messageType, long timeToLive) {
+        if (0 < timeToLive) {
+            timesToLive.put(messageType, timeToLive);
+        } else {
+            timesToLive.remove(messageType);
+        }
+    }
+
+    /**
+     * @param messageType the message type.
+     * @return the time to live of the message type, in milliseconds, or 0 if tracks
+     *         of this type never expire.
+     */
+    public synchronized long getTimeToLive(String messageType) {
+        Long timeToLive = timesToLive.get(messageType);
+        return null == timeToLive ? 0 : timeToLive;
+    }
+
+    /**
+     * Sets the AdvancedSymbolController from which expired tracks are removed.
+     * @param symbolController the AdvancedSymbolController, or null.
+     */
+    public void setAdvancedSymbolController(AdvancedSymbolController symbolController) {
+        this.symbolController = symbolController;
+    }
+
+    /**
+     * Adds a listener for expired tracks.
+     * @param listener the listener to add.
+     */
+    public void addListener(TrackExpiryListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener the listener to remove.
+     * @return true if this object had the listener.
+     */
+    public boolean removeListener(TrackExpiryListener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * @return the number of tracks that will expire if they stop reporting.
+     */
+    public synchronized int getScheduledCount() {
+        return wheel.size();
+    }
+
+    /**
+     * Starts or stops checking for expired tracks every DEFAULT_TICK_INTERVAL
+     * milliseconds. The default is false.
+     * @param enabled true to check for expired tracks.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (this.enabled != enabled) {
+            this.enabled = enabled;
+            if (enabled) {
+                tickTask = scheduler.scheduleAtFixedRate(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        expire(System.currentTimeMillis());
+                    }
+
+                }, DEFAULT_TICK_INTERVAL, DEFAULT_TICK_INTERVAL);
+            } else if (null != tickTask) {
+                tickTask.cancel(false);
+                tickTask = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if this object checks for expired tracks every tick.
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Removes every track whose time to live has passed.
+     * @param now the current time, in milliseconds since the epoch.
+     * @return the number of tracks removed.
+     */
+    public int expire(long now) {
+        Geomessage[] expired;
+        synchronized (this) {
+            wheel.advance(now, expirer);
+            if (expiredTracks.isEmpty()) {
+                return 0;
+            }
+            expired = expiredTracks.toArray(new Geomessage[expiredTracks.size()]);
+            expiredTracks.clear();
+        }
+        //Notify outside the lock, since listeners may call back into the registry
+        int count = 0;
+        AdvancedSymbolController symbols = symbolController;
+        for (Geomessage track : expired) {
+            if (!registry.remove(track)) {
+                //Updated or removed in the meantime
+                continue;
+            }
+            count++;
+            for (TrackExpiryListener listener : listeners) {
+                try {
+                    listener.trackExpired(track);
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "TrackExpiryListener failed", t);
+                }
+            }
+            if (null != symbols) {
+                //Handle it like an inbound remove, so it waits its turn and forgets any deferred update
+                Geomessage remove = new Geomessage();
+                remove.setId(track.getId());
+                remove.setProperty(Geomessage.TYPE_FIELD_NAME, TrackRegistry.getMessageType(track));
+                remove.setProperty(symbols.getActionPropertyName(), "remove");
+                try {
+                    symbols.handleGeomessage(remove);
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "Could not remove expired track " + track.getId(), t);
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void trackUpdated(Geomessage current, Geomessage previous) {
+        long now = System.currentTimeMillis();
+        String type = TrackRegistry.getMessageType(current);
+        String key = getKey(type, current.getId());
+        synchronized (this) {
+            Integer handle = handles.get(key);
+            Long timeToLive = timesToLive.get(type);
+            if (null == timeToLive) {
+                if (null != handle) {
+                    wheel.cancel(handle);
+                    freeHandle(key, handle);
+                }
+                return;
+            }
+            if (null == handle) {
+                handle = allocateHandle();
+                handles.put(key, handle);
+            }
+            tracks[handle] = current;
+            wheel.schedule(handle, now + timeToLive);
+        }
+    }
+
+    @Override
+    public synchronized void trackRemoved(Geomessage removed) {
+        String key = getKey(TrackRegistry.getMessageType(removed), removed.getId());
+        Integer handle = handles.get(key);
+        //Only cancel if a newer update has not replaced the track
+        if (null != handle && tracks[handle] == removed) {
+            wheel.cancel(handle);
+            freeHandle(key, handle);
+        }
+    }
+
+    @Override
+    public synchronized void allTracksRemoved(String messageType, Collection<Geomessage> removed) {
+        for (Geomessage track : removed) {
+            trackRemoved(track);
+        }
+    }
+
+    private int allocateHandle() {
+        if (0 < freeHandleCount) {
+            return freeHandles[--freeHandleCount];
+        }
+        if (handleCount == tracks.length) {
+            tracks = Arrays.copyOf(tracks, tracks.length * 2);
+        }
+        return handleCount++;
+    }
+
+    private void freeHandle(String key, int handle) {
+        handles.remove(key);
+        tracks[handle] = null;
+        if (freeHandleCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+        }
+        freeHandles[freeHandleCount++] = handle;
+    }
+
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+
+/**
+ * Interface for classes that listen for TrackExpiry events.
+ */
+public interface TrackExpiryListener {
+
+    /**
+     * Called after a track that stopped reporting has been removed from its
+     * TrackRegistry.
+     * @param expired the expired track's last Geomessage.
+     */
+    void trackExpired(Geomessage expired);
+
+}
@@ -0,0 +1,445 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.util.Utilities;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Keeps the recent positions of each track, for breadcrumb trails. Each track
+ * has a fixed-capacity ring of points, and every point is stored in parallel
+ * primitive arrays (longitude, latitude, time, heading, and speed), so a point
+ * costs 32 bytes instead of a Geomessage or Location object. The rings of all
+ * tracks share the same arrays.<br/>
+ * <br/>
+ * Retention is by count, the ring capacity, and optionally by age: points older
+ * than the maximum age are dropped when new points arrive and are left out of
+ * query results.<br/>
+ * <br/>
+ * Add a TrackHistoryStore to a TrackRegistry as a listener to record every track
+ * that has a location, keyed by message type and Geomessage ID as the registry
+ * keys it, or call addPoint directly. Points older than a track's newest point
+ * are ignored, so datagrams that arrive out of order do not scramble a trail.
+ * The methods that take only an ID work on tracks without a message type.
+ */
+public class TrackHistoryStore implements TrackRegistryListener {
+
+    /**
+     * The default number of points kept per track.
+     */
+    public static final int DEFAULT_CAPACITY = 100;
+
+    private static final int INITIAL_TRACK_CAPACITY = 16;
+
+    private final int capacity;
+    private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    private final double[] point = new double[2];
+    //The registry's current Geomessage for each slot, if the slot follows a registry
+    private Geomessage[] tracks = new Geomessage[INITIAL_TRACK_CAPACITY];
+
+    private long maxAge = 0;
+
+    //Point state, indexed by slot * capacity + position in the ring
+    private double[] longitudes;
+    private double[] latitudes;
+    private long[] times;
+    private float[] headings;
+    private float[] speeds;
+
+    //Ring state, indexed by slot
+    private int[] ringStarts = new int[INITIAL_TRACK_CAPACITY];
+    private int[] ringSizes = new int[INITIAL_TRACK_CAPACITY];
+    private int slotCount = 0;
+    private int[] freeSlots = new int[INITIAL_TRACK_CAPACITY];
+    private int freeSlotCount = 0;
+
+    /**
+     * Creates a new TrackHistoryStore that keeps DEFAULT_CAPACITY points per track.
+     */
+    public TrackHistoryStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new TrackHistoryStore.
+     * @param capacity the number of points kept per track.
+     */
+    public TrackHistoryStore(int capacity) {
+        if (0 >= capacity) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        int pointCapacity = INITIAL_TRACK_CAPACITY * capacity;
+        longitudes = new double[pointCapacity];
+        latitudes = new double[pointCapacity];
+        times = new long[pointCapacity];
+        headings = new float[pointCapacity];
+        speeds = new float[pointCapacity];
+    }
+
+    /**
+     * @return the number of points kept per track.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the maximum age of a point, in milliseconds, or 0 if points are
+     *         kept regardless of age.
+     */
+    public synchronized long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets the maximum age of a point. Older points are dropped when new points
+     * arrive and are left out of query results. The default is 0.
+     * @param maxAge the maximum age of a point, in milliseconds, or 0 to keep
+     *               points regardless of age.
+     */
+    public synchronized void setMaxAge(long maxAge) {
+        this.maxAge = Math.max(0, maxAge);
+    }
+
+    private static String getKey(String messageType, String id) {
+        return (null == messageType ? "" : messageType) + '\u0000' + id;
+    }
+
+    /**
+     * Adds a point to the history of a track without a message type. See
+     * addPoint(String, String, double, double, long, float, float).
+     */
+    public boolean addPoint(String id, double longitude, double latitude, long time,
+            float heading, float speed) {
+        return addPoint(null, id, longitude, latitude, time, heading, speed);
+    }
+
+    /**
+     * Adds a point to a track's history.
+     * @param messageType the track's message type, as TrackRegistry.getMessageType
+     *                    returns it, or null.
+     * @param id the track's ID.
+     * @param longitude the longitude.
+     * @param latitude the latitude.
+     * @param time the time of the point, in milliseconds since the epoch.
+     * @param heading the heading in degrees, or Float.NaN if unknown.
+     * @param speed the speed in meters per second, or Float.NaN if unknown.
+     * @return true if the point was added, or false if it was not newer than the
+     *         track's newest point.
+     */
+    public synchronized boolean addPoint(String messageType, String id, double longitude, double latitude,
+            long time, float heading, float speed) {
+        return -1 != addPointToSlot(getKey(messageType, id), longitude, latitude, time, heading, speed);
+    }
+
+    /**
+     * Adds a point and returns the track's slot, or -1 if the point was ignored.
+     */
+    private int addPointToSlot(String key, double longitude, double latitude, long time,
+            float heading, float speed) {
+        Integer slotObject = slots.get(key);
+        int slot;
+        if (null == slotObject) {
+            slot = allocateSlot();
+            slots.put(key, slot);
+        } else {
+            slot = slotObject;
+        }
+        int base = slot * capacity;
+        int size = ringSizes[slot];
+        if (0 < size) {
+            int newest = base + (ringStarts[slot] + size - 1) % capacity;
+            if (time < times[newest] || (time == times[newest]
+                    && longitude == longitudes[newest] && latitude == latitudes[newest])) {
+                return -1;
+            }
+        }
+        if (0 < maxAge) {
+            //Drop expired points from the oldest end
+            long oldestAllowed = time - maxAge;
+            while (0 < size && times[base + ringStarts[slot]] < oldestAllowed) {
+                ringStarts[slot] = (ringStarts[slot] + 1) % capacity;
+                size--;
+            }
+        }
+        int index;
+        if (size == capacity) {
+            index = base + ringStarts[slot];
+            ringStarts[slot] = (ringStarts[slot] + 1) % capacity;
+        } else {
+            index = base + (ringStarts[slot] + size) % capacity;
+            size++;
+        }
+        ringSizes[slot] = size;
+        longitudes[index] = longitude;
+        latitudes[index] = latitude;
+        times[index] = time;
+        headings[index] = heading;
+        speeds[index] = speed;
+        return slot;
+    }
+
+    /**
+     * Returns the number of points in the history of a track without a message type.
+     * See getHistorySize(String, String).
+     */
+    public int getHistorySize(String id) {
+        return getHistorySize(null, id);
+    }
+
+    /**
+     * Returns the number of points in a track's history, including points that
+     * have expired but have not been dropped yet.
+     * @param messageType the track's message type, or null.
+     * @param id the track's ID.
+     * @return the number of points.
+     */
+    public synchronized int getHistorySize(String messageType, String id) {
+        Integer slot = slots.get(getKey(messageType, id));
+        return null == slot ? 0 : ringSizes[slot];
+    }
+
+    /**
+     * @return the number of tracks with history.
+     */
+    public synchronized int getTrackCount() {
+        return slots.size();
+    }
+
+    /**
+     * Copies the history of a track without a message type into caller arrays.
+     * See getHistory(String, String, long, double[], double[], long[], float[], float[]).
+     */
+    public int getHistory(String id, long now, double[] longitudes, double[] latitudes,
+            long[] times, float[] headings, float[] speeds) {
+        return getHistory(null, id, now, longitudes, latitudes, times, headings, speeds);
+    }
+
+    /**
+     * Copies a track's history, oldest point first, into caller arrays, leaving
+     * out points older than the maximum age. If the arrays are too short for all
+     * of the points, the newest points are copied.
+     * @param messageType the track's message type, or null.
+     * @param id the track's ID.
+     * @param now the current time, in milliseconds since the epoch, for age retention.
+     * @param longitudes receives the longitudes, or null.
+     * @param latitudes receives the latitudes, or null.
+     * @param times receives the times, or null.
+     * @param headings receives the headings, or null.
+     * @param speeds receives the speeds, or null.
+     * @return the number of points copied.
+     */
+    public synchronized int getHistory(String messageType, String id, long now, double[] longitudes,
+            double[] latitudes, long[] times, float[] headings, float[] speeds) {
+        Integer slotObject = slots.get(getKey(messageType, id));
+        if (null == slotObject) {
+            return 0;
+        }
+        int slot = slotObject;
+        int base = slot * capacity;
+        int start = ringStarts[slot];
+        int size = ringSizes[slot];
+        if (0 < maxAge) {
+            long oldestAllowed = now - maxAge;
+            while (0 < size && this.times[base + start] < oldestAllowed) {
+                start = (start + 1) % capacity;
+                size--;
+            }
+        }
+        int count = size;
+        count = null == longitudes ? count : Math.min(count, longitudes.length);
+        count = null == latitudes ? count : Math.min(count, latitudes.length);
+        count = null == times ? count : Math.min(count, times.length);
+        count = null == headings ? count : Math.min(count, headings.length);
+        count = null == speeds ? count : Math.min(count, speeds.length);
+        //Skip the oldest points that do not fit
+        start = (start + size - count) % capacity;
+        int firstRun = Math.min(count, capacity - start);
+        copy(base + start, 0, firstRun, longitudes, latitudes, times, headings, speeds);
+        copy(base, firstRun, count - firstRun, longitudes, latitudes, times, headings, speeds);
+        return count;
+    }
+
+    /**
+     * Copies the history of a track without a message type into caller arrays,
+     * using the current time for age retention. See
+     * getHistory(String, String, long, double[], double[], long[], float[], float[]).
+     */
+    public int getHistory(String id, double[] longitudes, double[] latitudes,
+            long[] times, float[] headings, float[] speeds) {
+        return getHistory(null, id, System.currentTimeMillis(), longitudes, latitudes, times, headings, speeds);
+    }
+
+    /**
+     * Copies a track's history into caller arrays, using the current time for
+     * age retention. See getHistory(String, String, long, double[], double[], long[], float[], float[]).
+     */
+    public int getHistory(String messageType, String id, double[] longitudes, double[] latitudes,
+            long[] times, float[] headings, float[] speeds) {
+        return getHistory(messageType, id, System.currentTimeMillis(), longitudes, latitudes, times, headings, speeds);
+    }
+
+    /**
+     * Removes the history of a track without a message type.
+     * @param id the track's ID.
+     * @return true if the track had history.
+     */
+    public boolean removeTrack(String id) {
+        return removeTrack(null, id);
+    }
+
+    /**
+     * Removes a track's history.
+     * @param messageType the track's message type, or null.
+     * @param id the track's ID.
+     * @return true if the track had history.
+     */
+    public synchronized boolean removeTrack(String messageType, String id) {
+        return removeSlot(getKey(messageType, id));
+    }
+
+    private boolean removeSlot(String key) {
+        Integer slot = slots.remove(key);
+        if (null == slot) {
+            return false;
+        }
+        tracks[slot] = null;
+        ringSizes[slot] = 0;
+        ringStarts[slot] = 0;
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+        return true;
+    }
+
+    /**
+     * Removes the history of every track.
+     */
+    public synchronized void clear() {
+        slots.clear();
+        Arrays.fill(tracks, null);
+        Arrays.fill(ringSizes, 0);
+        Arrays.fill(ringStarts, 0);
+        slotCount = 0;
+        freeSlotCount = 0;
+    }
+
+    @Override
+    public void trackUpdated(Geomessage current, Geomessage previous) {
+        long time = System.currentTimeMillis();
+        Object timeString = current.getProperty("datetimevalid");
+        if (null != timeString) {
+            try {
+                synchronized (Utilities.DATE_FORMAT_GEOMESSAGE) {
+                    time = Utilities.DATE_FORMAT_GEOMESSAGE.parse(timeString.toString()).getTime();
+                }
+            } catch (ParseException pe) {
+                //Use the time received
+            }
+        }
+        String key = getKey(TrackRegistry.getMessageType(current), current.getId());
+        synchronized (this) {
+            int slot = -1;
+            if (TrackSpatialIndex.getLonLat(current, point)) {
+                slot = addPointToSlot(key, point[0], point[1], time,
+                        parseFloat(current.getProperty("direction")),
+                        parseFloat(current.getProperty("speed")));
+            }
+            if (-1 == slot) {
+                Integer slotObject = slots.get(key);
+                slot = null == slotObject ? -1 : slotObject;
+            }
+            if (-1 != slot) {
+                tracks[slot] = current;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void trackRemoved(Geomessage removed) {
+        String key = getKey(TrackRegistry.getMessageType(removed), removed.getId());
+        Integer slot = slots.get(key);
+        //Only remove the history if a newer update has not replaced the track
+        if (null != slot && tracks[slot] == removed) {
+            removeSlot(key);
+        }
+    }
+
+    @Override
+    public synchronized void allTracksRemoved(String messageType, Collection<Geomessage> removed) {
+        for (Geomessage track : removed) {
+            trackRemoved(track);
+        }
+    }
+
+    private static float parseFloat(Object value) {
+        if (null != value) {
+            try {
+                return Float.parseFloat(value.toString());
+            } catch (NumberFormatException nfe) {
+                //Unknown
+            }
+        }
+        return Float.NaN;
+    }
+
+    private void copy(int from, int to, int count, double[] longitudes, double[] latitudes,
+            long[] times, float[] headings, float[] speeds) {
+        if (0 < count) {
+            if (null != longitudes) {
+                System.arraycopy(this.longitudes, from, longitudes, to, count);
+            }
+            if (null != latitudes) {
+                System.arraycopy(this.latitudes, from, latitudes, to, count);
+            }
+            if (null != times) {
+                System.arraycopy(this.times, from, times, to, count);
+            }
+            if (null != headings) {
+                System.arraycopy(this.headings, from, headings, to, count);
+            }
+            if (null != speeds) {
+                System.arraycopy(this.speeds, from, speeds, to, count);
+            }
+        }
+    }
+
+    private int allocateSlot() {
+        if (0 < freeSlotCount) {
+            return freeSlots[--freeSlotCount];
+        }
+        if (slotCount == ringSizes.length) {
+            int trackCapacity = ringSizes.length * 2;
+            tracks = Arrays.copyOf(tracks, trackCapacity);
+            ringStarts = Arrays.copyOf(ringStarts, trackCapacity);
+            ringSizes = Arrays.copyOf(ringSizes, trackCapacity);
+            int pointCapacity = trackCapacity * capacity;
+            longitudes = Arrays.copyOf(longitudes, pointCapacity);
+            latitudes = Arrays.copyOf(latitudes, pointCapacity);
+            times = Arrays.copyOf(times, pointCapacity);
+            headings = Arrays.copyOf(headings, pointCapacity);
+            speeds = Arrays.copyOf(speeds, pointCapacity);
+        }
+        return slotCount++;
+    }
+
+}
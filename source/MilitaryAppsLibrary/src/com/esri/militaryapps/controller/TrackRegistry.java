@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe registry of the current state of every track (position report,
+ * spot report, chem light, and so on) received as Geomessages. Tracks are keyed
+ * by message type and Geomessage ID. An UPDATE (or any action other than REMOVE
+ * and removeall) adds or replaces a track, REMOVE removes it, and removeall
+ * removes every track of the message's type. Each message is applied in constant
+ * time.<br/>
+ * <br/>
+ * Add a TrackRegistry to a MessageController as a listener to keep it current.
+ * Many threads may update the registry at once. getSnapshot() returns a view
+ * that is consistent across all types: no update is half-applied in it.<br/>
+ * <br/>
+ * Each change to a track and the listener callbacks for it happen under one of
+ * LOCK_STRIPES locks chosen by message type and ID, so listeners see the changes
+ * to one track in the same order as the registry applied them. Listeners must
+ * not update or remove other tracks from their callbacks.<br/>
+ * <br/>
+ * The registry stores copies of the Geomessages it receives, so callers may keep
+ * modifying their own Geomessages. Do not modify the Geomessages the registry
+ * returns or passes to listeners.
+ */
+public class TrackRegistry implements MessageControllerListener {
+
+    /**
+     * The number of locks that serialize changes to tracks. Changes to tracks
+     * that share a lock do not run in parallel.
+     */
+    public static final int LOCK_STRIPES = 64;
+
+    private static final Logger logger = Logger.getLogger(TrackRegistry.class.getName());
+    private static final String ACTION_REMOVE = "REMOVE";
+    //Some senders capitalize the action field name
+    private static final String ALTERNATE_ACTION_FIELD_NAME = "_Action";
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Geomessage>> tracksByType
+            = new ConcurrentHashMap<String, ConcurrentHashMap<String, Geomessage>>();
+    /**
+     * Updates to single tracks share this lock so they can run in parallel;
+     * snapshots and removeall take it exclusively.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] trackLocks = new ReentrantLock[LOCK_STRIPES];
+    private final CopyOnWriteArrayList<TrackRegistryListener> listeners = new CopyOnWriteArrayList<TrackRegistryListener>();
+
+    /**
+     * Creates a new, empty TrackRegistry.
+     */
+    public TrackRegistry() {
+        for (int i = 0; i < trackLocks.length; i++) {
+            trackLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns a Geomessage's type as this registry keys it, translated from the
+     * names that ArcGIS for the Military uses.
+     * @param geomessage the Geomessage.
+     * @return the message type.
+     */
+    public static String getMessageType(Geomessage geomessage) {
+        String type = AdvancedSymbolController.getInboundMessageTypeName(
+                (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME));
+        return null == type ? "" : type;
+    }
+
+    /**
+     * Returns a Geomessage's action, from either action field, or null if it has none.
+     */
+    static String getAction(Geomessage geomessage) {
+        Object action = geomessage.getProperty(Geomessage.ACTION_FIELD_NAME);
+        if (null == action) {
+            action = geomessage.getProperty(ALTERNATE_ACTION_FIELD_NAME);
+        }
+        return null == action ? null : action.toString();
+    }
+
+    /**
+     * Adds a listener to this registry.
+     * @param listener the listener to add.
+     */
+    public void addListener(TrackRegistryListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener from this registry.
+     * @param listener the listener to remove.
+     * @return true if this registry had the listener.
+     */
+    public boolean removeListener(TrackRegistryListener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Applies a Geomessage to this registry. Geomessages without an ID are ignored,
+     * except for removeall messages.
+     * @param geomessage the Geomessage.
+     */
+    public void update(Geomessage geomessage) {
+        String type = getMessageType(geomessage);
+        String action = getAction(geomessage);
+        if (Geomessage.ACTION_REMOVE_ALL.equalsIgnoreCase(action)) {
+            removeAll(type);
+        } else if (null != geomessage.getId()) {
+            if (ACTION_REMOVE.equalsIgnoreCase(action)) {
+                remove(type, geomessage.getId());
+            } else {
+                Geomessage track = geomessage.clone();
+                track.setProperty(Geomessage.TYPE_FIELD_NAME, type);
+                ReentrantLock trackLock = getTrackLock(type, track.getId());
+                trackLock.lock();
+                try {
+                    Geomessage previous;
+                    lock.readLock().lock();
+                    try {
+                        previous = getTypeMap(type).put(track.getId(), track);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                    for (TrackRegistryListener listener : listeners) {
+                        try {
+                            listener.trackUpdated(track, previous);
+                        } catch (Throwable t) {
+                            logger.log(Level.SEVERE, "TrackRegistryListener failed", t);
+                        }
+                    }
+                } finally {
+                    trackLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a track.
+     * @param messageType the track's message type.
+     * @param id the track's Geomessage ID.
+     * @return the removed track, or null if there was no such track.
+     */
+    public Geomessage remove(String messageType, String id) {
+        if (null == id) {
+            return null;
+        }
+        Geomessage removed = null;
+        ReentrantLock trackLock = getTrackLock(messageType, id);
+        trackLock.lock();
+        try {
+            lock.readLock().lock();
+            try {
+                ConcurrentHashMap<String, Geomessage> tracks = tracksByType.get(messageType);
+                if (null != tracks) {
+                    removed = tracks.remove(id);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (null != removed) {
+                fireTrackRemoved(removed);
+            }
+        } finally {
+            trackLock.unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes a track only if it has not been updated since the caller got it,
+     * so a track that expires while a new report arrives is kept.
+     * @param track a track that this registry returned or passed to a listener.
+     * @return true if the track was removed, or false if it was updated or removed
+     *         in the meantime.
+     */
+    public boolean remove(Geomessage track) {
+        if (null == track.getId()) {
+            return false;
+        }
+        String type = getMessageType(track);
+        boolean removed = false;
+        ReentrantLock trackLock = getTrackLock(type, track.getId());
+        trackLock.lock();
+        try {
+            lock.readLock().lock();
+            try {
+                ConcurrentHashMap<String, Geomessage> tracks = tracksByType.get(type);
+                if (null != tracks) {
+                    removed = tracks.remove(track.getId(), track);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (removed) {
+                fireTrackRemoved(track);
+            }
+        } finally {
+            trackLock.unlock();
+        }
+        return removed;
+    }
+
+    private void fireTrackRemoved(Geomessage removed) {
+        for (TrackRegistryListener listener : listeners) {
+            try {
+                listener.trackRemoved(removed);
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "TrackRegistryListener failed", t);
+            }
+        }
+    }
+
+    /**
+     * Removes all tracks of a type.
+     * @param messageType the message type.
+     * @return the removed tracks.
+     */
+    public Collection<Geomessage> removeAll(String messageType) {
+        //Take every track lock, in order, so no track change interleaves with this one
+        for (ReentrantLock trackLock : trackLocks) {
+            trackLock.lock();
+        }
+        try {
+            ConcurrentHashMap<String, Geomessage> removed;
+            lock.writeLock().lock();
+            try {
+                //Drop the whole map instead of clearing it, so this is constant time
+                removed = tracksByType.remove(messageType);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (null == removed) {
+                return Collections.emptyList();
+            }
+            Collection<Geomessage> removedTracks = Collections.unmodifiableCollection(removed.values());
+            for (TrackRegistryListener listener : listeners) {
+                try {
+                    listener.allTracksRemoved(messageType, removedTracks);
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "TrackRegistryListener failed", t);
+                }
+            }
+            return removedTracks;
+        } finally {
+            for (int i = trackLocks.length - 1; i >= 0; i--) {
+                trackLocks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes every track of every type.
+     */
+    public void clear() {
+        for (String type : new ArrayList<String>(tracksByType.keySet())) {
+            removeAll(type);
+        }
+    }
+
+    private ReentrantLock getTrackLock(String messageType, String id) {
+        int hash = (messageType + '\u0000' + id).hashCode();
+        hash ^= hash >>> 16;
+        return trackLocks[(hash & 0x7fffffff) % trackLocks.length];
+    }
+
+    private ConcurrentHashMap<String, Geomessage> getTypeMap(String type) {
+        ConcurrentHashMap<String, Geomessage> tracks = tracksByType.get(type);
+        if (null == tracks) {
+            ConcurrentHashMap<String, Geomessage> newTracks = new ConcurrentHashMap<String, Geomessage>();
+            tracks = tracksByType.putIfAbsent(type, newTracks);
+            if (null == tracks) {
+                tracks = newTracks;
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Returns a track.
+     * @param messageType the track's message type.
+     * @param id the track's Geomessage ID.
+     * @return the track, or null if there is no such track.
+     */
+    public Geomessage getTrack(String messageType, String id) {
+        ConcurrentHashMap<String, Geomessage> tracks = tracksByType.get(messageType);
+        return null == tracks ? null : tracks.get(id);
+    }
+
+    /**
+     * @return the number of tracks of all types.
+     */
+    public int getTrackCount() {
+        int count = 0;
+        for (ConcurrentHashMap<String, Geomessage> tracks : tracksByType.values()) {
+            count += tracks.size();
+        }
+        return count;
+    }
+
+    /**
+     * @param messageType the message type.
+     * @return the number of tracks of the given type.
+     */
+    public int getTrackCount(String messageType) {
+        ConcurrentHashMap<String, Geomessage> tracks = tracksByType.get(messageType);
+        return null == tracks ? 0 : tracks.size();
+    }
+
+    /**
+     * @return the message types that currently have tracks.
+     */
+    public List<String> getMessageTypes() {
+        return new ArrayList<String>(tracksByType.keySet());
+    }
+
+    /**
+     * Returns a copy of the current tracks of one type.
+     * @param messageType the message type.
+     * @return the tracks of the given type.
+     */
+    public List<Geomessage> getSnapshot(String messageType) {
+        ConcurrentHashMap<String, Geomessage> tracks = tracksByType.get(messageType);
+        return null == tracks ? new ArrayList<Geomessage>() : new ArrayList<Geomessage>(tracks.values());
+    }
+
+    /**
+     * Returns a consistent copy of all current tracks, keyed by message type and
+     * then by Geomessage ID. Updates wait while the copy is made.
+     * @return all current tracks.
+     */
+    public Map<String, Map<String, Geomessage>> getSnapshot() {
+        HashMap<String, Map<String, Geomessage>> snapshot = new HashMap<String, Map<String, Geomessage>>();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, ConcurrentHashMap<String, Geomessage>> entry : tracksByType.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    snapshot.put(entry.getKey(), new HashMap<String, Geomessage>(entry.getValue()));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void geomessageReceived(Geomessage geomessage) {
+        update(geomessage);
+    }
+
+    @Override
+    public void datagramReceived(String contents) {
+
+    }
+
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.util.Collection;
+
+/**
+ * Interface for classes that listen for TrackRegistry events. Events are fired
+ * on the thread that changed the registry, after the change is visible to readers.
+ */
+public interface TrackRegistryListener {
+
+    /**
+     * Called when a track is added or updated.
+     * @param current the track's new Geomessage.
+     * @param previous the track's previous Geomessage, or null if the track is new.
+     */
+    void trackUpdated(Geomessage current, Geomessage previous);
+
+    /**
+     * Called when a track is removed.
+     * @param removed the removed track's last Geomessage.
+     */
+    void trackRemoved(Geomessage removed);
+
+    /**
+     * Called when all tracks of a type are removed at once.
+     * @param messageType the message type.
+     * @param removed the removed tracks' last Geomessages.
+     */
+    void allTracksRemoved(String messageType, Collection<Geomessage> removed);
+
+}
@@ -0,0 +1,647 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a snapshot of a TrackRegistry in a memory-mapped file, so that the
+ * operational picture, including chem lights and spot reports that will not be
+ * sent again, survives a restart.<br/>
+ * <br/>
+ * The file is a log of compact binary records: track updates, track removals, and
+ * removals of every track of a type. Registry events only record which tracks
+ * changed, in constant time, so the receive path never waits for I/O. Each flush
+ * appends one record per changed track, however many times it changed, to the
+ * mapped file. When the appended records outgrow the last full snapshot, the
+ * log is compacted: the current tracks are written to a new generation of the
+ * file, and recording switches to it. The first generation is the file itself,
+ * and later generations add a number to its name (tracks.snapshot.1,
+ * tracks.snapshot.2, and so on). A file that is or was mapped is never renamed
+ * over or rewritten, which some platforms, such as Windows, do not allow. Older
+ * generations are deleted once they can be; the newest generation is the one
+ * that is loaded.<br/>
+ * <br/>
+ * Each record has a length and a CRC-32 checksum, and its length is written last,
+ * so a record that was cut off by a crash is ignored when the file is loaded.<br/>
+ * <br/>
+ * Call open() at startup to load the snapshot into the registry and start
+ * recording, then call setEnabled(true) to flush every DEFAULT_FLUSH_INTERVAL
+ * milliseconds, or call flush() directly. Call close() before exiting.
+ */
+public class TrackSnapshotStore implements TrackRegistryListener {
+
+    private static final Logger logger = Logger.getLogger(TrackSnapshotStore.class.getName());
+
+    /**
+     * The default number of milliseconds between flushes.
+     */
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final int MAGIC = 0x54524b53;//"TRKS"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    private static final int MIN_COMPACTION_LENGTH = 1 << 16;
+    private static final byte KIND_UPDATE = 1;
+    private static final byte KIND_REMOVE = 2;
+    private static final byte KIND_REMOVE_ALL = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A pending change to the file.
+     */
+    private static class Change {
+
+        private final byte kind;
+        private final String messageType;
+        private final String id;
+        private final Geomessage track;
+
+        Change(byte kind, String messageType, String id, Geomessage track) {
+            this.kind = kind;
+            this.messageType = messageType;
+            this.id = id;
+            this.track = track;
+        }
+
+    }
+
+    private final File file;
+    private final TrackRegistry registry;
+    private final ReportScheduler scheduler;
+    private final Object ioLock = new Object();
+    private final CRC32 crc = new CRC32();
+
+    //Guarded by this
+    private LinkedHashMap<String, Change> changes = new LinkedHashMap<String, Change>();
+    private boolean enabled = false;
+    private ScheduledFuture<?> flushTask = null;
+
+    //Guarded by ioLock
+    private FileChannel channel = null;
+    private MappedByteBuffer buffer = null;
+    private int compactedLength = 0;
+    private long generation = -1;
+    private byte[] record = new byte[256];
+    private int recordLength = 0;
+
+    /**
+     * Creates a new TrackSnapshotStore that uses the shared ReportScheduler. Call
+     * open() to load the snapshot and start recording.
+     * @param file the snapshot file.
+     * @param registry the registry to snapshot.
+     */
+    public TrackSnapshotStore(File file, TrackRegistry registry) {
+        this(file, registry, ReportScheduler.getSharedScheduler());
+    }
+
+    /**
+     * Creates a new TrackSnapshotStore. Call open() to load the snapshot and start
+     * recording.
+     * @param file the snapshot file.
+     * @param registry the registry to snapshot.
+     * @param scheduler the scheduler that runs this object's flushes.
+     */
+    public TrackSnapshotStore(File file, TrackRegistry registry, ReportScheduler scheduler) {
+        this.file = file;
+        this.registry = registry;
+        this.scheduler = scheduler;
+    }
+
+    private static String getKey(String messageType, String id) {
+        return messageType + '\u0000' + id;
+    }
+
+    private static File getGenerationFile(File file, long generation) {
+        return 0 == generation ? file : new File(file.getPath() + "." + generation);
+    }
+
+    /**
+     * Returns the generations of a snapshot file that exist, in ascending order.
+     */
+    private static long[] listGenerations(File file) {
+        long[] generations = new long[file.exists() ? 1 : 0];
+        File directory = file.getAbsoluteFile().getParentFile();
+        String[] names = null == directory ? null : directory.list();
+        if (null != names) {
+            String prefix = file.getName() + ".";
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        long generation = Long.parseLong(name.substring(prefix.length()));
+                        if (0 < generation) {
+                            generations = Arrays.copyOf(generations, generations.length + 1);
+                            generations[generations.length - 1] = generation;
+                        }
+                    } catch (NumberFormatException nfe) {
+                        //Not a generation, such as a temporary file
+                    }
+                }
+            }
+        }
+        Arrays.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Reads the tracks in a snapshot file.
+     * @param file the snapshot file. The newest generation of the file is read.
+     * @return the tracks, keyed by message type and then by Geomessage ID, in the
+     *         order they were last updated. If the file does not exist, the map
+     *         is empty.
+     * @throws IOException if the file cannot be read or is not a snapshot file.
+     */
+    public static Map<String, Map<String, Geomessage>> read(File file) throws IOException {
+        long[] generations = listGenerations(file);
+        return 0 == generations.length ? new LinkedHashMap<String, Map<String, Geomessage>>()
+                : readGeneration(getGenerationFile(file, generations[generations.length - 1]));
+    }
+
+    /**
+     * Reads one generation of a snapshot file into memory, without mapping it.
+     */
+    private static Map<String, Map<String, Geomessage>> readGeneration(File generationFile) throws IOException {
+        Map<String, Map<String, Geomessage>> tracks = new LinkedHashMap<String, Map<String, Geomessage>>();
+        RandomAccessFile raf = new RandomAccessFile(generationFile, "r");
+        try {
+            FileChannel readChannel = raf.getChannel();
+            ByteBuffer in = ByteBuffer.allocate((int) readChannel.size());
+            while (in.hasRemaining()) {
+                if (0 > readChannel.read(in)) {
+                    break;
+                }
+            }
+            in.flip();
+            readRecords(in, tracks);
+        } finally {
+            raf.close();
+        }
+        return tracks;
+    }
+
+    /**
+     * Loads the snapshot file into the registry, compacts it, and starts recording
+     * the registry's changes.
+     * @return the number of tracks loaded.
+     * @throws IOException if the file cannot be read or written.
+     */
+    public int open() throws IOException {
+        int loaded = 0;
+        synchronized (ioLock) {
+            if (null != channel) {
+                throw new IllegalStateException("Already open");
+            }
+            long[] generations = listGenerations(file);
+            generation = 0 == generations.length ? -1 : generations[generations.length - 1];
+            Map<String, Map<String, Geomessage>> snapshot = 0 == generations.length
+                    ? new LinkedHashMap<String, Map<String, Geomessage>>()
+                    : readGeneration(getGenerationFile(file, generation));
+            for (Map<String, Geomessage> tracks : snapshot.values()) {
+                for (Geomessage track : tracks.values()) {
+                    registry.update(track);
+                    loaded++;
+                }
+            }
+            registry.addListener(this);
+            compact();
+        }
+        return loaded;
+    }
+
+    /**
+     * Writes the registry's changes since the last flush to the file, and compacts
+     * the file if the changes written since the last compaction outgrow the
+     * last full snapshot.
+     * @throws IOException if the file cannot be written.
+     */
+    public void flush() throws IOException {
+        synchronized (ioLock) {
+            if (null == channel) {
+                return;
+            }
+            LinkedHashMap<String, Change> flushed;
+            synchronized (this) {
+                if (changes.isEmpty()) {
+                    return;
+                }
+                flushed = changes;
+                changes = new LinkedHashMap<String, Change>();
+            }
+            for (Change change : flushed.values()) {
+                encode(change.kind, change.messageType, change.id, change.track);
+                append();
+            }
+            int appended = buffer.position() - compactedLength;
+            if (appended > Math.max(compactedLength, MIN_COMPACTION_LENGTH)) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Writes the registry's current tracks to a new generation of the file and
+     * switches recording to it. The new generation is used only after it is
+     * completely written; if compaction fails, recording continues in the
+     * current generation.
+     * @throws IOException if the new generation cannot be written.
+     */
+    public void compact() throws IOException {
+        synchronized (ioLock) {
+            LinkedHashMap<String, Change> cleared;
+            synchronized (this) {
+                //The registry already reflects these changes
+                cleared = changes;
+                changes = new LinkedHashMap<String, Change>();
+            }
+            long nextGeneration = generation + 1;
+            File nextFile = getGenerationFile(file, nextGeneration);
+            FileChannel nextChannel = null;
+            int length;
+            try {
+                File tempFile = new File(nextFile.getPath() + ".tmp");
+                length = writeSnapshot(tempFile);
+                try {
+                    Files.move(tempFile.toPath(), nextFile.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(tempFile.toPath(), nextFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    tempFile.delete();
+                }
+                try {
+                    nextChannel = new RandomAccessFile(nextFile, "rw").getChannel();
+                } catch (IOException ioe) {
+                    //Do not leave a generation newer than the one being recorded
+                    nextFile.delete();
+                    throw ioe;
+                }
+            } catch (IOException ioe) {
+                synchronized (this) {
+                    //Record the cleared changes in the current generation after all
+                    for (Map.Entry<String, Change> change : changes.entrySet()) {
+                        cleared.remove(change.getKey());
+                        cleared.put(change.getKey(), change.getValue());
+                    }
+                    changes = cleared;
+                }
+                throw ioe;
+            }
+            closeChannel();
+            channel = nextChannel;
+            generation = nextGeneration;
+            compactedLength = length;
+            map(Math.max(INITIAL_CAPACITY, 2 * length));
+            buffer.position(length);
+            deleteOldGenerations();
+        }
+    }
+
+    /**
+     * Writes a full snapshot of the registry to a file and returns its length.
+     */
+    private int writeSnapshot(File snapshotFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel tempChannel = raf.getChannel();
+            ByteBuffer out = ByteBuffer.allocate(INITIAL_CAPACITY);
+            out.putInt(MAGIC).putInt(VERSION);
+            //Copy one type at a time, without locking the whole registry
+            for (String messageType : registry.getMessageTypes()) {
+                for (Geomessage track : registry.getSnapshot(messageType)) {
+                    encode(KIND_UPDATE, messageType, track.getId(), track);
+                    if (out.remaining() < RECORD_HEADER_LENGTH + recordLength) {
+                        out.flip();
+                        while (out.hasRemaining()) {
+                            tempChannel.write(out);
+                        }
+                        out.clear();
+                        if (out.capacity() < RECORD_HEADER_LENGTH + recordLength) {
+                            out = ByteBuffer.allocate(RECORD_HEADER_LENGTH + recordLength);
+                        }
+                    }
+                    putRecord(out);
+                }
+            }
+            out.flip();
+            while (out.hasRemaining()) {
+                tempChannel.write(out);
+            }
+            int length = (int) tempChannel.position();
+            tempChannel.force(true);
+            return length;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Deletes the generations older than the current one. A generation that is
+     * still mapped may not be deletable yet; it is tried again after the next
+     * compaction.
+     */
+    private void deleteOldGenerations() {
+        for (long oldGeneration : listGenerations(file)) {
+            if (oldGeneration < generation && !getGenerationFile(file, oldGeneration).delete()) {
+                logger.log(Level.FINE, "Could not delete old track snapshot generation {0}", oldGeneration);
+            }
+        }
+    }
+
+    /**
+     * Flushes, stops recording, and closes the file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void close() throws IOException {
+        setEnabled(false);
+        synchronized (ioLock) {
+            if (null == channel) {
+                return;
+            }
+            registry.removeListener(this);
+            flush();
+            buffer.force();
+            closeChannel();
+        }
+    }
+
+    /**
+     * Starts or stops flushing every DEFAULT_FLUSH_INTERVAL milliseconds. The
+     * default is false.
+     * @param enabled true to flush periodically.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (this.enabled != enabled) {
+            this.enabled = enabled;
+            if (enabled) {
+                flushTask = scheduler.scheduleAtFixedRate(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            flush();
+                        } catch (IOException ioe) {
+                            logger.log(Level.SEVERE, "Could not write track snapshot " + file, ioe);
+                        }
+                    }
+
+                }, DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+            } else if (null != flushTask) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if this object flushes periodically.
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of tracks changed since the last flush.
+     */
+    public synchronized int getPendingChangeCount() {
+        return changes.size();
+    }
+
+    @Override
+    public synchronized void trackUpdated(Geomessage current, Geomessage previous) {
+        String type = TrackRegistry.getMessageType(current);
+        String key = getKey(type, current.getId());
+        //Move the key to the end so the file keeps the order of changes
+        changes.remove(key);
+        changes.put(key, new Change(KIND_UPDATE, type, current.getId(), current));
+    }
+
+    @Override
+    public synchronized void trackRemoved(Geomessage removed) {
+        String type = TrackRegistry.getMessageType(removed);
+        String key = getKey(type, removed.getId());
+        changes.remove(key);
+        changes.put(key, new Change(KIND_REMOVE, type, removed.getId(), null));
+    }
+
+    @Override
+    public synchronized void allTracksRemoved(String messageType, Collection<Geomessage> removed) {
+        Iterator<Change> iterator = changes.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().messageType.equals(messageType)) {
+                iterator.remove();
+            }
+        }
+        changes.put('\u0001' + messageType, new Change(KIND_REMOVE_ALL, messageType, null, null));
+    }
+
+    private void map(int capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void closeChannel() throws IOException {
+        if (null != channel) {
+            channel.close();
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Appends the encoded record to the mapped file, growing the mapping if needed.
+     */
+    private void append() throws IOException {
+        if (buffer.remaining() < RECORD_HEADER_LENGTH + recordLength) {
+            int position = buffer.position();
+            int capacity = buffer.capacity();
+            while (capacity - position < RECORD_HEADER_LENGTH + recordLength) {
+                capacity *= 2;
+            }
+            map(capacity);
+            buffer.position(position);
+        }
+        putRecord(buffer);
+    }
+
+    /**
+     * Writes the encoded record, with its length last so that a record cut off
+     * by a crash reads as the end of the log.
+     */
+    private void putRecord(ByteBuffer out) {
+        int start = out.position();
+        crc.reset();
+        crc.update(record, 0, recordLength);
+        out.putInt(start + 4, (int) crc.getValue());
+        out.position(start + RECORD_HEADER_LENGTH);
+        out.put(record, 0, recordLength);
+        out.putInt(start, recordLength);
+    }
+
+    private void encode(byte kind, String messageType, String id, Geomessage track) {
+        recordLength = 0;
+        ensureRecordCapacity(1);
+        record[recordLength++] = kind;
+        putString(messageType);
+        if (KIND_REMOVE_ALL != kind) {
+            putString(id);
+        }
+        if (KIND_UPDATE == kind) {
+            Map<String, Object> properties = track.getProperties();
+            putVarInt(properties.size());
+            for (Map.Entry<String, Object> property : properties.entrySet()) {
+                putString(property.getKey());
+                putString(null == property.getValue() ? null : property.getValue().toString());
+            }
+        }
+    }
+
+    private void putVarInt(int value) {
+        ensureRecordCapacity(5);
+        while (0 != (value & ~0x7f)) {
+            record[recordLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        record[recordLength++] = (byte) value;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length plus one, or 0 for null, followed by
+     * its UTF-8 bytes.
+     */
+    private void putString(String value) {
+        if (null == value) {
+            putVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        putVarInt(bytes.length + 1);
+        ensureRecordCapacity(bytes.length);
+        System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+        recordLength += bytes.length;
+    }
+
+    private void ensureRecordCapacity(int extra) {
+        if (recordLength + extra > record.length) {
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + extra));
+        }
+    }
+
+    /**
+     * Applies the valid records in a snapshot to a map of tracks, stopping at the
+     * end of the log or at a record that was cut off.
+     */
+    private static void readRecords(ByteBuffer in, Map<String, Map<String, Geomessage>> tracks) throws IOException {
+        if (in.remaining() < HEADER_LENGTH) {
+            return;
+        }
+        if (MAGIC != in.getInt() || VERSION != in.getInt()) {
+            throw new IOException("Not a track snapshot file");
+        }
+        CRC32 checksum = new CRC32();
+        byte[] payload = new byte[256];
+        while (in.remaining() >= RECORD_HEADER_LENGTH) {
+            int length = in.getInt();
+            int expectedCrc = in.getInt();
+            if (0 >= length || length > in.remaining()) {
+                break;
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            in.get(payload, 0, length);
+            checksum.reset();
+            checksum.update(payload, 0, length);
+            if (expectedCrc != (int) checksum.getValue()) {
+                break;
+            }
+            applyRecord(ByteBuffer.wrap(payload, 0, length), tracks);
+        }
+    }
+
+    private static void applyRecord(ByteBuffer in, Map<String, Map<String, Geomessage>> tracks) {
+        byte kind = in.get();
+        String messageType = getString(in);
+        if (KIND_REMOVE_ALL == kind) {
+            tracks.remove(messageType);
+            return;
+        }
+        String id = getString(in);
+        Map<String, Geomessage> typeTracks = tracks.get(messageType);
+        if (KIND_REMOVE == kind) {
+            if (null != typeTracks) {
+                typeTracks.remove(id);
+            }
+            return;
+        }
+        Geomessage track = new Geomessage();
+        track.setId(id);
+        int count = getVarInt(in);
+        for (int i = 0; i < count; i++) {
+            String name = getString(in);
+            track.setProperty(name, getString(in));
+        }
+        if (null == typeTracks) {
+            typeTracks = new LinkedHashMap<String, Geomessage>();
+            tracks.put(messageType, typeTracks);
+        }
+        typeTracks.remove(id);
+        typeTracks.put(id, track);
+    }
+
+    private static int getVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (0 != (b & 0x80));
+        return value;
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = getVarInt(in) - 1;
+        if (0 > length) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+}
@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.util.GridSpatialIndex;
+import com.esri.militaryapps.util.ProjectionEngine;
+import com.esri.militaryapps.util.Utilities;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A spatial index of the tracks in a TrackRegistry, by the first point of each
+ * track's control points in WGS 1984 longitude and latitude. Add a TrackSpatialIndex
+ * to a TrackRegistry as a listener to keep it current. Moving a track takes
+ * constant time, and bounding box and radius queries visit only the grid cells
+ * they overlap, so they are cheap enough to run every frame. Nearest-neighbor
+ * queries are best-first searches over the grid and do not sort every track;
+ * see NearestTracksQuery for repeated queries around a moving location.<br/>
+ * <br/>
+ * Tracks in the spatial references that ProjectionEngine supports, which are
+ * WGS 1984 (4326), Web Mercator, and the WGS 1984 UTM and UPS zones, are indexed. Tracks
+ * in other spatial references, and tracks without valid control points, are left
+ * out of the index.
+ */
+public class TrackSpatialIndex implements TrackRegistryListener {
+
+    /**
+     * The default grid cell size, in degrees.
+     */
+    public static final double DEFAULT_CELL_SIZE = 0.05;
+
+    /**
+     * Accepts or rejects tracks in a nearest-neighbor query.
+     */
+    public interface TrackFilter {
+
+        /**
+         * @param track a track.
+         * @return true if the track may be in the query's results.
+         */
+        boolean accept(Geomessage track);
+
+    }
+
+    /**
+     * A filter that accepts only tracks with 911 (emergency) status.
+     */
+    public static final TrackFilter STATUS_911 = new TrackFilter() {
+
+        @Override
+        public boolean accept(Geomessage track) {
+            return MessageController.isStatus911(track);
+        }
+
+    };
+
+    /**
+     * Returns a filter that accepts only tracks of one message type.
+     * @param messageType the message type, such as PositionReportController.REPORT_TYPE.
+     * @return the filter.
+     */
+    public static TrackFilter createTypeFilter(final String messageType) {
+        return new TrackFilter() {
+
+            @Override
+            public boolean accept(Geomessage track) {
+                return messageType.equals(TrackRegistry.getMessageType(track));
+            }
+
+        };
+    }
+
+    private static final int WKID_WGS1984 = 4326;
+
+    private final GridSpatialIndex grid;
+    private final HashMap<String, Integer> handles = new HashMap<String, Integer>();
+    private final double[] point = new double[2];
+    private final CollectingVisitor collector = new CollectingVisitor();
+
+    private Geomessage[] tracks = new Geomessage[64];
+    private int handleCount = 0;
+    private int[] freeHandles = new int[64];
+    private int freeHandleCount = 0;
+    private long version = 0;
+    private int[] nearestItems = new int[16];
+    private TrackFilter nearestFilter = null;
+    private final GridSpatialIndex.Filter itemFilter = new GridSpatialIndex.Filter() {
+
+        @Override
+        public boolean accept(int item) {
+            return nearestFilter.accept(tracks[item]);
+        }
+
+    };
+
+    /**
+     * Adds each track found to a collection, optionally filtering by distance.
+     */
+    private class CollectingVisitor implements GridSpatialIndex.Visitor {
+
+        private Collection<Geomessage> results;
+        private boolean filterByDistance;
+        private double centerLongitude;
+        private double centerLatitude;
+        private double radiusMeters;
+        private int found;
+
+        @Override
+        public void visit(int item, double x, double y) {
+            if (!filterByDistance
+                    || Utilities.calculateDistanceMeters(centerLongitude, centerLatitude, x, y) <= radiusMeters) {
+                found++;
+                if (null != results) {
+                    results.add(tracks[item]);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Creates a new TrackSpatialIndex with the default cell size.
+     */
+    public TrackSpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Creates a new TrackSpatialIndex.
+     * @param cellSize the grid cell size, in degrees.
+     */
+    public TrackSpatialIndex(double cellSize) {
+        grid = new GridSpatialIndex(cellSize);
+    }
+
+    private static String getKey(String messageType, String id) {
+        return messageType + '\u0000' + id;
+    }
+
+    /**
+     * Gets the WGS 1984 longitude and latitude of a track's first control point.
+     * @param track the track.
+     * @param lonLat a two-element array that receives the longitude and latitude.
+     * @return true if the track has a valid first control point in a supported
+     *         spatial reference.
+     */
+    static boolean getLonLat(Geomessage track, double[] lonLat) {
+        if (!track.getFirstControlPoint(lonLat)) {
+            return false;
+        }
+        int wkid = WKID_WGS1984;
+        Object wkidString = track.getProperty(Geomessage.WKID_FIELD_NAME);
+        if (null != wkidString) {
+            try {
+                wkid = Integer.parseInt(wkidString.toString().trim());
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+        }
+        return ProjectionEngine.project(lonLat, 0, 1, wkid, WKID_WGS1984);
+    }
+
+    @Override
+    public synchronized void trackUpdated(Geomessage current, Geomessage previous) {
+        String key = getKey(TrackRegistry.getMessageType(current), current.getId());
+        Integer handle = handles.get(key);
+        if (!getLonLat(current, point)) {
+            if (null != handle) {
+                removeHandle(key, handle);
+            }
+            return;
+        }
+        if (null == handle) {
+            handle = allocateHandle();
+            handles.put(key, handle);
+        }
+        tracks[handle] = current;
+        grid.put(handle, point[0], point[1]);
+        version++;
+    }
+
+    @Override
+    public synchronized void trackRemoved(Geomessage removed) {
+        String key = getKey(TrackRegistry.getMessageType(removed), removed.getId());
+        Integer handle = handles.get(key);
+        //Only remove the track if a newer update has not replaced it
+        if (null != handle && tracks[handle] == removed) {
+            removeHandle(key, handle);
+        }
+    }
+
+    @Override
+    public synchronized void allTracksRemoved(String messageType, Collection<Geomessage> removed) {
+        for (Geomessage track : removed) {
+            trackRemoved(track);
+        }
+    }
+
+    /**
+     * Removes every track from this index.
+     */
+    public synchronized void clear() {
+        handles.clear();
+        grid.clear();
+        Arrays.fill(tracks, null);
+        handleCount = 0;
+        freeHandleCount = 0;
+        version++;
+    }
+
+    /**
+     * @return the number of tracks in this index.
+     */
+    public synchronized int size() {
+        return grid.size();
+    }
+
+    /**
+     * Finds the tracks in a bounding box. If minLon is greater than maxLon, the
+     * box crosses the 180th meridian.
+     * @param minLon the box's minimum longitude.
+     * @param minLat the box's minimum latitude.
+     * @param maxLon the box's maximum longitude.
+     * @param maxLat the box's maximum latitude.
+     * @param results the collection to which the tracks found are added, or null
+     *                to only count tracks. Callers that query every frame can reuse
+     *                one collection.
+     * @return the number of tracks found.
+     */
+    public synchronized int queryBox(double minLon, double minLat, double maxLon, double maxLat,
+            Collection<Geomessage> results) {
+        collector.results = results;
+        collector.filterByDistance = false;
+        collector.found = 0;
+        queryLongitudeRange(minLon, minLat, maxLon, maxLat);
+        collector.results = null;
+        return collector.found;
+    }
+
+    /**
+     * Finds the tracks within a distance of a point, by great-circle distance.
+     * @param lon the point's longitude.
+     * @param lat the point's latitude.
+     * @param radiusMeters the distance, in meters.
+     * @param results the collection to which the tracks found are added, or null
+     *                to only count tracks.
+     * @return the number of tracks found.
+     */
+    public synchronized int queryRadius(double lon, double lat, double radiusMeters,
+            Collection<Geomessage> results) {
+        collector.results = results;
+        collector.filterByDistance = true;
+        collector.centerLongitude = lon;
+        collector.centerLatitude = lat;
+        collector.radiusMeters = radiusMeters;
+        collector.found = 0;
+
+        double latDelta = Math.toDegrees(radiusMeters / Utilities.EARTH_RADIUS_METERS);
+        double minLat = lat - latDelta;
+        double maxLat = lat + latDelta;
+        if (-90 >= minLat || 90 <= maxLat) {
+            //The circle contains a pole, so it spans every longitude
+            queryLongitudeRange(-180, Math.max(-90, minLat), 180, Math.min(90, maxLat));
+        } else {
+            double lonDelta = latDelta / Math.min(Math.cos(Math.toRadians(minLat)), Math.cos(Math.toRadians(maxLat)));
+            if (180 <= lonDelta) {
+                queryLongitudeRange(-180, minLat, 180, maxLat);
+            } else {
+                queryLongitudeRange(Utilities.fixAngleDegrees(lon - lonDelta, -180, 180), minLat,
+                        Utilities.fixAngleDegrees(lon + lonDelta, -180, 180), maxLat);
+            }
+        }
+        collector.results = null;
+        return collector.found;
+    }
+
+    /**
+     * Finds the tracks nearest to a point, by great-circle distance.
+     * @param lon the point's longitude.
+     * @param lat the point's latitude.
+     * @param k the maximum number of tracks to find.
+     * @param maxDistanceMeters the maximum distance of a track found, in meters,
+     *                          or Double.POSITIVE_INFINITY.
+     * @param filter the filter that tracks must pass, or null to accept all tracks.
+     * @param results the list to which the tracks found are added, nearest first.
+     * @param distances an array of at least k elements that receives the distances
+     *                  of the tracks found, in meters, or null.
+     * @return the number of tracks found, which is at most k.
+     */
+    public synchronized int queryNearest(double lon, double lat, int k, double maxDistanceMeters,
+            TrackFilter filter, List<Geomessage> results, double[] distances) {
+        if (nearestItems.length < k) {
+            nearestItems = new int[k];
+        }
+        nearestFilter = filter;
+        int found = grid.queryNearest(lon, lat, k, maxDistanceMeters, GridSpatialIndex.GREAT_CIRCLE_METERS,
+                null == filter ? null : itemFilter, nearestItems, distances);
+        nearestFilter = null;
+        for (int i = 0; i < found; i++) {
+            results.add(tracks[nearestItems[i]]);
+        }
+        return found;
+    }
+
+    /**
+     * Returns a number that changes whenever a track is added to, moved in, or
+     * removed from this index, so callers can tell whether earlier results may
+     * be out of date.
+     * @return the index's version.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    private void queryLongitudeRange(double minLon, double minLat, double maxLon, double maxLat) {
+        if (minLon <= maxLon) {
+            grid.queryBox(minLon, minLat, maxLon, maxLat, collector);
+        } else {
+            grid.queryBox(minLon, minLat, 180, maxLat, collector);
+            grid.queryBox(-180, minLat, maxLon, maxLat, collector);
+        }
+    }
+
+    private int allocateHandle() {
+        if (0 < freeHandleCount) {
+            return freeHandles[--freeHandleCount];
+        }
+        if (handleCount == tracks.length) {
+            tracks = Arrays.copyOf(tracks, tracks.length * 2);
+        }
+        return handleCount++;
+    }
+
+    private void removeHandle(String key, int handle) {
+        handles.remove(key);
+        grid.remove(handle);
+        tracks[handle] = null;
+        if (freeHandleCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+        }
+        freeHandles[freeHandleCount++] = handle;
+        version++;
+    }
+
+}
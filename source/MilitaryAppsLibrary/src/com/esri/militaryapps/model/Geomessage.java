@@ -19,6 +19,7 @@ import com.esri.militaryapps.util.Utilities;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.StringTokenizer;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -139,4 +140,30 @@ public class Geomessage implements Cloneable {
         return Utilities.documentToString(doc);
     }
     
+    /**
+     * Parses the first point in this Geomessage's control points.
+     * @param xy a two-element array that receives the point's x- and y-coordinates.
+     * @return true if this Geomessage's first control point was valid and was
+     *         stored in xy.
+     */
+    public boolean getFirstControlPoint(double[] xy) {
+        Object controlPoints = getProperty(CONTROL_POINTS_FIELD_NAME);
+        if (null == controlPoints) {
+            return false;
+        }
+        StringTokenizer tok = new StringTokenizer(controlPoints.toString(), ",; ");
+        if (2 > tok.countTokens()) {
+            return false;
+        }
+        try {
+            double x = Double.parseDouble(tok.nextToken());
+            double y = Double.parseDouble(tok.nextToken());
+            xy[0] = x;
+            xy[1] = y;
+            return true;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+    
 }
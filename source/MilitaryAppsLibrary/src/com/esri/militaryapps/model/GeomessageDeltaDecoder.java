@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds full Geomessages from the keyframes and deltas produced by a
+ * GeomessageDeltaEncoder. Geomessages without keyframe or delta fields pass
+ * through unchanged.
+ * @see GeomessageDeltaEncoder
+ */
+public class GeomessageDeltaDecoder {
+
+    /**
+     * The default maximum number of keyframes held at one time.
+     */
+    public static final int DEFAULT_MAX_KEYFRAMES = 10000;
+
+    private static final class Keyframe {
+
+        private final String sequence;
+        private final HashMap<String, Object> properties;
+
+        Keyframe(String sequence, HashMap<String, Object> properties) {
+            this.sequence = sequence;
+            this.properties = properties;
+        }
+
+    }
+
+    private final LinkedHashMap<String, Keyframe> keyframes;
+
+    /**
+     * Creates a new GeomessageDeltaDecoder that holds up to DEFAULT_MAX_KEYFRAMES
+     * keyframes.
+     */
+    public GeomessageDeltaDecoder() {
+        this(DEFAULT_MAX_KEYFRAMES);
+    }
+
+    /**
+     * Creates a new GeomessageDeltaDecoder.
+     * @param maxKeyframes the maximum number of keyframes held at one time. When
+     *                     a new keyframe arrives and the decoder is full, the
+     *                     least recently used keyframe is dropped.
+     */
+    public GeomessageDeltaDecoder(final int maxKeyframes) {
+        keyframes = new LinkedHashMap<String, Keyframe>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Keyframe> eldest) {
+                return size() > maxKeyframes;
+            }
+
+        };
+    }
+
+    /**
+     * Decodes a Geomessage.
+     * @param message the Geomessage as received.
+     * @return the full Geomessage, or null if the message is a delta whose keyframe
+     *         has not been received. The returned Geomessage does not have keyframe
+     *         or delta fields. If message is neither a keyframe nor a delta, this
+     *         method returns message itself.
+     */
+    public synchronized Geomessage decode(Geomessage message) {
+        Object keyframeSequence = message.getProperty(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME);
+        Object deltaSequence = message.getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME);
+        if (null != keyframeSequence) {
+            message.getProperties().remove(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME);
+            keyframes.put(message.getId(), new Keyframe(keyframeSequence.toString(),
+                    new HashMap<String, Object>(message.getProperties())));
+            return message;
+        } else if (null != deltaSequence) {
+            Keyframe keyframe = keyframes.get(message.getId());
+            if (null == keyframe || !keyframe.sequence.equals(deltaSequence.toString())) {
+                return null;
+            }
+            Geomessage full = new Geomessage();
+            full.setId(message.getId());
+            full.getProperties().putAll(keyframe.properties);
+            full.getProperties().putAll(message.getProperties());
+            full.getProperties().remove(GeomessageDeltaEncoder.DELTA_FIELD_NAME);
+            return full;
+        } else {
+            Object action = message.getProperty(Geomessage.ACTION_FIELD_NAME);
+            if ("remove".equalsIgnoreCase((String) action)) {
+                keyframes.remove(message.getId());
+            } else if (Geomessage.ACTION_REMOVE_ALL.equalsIgnoreCase((String) action)) {
+                Object type = message.getProperty(Geomessage.TYPE_FIELD_NAME);
+                Iterator<Keyframe> iter = keyframes.values().iterator();
+                while (iter.hasNext()) {
+                    Object keyframeType = iter.next().properties.get(Geomessage.TYPE_FIELD_NAME);
+                    if (null == type || type.equals(keyframeType)) {
+                        iter.remove();
+                    }
+                }
+            }
+            return message;
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Encodes a stream of Geomessages as keyframes and deltas. For each Geomessage
+ * ID, the encoder sends a full keyframe every keyframeInterval messages. In between,
+ * it sends only the ID, type, action, and the fields whose values differ from
+ * the last keyframe for that ID. A GeomessageDeltaDecoder on the receiving end
+ * rebuilds full Geomessages.<br/>
+ * <br/>
+ * Keyframes carry a KEYFRAME_FIELD_NAME field, and deltas carry a DELTA_FIELD_NAME
+ * field naming the keyframe they are relative to. When keyframeInterval is 1 or
+ * less, every message is sent in full without either field, which is what
+ * receivers that don't use this library expect.
+ * @see GeomessageDeltaDecoder
+ */
+public class GeomessageDeltaEncoder {
+
+    /**
+     * The name of the field that marks a keyframe. Its value is the keyframe's
+     * sequence number.
+     */
+    public static final String KEYFRAME_FIELD_NAME = "_keyframe";
+
+    /**
+     * The name of the field that marks a delta. Its value is the sequence number
+     * of the keyframe to which the delta applies.
+     */
+    public static final String DELTA_FIELD_NAME = "_delta";
+
+    private static final class Keyframe {
+
+        private final String sequence;
+        private final Map<String, String> fields;
+        private int deltasSent = 0;
+
+        Keyframe(String sequence, Map<String, String> fields) {
+            this.sequence = sequence;
+            this.fields = fields;
+        }
+
+    }
+
+    private final HashMap<String, Keyframe> keyframes = new HashMap<String, Keyframe>();
+
+    private int keyframeInterval;
+    private long nextSequence = new Random().nextInt() & 0x7fffffff;
+
+    /**
+     * Creates a new GeomessageDeltaEncoder.
+     * @param keyframeInterval the number of messages per ID between keyframes,
+     *                         including the keyframe. 1 or less means every
+     *                         message is a full message.
+     */
+    public GeomessageDeltaEncoder(int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Returns the number of messages per ID between keyframes.
+     * @return the number of messages per ID between keyframes.
+     */
+    public synchronized int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    /**
+     * Sets the number of messages per ID between keyframes, including the keyframe.
+     * 1 or less means every message is a full message. Changing the interval makes
+     * the next message for every ID a keyframe.
+     * @param keyframeInterval the number of messages per ID between keyframes.
+     */
+    public synchronized void setKeyframeInterval(int keyframeInterval) {
+        if (this.keyframeInterval != keyframeInterval) {
+            this.keyframeInterval = keyframeInterval;
+            keyframes.clear();
+        }
+    }
+
+    /**
+     * Makes the next message for the specified ID a keyframe.
+     * @param id the Geomessage ID.
+     */
+    public synchronized void reset(String id) {
+        keyframes.remove(id);
+    }
+
+    /**
+     * Encodes a Geomessage's fields as a keyframe or a delta.
+     * @param id the Geomessage ID.
+     * @param fields the Geomessage's fields, not including the ID. The map is
+     *               not modified.
+     * @return the fields to send, not including the ID.
+     */
+    public synchronized Map<String, String> encode(String id, Map<String, String> fields) {
+        if (1 >= keyframeInterval) {
+            return fields;
+        }
+        Keyframe keyframe = keyframes.get(id);
+        Map<String, String> delta = null;
+        if (null != keyframe && keyframe.deltasSent + 1 < keyframeInterval) {
+            delta = createDelta(keyframe, fields);
+        }
+        if (null == delta) {
+            String sequence = Long.toString(nextSequence++);
+            keyframes.put(id, new Keyframe(sequence, new HashMap<String, String>(fields)));
+            LinkedHashMap<String, String> full = new LinkedHashMap<String, String>(fields);
+            full.put(KEYFRAME_FIELD_NAME, sequence);
+            return full;
+        } else {
+            keyframe.deltasSent++;
+            return delta;
+        }
+    }
+
+    /**
+     * Returns the delta, or null if the change can't be expressed as a delta.
+     */
+    private static Map<String, String> createDelta(Keyframe keyframe, Map<String, String> fields) {
+        //A delta can't remove a field or set it to the empty string
+        for (String name : keyframe.fields.keySet()) {
+            String value = fields.get(name);
+            if (null == value || 0 == value.length()) {
+                return null;
+            }
+        }
+        LinkedHashMap<String, String> delta = new LinkedHashMap<String, String>();
+        copyField(fields, delta, Geomessage.TYPE_FIELD_NAME);
+        copyField(fields, delta, Geomessage.ACTION_FIELD_NAME);
+        delta.put(DELTA_FIELD_NAME, keyframe.sequence);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            String value = field.getValue();
+            if (null == value || 0 == value.length()) {
+                return null;
+            }
+            if (!value.equals(keyframe.fields.get(field.getKey()))) {
+                delta.put(field.getKey(), value);
+            }
+        }
+        return delta;
+    }
+
+    private static void copyField(Map<String, String> from, Map<String, String> to, String name) {
+        String value = from.get(name);
+        if (null != value) {
+            to.put(name, value);
+        }
+    }
+
+}
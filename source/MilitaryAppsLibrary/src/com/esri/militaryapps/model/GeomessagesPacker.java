@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs geomessage elements into as few "geomessages" datagrams as possible
+ * without exceeding a maximum datagram length. A single geomessage element that
+ * is too long for a datagram by itself gets a datagram of its own.
+ */
+public class GeomessagesPacker {
+
+    private static final byte[] START = "<geomessages>".getBytes();
+    private static final byte[] END = "</geomessages>".getBytes();
+
+    private final int maxLength;
+    private final ArrayList<byte[]> datagrams = new ArrayList<byte[]>();
+    private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+
+    private int elementCount = 0;
+
+    /**
+     * Creates a new GeomessagesPacker.
+     * @param maxLength the maximum datagram length, in bytes.
+     */
+    public GeomessagesPacker(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Adds a geomessage element.
+     * @param geomessageElement a "geomessage" element as a string, without an
+     *                          XML declaration.
+     */
+    public void add(String geomessageElement) {
+        byte[] bytes = geomessageElement.getBytes();
+        if (0 < elementCount && current.size() + bytes.length + END.length > maxLength) {
+            finishDatagram();
+        }
+        if (0 == elementCount) {
+            current.write(START, 0, START.length);
+        }
+        current.write(bytes, 0, bytes.length);
+        elementCount++;
+    }
+
+    /**
+     * Returns the packed datagrams and resets this packer so it can be used again.
+     * @return the packed datagrams.
+     */
+    public List<byte[]> finish() {
+        if (0 < elementCount) {
+            finishDatagram();
+        }
+        ArrayList<byte[]> result = new ArrayList<byte[]>(datagrams);
+        datagrams.clear();
+        return result;
+    }
+
+    private void finishDatagram() {
+        current.write(END, 0, END.length);
+        datagrams.add(current.toByteArray());
+        current.reset();
+        elementCount = 0;
+    }
+
+}
@@ -53,6 +53,18 @@ public class Location implements Comparable<Location> {
         this.heading = heading;
     }
 
+    /**
+     * Creates a new Location with the same data as another Location. The timestamp
+     * is copied too, so later changes to the other Location or its timestamp do not
+     * affect the new Location.
+     * @param location the Location to copy.
+     */
+    public Location(Location location) {
+        this(location.getLongitude(), location.getLatitude(),
+                null == location.getTimestamp() ? null : (Calendar) location.getTimestamp().clone(),
+                location.getSpeed(), location.getHeading());
+    }
+
     /**
      * Creates a new Location with data.
      * @param longitude the longitude.
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits messages that are too long for a single datagram into fragments that
+ * a MessageReassembler can put back together.<br/>
+ * <br/>
+ * Each fragment starts with a fixed-length header:
+ * <ul>
+ *   <li>4 bytes: 0x00 'G' 'F' and a version byte. Since a text message never
+ *       starts with a zero byte, fragments are easy to tell apart from ordinary
+ *       Geomessage datagrams.</li>
+ *   <li>8 bytes: the message ID, shared by all fragments of one message.</li>
+ *   <li>2 bytes: the fragment index (unsigned).</li>
+ *   <li>2 bytes: the fragment count (unsigned).</li>
+ * </ul>
+ * The fragment's share of the message follows the header.
+ * @see MessageReassembler
+ */
+public class MessageFragmenter {
+
+    /**
+     * The length of each fragment's header, in bytes.
+     */
+    public static final int HEADER_LENGTH = 16;
+
+    /**
+     * The maximum number of fragments in one message.
+     */
+    public static final int MAX_FRAGMENT_COUNT = 256;
+
+    private static final byte[] MAGIC = new byte[] { 0x00, 'G', 'F', 0x01 };
+
+    private final int maxDatagramLength;
+    private final AtomicLong nextMessageId = new AtomicLong(new Random().nextLong());
+
+    /**
+     * Creates a new MessageFragmenter.
+     * @param maxDatagramLength the maximum length of a datagram, in bytes, including
+     *                          the fragment header. Messages no longer than this
+     *                          are not fragmented.
+     */
+    public MessageFragmenter(int maxDatagramLength) {
+        if (HEADER_LENGTH >= maxDatagramLength) {
+            throw new IllegalArgumentException("Max datagram length must be greater than " + HEADER_LENGTH);
+        }
+        this.maxDatagramLength = maxDatagramLength;
+    }
+
+    /**
+     * Returns the maximum length of a datagram, in bytes.
+     * @return the maximum length of a datagram, in bytes.
+     */
+    public int getMaxDatagramLength() {
+        return maxDatagramLength;
+    }
+
+    /**
+     * Splits a message into datagrams. If the message fits in a single datagram,
+     * this method returns a list containing only the message itself.
+     * @param message the message.
+     * @return the datagrams to send.
+     * @throws IllegalArgumentException if the message would need more than
+     *         MAX_FRAGMENT_COUNT fragments.
+     */
+    public List<byte[]> fragment(byte[] message) {
+        if (message.length <= maxDatagramLength) {
+            return Collections.singletonList(message);
+        }
+        int payloadLength = maxDatagramLength - HEADER_LENGTH;
+        int fragmentCount = (message.length + payloadLength - 1) / payloadLength;
+        if (MAX_FRAGMENT_COUNT < fragmentCount) {
+            throw new IllegalArgumentException("Message of " + message.length
+                    + " bytes needs more than " + MAX_FRAGMENT_COUNT + " fragments");
+        }
+        long messageId = nextMessageId.getAndIncrement();
+        ArrayList<byte[]> fragments = new ArrayList<byte[]>(fragmentCount);
+        for (int i = 0; i < fragmentCount; i++) {
+            int start = i * payloadLength;
+            int length = Math.min(payloadLength, message.length - start);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+            buffer.put(MAGIC);
+            buffer.putLong(messageId);
+            buffer.putShort((short) i);
+            buffer.putShort((short) fragmentCount);
+            buffer.put(message, start, length);
+            fragments.add(buffer.array());
+        }
+        return fragments;
+    }
+
+    /**
+     * Returns true if the specified datagram is a fragment created by a MessageFragmenter.
+     * @param data the datagram buffer.
+     * @param offset the offset of the datagram in the buffer.
+     * @param length the length of the datagram.
+     * @return true if the datagram is a fragment.
+     */
+    public static boolean isFragment(byte[] data, int offset, int length) {
+        if (HEADER_LENGTH > length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (MAGIC[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Puts fragments created by a MessageFragmenter back together. The reassembler
+ * holds at most a fixed number of incomplete messages; when a fragment for a new
+ * message arrives and the buffer is full, the oldest incomplete message is dropped.
+ * Incomplete messages are also dropped when they are older than the timeout.
+ * @see MessageFragmenter
+ */
+public class MessageReassembler {
+
+    /**
+     * The default maximum number of incomplete messages held at one time.
+     */
+    public static final int DEFAULT_MAX_PENDING_MESSAGES = 64;
+
+    /**
+     * The default number of milliseconds to wait for all of a message's fragments.
+     */
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    private static final Logger logger = Logger.getLogger(MessageReassembler.class.getName());
+
+    private static final class Key {
+
+        private final Object sender;
+        private final long messageId;
+
+        Key(Object sender, long messageId) {
+            this.sender = sender;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return messageId == other.messageId
+                    && (null == sender ? null == other.sender : sender.equals(other.sender));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (null == sender ? 0 : sender.hashCode()) + (int) (messageId ^ (messageId >>> 32));
+        }
+
+    }
+
+    private static final class PendingMessage {
+
+        private final byte[][] fragments;
+        private final long firstReceived;
+        private int fragmentsReceived = 0;
+        private int length = 0;
+
+        PendingMessage(int fragmentCount, long firstReceived) {
+            fragments = new byte[fragmentCount][];
+            this.firstReceived = firstReceived;
+        }
+
+    }
+
+    private final LinkedHashMap<Key, PendingMessage> pending = new LinkedHashMap<Key, PendingMessage>();
+    private final int maxPendingMessages;
+    private final long timeout;
+
+    /**
+     * Creates a new MessageReassembler with DEFAULT_MAX_PENDING_MESSAGES and
+     * DEFAULT_TIMEOUT.
+     */
+    public MessageReassembler() {
+        this(DEFAULT_MAX_PENDING_MESSAGES, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a new MessageReassembler.
+     * @param maxPendingMessages the maximum number of incomplete messages held at one time.
+     * @param timeout the number of milliseconds to wait for all of a message's fragments.
+     */
+    public MessageReassembler(int maxPendingMessages, long timeout) {
+        this.maxPendingMessages = Math.max(1, maxPendingMessages);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adds a fragment. If the fragment completes a message, this method returns
+     * the complete message.
+     * @param sender an object identifying the sender, such as the datagram's
+     *               SocketAddress. Message IDs only need to be unique per sender.
+     * @param data the datagram buffer.
+     * @param offset the offset of the fragment in the buffer.
+     * @param length the length of the fragment.
+     * @param now the current time, in milliseconds.
+     * @return the complete message, or null if the message is still incomplete
+     *         or the fragment is not valid.
+     */
+    public synchronized byte[] addFragment(Object sender, byte[] data, int offset, int length, long now) {
+        removeExpired(now);
+        if (!MessageFragmenter.isFragment(data, offset, length)) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(data, offset + 4, MessageFragmenter.HEADER_LENGTH - 4);
+        long messageId = header.getLong();
+        int index = header.getShort() & 0xffff;
+        int count = header.getShort() & 0xffff;
+        if (0 == count || MessageFragmenter.MAX_FRAGMENT_COUNT < count || index >= count) {
+            logger.log(Level.FINE, "Discarding bad fragment {0} of {1}", new Object[] { index, count });
+            return null;
+        }
+
+        Key key = new Key(sender, messageId);
+        PendingMessage message = pending.get(key);
+        if (null == message) {
+            message = new PendingMessage(count, now);
+            pending.put(key, message);
+            if (pending.size() > maxPendingMessages) {
+                Iterator<PendingMessage> iter = pending.values().iterator();
+                iter.next();
+                iter.remove();
+            }
+        } else if (message.fragments.length != count) {
+            return null;
+        }
+        if (null != message.fragments[index]) {
+            //Duplicate
+            return null;
+        }
+        int payloadLength = length - MessageFragmenter.HEADER_LENGTH;
+        byte[] payload = new byte[payloadLength];
+        System.arraycopy(data, offset + MessageFragmenter.HEADER_LENGTH, payload, 0, payloadLength);
+        message.fragments[index] = payload;
+        message.fragmentsReceived++;
+        message.length += payloadLength;
+        if (message.fragmentsReceived < count) {
+            return null;
+        }
+
+        pending.remove(key);
+        byte[] complete = new byte[message.length];
+        int position = 0;
+        for (byte[] fragment : message.fragments) {
+            System.arraycopy(fragment, 0, complete, position, fragment.length);
+            position += fragment.length;
+        }
+        return complete;
+    }
+
+    /**
+     * Returns the number of incomplete messages currently held.
+     * @return the number of incomplete messages currently held.
+     */
+    public synchronized int getPendingMessageCount() {
+        return pending.size();
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<Key, PendingMessage>> iter = pending.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next().getValue().firstReceived > timeout) {
+                iter.remove();
+            } else {
+                //Insertion order is arrival order, so the rest are newer
+                break;
+            }
+        }
+    }
+
+}
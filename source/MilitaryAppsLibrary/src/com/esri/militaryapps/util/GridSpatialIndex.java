@@ -0,0 +1,636 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util;
+
+import java.util.Arrays;
+
+/**
+ * An updatable spatial index of points on a uniform grid. Items are identified
+ * by non-negative int handles chosen by the caller, ideally small and dense such
+ * as array indexes. Adding, moving, and removing an item take constant time;
+ * a move within the same grid cell only updates the item's coordinates.<br/>
+ * <br/>
+ * The index keeps its state in primitive arrays. Each cell holds a linked list of
+ * its items, threaded through the item arrays, and occupied cells are found in an
+ * open-addressing hash table keyed by cell coordinates, so a query visits only the
+ * occupied cells that overlap it.<br/>
+ * <br/>
+ * Nearest-neighbor queries are best-first searches. A priority queue holds rings
+ * of cells around the query point, occupied cells, and items, each keyed by a
+ * lower bound on its distance, so the search stops as soon as the next candidate
+ * cannot beat the items already found.<br/>
+ * <br/>
+ * This class is not thread-safe. Do not modify the index from within a Visitor.
+ */
+public class GridSpatialIndex {
+
+    /**
+     * Receives the items found by a query.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each item found.
+         * @param item the item's handle.
+         * @param x the item's x-coordinate.
+         * @param y the item's y-coordinate.
+         */
+        void visit(int item, double x, double y);
+
+    }
+
+    /**
+     * Accepts or rejects items in a nearest-neighbor query.
+     */
+    public interface Filter {
+
+        /**
+         * @param item an item's handle.
+         * @return true if the item may be in the query's results.
+         */
+        boolean accept(int item);
+
+    }
+
+    /**
+     * A distance function for nearest-neighbor queries.
+     */
+    public interface Metric {
+
+        /**
+         * @return the distance between two points.
+         */
+        double distance(double x1, double y1, double x2, double y2);
+
+        /**
+         * Returns a lower bound on the distance from a point to any point in a
+         * rectangle. The rectangle's bounds may be infinite.
+         * @return a lower bound on the distance, which must not be greater than
+         *         the distance to any point in the rectangle.
+         */
+        double lowerBound(double x, double y, double minX, double minY, double maxX, double maxY);
+
+    }
+
+    /**
+     * Straight-line distance in the units of the coordinates.
+     */
+    public static final Metric EUCLIDEAN = new Metric() {
+
+        @Override
+        public double distance(double x1, double y1, double x2, double y2) {
+            double dx = x2 - x1;
+            double dy = y2 - y1;
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+
+        @Override
+        public double lowerBound(double x, double y, double minX, double minY, double maxX, double maxY) {
+            double dx = Math.max(0, Math.max(minX - x, x - maxX));
+            double dy = Math.max(0, Math.max(minY - y, y - maxY));
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+
+    };
+
+    /**
+     * Great-circle distance in meters, for an index whose x- and y-coordinates
+     * are longitudes and latitudes in degrees. Longitude differences wrap at the
+     * 180th meridian.
+     */
+    public static final Metric GREAT_CIRCLE_METERS = new Metric() {
+
+        @Override
+        public double distance(double x1, double y1, double x2, double y2) {
+            return Utilities.calculateDistanceMeters(x1, y1, x2, y2);
+        }
+
+        @Override
+        public double lowerBound(double x, double y, double minX, double minY, double maxX, double maxY) {
+            minX = Math.max(minX, -180);
+            maxX = Math.min(maxX, 180);
+            minY = Math.max(minY, -90);
+            maxY = Math.min(maxY, 90);
+            if (minX > maxX || minY > maxY) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double latitudeBound = Math.max(0, Math.max(minY - y, y - maxY));
+            double longitudeBound = 0;
+            if (x < minX || x > maxX) {
+                double dLon = Math.min(angularDistance(x, minX), angularDistance(x, maxX));
+                //Distance to the great circle through the nearest edge meridian
+                longitudeBound = Math.toDegrees(Math.asin(
+                        Math.cos(Math.toRadians(y)) * Math.sin(Math.toRadians(Math.min(90, dLon)))));
+            }
+            return Math.toRadians(Math.max(latitudeBound, longitudeBound)) * Utilities.EARTH_RADIUS_METERS;
+        }
+
+        private double angularDistance(double fromLon, double toLon) {
+            double d = Math.abs(fromLon - toLon) % 360;
+            return 180 < d ? 360 - d : d;
+        }
+
+    };
+
+    private static final int NONE = -1;
+    private static final byte ENTRY_ITEM = 0;
+    private static final byte ENTRY_CELL = 1;
+    private static final byte ENTRY_RING = 2;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final double cellSize;
+
+    //Per-item state, indexed by handle
+    private double[] xs = new double[INITIAL_CAPACITY];
+    private double[] ys = new double[INITIAL_CAPACITY];
+    private long[] itemCells = new long[INITIAL_CAPACITY];
+    private int[] nextInCell = new int[INITIAL_CAPACITY];
+    private int[] previousInCell = new int[INITIAL_CAPACITY];
+    private boolean[] present = new boolean[INITIAL_CAPACITY];
+    private int size = 0;
+
+    //Occupied cells: cell key to first item, by linear probing; NONE marks a free slot
+    private long[] cellKeys = new long[INITIAL_CAPACITY];
+    private int[] cellHeads = newCellHeads(INITIAL_CAPACITY);
+    private int cellCount = 0;
+
+    //Priority queue for nearest-neighbor queries, a binary min-heap on lower bounds
+    private double[] heapKeys = new double[INITIAL_CAPACITY];
+    private byte[] heapKinds = new byte[INITIAL_CAPACITY];
+    private long[] heapValues = new long[INITIAL_CAPACITY];
+    private int heapSize = 0;
+
+    /**
+     * Creates a new GridSpatialIndex.
+     * @param cellSize the width and height of each grid cell, in the units of the
+     *                 coordinates. Queries are fastest when a typical query covers
+     *                 a few cells to a few hundred cells.
+     */
+    public GridSpatialIndex(double cellSize) {
+        if (!(0 < cellSize)) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        this.cellSize = cellSize;
+    }
+
+    private static int[] newCellHeads(int capacity) {
+        int[] heads = new int[capacity];
+        Arrays.fill(heads, NONE);
+        return heads;
+    }
+
+    private static int hash(long cellKey) {
+        long h = cellKey * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long toCellKey(long cellX, long cellY) {
+        return (cellX << 32) | (cellY & 0xffffffffL);
+    }
+
+    private long getCellKey(double x, double y) {
+        return toCellKey((long) Math.floor(x / cellSize), (long) Math.floor(y / cellSize));
+    }
+
+    /**
+     * @return the width and height of each grid cell.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return the number of items in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param item an item's handle.
+     * @return true if the item is in the index.
+     */
+    public boolean contains(int item) {
+        return 0 <= item && item < present.length && present[item];
+    }
+
+    /**
+     * @param item an item's handle.
+     * @return the item's x-coordinate. The result is undefined if the item is not in the index.
+     */
+    public double getX(int item) {
+        return xs[item];
+    }
+
+    /**
+     * @param item an item's handle.
+     * @return the item's y-coordinate. The result is undefined if the item is not in the index.
+     */
+    public double getY(int item) {
+        return ys[item];
+    }
+
+    /**
+     * Adds an item to the index, or moves it if it is already in the index.
+     * @param item the item's handle, which must not be negative.
+     * @param x the item's x-coordinate.
+     * @param y the item's y-coordinate.
+     */
+    public void put(int item, double x, double y) {
+        if (0 > item) {
+            throw new IllegalArgumentException("Item handle must not be negative");
+        }
+        ensureItemCapacity(item + 1);
+        long cellKey = getCellKey(x, y);
+        xs[item] = x;
+        ys[item] = y;
+        if (present[item]) {
+            if (itemCells[item] == cellKey) {
+                return;
+            }
+            unlink(item);
+        } else {
+            present[item] = true;
+            size++;
+        }
+        link(item, cellKey);
+    }
+
+    /**
+     * Removes an item from the index.
+     * @param item the item's handle.
+     * @return true if the item was in the index.
+     */
+    public boolean remove(int item) {
+        if (!contains(item)) {
+            return false;
+        }
+        unlink(item);
+        present[item] = false;
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every item from the index.
+     */
+    public void clear() {
+        Arrays.fill(present, false);
+        Arrays.fill(cellHeads, NONE);
+        size = 0;
+        cellCount = 0;
+    }
+
+    /**
+     * Finds the items in a rectangle, including its edges.
+     * @param minX the rectangle's minimum x-coordinate.
+     * @param minY the rectangle's minimum y-coordinate.
+     * @param maxX the rectangle's maximum x-coordinate.
+     * @param maxY the rectangle's maximum y-coordinate.
+     * @param visitor the visitor that receives each item found, or null to only count items.
+     * @return the number of items found.
+     */
+    public int queryBox(double minX, double minY, double maxX, double maxY, Visitor visitor) {
+        if (0 == size || minX > maxX || minY > maxY) {
+            return 0;
+        }
+        long minCellX = (long) Math.floor(minX / cellSize);
+        long minCellY = (long) Math.floor(minY / cellSize);
+        long maxCellX = (long) Math.floor(maxX / cellSize);
+        long maxCellY = (long) Math.floor(maxY / cellSize);
+        int found = 0;
+        double boxCells = (double) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1);
+        if (boxCells > cellHeads.length) {
+            //The box covers more cells than the table has slots; walk the table instead
+            for (int slot = 0; slot < cellHeads.length; slot++) {
+                if (NONE != cellHeads[slot]) {
+                    long cellX = cellKeys[slot] >> 32;
+                    long cellY = (int) cellKeys[slot];
+                    if (minCellX <= cellX && cellX <= maxCellX && minCellY <= cellY && cellY <= maxCellY) {
+                        found += visitCell(cellHeads[slot], minX, minY, maxX, maxY, visitor);
+                    }
+                }
+            }
+        } else {
+            for (long cellX = minCellX; cellX <= maxCellX; cellX++) {
+                for (long cellY = minCellY; cellY <= maxCellY; cellY++) {
+                    int head = cellHeads[findSlot(toCellKey(cellX, cellY))];
+                    if (NONE != head) {
+                        found += visitCell(head, minX, minY, maxX, maxY, visitor);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the items within a distance of a point, by straight-line distance
+     * in the units of the coordinates.
+     * @param x the point's x-coordinate.
+     * @param y the point's y-coordinate.
+     * @param radius the distance.
+     * @param visitor the visitor that receives each item found, or null to only count items.
+     * @return the number of items found.
+     */
+    public int queryRadius(final double x, final double y, double radius, final Visitor visitor) {
+        final double radiusSquared = radius * radius;
+        final int[] found = new int[1];
+        queryBox(x - radius, y - radius, x + radius, y + radius, new Visitor() {
+
+            @Override
+            public void visit(int item, double itemX, double itemY) {
+                double dx = itemX - x;
+                double dy = itemY - y;
+                if (dx * dx + dy * dy <= radiusSquared) {
+                    found[0]++;
+                    if (null != visitor) {
+                        visitor.visit(item, itemX, itemY);
+                    }
+                }
+            }
+
+        });
+        return found[0];
+    }
+
+    /**
+     * Finds the nearest items to a point, nearest first.
+     * @param x the point's x-coordinate.
+     * @param y the point's y-coordinate.
+     * @param k the maximum number of items to find.
+     * @param maxDistance the maximum distance of an item found, or Double.POSITIVE_INFINITY.
+     *                    A tight maximum lets the search stop sooner.
+     * @param metric the distance function, such as EUCLIDEAN or GREAT_CIRCLE_METERS.
+     * @param filter the filter that items must pass, or null to accept all items.
+     * @param items an array of at least k elements that receives the handles of
+     *              the items found.
+     * @param distances an array of at least k elements that receives the distances
+     *                  of the items found, or null.
+     * @return the number of items found, which is at most k.
+     */
+    public int queryNearest(double x, double y, int k, double maxDistance, Metric metric, Filter filter,
+            int[] items, double[] distances) {
+        if (0 >= k || 0 == size) {
+            return 0;
+        }
+        long centerX = (long) Math.floor(x / cellSize);
+        long centerY = (long) Math.floor(y / cellSize);
+        int found = 0;
+        heapSize = 0;
+        push(0, ENTRY_RING, 0);
+        while (0 < heapSize && heapKeys[0] <= maxDistance) {
+            double key = heapKeys[0];
+            byte kind = heapKinds[0];
+            long value = heapValues[0];
+            pop();
+            if (ENTRY_ITEM == kind) {
+                items[found] = (int) value;
+                if (null != distances) {
+                    distances[found] = key;
+                }
+                if (++found == k) {
+                    break;
+                }
+            } else if (ENTRY_CELL == kind) {
+                for (int item = cellHeads[findSlot(value)]; NONE != item; item = nextInCell[item]) {
+                    if (null == filter || filter.accept(item)) {
+                        double distance = metric.distance(x, y, xs[item], ys[item]);
+                        if (distance <= maxDistance) {
+                            push(distance, ENTRY_ITEM, item);
+                        }
+                    }
+                }
+            } else {
+                int ring = (int) value;
+                double side = 2.0 * ring + 1;
+                if (side * side > cellHeads.length) {
+                    //Rings this large cost more than walking the table, so push every remaining cell
+                    for (int slot = 0; slot < cellHeads.length; slot++) {
+                        if (NONE != cellHeads[slot]) {
+                            long cellX = cellKeys[slot] >> 32;
+                            long cellY = (int) cellKeys[slot];
+                            if (ring <= Math.max(Math.abs(cellX - centerX), Math.abs(cellY - centerY))) {
+                                pushCell(x, y, cellX, cellY, maxDistance, metric);
+                            }
+                        }
+                    }
+                } else {
+                    if (0 == ring) {
+                        pushCell(x, y, centerX, centerY, maxDistance, metric);
+                    } else {
+                        for (long i = -ring; i <= ring; i++) {
+                            pushCell(x, y, centerX + i, centerY - ring, maxDistance, metric);
+                            pushCell(x, y, centerX + i, centerY + ring, maxDistance, metric);
+                        }
+                        for (long j = -ring + 1; j < ring; j++) {
+                            pushCell(x, y, centerX - ring, centerY + j, maxDistance, metric);
+                            pushCell(x, y, centerX + ring, centerY + j, maxDistance, metric);
+                        }
+                    }
+                    //The next ring's key bounds everything outside the rings searched so far
+                    long next = ring + 1;
+                    double innerMinX = (centerX - ring) * cellSize;
+                    double innerMaxX = (centerX + next) * cellSize;
+                    double innerMinY = (centerY - ring) * cellSize;
+                    double innerMaxY = (centerY + next) * cellSize;
+                    double inf = Double.POSITIVE_INFINITY;
+                    double bound = Math.min(
+                            Math.min(metric.lowerBound(x, y, -inf, -inf, innerMinX, inf),
+                                    metric.lowerBound(x, y, innerMaxX, -inf, inf, inf)),
+                            Math.min(metric.lowerBound(x, y, -inf, -inf, inf, innerMinY),
+                                    metric.lowerBound(x, y, -inf, innerMaxY, inf, inf)));
+                    if (bound <= maxDistance) {
+                        push(bound, ENTRY_RING, next);
+                    }
+                }
+            }
+        }
+        heapSize = 0;
+        return found;
+    }
+
+    private void pushCell(double x, double y, long cellX, long cellY, double maxDistance, Metric metric) {
+        long cellKey = toCellKey(cellX, cellY);
+        if (NONE != cellHeads[findSlot(cellKey)]) {
+            double bound = metric.lowerBound(x, y,
+                    cellX * cellSize, cellY * cellSize, (cellX + 1) * cellSize, (cellY + 1) * cellSize);
+            if (bound <= maxDistance) {
+                push(bound, ENTRY_CELL, cellKey);
+            }
+        }
+    }
+
+    private void push(double key, byte kind, long value) {
+        if (heapSize == heapKeys.length) {
+            int capacity = heapKeys.length * 2;
+            heapKeys = Arrays.copyOf(heapKeys, capacity);
+            heapKinds = Arrays.copyOf(heapKinds, capacity);
+            heapValues = Arrays.copyOf(heapValues, capacity);
+        }
+        int i = heapSize++;
+        while (0 < i) {
+            int parent = (i - 1) >>> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[parent];
+            heapKinds[i] = heapKinds[parent];
+            heapValues[i] = heapValues[parent];
+            i = parent;
+        }
+        heapKeys[i] = key;
+        heapKinds[i] = kind;
+        heapValues[i] = value;
+    }
+
+    private void pop() {
+        int last = --heapSize;
+        double key = heapKeys[last];
+        byte kind = heapKinds[last];
+        long value = heapValues[last];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= last) {
+                break;
+            }
+            if (child + 1 < last && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (key <= heapKeys[child]) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapKinds[i] = heapKinds[child];
+            heapValues[i] = heapValues[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapKinds[i] = kind;
+        heapValues[i] = value;
+    }
+
+    private int visitCell(int head, double minX, double minY, double maxX, double maxY, Visitor visitor) {
+        int found = 0;
+        for (int item = head; NONE != item; item = nextInCell[item]) {
+            double x = xs[item];
+            double y = ys[item];
+            if (minX <= x && x <= maxX && minY <= y && y <= maxY) {
+                found++;
+                if (null != visitor) {
+                    visitor.visit(item, x, y);
+                }
+            }
+        }
+        return found;
+    }
+
+    private void link(int item, long cellKey) {
+        int slot = findSlot(cellKey);
+        int head = cellHeads[slot];
+        nextInCell[item] = head;
+        previousInCell[item] = NONE;
+        itemCells[item] = cellKey;
+        if (NONE != head) {
+            previousInCell[head] = item;
+            cellHeads[slot] = item;
+        } else {
+            cellKeys[slot] = cellKey;
+            cellHeads[slot] = item;
+            if (++cellCount * 2 > cellHeads.length) {
+                growCells();
+            }
+        }
+    }
+
+    private void unlink(int item) {
+        int previous = previousInCell[item];
+        int next = nextInCell[item];
+        if (NONE != next) {
+            previousInCell[next] = previous;
+        }
+        if (NONE != previous) {
+            nextInCell[previous] = next;
+        } else {
+            int slot = findSlot(itemCells[item]);
+            if (NONE != next) {
+                cellHeads[slot] = next;
+            } else {
+                deleteCell(slot);
+            }
+        }
+    }
+
+    private int findSlot(long cellKey) {
+        int mask = cellHeads.length - 1;
+        int slot = hash(cellKey) & mask;
+        while (NONE != cellHeads[slot] && cellKeys[slot] != cellKey) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void deleteCell(int slot) {
+        //Backward-shift deletion keeps every probe sequence unbroken without tombstones
+        int mask = cellHeads.length - 1;
+        cellHeads[slot] = NONE;
+        cellCount--;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (NONE == cellHeads[next]) {
+                return;
+            }
+            int home = hash(cellKeys[next]) & mask;
+            boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!reachable) {
+                cellKeys[hole] = cellKeys[next];
+                cellHeads[hole] = cellHeads[next];
+                cellHeads[next] = NONE;
+                hole = next;
+            }
+        }
+    }
+
+    private void growCells() {
+        long[] oldKeys = cellKeys;
+        int[] oldHeads = cellHeads;
+        cellKeys = new long[oldKeys.length * 2];
+        cellHeads = newCellHeads(oldHeads.length * 2);
+        for (int i = 0; i < oldHeads.length; i++) {
+            if (NONE != oldHeads[i]) {
+                int slot = findSlot(oldKeys[i]);
+                cellKeys[slot] = oldKeys[i];
+                cellHeads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    private void ensureItemCapacity(int capacity) {
+        if (capacity > present.length) {
+            int newCapacity = Math.max(capacity, present.length * 2);
+            xs = Arrays.copyOf(xs, newCapacity);
+            ys = Arrays.copyOf(ys, newCapacity);
+            itemCells = Arrays.copyOf(itemCells, newCapacity);
+            nextInCell = Arrays.copyOf(nextInCell, newCapacity);
+            previousInCell = Arrays.copyOf(previousInCell, newCapacity);
+            present = Arrays.copyOf(present, newCapacity);
+        }
+    }
+
+}
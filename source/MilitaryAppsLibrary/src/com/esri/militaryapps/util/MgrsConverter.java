@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util;
+
+/**
+ * Converts between WGS 1984 longitude and latitude and Military Grid Reference
+ * System (MGRS) strings without a mapping SDK. Latitudes from 80 degrees south
+ * to 84 degrees north use UTM, with the Norway and Svalbard zone exceptions, and
+ * the polar regions use UPS (grid zones A, B, Y, and Z). 100,000-meter squares
+ * use the WGS 1984 (AA) lettering scheme.<br/>
+ * <br/>
+ * Strings have no spaces or zone number padding, such as 4QFJ1234567890 at
+ * precision 5, and easting
+ * and northing are truncated, not rounded, as MGRS requires. Decoding accepts
+ * any precision from 0 to 5 digits and returns the center of the referenced
+ * square. Projection goes through ProjectionEngine.<br/>
+ * <br/>
+ * appendMgrs appends to a StringBuilder without allocating, and the array
+ * methods convert many points in one call. This class is not thread-safe;
+ * use one MgrsConverter per thread.
+ */
+public class MgrsConverter {
+
+    /**
+     * The default number of easting and northing digits, which gives 1-meter precision.
+     */
+    public static final int DEFAULT_PRECISION = 5;
+
+    private static final int WKID_WGS1984 = 4326;
+    private static final String LATITUDE_BANDS = "CDEFGHJKLMNPQRSTUVWX";
+    private static final String[] UTM_COLUMNS = { "ABCDEFGH", "JKLMNPQR", "STUVWXYZ" };
+    private static final String UTM_ROWS = "ABCDEFGHJKLMNPQRSTUV";
+    //UPS lettering, indexed by grid zone A, B, Y, Z, as in GeographicLib
+    private static final String UPS_ZONES = "ABYZ";
+    private static final String[] UPS_COLUMNS = { "JKLPQRSTUXYZ", "ABCFGHJKLPQR", "RSTUXYZ", "ABCFGHJ" };
+    private static final String[] UPS_ROWS = { "ABCDEFGHJKLMNPQRSTUVWXYZ", "ABCDEFGHJKLMNP" };
+    //The first 100,000-meter column and row of each UPS grid zone
+    private static final int[] UPS_MIN_COLUMNS = { 8, 20, 13, 20 };
+    private static final int[] UPS_MIN_ROWS = { 8, 8, 13, 13 };
+    //The lowest northing of each latitude band, in 100,000-meter rows
+    private static final int[] BAND_MIN_ROWS = {
+        11, 20, 28, 37, 46, 55, 64, 73, 82, 91, 0, 8, 17, 26, 35, 44, 53, 62, 70, 79
+    };
+    private static final int[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000 };
+
+    private final int precision;
+    private final double[] point = new double[2];
+
+    /**
+     * Creates a new MgrsConverter with the default precision.
+     */
+    public MgrsConverter() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Creates a new MgrsConverter.
+     * @param precision the number of easting and northing digits in the strings
+     *                  this converter creates, from 0 (100-kilometer squares) to
+     *                  5 (1-meter squares).
+     */
+    public MgrsConverter(int precision) {
+        if (0 > precision || 5 < precision) {
+            throw new IllegalArgumentException("Precision must be from 0 to 5");
+        }
+        this.precision = precision;
+    }
+
+    /**
+     * @return the number of easting and northing digits in the strings this converter creates.
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Appends the MGRS string for a point to a StringBuilder.
+     * @param builder the StringBuilder.
+     * @param lon the point's longitude.
+     * @param lat the point's latitude, from -90 to 90.
+     * @return true if the string was appended, or false if the point is invalid,
+     *         in which case nothing is appended.
+     */
+    public boolean appendMgrs(StringBuilder builder, double lon, double lat) {
+        if (Double.isNaN(lon) || Double.isInfinite(lon) || !(-90 <= lat && lat <= 90)) {
+            return false;
+        }
+        lon = Utilities.fixAngleDegrees(lon, -180, 180);
+        if (180 == lon) {
+            lon = -180;
+        }
+        point[0] = lon;
+        point[1] = lat;
+        if (-80 <= lat && lat < 84) {
+            int band = Math.min(19, (int) Math.floor((lat + 80) / 8));
+            int zone = getUtmZone(lon, lat, band);
+            ProjectionEngine.project(point, 0, 1,
+                    WKID_WGS1984, (0 > lat ? ProjectionEngine.WKID_UTM_SOUTH_BASE : ProjectionEngine.WKID_UTM_NORTH_BASE) + zone - 1);
+            int column = (int) Math.floor(point[0] / 100000);
+            int row = (int) Math.floor(point[1] / 100000);
+            builder.append(zone)
+                    .append(LATITUDE_BANDS.charAt(band))
+                    .append(UTM_COLUMNS[(zone - 1) % 3].charAt(Math.max(0, Math.min(7, column - 1))))
+                    .append(UTM_ROWS.charAt((row + (0 == zone % 2 ? 5 : 0)) % 20));
+        } else {
+            boolean north = 0 < lat;
+            ProjectionEngine.project(point, 0, 1,
+                    WKID_WGS1984, north ? ProjectionEngine.WKID_UPS_NORTH : ProjectionEngine.WKID_UPS_SOUTH);
+            int column = (int) Math.floor(point[0] / 100000);
+            int row = (int) Math.floor(point[1] / 100000);
+            int upsZone = (north ? 2 : 0) + (20 <= column ? 1 : 0);
+            String columns = UPS_COLUMNS[upsZone];
+            String rows = UPS_ROWS[north ? 1 : 0];
+            builder.append(UPS_ZONES.charAt(upsZone))
+                    .append(columns.charAt(Math.max(0, Math.min(columns.length() - 1, column - UPS_MIN_COLUMNS[upsZone]))))
+                    .append(rows.charAt(Math.max(0, Math.min(rows.length() - 1, row - UPS_MIN_ROWS[upsZone]))));
+        }
+        appendDigits(builder, point[0]);
+        appendDigits(builder, point[1]);
+        return true;
+    }
+
+    /**
+     * Returns the MGRS string for a point.
+     * @param lon the point's longitude.
+     * @param lat the point's latitude, from -90 to 90.
+     * @return the MGRS string, or null if the point is invalid.
+     */
+    public String encode(double lon, double lat) {
+        StringBuilder builder = new StringBuilder(15);
+        return appendMgrs(builder, lon, lat) ? builder.toString() : null;
+    }
+
+    /**
+     * Returns the MGRS strings for many points.
+     * @param lonLat the points' longitudes and latitudes, as lon0, lat0, lon1,
+     *               lat1, and so on.
+     * @return the MGRS strings, one per point, with null for invalid points.
+     */
+    public String[] encode(double[] lonLat) {
+        String[] mgrs = new String[lonLat.length / 2];
+        StringBuilder builder = new StringBuilder(15);
+        for (int i = 0; i < mgrs.length; i++) {
+            builder.setLength(0);
+            mgrs[i] = appendMgrs(builder, lonLat[2 * i], lonLat[2 * i + 1]) ? builder.toString() : null;
+        }
+        return mgrs;
+    }
+
+    /**
+     * Converts an MGRS string to the longitude and latitude of the center of the
+     * square it references. Letters may be lowercase, and spaces are ignored.
+     * @param mgrs the MGRS string.
+     * @param lonLat receives the longitude and latitude.
+     * @param offset the index in lonLat that receives the longitude.
+     * @return true if the string was converted, or false if it is not a valid
+     *         MGRS string, in which case lonLat is unchanged.
+     */
+    public boolean decode(CharSequence mgrs, double[] lonLat, int offset) {
+        int length = mgrs.length();
+        int index = skipSpaces(mgrs, 0);
+        int zone = 0;
+        int zoneDigits = 0;
+        while (index < length && isDigit(mgrs.charAt(index))) {
+            zone = 10 * zone + (mgrs.charAt(index++) - '0');
+            zoneDigits++;
+        }
+        index = skipSpaces(mgrs, index);
+        if (2 < zoneDigits || index + 3 > length) {
+            return false;
+        }
+        char zoneLetter = Character.toUpperCase(mgrs.charAt(index++));
+        index = skipSpaces(mgrs, index);
+        if (index + 2 > length) {
+            return false;
+        }
+        char columnLetter = Character.toUpperCase(mgrs.charAt(index++));
+        char rowLetter = Character.toUpperCase(mgrs.charAt(index++));
+
+        //Easting and northing digits
+        int digitsStart = skipSpaces(mgrs, index);
+        int digitCount = 0;
+        for (int i = digitsStart; i < length; i++) {
+            char c = mgrs.charAt(i);
+            if (isDigit(c)) {
+                digitCount++;
+            } else if (' ' != c) {
+                return false;
+            }
+        }
+        if (1 == digitCount % 2 || 10 < digitCount) {
+            return false;
+        }
+        int digits = digitCount / 2;
+        int easting = 0;
+        int northing = 0;
+        int parsed = 0;
+        for (int i = digitsStart; i < length; i++) {
+            char c = mgrs.charAt(i);
+            if (isDigit(c)) {
+                if (parsed++ < digits) {
+                    easting = 10 * easting + (c - '0');
+                } else {
+                    northing = 10 * northing + (c - '0');
+                }
+            }
+        }
+        double cellSize = POWERS_OF_TEN[5 - digits];
+        double x = easting * cellSize + cellSize / 2;
+        double y = northing * cellSize + cellSize / 2;
+
+        int wkid;
+        if (0 == zoneDigits) {
+            int upsZone = UPS_ZONES.indexOf(zoneLetter);
+            if (0 > upsZone) {
+                return false;
+            }
+            boolean north = 2 <= upsZone;
+            int column = UPS_COLUMNS[upsZone].indexOf(columnLetter);
+            int row = UPS_ROWS[north ? 1 : 0].indexOf(rowLetter);
+            if (0 > column || 0 > row) {
+                return false;
+            }
+            x += (UPS_MIN_COLUMNS[upsZone] + column) * 100000.0;
+            y += (UPS_MIN_ROWS[upsZone] + row) * 100000.0;
+            wkid = north ? ProjectionEngine.WKID_UPS_NORTH : ProjectionEngine.WKID_UPS_SOUTH;
+        } else {
+            int band = LATITUDE_BANDS.indexOf(zoneLetter);
+            int column = UTM_COLUMNS[(Math.max(1, zone) - 1) % 3].indexOf(columnLetter);
+            int row = UTM_ROWS.indexOf(rowLetter);
+            if (1 > zone || 60 < zone || 0 > band || 0 > column || 0 > row) {
+                return false;
+            }
+            if (0 == zone % 2) {
+                row = (row + 15) % 20;
+            }
+            //Repeat the 20-row cycle until it reaches the band
+            int minRow = BAND_MIN_ROWS[band];
+            row += 20 * ((minRow - row + 19) / 20);
+            x += (column + 1) * 100000.0;
+            y += row * 100000.0;
+            wkid = (10 > band ? ProjectionEngine.WKID_UTM_SOUTH_BASE : ProjectionEngine.WKID_UTM_NORTH_BASE) + zone - 1;
+        }
+        point[0] = x;
+        point[1] = y;
+        ProjectionEngine.project(point, 0, 1, wkid, WKID_WGS1984);
+        lonLat[offset] = point[0];
+        lonLat[offset + 1] = point[1];
+        return true;
+    }
+
+    /**
+     * Converts many MGRS strings to longitudes and latitudes.
+     * @param mgrs the MGRS strings.
+     * @return the longitudes and latitudes of the centers of the squares the
+     *         strings reference, as lon0, lat0, lon1, lat1, and so on, with NaN
+     *         for strings that are null or invalid.
+     */
+    public double[] decode(String[] mgrs) {
+        double[] lonLat = new double[2 * mgrs.length];
+        for (int i = 0; i < mgrs.length; i++) {
+            if (null == mgrs[i] || !decode(mgrs[i], lonLat, 2 * i)) {
+                lonLat[2 * i] = Double.NaN;
+                lonLat[2 * i + 1] = Double.NaN;
+            }
+        }
+        return lonLat;
+    }
+
+    /**
+     * Returns the UTM zone of a point, with the Norway and Svalbard exceptions.
+     */
+    private static int getUtmZone(double lon, double lat, int band) {
+        if ('V' == LATITUDE_BANDS.charAt(band) && 3 <= lon && lon < 12) {
+            return 32;
+        }
+        if ('X' == LATITUDE_BANDS.charAt(band) && 0 <= lon && lon < 42) {
+            //Zones 32, 34, and 36 are not used
+            return 9 > lon ? 31 : 21 > lon ? 33 : 33 > lon ? 35 : 37;
+        }
+        return Math.min(60, (int) Math.floor((lon + 180) / 6) + 1);
+    }
+
+    /**
+     * Appends the digits of a coordinate within its 100,000-meter square.
+     */
+    private void appendDigits(StringBuilder builder, double coordinate) {
+        if (0 == precision) {
+            return;
+        }
+        int value = (int) Math.floor(coordinate - 100000 * Math.floor(coordinate / 100000));
+        value = Math.min(99999, value) / POWERS_OF_TEN[5 - precision];
+        for (int divisor = POWERS_OF_TEN[precision - 1]; 0 < divisor; divisor /= 10) {
+            builder.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static int skipSpaces(CharSequence string, int index) {
+        while (index < string.length() && ' ' == string.charAt(index)) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
+
+}
@@ -0,0 +1,444 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util;
+
+/**
+ * Projects points between common spatial references without a mapping SDK:
+ * WGS 1984 (4326), Web Mercator (3857, 102100, 102113, 900913), the WGS 1984
+ * UTM zones (32601-32660 north, 32701-32760 south), and WGS 1984 UPS north
+ * (32661) and south (32761).<br/>
+ * <br/>
+ * Every projection goes through WGS 1984 longitude and latitude. Web Mercator
+ * uses the spherical formulas, as Web Mercator maps do, and UTM uses the
+ * ellipsoidal transverse Mercator series of Snyder (USGS Professional Paper
+ * 1395), which is accurate to millimeters within a zone and degrades slowly
+ * beyond it. UPS uses Snyder's ellipsoidal polar stereographic formulas. All of
+ * these spatial references share the WGS 1984 datum, so no datum transformation
+ * is needed.<br/>
+ * <br/>
+ * The spatial references are created once, and points are projected in place in
+ * interleaved primitive arrays, so projecting allocates nothing. A caller that
+ * projects repeatedly between the same spatial references can keep a Transform
+ * instead of passing the WKIDs each time. This class is thread-safe.
+ */
+public final class ProjectionEngine {
+
+    /**
+     * The WKID of WGS 1984 longitude and latitude.
+     */
+    public static final int WKID_WGS1984 = 4326;
+
+    /**
+     * The WKID of Web Mercator.
+     */
+    public static final int WKID_WEB_MERCATOR = 3857;
+
+    /**
+     * The WKID of WGS 1984 UTM zone 1 north. Add the zone number minus one for
+     * other zones.
+     */
+    public static final int WKID_UTM_NORTH_BASE = 32601;
+
+    /**
+     * The WKID of WGS 1984 UTM zone 1 south. Add the zone number minus one for
+     * other zones.
+     */
+    public static final int WKID_UTM_SOUTH_BASE = 32701;
+
+    /**
+     * The WKID of WGS 1984 UPS north.
+     */
+    public static final int WKID_UPS_NORTH = 32661;
+
+    /**
+     * The WKID of WGS 1984 UPS south.
+     */
+    public static final int WKID_UPS_SOUTH = 32761;
+
+    private static final double WGS1984_SEMI_MAJOR_AXIS = 6378137.0;
+    private static final double WGS1984_FLATTENING = 1 / 298.257223563;
+    private static final double MAX_MERCATOR_LATITUDE = 85.0511287798066;
+
+    /**
+     * Projects points in place from one spatial reference to another.
+     */
+    public static final class Transform {
+
+        private final int fromWkid;
+        private final int toWkid;
+        private final SpatialReference from;
+        private final SpatialReference to;
+
+        private Transform(int fromWkid, int toWkid, SpatialReference from, SpatialReference to) {
+            this.fromWkid = fromWkid;
+            this.toWkid = toWkid;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return the WKID of the spatial reference from which this transform projects.
+         */
+        public int getFromWkid() {
+            return fromWkid;
+        }
+
+        /**
+         * @return the WKID of the spatial reference to which this transform projects.
+         */
+        public int getToWkid() {
+            return toWkid;
+        }
+
+        /**
+         * Projects points in place.
+         * @param xy the points, as x0, y0, x1, y1, and so on.
+         */
+        public void transform(double[] xy) {
+            transform(xy, 0, xy.length / 2);
+        }
+
+        /**
+         * Projects some of the points in an array in place.
+         * @param xy the points, as x0, y0, x1, y1, and so on.
+         * @param offset the index in xy of the first point's x-value.
+         * @param count the number of points to project.
+         */
+        public void transform(double[] xy, int offset, int count) {
+            if (from != to) {
+                from.toGeographic(xy, offset, count);
+                to.fromGeographic(xy, offset, count);
+            }
+        }
+
+    }
+
+    /**
+     * A spatial reference that converts to and from WGS 1984 longitude and latitude
+     * in degrees.
+     */
+    private abstract static class SpatialReference {
+
+        abstract void toGeographic(double[] xy, int offset, int count);
+
+        abstract void fromGeographic(double[] xy, int offset, int count);
+
+    }
+
+    private static final SpatialReference GEOGRAPHIC = new SpatialReference() {
+
+        @Override
+        void toGeographic(double[] xy, int offset, int count) {
+
+        }
+
+        @Override
+        void fromGeographic(double[] xy, int offset, int count) {
+
+        }
+
+    };
+
+    private static final SpatialReference WEB_MERCATOR = new SpatialReference() {
+
+        @Override
+        void toGeographic(double[] xy, int offset, int count) {
+            int end = offset + 2 * count;
+            for (int i = offset; i < end; i += 2) {
+                xy[i] = Math.toDegrees(xy[i] / WGS1984_SEMI_MAJOR_AXIS);
+                xy[i + 1] = Math.toDegrees(2 * Math.atan(Math.exp(xy[i + 1] / WGS1984_SEMI_MAJOR_AXIS)) - Math.PI / 2);
+            }
+        }
+
+        @Override
+        void fromGeographic(double[] xy, int offset, int count) {
+            int end = offset + 2 * count;
+            for (int i = offset; i < end; i += 2) {
+                //The poles are at infinity, so clamp to the usual square extent
+                double latitude = Math.max(-MAX_MERCATOR_LATITUDE, Math.min(MAX_MERCATOR_LATITUDE, xy[i + 1]));
+                xy[i] = WGS1984_SEMI_MAJOR_AXIS * Math.toRadians(xy[i]);
+                xy[i + 1] = WGS1984_SEMI_MAJOR_AXIS * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude) / 2));
+            }
+        }
+
+    };
+
+    /**
+     * A WGS 1984 UTM zone, by the transverse Mercator series in Snyder, pages 60-64.
+     */
+    private static final class Utm extends SpatialReference {
+
+        private static final double SCALE_FACTOR = 0.9996;
+        private static final double FALSE_EASTING = 500000;
+        private static final double FALSE_NORTHING_SOUTH = 10000000;
+
+        private static final double A = WGS1984_SEMI_MAJOR_AXIS;
+        private static final double E2 = WGS1984_FLATTENING * (2 - WGS1984_FLATTENING);
+        private static final double E4 = E2 * E2;
+        private static final double E6 = E4 * E2;
+        private static final double EP2 = E2 / (1 - E2);
+        //Meridian distance coefficients
+        private static final double M1 = 1 - E2 / 4 - 3 * E4 / 64 - 5 * E6 / 256;
+        private static final double M2 = 3 * E2 / 8 + 3 * E4 / 32 + 45 * E6 / 1024;
+        private static final double M3 = 15 * E4 / 256 + 45 * E6 / 1024;
+        private static final double M4 = 35 * E6 / 3072;
+        //Footpoint latitude coefficients
+        private static final double E1 = (1 - Math.sqrt(1 - E2)) / (1 + Math.sqrt(1 - E2));
+        private static final double F1 = 3 * E1 / 2 - 27 * E1 * E1 * E1 / 32;
+        private static final double F2 = 21 * E1 * E1 / 16 - 55 * E1 * E1 * E1 * E1 / 32;
+        private static final double F3 = 151 * E1 * E1 * E1 / 96;
+        private static final double F4 = 1097 * E1 * E1 * E1 * E1 / 512;
+
+        private final double centralMeridian;
+        private final double falseNorthing;
+
+        private Utm(int zone, boolean south) {
+            centralMeridian = Math.toRadians(zone * 6 - 183);
+            falseNorthing = south ? FALSE_NORTHING_SOUTH : 0;
+        }
+
+        @Override
+        void fromGeographic(double[] xy, int offset, int count) {
+            int end = offset + 2 * count;
+            for (int i = offset; i < end; i += 2) {
+                double phi = Math.toRadians(xy[i + 1]);
+                double sinPhi = Math.sin(phi);
+                double cosPhi = Math.cos(phi);
+                double tanPhi = Math.tan(phi);
+                double n = A / Math.sqrt(1 - E2 * sinPhi * sinPhi);
+                double t = tanPhi * tanPhi;
+                double c = EP2 * cosPhi * cosPhi;
+                double a = normalizeRadians(Math.toRadians(xy[i]) - centralMeridian) * cosPhi;
+                double m = A * (M1 * phi - M2 * Math.sin(2 * phi) + M3 * Math.sin(4 * phi) - M4 * Math.sin(6 * phi));
+                double a2 = a * a;
+                xy[i] = FALSE_EASTING + SCALE_FACTOR * n * a * (1 + a2 / 6 * ((1 - t + c)
+                        + a2 / 20 * (5 - 18 * t + t * t + 72 * c - 58 * EP2)));
+                xy[i + 1] = falseNorthing + SCALE_FACTOR * (m + n * tanPhi * a2 * (0.5 + a2 / 24 * ((5 - t + 9 * c + 4 * c * c)
+                        + a2 / 30 * (61 - 58 * t + t * t + 600 * c - 330 * EP2))));
+            }
+        }
+
+        @Override
+        void toGeographic(double[] xy, int offset, int count) {
+            int end = offset + 2 * count;
+            for (int i = offset; i < end; i += 2) {
+                double mu = (xy[i + 1] - falseNorthing) / SCALE_FACTOR / (A * M1);
+                double phi1 = mu + F1 * Math.sin(2 * mu) + F2 * Math.sin(4 * mu) + F3 * Math.sin(6 * mu)
+                        + F4 * Math.sin(8 * mu);
+                double sinPhi1 = Math.sin(phi1);
+                double cosPhi1 = Math.cos(phi1);
+                double tanPhi1 = Math.tan(phi1);
+                double c1 = EP2 * cosPhi1 * cosPhi1;
+                double t1 = tanPhi1 * tanPhi1;
+                double w = 1 - E2 * sinPhi1 * sinPhi1;
+                double n1 = A / Math.sqrt(w);
+                double r1 = A * (1 - E2) / (w * Math.sqrt(w));
+                double d = (xy[i] - FALSE_EASTING) / (n1 * SCALE_FACTOR);
+                double d2 = d * d;
+                double phi = phi1 - n1 * tanPhi1 / r1 * d2 * (0.5 - d2 / 24 * ((5 + 3 * t1 + 10 * c1 - 4 * c1 * c1 - 9 * EP2)
+                        - d2 / 30 * (61 + 90 * t1 + 298 * c1 + 45 * t1 * t1 - 252 * EP2 - 3 * c1 * c1)));
+                double lambda = centralMeridian + d * (1 - d2 / 6 * ((1 + 2 * t1 + c1)
+                        - d2 / 20 * (5 - 2 * c1 + 28 * t1 - 3 * c1 * c1 + 8 * EP2 + 24 * t1 * t1))) / cosPhi1;
+                xy[i] = Math.toDegrees(normalizeRadians(lambda));
+                xy[i + 1] = Math.toDegrees(phi);
+            }
+        }
+
+    }
+
+    /**
+     * WGS 1984 UPS north or south, by the polar stereographic formulas in Snyder,
+     * pages 160-162.
+     */
+    private static final class Ups extends SpatialReference {
+
+        private static final double SCALE_FACTOR = 0.994;
+        private static final double FALSE_EASTING_NORTHING = 2000000;
+
+        private static final double E2 = WGS1984_FLATTENING * (2 - WGS1984_FLATTENING);
+        private static final double E = Math.sqrt(E2);
+        private static final double RHO_FACTOR = 2 * WGS1984_SEMI_MAJOR_AXIS * SCALE_FACTOR
+                / Math.sqrt(Math.pow(1 + E, 1 + E) * Math.pow(1 - E, 1 - E));
+        //Conformal latitude to geodetic latitude series coefficients
+        private static final double C2 = E2 / 2 + 5 * E2 * E2 / 24 + E2 * E2 * E2 / 12 + 13 * E2 * E2 * E2 * E2 / 360;
+        private static final double C4 = 7 * E2 * E2 / 48 + 29 * E2 * E2 * E2 / 240 + 811 * E2 * E2 * E2 * E2 / 11520;
+        private static final double C6 = 7 * E2 * E2 * E2 / 120 + 81 * E2 * E2 * E2 * E2 / 1120;
+        private static final double C8 = 4279 * E2 * E2 * E2 * E2 / 161280;
+
+        //1 for north and -1 for south
+        private final double sign;
+
+        private Ups(boolean south) {
+            sign = south ? -1 : 1;
+        }
+
+        @Override
+        void fromGeographic(double[] xy, int offset, int count) {
+            int end = offset + 2 * count;
+            for (int i = offset; i < end; i += 2) {
+                double phi = Math.toRadians(sign * xy[i + 1]);
+                double lambda = Math.toRadians(xy[i]);
+                double eSinPhi = E * Math.sin(phi);
+                double t = Math.tan(Math.PI / 4 - phi / 2) / Math.pow((1 - eSinPhi) / (1 + eSinPhi), E / 2);
+                double rho = RHO_FACTOR * t;
+                xy[i] = FALSE_EASTING_NORTHING + rho * Math.sin(lambda);
+                xy[i + 1] = FALSE_EASTING_NORTHING - sign * rho * Math.cos(lambda);
+            }
+        }
+
+        @Override
+        void toGeographic(double[] xy, int offset, int count) {
+            int end = offset + 2 * count;
+            for (int i = offset; i < end; i += 2) {
+                double dx = xy[i] - FALSE_EASTING_NORTHING;
+                double dy = xy[i + 1] - FALSE_EASTING_NORTHING;
+                double t = Math.sqrt(dx * dx + dy * dy) / RHO_FACTOR;
+                double chi = Math.PI / 2 - 2 * Math.atan(t);
+                double phi = chi + C2 * Math.sin(2 * chi) + C4 * Math.sin(4 * chi) + C6 * Math.sin(6 * chi)
+                        + C8 * Math.sin(8 * chi);
+                xy[i] = 0 == dx && 0 == dy ? 0 : Math.toDegrees(Math.atan2(dx, -sign * dy));
+                xy[i + 1] = sign * Math.toDegrees(phi);
+            }
+        }
+
+    }
+
+    private static final Ups UPS_NORTH = new Ups(false);
+    private static final Ups UPS_SOUTH = new Ups(true);
+    private static final Utm[] UTM_NORTH = new Utm[60];
+    private static final Utm[] UTM_SOUTH = new Utm[60];
+    static {
+        for (int zone = 1; zone <= 60; zone++) {
+            UTM_NORTH[zone - 1] = new Utm(zone, false);
+            UTM_SOUTH[zone - 1] = new Utm(zone, true);
+        }
+    }
+
+    private ProjectionEngine() {
+    }
+
+    /**
+     * Returns an angle in radians from -pi (inclusive) to pi (exclusive).
+     */
+    private static double normalizeRadians(double angle) {
+        if (-Math.PI <= angle && angle < Math.PI) {
+            return angle;
+        }
+        return angle - 2 * Math.PI * Math.floor((angle + Math.PI) / (2 * Math.PI));
+    }
+
+    private static SpatialReference getSpatialReference(int wkid) {
+        switch (wkid) {
+            case WKID_WGS1984:
+                return GEOGRAPHIC;
+            case WKID_WEB_MERCATOR:
+            case 102100:
+            case 102113:
+            case 900913:
+                return WEB_MERCATOR;
+            case WKID_UPS_NORTH:
+                return UPS_NORTH;
+            case WKID_UPS_SOUTH:
+                return UPS_SOUTH;
+            default:
+                if (WKID_UTM_NORTH_BASE <= wkid && wkid < WKID_UTM_NORTH_BASE + 60) {
+                    return UTM_NORTH[wkid - WKID_UTM_NORTH_BASE];
+                } else if (WKID_UTM_SOUTH_BASE <= wkid && wkid < WKID_UTM_SOUTH_BASE + 60) {
+                    return UTM_SOUTH[wkid - WKID_UTM_SOUTH_BASE];
+                } else {
+                    return null;
+                }
+        }
+    }
+
+    /**
+     * @param wkid a WKID.
+     * @return true if this class can project to and from the spatial reference.
+     */
+    public static boolean isSupported(int wkid) {
+        return null != getSpatialReference(wkid);
+    }
+
+    /**
+     * Returns the WKID of the WGS 1984 UTM zone that contains a point, without
+     * the Norway and Svalbard exceptions.
+     * @param lon the point's longitude.
+     * @param lat the point's latitude.
+     * @return the WKID of the UTM zone.
+     */
+    public static int getUtmWkid(double lon, double lat) {
+        int zone = (int) Math.floor((Utilities.fixAngleDegrees(lon, -180, 180) + 180) / 6);
+        zone = Math.max(0, Math.min(59, zone));
+        return (0 > lat ? WKID_UTM_SOUTH_BASE : WKID_UTM_NORTH_BASE) + zone;
+    }
+
+    /**
+     * Returns a transform between two spatial references, which the caller can
+     * keep and reuse.
+     * @param fromWkid the WKID of the original spatial reference.
+     * @param toWkid the WKID of the destination spatial reference.
+     * @return the transform, or null if either spatial reference is not supported.
+     */
+    public static Transform getTransform(int fromWkid, int toWkid) {
+        SpatialReference from = getSpatialReference(fromWkid);
+        SpatialReference to = getSpatialReference(toWkid);
+        if (null == from || null == to) {
+            return null;
+        }
+        return new Transform(fromWkid, toWkid, from, to);
+    }
+
+    /**
+     * Projects points in place, if both spatial references are supported.
+     * @param xy the points, as x0, y0, x1, y1, and so on.
+     * @param offset the index in xy of the first point's x-value.
+     * @param count the number of points to project.
+     * @param fromWkid the WKID of the original spatial reference.
+     * @param toWkid the WKID of the destination spatial reference.
+     * @return true if the points were projected, or false if either spatial reference
+     *         is not supported, in which case the points are unchanged.
+     */
+    public static boolean project(double[] xy, int offset, int count, int fromWkid, int toWkid) {
+        if (fromWkid == toWkid) {
+            return true;
+        }
+        SpatialReference from = getSpatialReference(fromWkid);
+        SpatialReference to = getSpatialReference(toWkid);
+        if (null == from || null == to) {
+            return false;
+        }
+        if (from != to) {
+            from.toGeographic(xy, offset, count);
+            to.fromGeographic(xy, offset, count);
+        }
+        return true;
+    }
+
+    /**
+     * Projects a point.
+     * @param x the x-value.
+     * @param y the y-value.
+     * @param fromWkid the WKID of the original spatial reference.
+     * @param toWkid the WKID of the destination spatial reference.
+     * @return a two-element array with the projected x-value and y-value, or null
+     *         if either spatial reference is not supported.
+     */
+    public static double[] projectPoint(double x, double y, int fromWkid, int toWkid) {
+        double[] xy = { x, y };
+        return project(xy, 0, 1, fromWkid, toWkid) ? xy : null;
+    }
+
+}
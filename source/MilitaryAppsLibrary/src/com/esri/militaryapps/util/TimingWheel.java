@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timing wheel of deadlines for integer handles, such as the handles
+ * of tracks that expire when they stop reporting. The wheel has LEVEL_COUNT levels
+ * of SLOTS_PER_LEVEL slots. A slot in the first level spans one tick, and a slot
+ * in each higher level spans all of the slots in the level below it. A deadline
+ * goes in the slot of the lowest level that reaches it, and moves down a level
+ * each time the wheel turns past the slot above it.<br/>
+ * <br/>
+ * Scheduling, canceling, and refreshing a deadline take constant time. Refreshing
+ * a deadline to a later time, which is what happens every time a track reports,
+ * only records the new deadline; the handle stays in its slot and is moved when
+ * the slot comes due. Each slot is a doubly linked list in primitive arrays, so
+ * handles cost no objects.<br/>
+ * <br/>
+ * Deadlines are rounded up to whole ticks, so a handle expires no earlier than its
+ * deadline and at most one tick after it. This class is not thread-safe.
+ */
+public class TimingWheel {
+
+    /**
+     * Receives the handles that expire when the wheel advances.
+     */
+    public interface Expirer {
+
+        /**
+         * Called for each handle whose deadline has passed. The handle is no longer
+         * scheduled, and the expirer may schedule or cancel any handle.
+         * @param handle the expired handle.
+         * @param deadline the handle's deadline.
+         */
+        void expired(int handle, long deadline);
+
+    }
+
+    /**
+     * The number of levels in the wheel.
+     */
+    public static final int LEVEL_COUNT = 4;
+
+    /**
+     * The number of slots in each level.
+     */
+    public static final int SLOTS_PER_LEVEL = 64;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_MASK = SLOTS_PER_LEVEL - 1;
+    private static final int NONE = -1;
+
+    private final long tickMillis;
+    private final int[] slotHeads = new int[LEVEL_COUNT * SLOTS_PER_LEVEL];
+    private long currentTick;
+    private int size = 0;
+
+    //Handle state, indexed by handle
+    private long[] deadlines = new long[64];
+    private int[] slots = new int[64];
+    private int[] nexts = new int[64];
+    private int[] previouses = new int[64];
+
+    private int[] expiredHandles = new int[64];
+    private long[] expiredDeadlines = new long[64];
+
+    /**
+     * Creates a new TimingWheel.
+     * @param tickMillis the length of a tick, in milliseconds. The wheel reaches
+     *                   about 16.7 million ticks ahead; later deadlines are held
+     *                   in the top level until they come within reach.
+     * @param now the current time, in milliseconds.
+     */
+    public TimingWheel(long tickMillis, long now) {
+        if (0 >= tickMillis) {
+            throw new IllegalArgumentException("Tick length must be positive");
+        }
+        this.tickMillis = tickMillis;
+        currentTick = now / tickMillis;
+        Arrays.fill(slotHeads, NONE);
+        Arrays.fill(slots, NONE);
+    }
+
+    /**
+     * @return the length of a tick, in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return the number of scheduled handles.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param handle a handle.
+     * @return true if the handle is scheduled.
+     */
+    public boolean isScheduled(int handle) {
+        return 0 <= handle && handle < slots.length && NONE != slots[handle];
+    }
+
+    /**
+     * @param handle a handle.
+     * @return the handle's deadline, or Long.MIN_VALUE if the handle is not scheduled.
+     */
+    public long getDeadline(int handle) {
+        return isScheduled(handle) ? deadlines[handle] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Schedules a handle, or moves its deadline if it is already scheduled. A
+     * deadline that has already passed expires on the next tick.
+     * @param handle a non-negative handle.
+     * @param deadline the deadline, in milliseconds.
+     */
+    public void schedule(int handle, long deadline) {
+        if (0 > handle) {
+            throw new IllegalArgumentException("Handle must not be negative");
+        }
+        ensureCapacity(handle);
+        if (NONE != slots[handle]) {
+            if (deadline >= deadlines[handle]) {
+                //Lazy refresh: the handle moves when its current slot comes due
+                deadlines[handle] = deadline;
+                return;
+            }
+            unlink(handle);
+        } else {
+            size++;
+        }
+        deadlines[handle] = deadline;
+        insert(handle, Math.max(getDeadlineTick(deadline), currentTick + 1));
+    }
+
+    /**
+     * Cancels a handle's deadline.
+     * @param handle the handle.
+     * @return true if the handle was scheduled.
+     */
+    public boolean cancel(int handle) {
+        if (!isScheduled(handle)) {
+            return false;
+        }
+        unlink(handle);
+        size--;
+        return true;
+    }
+
+    /**
+     * Cancels every deadline.
+     */
+    public void clear() {
+        Arrays.fill(slotHeads, NONE);
+        Arrays.fill(slots, NONE);
+        size = 0;
+    }
+
+    /**
+     * Advances the wheel to a time and expires every handle whose deadline has
+     * passed. The expirer is called after the wheel has advanced.
+     * @param now the current time, in milliseconds. Times earlier than the wheel's
+     *            current time are ignored.
+     * @param expirer receives the expired handles, or null.
+     * @return the number of expired handles.
+     */
+    public int advance(long now, Expirer expirer) {
+        long targetTick = now / tickMillis;
+        int expiredCount = 0;
+        while (currentTick < targetTick) {
+            if (0 == size) {
+                //Nothing can come due, so jump ahead
+                currentTick = targetTick;
+                break;
+            }
+            currentTick++;
+            //Move due slots of the higher levels down, highest first
+            for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+                int shift = level * SLOT_BITS;
+                if (0 == (currentTick & ((1L << shift) - 1))) {
+                    int slot = level * SLOTS_PER_LEVEL + (int) ((currentTick >>> shift) & SLOT_MASK);
+                    int handle = detach(slot);
+                    while (NONE != handle) {
+                        int next = nexts[handle];
+                        insert(handle, getDeadlineTick(deadlines[handle]));
+                        handle = next;
+                    }
+                }
+            }
+            int handle = detach((int) (currentTick & SLOT_MASK));
+            while (NONE != handle) {
+                int next = nexts[handle];
+                long deadlineTick = getDeadlineTick(deadlines[handle]);
+                if (deadlineTick <= currentTick) {
+                    slots[handle] = NONE;
+                    size--;
+                    if (expiredCount == expiredHandles.length) {
+                        expiredHandles = Arrays.copyOf(expiredHandles, expiredCount * 2);
+                        expiredDeadlines = Arrays.copyOf(expiredDeadlines, expiredCount * 2);
+                    }
+                    expiredHandles[expiredCount] = handle;
+                    expiredDeadlines[expiredCount++] = deadlines[handle];
+                } else {
+                    //Refreshed since it was scheduled
+                    insert(handle, deadlineTick);
+                }
+                handle = next;
+            }
+        }
+        if (null != expirer) {
+            for (int i = 0; i < expiredCount; i++) {
+                expirer.expired(expiredHandles[i], expiredDeadlines[i]);
+            }
+        }
+        return expiredCount;
+    }
+
+    private long getDeadlineTick(long deadline) {
+        long tick = deadline / tickMillis;
+        return tick * tickMillis < deadline ? tick + 1 : tick;
+    }
+
+    private void insert(int handle, long deadlineTick) {
+        long delta = deadlineTick - currentTick;
+        int slot;
+        if (delta <= 0) {
+            //Only while cascading: the current first-level slot is processed next
+            slot = (int) (currentTick & SLOT_MASK);
+        } else {
+            int level = 0;
+            while (level < LEVEL_COUNT - 1 && delta >= (1L << ((level + 1) * SLOT_BITS))) {
+                level++;
+            }
+            int shift = level * SLOT_BITS;
+            if (delta >= (1L << ((level + 1) * SLOT_BITS))) {
+                //Beyond the wheel: park in the last slot of the top level and retry then
+                slot = level * SLOTS_PER_LEVEL + (int) (((currentTick >>> shift) - 1) & SLOT_MASK);
+            } else {
+                slot = level * SLOTS_PER_LEVEL + (int) ((deadlineTick >>> shift) & SLOT_MASK);
+            }
+        }
+        int head = slotHeads[slot];
+        nexts[handle] = head;
+        previouses[handle] = NONE;
+        if (NONE != head) {
+            previouses[head] = handle;
+        }
+        slotHeads[slot] = handle;
+        slots[handle] = slot;
+    }
+
+    private void unlink(int handle) {
+        int next = nexts[handle];
+        int previous = previouses[handle];
+        if (NONE == previous) {
+            slotHeads[slots[handle]] = next;
+        } else {
+            nexts[previous] = next;
+        }
+        if (NONE != next) {
+            previouses[next] = previous;
+        }
+        slots[handle] = NONE;
+    }
+
+    private int detach(int slot) {
+        int head = slotHeads[slot];
+        slotHeads[slot] = NONE;
+        return head;
+    }
+
+    private void ensureCapacity(int handle) {
+        if (handle >= slots.length) {
+            int capacity = slots.length;
+            while (handle >= capacity) {
+                capacity *= 2;
+            }
+            int oldCapacity = slots.length;
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+            Arrays.fill(slots, oldCapacity, capacity, NONE);
+            nexts = Arrays.copyOf(nexts, capacity);
+            previouses = Arrays.copyOf(previouses, capacity);
+        }
+    }
+
+}
@@ -35,11 +35,11 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -58,6 +58,11 @@ public class Utilities {
      * The number of meters in a mile.
      */
     public static final double METERS_PER_MILE = (254.0 / 10000.0) * 12.0 * 5280.0;
+    
+    /**
+     * The mean radius of the earth, in meters.
+     */
+    public static final double EARTH_RADIUS_METERS = 6371008.8;
 
     private static final double FIVE_PI_OVER_TWO = 5.0 * Math.PI / 2.0;
     private static final double TWO_PI = 2.0 * Math.PI;
@@ -198,6 +203,53 @@ public class Utilities {
         return (bearing + 360) % 360;
     }
 
+    /**
+     * Calculates the great-circle distance from one point to another, using the
+     * haversine formula on a spherical earth.
+     * @param fromLon the longitude of the first point.
+     * @param fromLat the latitude of the first point.
+     * @param toLon the longitude of the second point.
+     * @param toLat the latitude of the second point.
+     * @return the distance between the points, in meters.
+     */
+    public static double calculateDistanceMeters(double fromLon, double fromLat, double toLon, double toLat) {
+        double fromLatRad = Math.toRadians(fromLat);
+        double toLatRad = Math.toRadians(toLat);
+        double sinHalfDeltaLat = Math.sin((toLatRad - fromLatRad) / 2.0);
+        double sinHalfDeltaLon = Math.sin(Math.toRadians(toLon - fromLon) / 2.0);
+        double a = sinHalfDeltaLat * sinHalfDeltaLat
+                + Math.cos(fromLatRad) * Math.cos(toLatRad) * sinHalfDeltaLon * sinHalfDeltaLon;
+        return 2.0 * EARTH_RADIUS_METERS * Math.atan2(Math.sqrt(a), Math.sqrt(1.0 - a));
+    }
+
+    /**
+     * Calculates the point reached by traveling a distance along a great circle
+     * from a starting point with a starting compass bearing.
+     * @param fromLon the longitude of the starting point.
+     * @param fromLat the latitude of the starting point.
+     * @param bearingDegrees the compass bearing, in degrees.
+     * @param distanceMeters the distance to travel, in meters.
+     * @param lonLat a two-element array that receives the longitude (element 0)
+     *               and latitude (element 1) of the destination.
+     */
+    public static void calculateDestination(double fromLon, double fromLat,
+            double bearingDegrees, double distanceMeters, double[] lonLat) {
+        double angularDistance = distanceMeters / EARTH_RADIUS_METERS;
+        double bearingRad = Math.toRadians(bearingDegrees);
+        double fromLatRad = Math.toRadians(fromLat);
+        double sinFromLat = Math.sin(fromLatRad);
+        double cosFromLat = Math.cos(fromLatRad);
+        double sinAngularDistance = Math.sin(angularDistance);
+        double cosAngularDistance = Math.cos(angularDistance);
+        double sinToLat = sinFromLat * cosAngularDistance + cosFromLat * sinAngularDistance * Math.cos(bearingRad);
+        double toLatRad = Math.asin(sinToLat);
+        double toLonRad = Math.toRadians(fromLon) + Math.atan2(
+                Math.sin(bearingRad) * sinAngularDistance * cosFromLat,
+                cosAngularDistance - sinFromLat * sinToLat);
+        lonLat[0] = fixAngleDegrees(Math.toDegrees(toLonRad), -180, 180);
+        lonLat[1] = Math.toDegrees(toLatRad);
+    }
+
     /**
      * Normalizes an angle in degrees to fall between specified minimum and maximum
      * values.
@@ -298,73 +350,127 @@ public class Utilities {
         if (null == mgrs) {
             return null;
         }
+        StringBuilder sb = new StringBuilder(mgrs.length() + 3);
+        return appendValidMgrs(mgrs, referenceMgrs, sb) ? sb.toString() : null;
+    }
+    
+    /**
+     * Converts the string to a best-guess valid MGRS string, as convertToValidMgrs
+     * does, and appends the result to a StringBuilder. This method reads the string
+     * once, without regular expressions or intermediate strings, so callers that
+     * validate many strings, such as grid entry fields and imported reports, can
+     * reuse one StringBuilder.
+     * @param mgrs the MGRS string.
+     * @param referenceMgrs a reference MGRS location for calculating a missing grid
+     *        zone identifier, or null. See convertToValidMgrs.
+     * @param out the StringBuilder to which the converted string is appended. If
+     *        the string cannot be converted, nothing is appended.
+     * @return true if the string was converted and appended, or false if the string
+     *         is null or is known to be invalid and cannot be converted.
+     */
+    public static boolean appendValidMgrs(CharSequence mgrs, String referenceMgrs, StringBuilder out) {
+        if (null == mgrs) {
+            return false;
+        }
+        int start = out.length();
+        int leadingDigits = 0;
+        int zoneNumber = 0;
+        int letters = 0;
+        int trailingDigits = 0;
+        char firstLetter = 0;
+        for (int i = 0; i < mgrs.length(); i++) {
+            char c = mgrs.charAt(i);
+            if ('a' <= c && c <= 'z') {
+                c = (char) (c - ('a' - 'A'));
+            }
+            if ('A' <= c && c <= 'Z') {
+                if (0 < trailingDigits || 3 == letters) {
+                    //Letters after the easting/northing, or more than three letters
+                    out.setLength(start);
+                    return false;
+                }
+                if (0 == letters) {
+                    firstLetter = c;
+                }
+                letters++;
+            } else if ('0' <= c && c <= '9') {
+                if (0 < letters) {
+                    trailingDigits++;
+                } else {
+                    if (2 > leadingDigits) {
+                        zoneNumber = 10 * zoneNumber + (c - '0');
+                    }
+                    leadingDigits++;
+                }
+            } else {
+                //Remove non-alphanumeric
+                continue;
+            }
+            out.append(c);
+        }
         
-        //Remove non-alphanumeric
-        mgrs = mgrs.replaceAll("[^a-zA-Z0-9]", "").toUpperCase();
-
         //Check for MGRS without grid zone identifier and add it if necessary
-        Matcher gzlessMatcher = Pattern.compile("[A-Z]{2}[0-9]*").matcher(mgrs);
-        if (null != referenceMgrs && gzlessMatcher.matches()) {
-            Matcher gzMatcher = Pattern.compile("[0-9]{0,2}[A-Z]").matcher(referenceMgrs);
-            if (gzMatcher.find() && 0 == gzMatcher.start()) {
-                mgrs = referenceMgrs.substring(0, gzMatcher.end()) + mgrs;
+        if (0 == leadingDigits && 2 == letters && null != referenceMgrs) {
+            int referenceDigits = 0;
+            int referenceZoneNumber = 0;
+            while (referenceDigits < 3 && referenceDigits < referenceMgrs.length()) {
+                char c = referenceMgrs.charAt(referenceDigits);
+                if ('0' > c || c > '9') {
+                    break;
+                }
+                referenceZoneNumber = 10 * referenceZoneNumber + (c - '0');
+                referenceDigits++;
+            }
+            if (2 >= referenceDigits && referenceDigits < referenceMgrs.length()) {
+                char c = referenceMgrs.charAt(referenceDigits);
+                if ('A' <= c && c <= 'Z') {
+                    out.insert(start, referenceMgrs, 0, referenceDigits + 1);
+                    leadingDigits = referenceDigits;
+                    zoneNumber = referenceZoneNumber;
+                    firstLetter = c;
+                    letters = 3;
+                }
             }
         }
         
         /**
-         * A good MGRS string looks like this:
-         * <grid zone ID><2 letters><even number of digits>
-         * A grid zone ID looks like this:
-         * <1-2 digits><letter C-X>
-         * or
-         * <letter A, B, Y, or Z>
-         * That means every MGRS string looks like this:
+         * Every good MGRS string looks like this:
          * <0-2 digits><3 letters><even number of digits>
+         * See convertToValidMgrs.
          */
-        Pattern pattern = Pattern.compile("[A-Z]+");
-        Matcher matcher = pattern.matcher(mgrs);
-        if (!matcher.find()) {
-            //There are no letters; nothing we can do
-            return null;
+        if (3 != letters || 1 == trailingDigits % 2) {
+            out.setLength(start);
+            return false;
         }
-        Pattern polarPattern = Pattern.compile("[ABYZ][A-Z]{2}[0-9]*");
-        if (0 == matcher.start()) {
-            //This string starts with letters; make sure it's polar
-            if (!polarPattern.matcher(mgrs).matches()) {
-                return null;
-            }
-        } else {
-            //If the first letter is A, B, Y, or Z, omit the leading digits
-            char firstLetter = mgrs.charAt(matcher.start());
-            if ('A' == firstLetter || 'B' == firstLetter || 'Y' == firstLetter || 'Z' == firstLetter) {
-                mgrs = mgrs.substring(matcher.start());
-                if (!polarPattern.matcher(mgrs).matches()) {
-                    return null;
-                }
-            } else {
-                Matcher nonPolarMatcher = Pattern.compile("[0-9]{1,2}[C-X][A-Z]{2}[0-9]*").matcher(mgrs);
-                if (!nonPolarMatcher.matches()) {
-                    return null;
-                }
-                //This string starts with numbers; see what they are
-                int gridZoneNumber = Integer.parseInt(mgrs.substring(0, matcher.start()));
-                if (0 >= gridZoneNumber || 60 < gridZoneNumber) {
-                    return null;
-                }
-            }
+        if ('A' == firstLetter || 'B' == firstLetter || 'Y' == firstLetter || 'Z' == firstLetter) {
+            //Polar; omit the leading digits
+            out.delete(start, start + leadingDigits);
+        } else if (0 == leadingDigits || 2 < leadingDigits || 0 >= zoneNumber || 60 < zoneNumber) {
+            out.setLength(start);
+            return false;
         }
-        
-        //Last thing: return null if there's an odd number of easting/northing digits
-        Matcher threeLetters = Pattern.compile("[A-Z]{3}").matcher(mgrs);
-        threeLetters.find();
-        if (threeLetters.end() < mgrs.length()) {
-            String eastingNorthing = mgrs.substring(threeLetters.end());
-            if (1 == eastingNorthing.length() % 2) {
-                return null;
+        return true;
+    }
+    
+    /**
+     * Converts many strings to best-guess valid MGRS strings, as convertToValidMgrs
+     * does, reusing one buffer for all of them.
+     * @param mgrs the MGRS strings.
+     * @param referenceMgrs a reference MGRS location for calculating a missing grid
+     *        zone identifier, or null. See convertToValidMgrs.
+     * @return the converted strings, in the same order as mgrs. An element is null
+     *         if the corresponding string is null or cannot be converted.
+     */
+    public static String[] convertAllToValidMgrs(String[] mgrs, String referenceMgrs) {
+        String[] valid = new String[mgrs.length];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mgrs.length; i++) {
+            sb.setLength(0);
+            if (appendValidMgrs(mgrs[i], referenceMgrs, sb)) {
+                valid[i] = sb.toString();
             }
         }
-        
-        return mgrs;
+        return valid;
     }
     
     /**
@@ -522,6 +628,21 @@ public class Utilities {
         return xmlStringWriter.toString();
     }
     
+    /**
+     * Converts a DOM Node, such as a single geomessage element, to a string without
+     * an XML declaration.
+     * @param node the DOM Node.
+     * @return the string representation.
+     * @throws TransformerException 
+     */
+    public static String nodeToString(Node node) throws TransformerException {
+        StringWriter xmlStringWriter = new StringWriter();
+        Transformer transformer = transformerFactory.newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.transform(new DOMSource(node), new StreamResult(xmlStringWriter));
+        return xmlStringWriter.toString();
+    }
+    
     /**
      * Calculates a list of UDP broadcast addresses for the current network interface(s).
      * Adapted from http://stackoverflow.com/questions/4887675/detecting-all-available-networks-broadcast-addresses-in-java .
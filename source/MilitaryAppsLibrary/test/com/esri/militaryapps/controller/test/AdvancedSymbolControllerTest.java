@@ -0,0 +1,582 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.AdvancedSymbolController;
+import com.esri.militaryapps.controller.LocationController;
+import com.esri.militaryapps.controller.MapController;
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.Location;
+import com.esri.militaryapps.model.LocationProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for viewport culling in the AdvancedSymbolController class.
+ * @see com.esri.militaryapps.controller.AdvancedSymbolController
+ */
+public class AdvancedSymbolControllerTest {
+
+    /**
+     * A 600 x 400 pixel WGS 1984 map at 0.1 degrees per pixel. Its projectPoint
+     * method halves the coordinates.
+     */
+    static class MapControllerImpl extends MapController {
+
+        private final AtomicInteger projectPointCalls = new AtomicInteger();
+        private double minX = 0;
+        private double minY = 0;
+        private boolean sized = true;
+
+        public MapControllerImpl() {
+            super(null, null, null);
+        }
+
+        public void panToCorner(double minX, double minY) {
+            this.minX = minX;
+            this.minY = minY;
+            fireExtentChanged();
+        }
+
+        public void setSized(boolean sized) {
+            this.sized = sized;
+            fireExtentChanged();
+        }
+
+        @Override
+        protected LocationController createLocationController(String builtInGpxPath,
+                LocationController.LocationMode locationMode, String gpxDeploymentPath) {
+            return null;
+        }
+
+        @Override
+        public void zoom(double factor) {
+        }
+
+        @Override
+        public void setRotation(double degrees) {
+        }
+
+        @Override
+        public double getRotation() {
+            return 0;
+        }
+
+        @Override
+        protected void _zoomToScale(double scale, double centerPointX, double centerPointY) {
+        }
+
+        @Override
+        public int getWidth() {
+            return sized ? 600 : 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 400;
+        }
+
+        @Override
+        public void panTo(double centerX, double centerY) {
+        }
+
+        @Override
+        public double[] toMapPoint(int screenX, int screenY) {
+            return new double[] { minX + screenX * 0.1, minY + (400 - screenY) * 0.1 };
+        }
+
+        @Override
+        public double[] toScreenPoint(double mapX, double mapY) {
+            return new double[] { (mapX - minX) * 10, 400 - (mapY - minY) * 10 };
+        }
+
+        @Override
+        public void setGridVisible(boolean visible) {
+        }
+
+        @Override
+        public boolean isGridVisible() {
+            return false;
+        }
+
+        @Override
+        public void setAutoPan(boolean autoPan) {
+        }
+
+        @Override
+        public boolean isAutoPan() {
+            return false;
+        }
+
+        @Override
+        public String pointToMgrs(double x, double y, int wkid) {
+            return "sdk";
+        }
+
+        @Override
+        public double[] projectPoint(double x, double y, int fromWkid, int toWkid) {
+            projectPointCalls.incrementAndGet();
+            return new double[] { x / 2, y / 2 };
+        }
+
+        @Override
+        public int getSpatialReferenceWkid() {
+            return 4326;
+        }
+
+        @Override
+        public void onLocationChanged(Location location) {
+        }
+
+        @Override
+        public void onStateChanged(LocationProvider.LocationProviderState state) {
+        }
+
+    }
+
+    /**
+     * Records the symbols drawn and removed.
+     */
+    static class AdvancedSymbolControllerImpl extends AdvancedSymbolController {
+
+        final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> removed = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> highlighted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> removedGraphics = Collections.synchronizedList(new ArrayList<Integer>());
+        private final AtomicInteger nextGraphicId = new AtomicInteger();
+
+        public AdvancedSymbolControllerImpl(MapController mapController) {
+            super(mapController);
+        }
+
+        @Override
+        public String[] getMessageTypesSupported() {
+            return new String[] { "position_report" };
+        }
+
+        @Override
+        public String[] getMessageLayerNames() {
+            return new String[] { "position_report" };
+        }
+
+        @Override
+        public String getMessageLayerName(String messageType) {
+            return messageType;
+        }
+
+        @Override
+        public void clearLayer(String layerName, boolean sendRemoveMessageForOwnMessages) {
+        }
+
+        @Override
+        public String getActionPropertyName() {
+            return Geomessage.ACTION_FIELD_NAME;
+        }
+
+        @Override
+        protected String translateColorString(String geomessageColorString) {
+            return geomessageColorString;
+        }
+
+        @Override
+        protected Integer displaySpotReport(double x, double y, int wkid, Integer graphicId, Geomessage geomessage) {
+            return null == graphicId ? nextGraphicId.incrementAndGet() : graphicId;
+        }
+
+        @Override
+        protected void removeSpotReportGraphic(int graphicId) {
+            removedGraphics.add(graphicId);
+        }
+
+        @Override
+        protected int processMessages(List<Geomessage> messages) {
+            batchSizes.add(messages.size());
+            return super.processMessages(messages);
+        }
+
+        @Override
+        protected boolean processMessage(Geomessage message) {
+            String id = String.valueOf(message.getId());
+            if (!inProgress.add(id)) {
+                overlaps.incrementAndGet();
+            }
+            processed.add(id + "@" + message.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+            inProgress.remove(id);
+            return true;
+        }
+
+        @Override
+        protected boolean processHighlightMessage(String geomessageId, String messageType, boolean highlight) {
+            if (highlight) {
+                highlighted.add(geomessageId);
+            } else {
+                highlighted.remove(geomessageId);
+            }
+            return true;
+        }
+
+        @Override
+        protected void processRemoveGeomessage(String geomessageId, String messageType) {
+            removed.add(geomessageId);
+        }
+
+        @Override
+        protected void toggleLabels() {
+        }
+
+    }
+
+    static Geomessage createMessage(String id, String action, String controlPoints) {
+        Geomessage message = new Geomessage();
+        message.setId(id);
+        message.setProperty(Geomessage.TYPE_FIELD_NAME, "position_report");
+        message.setProperty(Geomessage.ACTION_FIELD_NAME, action);
+        message.setProperty(Geomessage.WKID_FIELD_NAME, "4326");
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, controlPoints);
+        return message;
+    }
+
+    /**
+     * Test that updates outside the extent are deferred, keeping only the latest
+     * one, and drawn when the extent moves over them.
+     */
+    @Test
+    public void testDeferAndFlush() {
+        MapControllerImpl mapController = new MapControllerImpl();
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(mapController);
+        controller.setCullingMargin(0);
+
+        controller.handleGeomessage(createMessage("in", "update", "30,20"));
+        controller.handleGeomessage(createMessage("out", "update", "100,20"));
+        controller.handleGeomessage(createMessage("out", "update", "101,20"));
+        Assert.assertEquals(1, controller.processed.size());
+        Assert.assertEquals("in@30,20", controller.processed.get(0));
+        Assert.assertEquals(1, controller.getDeferredMessageCount());
+
+        //A margin of one half reaches x = 90 but not 101
+        controller.setCullingMargin(0.5);
+        Assert.assertEquals(1, controller.getDeferredMessageCount());
+
+        mapController.panToCorner(60, 0);
+        Assert.assertEquals(0, controller.getDeferredMessageCount());
+        Assert.assertEquals(2, controller.processed.size());
+        Assert.assertEquals("out@101,20", controller.processed.get(1));
+    }
+
+    /**
+     * Test that a symbol drawn inside the extent is drawn once more when it moves
+     * out, and that removals are never deferred.
+     */
+    @Test
+    public void testLeaveExtentAndRemove() {
+        MapControllerImpl mapController = new MapControllerImpl();
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(mapController);
+        controller.setCullingMargin(0);
+
+        controller.handleGeomessage(createMessage("a", "update", "30,20"));
+        controller.handleGeomessage(createMessage("a", "update", "-50,20"));
+        controller.handleGeomessage(createMessage("a", "update", "-60,20"));
+        Assert.assertEquals(2, controller.processed.size());
+        Assert.assertEquals("a@-50,20", controller.processed.get(1));
+        Assert.assertEquals(1, controller.getDeferredMessageCount());
+
+        controller.handleGeomessage(createMessage("a", "remove", "-60,20"));
+        Assert.assertEquals(0, controller.getDeferredMessageCount());
+        Assert.assertEquals(3, controller.processed.size());
+    }
+
+    /**
+     * Test that a symbol drawn before the map knew its extent is drawn once more
+     * when it moves out of the extent.
+     */
+    @Test
+    public void testLeaveExtentDrawnBeforeExtentKnown() {
+        MapControllerImpl mapController = new MapControllerImpl();
+        mapController.setSized(false);
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(mapController);
+        controller.setCullingMargin(0);
+
+        controller.handleGeomessage(createMessage("a", "update", "30,20"));
+        mapController.setSized(true);
+        controller.handleGeomessage(createMessage("a", "update", "-50,20"));
+        controller.handleGeomessage(createMessage("a", "update", "-60,20"));
+        Assert.assertEquals(2, controller.processed.size());
+        Assert.assertEquals("a@-50,20", controller.processed.get(1));
+        Assert.assertEquals(1, controller.getDeferredMessageCount());
+    }
+
+    /**
+     * Test that a symbol drawn while culling was off is drawn once more when it
+     * moves out of the extent after culling is enabled again.
+     */
+    @Test
+    public void testReenableCulling() {
+        MapControllerImpl mapController = new MapControllerImpl();
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(mapController);
+        controller.setCullingMargin(0);
+        controller.setCullingEnabled(false);
+        controller.handleGeomessage(createMessage("a", "update", "30,20"));
+        controller.handleGeomessage(createMessage("a", "update", "35,20"));
+        Assert.assertEquals(2, controller.processed.size());
+
+        controller.setCullingEnabled(true);
+        controller.handleGeomessage(createMessage("a", "update", "-50,20"));
+        controller.handleGeomessage(createMessage("a", "update", "-60,20"));
+        Assert.assertEquals(3, controller.processed.size());
+        Assert.assertEquals("a@-50,20", controller.processed.get(2));
+        Assert.assertEquals(1, controller.getDeferredMessageCount());
+    }
+
+    /**
+     * Test that disabling culling draws every deferred update.
+     */
+    @Test
+    public void testDisableCulling() {
+        MapControllerImpl mapController = new MapControllerImpl();
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(mapController);
+        controller.handleGeomessage(createMessage("a", "update", "-170,-80"));
+        controller.handleGeomessage(createMessage("b", "update", "170,80"));
+        Assert.assertEquals(2, controller.getDeferredMessageCount());
+        Assert.assertTrue(controller.processed.isEmpty());
+
+        controller.setCullingEnabled(false);
+        Assert.assertEquals(0, controller.getDeferredMessageCount());
+        Assert.assertEquals(2, controller.processed.size());
+        controller.handleGeomessage(createMessage("c", "update", "170,80"));
+        Assert.assertEquals(3, controller.processed.size());
+    }
+
+    /**
+     * Test that messages handled on many threads are processed one at a time and
+     * in order for each symbol, and that highlighting ends in the right state.
+     */
+    @Test
+    public void testConcurrentHandling() throws InterruptedException {
+        final AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(null);
+        final int threadCount = 8;
+        final int idsPerThread = 10;
+        final int updatesPerId = 200;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < updatesPerId; i++) {
+                        for (int j = 0; j < idsPerThread; j++) {
+                            //Each thread owns its own IDs and also updates one shared ID
+                            Geomessage message = createMessage("u" + threadIndex + "-" + j, "update", i + ",0");
+                            message.setProperty("status911", 0 == (i + j) % 3 ? "1" : "0");
+                            controller.handleGeomessage(message);
+                        }
+                        controller.handleGeomessage(createMessage("shared", "update", i + "," + threadIndex));
+                    }
+                }
+
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(0, controller.overlaps.get());
+        Assert.assertEquals(threadCount * updatesPerId * (idsPerThread + 1), controller.processed.size());
+        HashMap<String, Integer> lastSequence = new HashMap<String, Integer>();
+        for (String entry : controller.processed) {
+            String id = entry.substring(0, entry.indexOf('@'));
+            if (!"shared".equals(id)) {
+                int sequence = Integer.parseInt(entry.substring(entry.indexOf('@') + 1, entry.indexOf(',')));
+                Integer last = lastSequence.put(id, sequence);
+                Assert.assertTrue(null == last || last < sequence);
+            }
+        }
+        for (int t = 0; t < threadCount; t++) {
+            for (int j = 0; j < idsPerThread; j++) {
+                boolean lastWas911 = 0 == (updatesPerId - 1 + j) % 3;
+                Assert.assertEquals(lastWas911, controller.highlighted.contains("u" + t + "-" + j));
+            }
+        }
+    }
+
+    /**
+     * Test that threads handling messages for the same symbol are served in the
+     * order in which they started waiting, even when the thread that just
+     * finished handles another message right away.
+     */
+    @Test
+    public void testOrderForSameId() throws InterruptedException {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(null) {
+
+            @Override
+            protected boolean processMessage(Geomessage message) {
+                if ("0,0".equals(message.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME))) {
+                    entered.countDown();
+                    try {
+                        gate.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.processMessage(message);
+            }
+
+        };
+        final int waiterCount = 3;
+        Thread first = new Thread() {
+
+            @Override
+            public void run() {
+                controller.handleGeomessage(createMessage("s", "update", "0,0"));
+                controller.handleGeomessage(createMessage("s", "update", (waiterCount + 1) + ",0"));
+            }
+
+        };
+        first.start();
+        entered.await();
+        Thread[] waiters = new Thread[waiterCount];
+        for (int i = 0; i < waiterCount; i++) {
+            final int value = i + 1;
+            waiters[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    controller.handleGeomessage(createMessage("s", "update", value + ",0"));
+                }
+
+            };
+            waiters[i].start();
+            while (Thread.State.WAITING != waiters[i].getState()) {
+                Thread.sleep(1);
+            }
+        }
+        gate.countDown();
+        first.join();
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+
+        Assert.assertEquals(waiterCount + 2, controller.processed.size());
+        for (int i = 0; i < controller.processed.size(); i++) {
+            Assert.assertEquals("s@" + i + ",0", controller.processed.get(i));
+        }
+    }
+
+    /**
+     * Test that handleGeomessages passes runs of distinct symbols to the batch
+     * methods together and keeps each symbol's messages in order.
+     */
+    @Test
+    public void testBatches() {
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(null);
+        ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
+        messages.add(createMessage("a", "update", "1,1"));
+        messages.add(createMessage("b", "update", "2,2"));
+        messages.add(createMessage("a", "update", "3,3"));
+        messages.add(createMessage("c", "update", "4,4"));
+        messages.add(createMessage(null, Geomessage.ACTION_REMOVE_ALL, null));
+        messages.add(createMessage("d", "update", "5,5"));
+        controller.handleGeomessages(messages);
+        Assert.assertEquals(Arrays.asList(2, 2, 1, 1), controller.batchSizes);
+        Assert.assertEquals(Arrays.asList("a@1,1", "b@2,2", "a@3,3", "c@4,4", "null@null", "d@5,5"),
+                controller.processed);
+
+        //A spot report displayed and removed in one batch
+        messages.clear();
+        Geomessage spotReport = createMessage("s", "update", "6,6");
+        spotReport.setProperty(Geomessage.TYPE_FIELD_NAME, "spot_report");
+        messages.add(spotReport);
+        Geomessage spotReportRemove = createMessage("s", "remove", "6,6");
+        spotReportRemove.setProperty(Geomessage.TYPE_FIELD_NAME, "spot_report");
+        messages.add(spotReportRemove);
+        controller.handleGeomessages(messages);
+        Assert.assertEquals(Arrays.asList(1), controller.removedGraphics);
+    }
+
+    /**
+     * Test the default projectPoints implementation and that label points are
+     * projected for a whole batch.
+     */
+    @Test
+    public void testProjectPoints() {
+        MapControllerImpl mapController = new MapControllerImpl();
+        double[] xy = { 2, 4, 6, 8, 10, 12 };
+        mapController.projectPoints(xy, 4326, 4326);
+        Assert.assertArrayEquals(new double[] { 2, 4, 6, 8, 10, 12 }, xy, 0);
+        Assert.assertEquals(0, mapController.projectPointCalls.get());
+        //Not supported by ProjectionEngine, so the SDK projects it
+        mapController.projectPoints(xy, 2, 1, 2229, 4326);
+        Assert.assertArrayEquals(new double[] { 2, 4, 3, 4, 10, 12 }, xy, 0);
+        Assert.assertEquals(1, mapController.projectPointCalls.get());
+        mapController.projectPoints(xy, 3857, 4326);
+        Assert.assertEquals(1, mapController.projectPointCalls.get());
+        Assert.assertEquals(Math.toDegrees(2 / 6378137.0), xy[0], 1e-12);
+
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl(mapController);
+        controller.setCullingEnabled(false);
+        ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
+        String[] wkids = { "2229", "4326", "2229", null, "2230" };
+        for (int i = 0; i < wkids.length; i++) {
+            Geomessage message = createMessage("m" + i, "update", (10 * i) + "," + (20 * i));
+            message.setProperty(Geomessage.WKID_FIELD_NAME, wkids[i]);
+            message.setProperty("datetimevalid", "2015-01-01 00:00:00");
+            messages.add(message);
+        }
+        controller.handleGeomessages(messages);
+        Assert.assertEquals(4, mapController.projectPointCalls.get());
+        for (int i = 0; i < wkids.length; i++) {
+            double factor = null == wkids[i] || "4326".equals(wkids[i]) ? 1 : 0.5;
+            Assert.assertEquals(10 * i * factor, (Double) messages.get(i).getProperty("x"), 0);
+            Assert.assertEquals(20 * i * factor, (Double) messages.get(i).getProperty("y"), 0);
+        }
+    }
+
+    /**
+     * Test that pointsToMgrs calls the SDK by default and, when told to, converts
+     * supported spatial references without the SDK.
+     */
+    @Test
+    public void testPointsToMgrs() {
+        MapControllerImpl mapController = new MapControllerImpl();
+        Assert.assertArrayEquals(new String[] { "sdk", "sdk" },
+                mapController.pointsToMgrs(new double[] { 0, 0, 0, 95 }, 4326));
+
+        mapController.setUseMgrsConverter(true);
+        Assert.assertArrayEquals(new String[] { "31NAA6602100000", "sdk" },
+                mapController.pointsToMgrs(new double[] { 0, 0, 0, 95 }, 4326));
+        Assert.assertArrayEquals(new String[] { "31NAA6602100000" },
+                mapController.pointsToMgrs(new double[] { 166021.5, 0.5 }, 32631));
+        Assert.assertArrayEquals(new String[] { "sdk" }, mapController.pointsToMgrs(new double[] { 1, 2 }, 2229));
+    }
+
+}
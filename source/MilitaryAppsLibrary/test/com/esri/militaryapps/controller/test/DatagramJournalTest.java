@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.DatagramJournal;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the DatagramJournal class.
+ * @see com.esri.militaryapps.controller.DatagramJournal
+ */
+public class DatagramJournalTest {
+
+    private static final int SEGMENT_SIZE = 1 << 17;
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] createDatagram(int i) {
+        byte[] datagram = new byte[500];
+        Arrays.fill(datagram, (byte) i);
+        datagram[0] = (byte) (i >> 8);
+        return datagram;
+    }
+
+    private static void assertRecord(DatagramJournal.Cursor cursor, int i) {
+        Assert.assertEquals(1000L + i * 10, cursor.getReceiveTime());
+        Assert.assertEquals(500, cursor.getLength());
+        Assert.assertEquals((byte) (i >> 8), cursor.getData()[cursor.getOffset()]);
+        Assert.assertEquals((byte) i, cursor.getData()[cursor.getOffset() + 499]);
+        Assert.assertEquals(5000 + i % 3, ((InetSocketAddress) cursor.getSender()).getPort());
+    }
+
+    /**
+     * Test appending across segments, reading in order, seeking, and reopening
+     * with and without index files.
+     */
+    @Test
+    public void testAppendAndSeek() throws IOException {
+        File directory = Files.createTempDirectory("journal").toFile();
+        try {
+            DatagramJournal journal = new DatagramJournal(directory, SEGMENT_SIZE);
+            InetAddress address = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+            int count = 3000;
+            for (int i = 0; i < count; i++) {
+                byte[] datagram = createDatagram(i);
+                journal.append(1000L + i * 10, new InetSocketAddress(address, 5000 + i % 3), datagram, 0, datagram.length);
+            }
+            Assert.assertTrue(journal.getSegmentCount() > 5);
+            Assert.assertEquals(1000L, journal.getFirstTime());
+
+            DatagramJournal.Cursor cursor = journal.openCursor(Long.MIN_VALUE);
+            for (int i = 0; i < count; i++) {
+                Assert.assertTrue(cursor.next());
+                assertRecord(cursor, i);
+            }
+            Assert.assertFalse(cursor.next());
+            //A cursor at the end sees records appended later
+            byte[] datagram = createDatagram(count);
+            journal.append(1000L + count * 10, new InetSocketAddress(address, 5000 + count % 3), datagram, 0, datagram.length);
+            Assert.assertTrue(cursor.next());
+            assertRecord(cursor, count);
+            journal.close();
+
+            journal = new DatagramJournal(directory, SEGMENT_SIZE);
+            cursor = journal.openCursor(1000L + 1234 * 10 - 5);
+            Assert.assertTrue(cursor.next());
+            assertRecord(cursor, 1234);
+
+            //Without index files, the indexes are rebuilt from the segments
+            for (File file : directory.listFiles()) {
+                if (file.getName().endsWith(".index")) {
+                    file.delete();
+                }
+            }
+            journal = new DatagramJournal(directory, SEGMENT_SIZE);
+            cursor = journal.openCursor(1000L + 2999 * 10);
+            Assert.assertTrue(cursor.next());
+            assertRecord(cursor, 2999);
+            Assert.assertTrue(cursor.next());
+            assertRecord(cursor, 3000);
+            Assert.assertFalse(cursor.next());
+            journal.close();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+}
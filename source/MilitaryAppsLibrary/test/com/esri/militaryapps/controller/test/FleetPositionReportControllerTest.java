@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.FleetPositionReportController;
+import com.esri.militaryapps.controller.MessageController;
+import com.esri.militaryapps.controller.ReportScheduler;
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageDeltaEncoder;
+import com.esri.militaryapps.model.GeomessagesReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the FleetPositionReportController class.
+ * @see com.esri.militaryapps.controller.FleetPositionReportController
+ */
+public class FleetPositionReportControllerTest {
+
+    private static class RecordingMessageController extends MessageController {
+
+        private final ArrayList<byte[]> sent = new ArrayList<byte[]>();
+        private int urgentCount = 0;
+
+        RecordingMessageController() {
+            super(45678, "fleet-test");
+        }
+
+        @Override
+        public synchronized void sendMessage(byte[] bytes, boolean urgent) {
+            sent.add(bytes);
+            if (urgent) {
+                urgentCount++;
+            }
+        }
+
+    }
+
+    private static List<Geomessage> parse(List<byte[]> datagrams) throws Exception {
+        GeomessagesReader reader = new GeomessagesReader();
+        ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
+        for (byte[] datagram : datagrams) {
+            messages.addAll(reader.parseMessages(new String(datagram)));
+        }
+        return messages;
+    }
+
+    /**
+     * Test that due reports are packed together in priority order, with 911
+     * reports first and in their own urgent datagram.
+     */
+    @Test
+    public void testSendDueReports() throws Exception {
+        RecordingMessageController messageController = new RecordingMessageController();
+        ReportScheduler scheduler = new ReportScheduler(1);
+        scheduler.setPhaseMode(ReportScheduler.PhaseMode.NONE);
+        FleetPositionReportController controller = new FleetPositionReportController(messageController, scheduler);
+        for (int i = 0; i < 40; i++) {
+            controller.addUnit("unit-" + i, "user" + i, "HMMWV", "SFGPEVCAH------", 1000, i % 4);
+            controller.setLocation("unit-" + i, -117.0 + i * 0.001, 34.0, 90, 1000L);
+        }
+        controller.setStatus911("unit-5", true);
+        Assert.assertEquals(40, controller.getUnitCount());
+
+        Assert.assertEquals(40, controller.sendDueReports(2000L));
+        Assert.assertEquals(1, messageController.urgentCount);
+        Assert.assertTrue(2 <= messageController.sent.size());
+        Assert.assertTrue(40 > messageController.sent.size());
+        List<Geomessage> messages = parse(messageController.sent);
+        Assert.assertEquals(40, messages.size());
+        Assert.assertEquals("unit-5", messages.get(0).getId());
+        Assert.assertEquals("unit-3", messages.get(1).getId());
+        Assert.assertEquals("unit-7", messages.get(2).getId());
+
+        //Nothing is due again until each unit's period has passed
+        Assert.assertEquals(0, controller.sendDueReports(2500L));
+        controller.removeUnit("unit-0");
+        Assert.assertEquals(39, controller.sendDueReports(3000L));
+        scheduler.shutdown();
+    }
+
+    /**
+     * Test that the first reports of many units are spread over their period
+     * instead of all going out on the first tick.
+     */
+    @Test
+    public void testFirstReportPhase() throws Exception {
+        RecordingMessageController messageController = new RecordingMessageController();
+        ReportScheduler scheduler = new ReportScheduler(1);
+        scheduler.setPhaseMode(ReportScheduler.PhaseMode.EVEN);
+        FleetPositionReportController controller = new FleetPositionReportController(messageController, scheduler);
+        for (int i = 0; i < 40; i++) {
+            controller.addUnit("unit-" + i, "user" + i, "HMMWV", "SFGPEVCAH------", 1000, 0);
+            controller.setLocation("unit-" + i, -117.0 + i * 0.001, 34.0, 90, 1000L);
+        }
+        int maxPerTick = 0;
+        int total = 0;
+        for (long now = 2000L; now < 3000L; now += 111L) {
+            int sent = controller.sendDueReports(now);
+            maxPerTick = Math.max(maxPerTick, sent);
+            total += sent;
+        }
+        Assert.assertEquals(40, total);
+        Assert.assertTrue("Too many reports in one tick: " + maxPerTick, 8 >= maxPerTick);
+        HashSet<String> ids = new HashSet<String>();
+        for (Geomessage message : parse(messageController.sent)) {
+            ids.add(message.getId());
+        }
+        Assert.assertEquals(40, ids.size());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Test that reports on the emergency lane are keyframes even when deltas are on.
+     */
+    @Test
+    public void testStatus911Keyframes() throws Exception {
+        RecordingMessageController messageController = new RecordingMessageController();
+        ReportScheduler scheduler = new ReportScheduler(1);
+        scheduler.setPhaseMode(ReportScheduler.PhaseMode.NONE);
+        FleetPositionReportController controller = new FleetPositionReportController(messageController, scheduler);
+        controller.setKeyframeInterval(10);
+        controller.addUnit("unit-0", "user0", "HMMWV", "SFGPEVCAH------", 1000, 0);
+        controller.setLocation("unit-0", -117.0, 34.0, 90, 1000L);
+        controller.sendDueReports(2000L);
+        controller.sendDueReports(3000L);
+        controller.setStatus911("unit-0", true);
+        controller.sendDueReports(3100L);
+        controller.sendDueReports(4100L);
+        controller.setStatus911("unit-0", false);
+        controller.sendDueReports(4200L);
+        controller.sendDueReports(5200L);
+
+        List<Geomessage> messages = parse(messageController.sent);
+        Assert.assertEquals(6, messages.size());
+        Assert.assertNotNull(messages.get(1).getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+        for (int i = 2; i < 5; i++) {
+            Assert.assertNotNull(messages.get(i).getProperty(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME));
+            Assert.assertNull(messages.get(i).getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+        }
+        Assert.assertEquals(3, messageController.urgentCount);
+        Assert.assertNotNull(messages.get(5).getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+        scheduler.shutdown();
+    }
+
+    /**
+     * Test that a 911 change made while a tick is still sending is reported after
+     * that tick's reports, so a stale routine report cannot follow the emergency one.
+     */
+    @Test
+    public void testStatus911DuringTick() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingMessageController messageController = new RecordingMessageController() {
+
+            @Override
+            public void sendMessage(byte[] bytes, boolean urgent) {
+                if (!urgent && 0 < sending.getCount()) {
+                    //Hold the tick's routine report until the 911 change has been made
+                    sending.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.sendMessage(bytes, urgent);
+            }
+
+        };
+        ReportScheduler scheduler = new ReportScheduler(1);
+        scheduler.setPhaseMode(ReportScheduler.PhaseMode.NONE);
+        final FleetPositionReportController controller = new FleetPositionReportController(messageController, scheduler);
+        controller.addUnit("unit-0", "user0", "HMMWV", "SFGPEVCAH------", 1000, 0);
+        controller.setLocation("unit-0", -117.0, 34.0, 90, 1000L);
+
+        Thread tick = new Thread() {
+
+            @Override
+            public void run() {
+                controller.sendDueReports(2000L);
+            }
+
+        };
+        tick.start();
+        sending.await();
+        controller.setStatus911("unit-0", true);
+        Thread urgent = new Thread() {
+
+            @Override
+            public void run() {
+                controller.sendDueReports(2001L);
+            }
+
+        };
+        urgent.start();
+        while (Thread.State.BLOCKED != urgent.getState() && Thread.State.TERMINATED != urgent.getState()) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        tick.join();
+        urgent.join();
+
+        List<Geomessage> messages = parse(messageController.sent);
+        Assert.assertEquals(2, messages.size());
+        Assert.assertEquals("0", messages.get(0).getProperty("status911"));
+        Assert.assertEquals("1", messages.get(1).getProperty("status911"));
+        Assert.assertEquals(1, messageController.urgentCount);
+        scheduler.shutdown();
+    }
+
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.DatagramJournal;
+import com.esri.militaryapps.controller.JournalReplayer;
+import com.esri.militaryapps.controller.MessageController;
+import com.esri.militaryapps.controller.MessageControllerListener;
+import com.esri.militaryapps.model.Geomessage;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the JournalReplayer class.
+ * @see com.esri.militaryapps.controller.JournalReplayer
+ */
+public class JournalReplayerTest {
+
+    private static final int TEST_PORT = 59851;
+
+    private static byte[] createDatagram(int i) {
+        return ("<geomessages><geomessage v=\"1.0\"><_type>position_report</_type>"
+                + "<_action>UPDATE</_action><_id>unit" + i + "</_id>"
+                + "<_control_points>70.45,34.43</_control_points>"
+                + "<uniquedesignation>unit" + i + "</uniquedesignation></geomessage></geomessages>").getBytes();
+    }
+
+    /**
+     * Test replaying a range as fast as possible and at a multiple of the recorded pace.
+     */
+    @Test
+    public void testReplay() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("journal").toFile();
+        try {
+            DatagramJournal journal = new DatagramJournal(directory);
+            //20 datagrams over two seconds
+            for (int i = 0; i < 20; i++) {
+                byte[] datagram = createDatagram(i);
+                journal.append(100000L + i * 100, null, datagram, 0, datagram.length);
+            }
+            journal.close();
+
+            MessageController controller = new MessageController(TEST_PORT, "replayer");
+            final AtomicInteger received = new AtomicInteger();
+            final CountDownLatch allReceived = new CountDownLatch(20);
+            controller.addListener(new MessageControllerListener() {
+
+                @Override
+                public void geomessageReceived(Geomessage geomessage) {
+                    received.incrementAndGet();
+                    allReceived.countDown();
+                }
+
+                @Override
+                public void datagramReceived(String contents) {
+
+                }
+
+            });
+
+            JournalReplayer replayer = new JournalReplayer(journal, controller);
+            Assert.assertEquals(10, replayer.replay(100500L, 101500L));
+
+            replayer.setSpeed(10);
+            replayer.seek(101000L);
+            long start = System.currentTimeMillis();
+            replayer.start();
+            Assert.assertTrue(allReceived.await(5, TimeUnit.SECONDS));
+            long elapsed = System.currentTimeMillis() - start;
+            //900 recorded milliseconds at 10x
+            Assert.assertTrue("Replayed in " + elapsed + " ms", 80 <= elapsed);
+            Assert.assertEquals(101900L, replayer.getPosition());
+            Thread.sleep(100);
+            Assert.assertFalse(replayer.isRunning());
+            Assert.assertEquals(20, received.get());
+        } finally {
+            DatagramJournalTest.deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Test that stopping and starting resumes after the last datagram replayed,
+     * even when later datagrams were received in the same millisecond.
+     */
+    @Test
+    public void testResumeWithinSameTime() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("journal").toFile();
+        try {
+            DatagramJournal journal = new DatagramJournal(directory);
+            for (int i = 0; i < 10; i++) {
+                byte[] datagram = createDatagram(i);
+                journal.append(100000L + (i / 5) * 1000, null, datagram, 0, datagram.length);
+            }
+            journal.close();
+
+            final List<String> replayed = new ArrayList<String>();
+            final JournalReplayer[] replayer = new JournalReplayer[1];
+            MessageController controller = new MessageController(TEST_PORT, "replayer") {
+
+                @Override
+                public void processDatagram(SocketAddress sender, byte[] data, int offset, int length,
+                        long receiveTime) {
+                    synchronized (replayed) {
+                        replayed.add(new String(data, offset, length));
+                        if (3 == replayed.size()) {
+                            //Stop in the middle of the datagrams received at 100000
+                            replayer[0].stop();
+                        }
+                        replayed.notifyAll();
+                    }
+                }
+
+            };
+            replayer[0] = new JournalReplayer(journal, controller);
+            replayer[0].setSpeed(JournalReplayer.MAX_SPEED);
+            replayer[0].start();
+            synchronized (replayed) {
+                while (3 > replayed.size()) {
+                    replayed.wait(5000);
+                }
+            }
+            Thread.sleep(100);
+            Assert.assertEquals(3, replayed.size());
+            Assert.assertEquals(100000L, replayer[0].getPosition());
+
+            replayer[0].start();
+            synchronized (replayed) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (10 > replayed.size() && System.currentTimeMillis() < deadline) {
+                    replayed.wait(100);
+                }
+            }
+            Assert.assertEquals(10, replayed.size());
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(new String(createDatagram(i)), replayed.get(i));
+            }
+        } finally {
+            DatagramJournalTest.deleteDirectory(directory);
+        }
+    }
+
+}
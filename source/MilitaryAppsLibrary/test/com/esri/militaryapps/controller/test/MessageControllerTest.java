@@ -20,7 +20,13 @@ import com.esri.militaryapps.controller.MessageControllerListener;
 import com.esri.militaryapps.model.Geomessage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.xml.parsers.ParserConfigurationException;
 import org.junit.After;
 import org.junit.Before;
@@ -130,4 +136,128 @@ public class MessageControllerTest {
         Assert.assertEquals("3A2-002", result.geomessages.get("{48f54ca2-ae19-4de0-9fda-f8dd9b17adac}").getProperty("uniquedesignation"));
     }
     
-}
\ No newline at end of file
+
+    private static byte[] createPositionReport(String id, int sequence, boolean status911) {
+        return ("<geomessages><geomessage v=\"1.0\">"
+                + "<_type>position_report</_type><_action>UPDATE</_action>"
+                + "<_id>" + id + "</_id><_wkid>4326</_wkid><sic>SFGPEVAL-------</sic>"
+                + "<_control_points>70.45,34.43</_control_points>"
+                + "<uniquedesignation>other-" + id + "</uniquedesignation>"
+                + "<sequence>" + sequence + "</sequence>"
+                + "<status911>" + (status911 ? "1" : "0") + "</status911>"
+                + "</geomessage></geomessages>").getBytes();
+    }
+
+    /**
+     * Test that messages for one ID reach each listener in the order received,
+     * even when emergency and routine messages for that ID are mixed.
+     */
+    @Test
+    public void testDispatchOrderPerId() throws Exception {
+        System.out.println("dispatchOrderPerId");
+        MessageController controller = new MessageController(TEST_PORT_2, "dispatch-test");
+        final int idCount = 4;
+        final int messagesPerId = 200;
+        final CountDownLatch latch = new CountDownLatch(idCount * messagesPerId);
+        final HashMap<String, List<Integer>> sequences = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < idCount; i++) {
+            sequences.put("unit-" + i, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        controller.addListener(new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                sequences.get(geomessage.getId()).add(
+                        Integer.parseInt(geomessage.getProperty("sequence").toString()));
+                latch.countDown();
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+
+            }
+
+        });
+        InetSocketAddress sender = new InetSocketAddress("localhost", TEST_PORT_2);
+        for (int sequence = 0; sequence < messagesPerId; sequence++) {
+            for (int i = 0; i < idCount; i++) {
+                //Unit 0 alternates between emergency and routine reports
+                byte[] datagram = createPositionReport("unit-" + i, sequence, 0 == i && 1 == sequence % 2);
+                controller.processDatagram(sender, datagram, 0, datagram.length, System.currentTimeMillis());
+            }
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < idCount; i++) {
+            List<Integer> received = sequences.get("unit-" + i);
+            Assert.assertEquals(messagesPerId, received.size());
+            for (int sequence = 0; sequence < messagesPerId; sequence++) {
+                Assert.assertEquals("Out of order for unit-" + i, sequence, (int) received.get(sequence));
+            }
+        }
+    }
+
+    /**
+     * Test that a removeall reaches each listener after every earlier message of
+     * its type and before every later one, even though it has no ID.
+     */
+    @Test
+    public void testRemoveAllOrder() throws Exception {
+        System.out.println("removeAllOrder");
+        MessageController controller = new MessageController(TEST_PORT_2, "removeall-test");
+        final int idCount = 4;
+        final int messagesPerId = 100;
+        final CountDownLatch latch = new CountDownLatch(idCount * messagesPerId * 2 + 1);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        controller.addListener(new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                if (null == geomessage.getId()) {
+                    received.add(-1);
+                } else {
+                    int sequence = Integer.parseInt(geomessage.getProperty("sequence").toString());
+                    if (sequence < messagesPerId) {
+                        //Keep the earlier messages waiting in their lanes
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    received.add(sequence);
+                }
+                latch.countDown();
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+
+            }
+
+        });
+        InetSocketAddress sender = new InetSocketAddress("localhost", TEST_PORT_2);
+        for (int sequence = 0; sequence < messagesPerId * 2; sequence++) {
+            if (messagesPerId == sequence) {
+                byte[] datagram = ("<geomessages><geomessage v=\"1.0\">"
+                        + "<_type>position_report</_type><_action>removeall</_action>"
+                        + "</geomessage></geomessages>").getBytes();
+                controller.processDatagram(sender, datagram, 0, datagram.length, System.currentTimeMillis());
+            }
+            for (int i = 0; i < idCount; i++) {
+                byte[] datagram = createPositionReport("unit-" + i, sequence, false);
+                controller.processDatagram(sender, datagram, 0, datagram.length, System.currentTimeMillis());
+            }
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        int removeAllIndex = received.indexOf(-1);
+        Assert.assertEquals(idCount * messagesPerId, removeAllIndex);
+        for (int i = 0; i < received.size(); i++) {
+            if (i < removeAllIndex) {
+                Assert.assertTrue(received.get(i) < messagesPerId);
+            } else if (i > removeAllIndex) {
+                Assert.assertTrue(received.get(i) >= messagesPerId);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.OffHeapTrackStore;
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessagesReader;
+import java.io.File;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the OffHeapTrackStore class.
+ * @see com.esri.militaryapps.controller.OffHeapTrackStore
+ */
+public class OffHeapTrackStoreTest {
+
+    private static Geomessage createMessage(String id, int i) {
+        Geomessage message = new Geomessage();
+        message.setId(id);
+        message.setProperty(Geomessage.TYPE_FIELD_NAME, 0 == i % 2 ? "trackrep" : "chemlight");
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, (i * 0.001) + "," + (-i * 0.002));
+        message.setProperty("direction", Integer.toString(i % 360));
+        message.setProperty("uniquedesignation", "Unit " + i);
+        return message;
+    }
+
+    /**
+     * Test that tracks come back with exactly the properties that were put.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Geomessage> messages = new GeomessagesReader().parseMessages(
+                new File(getClass().getResource("/geomessages.xml").toURI()));
+        OffHeapTrackStore store = new OffHeapTrackStore(16);
+        for (Geomessage message : messages) {
+            store.put(message);
+        }
+        for (Geomessage message : messages) {
+            Geomessage stored = store.get(message.getId());
+            Assert.assertEquals(message.getId(), stored.getId());
+            Assert.assertEquals(message.getProperties(), stored.getProperties());
+        }
+
+        Geomessage odd = new Geomessage();
+        odd.setId("odd \u00e9");
+        odd.setProperty("direction", "N");
+        odd.setProperty("speed", "12.50");
+        odd.setProperty("quantity", "12345678901234567890");
+        odd.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, "1,2;3,4");
+        odd.setProperty("datetimevalid", "yesterday");
+        odd.setProperty("remarks", null);
+        odd.setProperty("", "empty name");
+        store.put(odd);
+        Assert.assertEquals(odd.getProperties(), store.get("odd \u00e9").getProperties());
+        Assert.assertFalse(store.getControlPoint("odd \u00e9", new double[2]));
+    }
+
+    /**
+     * Test many puts, updates, and removals through index and arena growth.
+     */
+    @Test
+    public void testManyTracks() {
+        OffHeapTrackStore store = new OffHeapTrackStore(16);
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            Assert.assertTrue(store.put(createMessage("id" + i, i)));
+        }
+        Assert.assertEquals(count, store.size());
+        //Updates with longer text move to larger arena blocks
+        for (int i = 0; i < count; i += 3) {
+            Geomessage message = createMessage("id" + i, i);
+            message.setProperty("remarks", "A much longer remark that no longer fits in the old block " + i);
+            Assert.assertFalse(store.put(message));
+        }
+        for (int i = 0; i < count; i += 5) {
+            Assert.assertTrue(store.remove("id" + i));
+        }
+        Assert.assertFalse(store.remove("id0"));
+        Assert.assertEquals(count - count / 5, store.size());
+
+        double[] xy = new double[2];
+        for (int i = 0; i < count; i++) {
+            String id = "id" + i;
+            if (0 == i % 5) {
+                Assert.assertNull(store.get(id));
+                continue;
+            }
+            Geomessage stored = store.get(id);
+            Assert.assertEquals("Unit " + i, stored.getProperty("uniquedesignation"));
+            Assert.assertEquals(Integer.toString(i % 360), stored.getProperty("direction"));
+            Assert.assertEquals(0 == i % 3, null != stored.getProperty("remarks"));
+            Assert.assertTrue(store.getControlPoint(id, xy));
+            Assert.assertEquals(i * 0.001, xy[0], 0);
+        }
+
+        int chemLights = store.size() - (count / 2 - count / 10);
+        Assert.assertEquals(chemLights, store.removeAll("chemlight"));
+        Assert.assertEquals(count / 2 - count / 10, store.size());
+        Assert.assertTrue(store.contains("id2"));
+        Assert.assertFalse(store.contains("id1"));
+        store.clear();
+        Assert.assertEquals(0, store.size());
+        Assert.assertNull(store.get("id2"));
+    }
+
+}
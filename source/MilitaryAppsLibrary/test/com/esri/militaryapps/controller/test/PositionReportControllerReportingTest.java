@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.LocationController;
+import com.esri.militaryapps.controller.MessageController;
+import com.esri.militaryapps.controller.PositionReportController;
+import com.esri.militaryapps.controller.ReportScheduler;
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageDeltaEncoder;
+import com.esri.militaryapps.model.GeomessagesReader;
+import com.esri.militaryapps.model.Location;
+import com.esri.militaryapps.model.LocationProvider;
+import com.esri.militaryapps.model.LocationSimulator;
+import com.esri.militaryapps.util.Utilities;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * A test for when PositionReportController sends reports. The test runs the
+ * controller's report task itself instead of waiting for the scheduler.
+ * @see com.esri.militaryapps.controller.PositionReportController
+ */
+public class PositionReportControllerReportingTest {
+
+    private static final String UNIQUE_ID = "unit-1";
+
+    /**
+     * Keeps the report task for the test to run, and runs emergency tasks right away.
+     */
+    private static class ManualScheduler extends ReportScheduler {
+
+        private Runnable reportTask = null;
+
+        ManualScheduler() {
+            super(1);
+            setPhaseMode(PhaseMode.NONE);
+            setJitter(0);
+        }
+
+        @Override
+        public ScheduledReport scheduleReport(String key, Runnable task, long period) {
+            reportTask = task;
+            //Schedule a task that does nothing, so that the controller has something to cancel
+            return super.scheduleReport(key, new Runnable() {
+
+                @Override
+                public void run() {
+
+                }
+
+            }, 3600000);
+        }
+
+        @Override
+        public void executeUrgent(Runnable task) {
+            task.run();
+        }
+
+        void runReport() {
+            reportTask.run();
+        }
+
+    }
+
+    private static class StubLocationController extends LocationController {
+
+        StubLocationController() throws Exception {
+            super(LocationMode.LOCATION_SERVICE);
+        }
+
+        @Override
+        protected LocationProvider createLocationServiceProvider() {
+            return null;
+        }
+
+        @Override
+        protected LocationSimulator createLocationSimulator(InputStream gpxInputStream) {
+            return null;
+        }
+
+    }
+
+    private static class RecordingMessageController extends MessageController {
+
+        private final ArrayList<String> sent = new ArrayList<String>();
+        private final ArrayList<Boolean> urgent = new ArrayList<Boolean>();
+
+        RecordingMessageController() {
+            super(45679, "report-test");
+        }
+
+        @Override
+        public synchronized void sendMessage(Document doc, boolean urgent) {
+            try {
+                sent.add(Utilities.documentToString(doc));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            this.urgent.add(urgent);
+        }
+
+        synchronized Geomessage getMessage(int index) throws Exception {
+            return new GeomessagesReader().parseMessages(sent.get(index)).get(0);
+        }
+
+    }
+
+    private ManualScheduler scheduler;
+    private RecordingMessageController messageController;
+    private PositionReportController controller;
+    private long baseTime;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new ManualScheduler();
+        messageController = new RecordingMessageController();
+        controller = new PositionReportController(new StubLocationController(), messageController,
+                "user1", "HMMWV", UNIQUE_ID, "SFGPEVCAH------", scheduler);
+        baseTime = System.currentTimeMillis() - 60000;
+    }
+
+    @After
+    public void tearDown() {
+        controller.setEnabled(false);
+        scheduler.shutdown();
+    }
+
+    private Location createLocation(double lon, double lat, long seconds, double speed, double heading) {
+        Calendar timestamp = Calendar.getInstance();
+        timestamp.setTimeInMillis(baseTime + seconds * 1000);
+        return new Location(lon, lat, timestamp, speed, heading);
+    }
+
+    /**
+     * Hands the controller a location and runs its report task once.
+     * @return the number of reports sent.
+     */
+    private int report(Location location) {
+        int before = messageController.sent.size();
+        controller.onLocationChanged(location);
+        scheduler.runReport();
+        return messageController.sent.size() - before;
+    }
+
+    /**
+     * Test that every period sends a report when the controller is not adaptive.
+     */
+    @Test
+    public void testNotAdaptive() {
+        controller.setEnabled(true);
+        Assert.assertEquals(1, report(createLocation(-117, 34, 0, 0, 0)));
+        Assert.assertEquals(1, report(createLocation(-117, 34, 1, 0, 0)));
+        Assert.assertEquals(1, report(createLocation(-117, 34, 2, 0, 0)));
+    }
+
+    /**
+     * Test that adaptive mode sends reports only when dead reckoning from the
+     * last report drifts too far or the heading changes too much.
+     */
+    @Test
+    public void testAdaptiveDriftAndHeading() throws Exception {
+        controller.setAdaptive(true);
+        controller.setEnabled(true);
+        double[] lonLat = new double[2];
+
+        //The first report is always sent
+        Assert.assertEquals(1, report(createLocation(-117, 34, 0, 10, 90)));
+
+        //Moving in a straight line at the reported speed matches dead reckoning
+        for (int seconds = 10; seconds <= 30; seconds += 10) {
+            Utilities.calculateDestination(-117, 34, 90, 10 * seconds, lonLat);
+            Assert.assertEquals(0, report(createLocation(lonLat[0], lonLat[1], seconds, 10, 90)));
+        }
+
+        //Drifting less than the threshold from the dead-reckoned position is fine
+        Utilities.calculateDestination(-117, 34, 90, 400, lonLat);
+        Utilities.calculateDestination(lonLat[0], lonLat[1], 0, 15, lonLat);
+        Assert.assertEquals(0, report(createLocation(lonLat[0], lonLat[1], 40, 10, 90)));
+
+        //Drifting more than the threshold sends a report
+        Utilities.calculateDestination(-117, 34, 90, 500, lonLat);
+        Utilities.calculateDestination(lonLat[0], lonLat[1], 0, 50, lonLat);
+        double lastLon = lonLat[0];
+        double lastLat = lonLat[1];
+        Assert.assertEquals(1, report(createLocation(lastLon, lastLat, 50, 10, 90)));
+        Geomessage message = messageController.getMessage(messageController.sent.size() - 1);
+        Assert.assertEquals(lastLon + "," + lastLat, message.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+
+        //A small heading change does not send a report, but a large one does
+        Utilities.calculateDestination(lastLon, lastLat, 90, 100, lonLat);
+        Assert.assertEquals(0, report(createLocation(lonLat[0], lonLat[1], 60, 10, 100)));
+        Utilities.calculateDestination(lastLon, lastLat, 90, 200, lonLat);
+        Assert.assertEquals(1, report(createLocation(lonLat[0], lonLat[1], 70, 10, 120)));
+        Assert.assertEquals(3, messageController.sent.size());
+    }
+
+    /**
+     * Test that a stationary unit in adaptive mode sends only heartbeats.
+     */
+    @Test
+    public void testAdaptiveStationaryAndHeartbeat() {
+        controller.setAdaptive(true);
+        controller.setEnabled(true);
+        Assert.assertEquals(1, report(createLocation(-117, 34, 0, 0, 45)));
+        for (int seconds = 1; seconds <= 10; seconds++) {
+            Assert.assertEquals(0, report(createLocation(-117, 34, seconds, 0, 45)));
+        }
+
+        //Every check is a heartbeat when the heartbeat interval is zero
+        controller.setHeartbeatInterval(0);
+        Assert.assertEquals(1, report(createLocation(-117, 34, 11, 0, 45)));
+        Assert.assertEquals(1, report(createLocation(-117, 34, 12, 0, 45)));
+        controller.setHeartbeatInterval(PositionReportController.DEFAULT_HEARTBEAT_INTERVAL);
+        Assert.assertEquals(0, report(createLocation(-117, 34, 13, 0, 45)));
+    }
+
+    /**
+     * Test that a 911 status change sends a report right away, on the emergency
+     * lane, even in adaptive mode.
+     */
+    @Test
+    public void testAdaptiveStatus911() throws Exception {
+        controller.setAdaptive(true);
+        controller.setEnabled(true);
+        Assert.assertEquals(1, report(createLocation(-117, 34, 0, 0, 0)));
+        Assert.assertEquals(0, report(createLocation(-117, 34, 1, 0, 0)));
+
+        controller.setStatus911(true);
+        Assert.assertEquals(2, messageController.sent.size());
+        Assert.assertTrue(messageController.urgent.get(1));
+        Assert.assertEquals("1", messageController.getMessage(1).getProperty("status911"));
+
+        //Nothing changed since the 911 report
+        Assert.assertEquals(0, report(createLocation(-117, 34, 2, 0, 0)));
+
+        controller.setStatus911(false);
+        Assert.assertEquals(3, messageController.sent.size());
+        Assert.assertTrue(messageController.urgent.get(2));
+        Assert.assertEquals("0", messageController.getMessage(2).getProperty("status911"));
+        Assert.assertEquals(0, report(createLocation(-117, 34, 3, 0, 0)));
+        Assert.assertFalse(messageController.urgent.get(0));
+    }
+
+    /**
+     * Test the send and location handoff statistics.
+     */
+    @Test
+    public void testStatistics() {
+        Assert.assertEquals(0, controller.getReportCount());
+        Assert.assertEquals(-1, controller.getLastLocationAge());
+        controller.setAdaptive(true);
+        controller.setEnabled(true);
+        long before = System.currentTimeMillis();
+        report(createLocation(-117, 34, 0, 0, 0));
+        long after = System.currentTimeMillis();
+        for (int seconds = 1; seconds <= 4; seconds++) {
+            report(createLocation(-117, 34, seconds, 0, 0));
+        }
+
+        //Only sent reports count, but every location does
+        Assert.assertEquals(1, controller.getReportCount());
+        Assert.assertEquals(5, controller.getLocationUpdateCount());
+        Assert.assertTrue(0 < controller.getMaxSendNanos());
+        Assert.assertTrue(controller.getMaxSendNanos() <= controller.getTotalSendNanos());
+        Assert.assertTrue(0 <= controller.getMaxLocationHandoffNanos());
+        Assert.assertTrue(controller.getMaxLocationHandoffNanos() <= controller.getTotalLocationHandoffNanos());
+        long age = controller.getLastLocationAge();
+        Assert.assertTrue("Unexpected location age " + age, before - baseTime <= age && age <= after - baseTime);
+
+        controller.setAdaptive(false);
+        report(createLocation(-117, 34, 5, 0, 0));
+        Assert.assertEquals(2, controller.getReportCount());
+        Assert.assertEquals(6, controller.getLocationUpdateCount());
+
+        controller.resetStatistics();
+        Assert.assertEquals(0, controller.getReportCount());
+        Assert.assertEquals(0, controller.getTotalSendNanos());
+        Assert.assertEquals(0, controller.getMaxSendNanos());
+        Assert.assertEquals(0, controller.getLocationUpdateCount());
+        Assert.assertEquals(0, controller.getTotalLocationHandoffNanos());
+        Assert.assertEquals(0, controller.getMaxLocationHandoffNanos());
+        Assert.assertEquals(-1, controller.getLastLocationAge());
+    }
+
+    /**
+     * Test that reports that set or clear 911 status are keyframes even when
+     * deltas are on, so a receiver that missed the last keyframe can read them.
+     */
+    @Test
+    public void testStatus911Keyframes() throws Exception {
+        controller.setKeyframeInterval(10);
+        controller.setEnabled(true);
+        report(createLocation(-117, 34, 0, 0, 0));
+        report(createLocation(-117, 34, 1, 0, 0));
+        Assert.assertNotNull(messageController.getMessage(0).getProperty(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME));
+        Assert.assertNotNull(messageController.getMessage(1).getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+
+        controller.setStatus911(true);
+        report(createLocation(-117, 34, 2, 0, 0));
+        controller.setStatus911(false);
+        report(createLocation(-117, 34, 3, 0, 0));
+        Assert.assertEquals(6, messageController.sent.size());
+        for (int i = 2; i < 5; i++) {
+            Geomessage message = messageController.getMessage(i);
+            Assert.assertTrue(messageController.urgent.get(i));
+            Assert.assertNotNull(message.getProperty(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME));
+            Assert.assertNull(message.getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+            Assert.assertEquals(4 == i ? "0" : "1", message.getProperty("status911"));
+        }
+
+        //Routine reports go back to deltas
+        Assert.assertFalse(messageController.urgent.get(5));
+        Assert.assertNotNull(messageController.getMessage(5).getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+    }
+
+}
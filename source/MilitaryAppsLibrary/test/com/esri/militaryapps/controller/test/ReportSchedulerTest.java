@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.ReportScheduler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the ReportScheduler class.
+ * @see com.esri.militaryapps.controller.ReportScheduler
+ */
+public class ReportSchedulerTest {
+
+    /**
+     * Test that a couple of threads can run many periodic tasks.
+     */
+    @Test
+    public void testManyTasks() throws Exception {
+        final int taskCount = 5000;
+        ReportScheduler scheduler = new ReportScheduler(2);
+        final CountDownLatch latch = new CountDownLatch(taskCount * 2);
+        ScheduledFuture<?>[] futures = new ScheduledFuture<?>[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            futures[i] = scheduler.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+
+            }, 0, 50);
+        }
+        try {
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } finally {
+            for (ScheduledFuture<?> future : futures) {
+                future.cancel(false);
+            }
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Test that a task that throws keeps running.
+     */
+    @Test
+    public void testFailingTask() throws Exception {
+        ReportScheduler scheduler = new ReportScheduler(1);
+        final CountDownLatch latch = new CountDownLatch(3);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+                throw new IllegalStateException("Expected by test");
+            }
+
+        }, 0, 10);
+        try {
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Test that HASH phases are stable and EVEN phases fill the largest gaps.
+     */
+    @Test
+    public void testPhases() {
+        long phase = ReportScheduler.getHashPhase("{b3a1c0de-0000-4000-8000-000000000001}", 1000);
+        Assert.assertTrue(0 <= phase && 1000 > phase);
+        Assert.assertEquals(phase, ReportScheduler.getHashPhase("{b3a1c0de-0000-4000-8000-000000000001}", 1000));
+        Assert.assertEquals(0, ReportScheduler.getHashPhase(null, 1000));
+
+        long[] expected = {0, 500, 250, 750, 125, 625, 375, 875};
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], ReportScheduler.getEvenPhase(i, 1000));
+        }
+    }
+
+    /**
+     * Test that a jittered report keeps running until cancelled.
+     */
+    @Test
+    public void testScheduledReport() throws Exception {
+        ReportScheduler scheduler = new ReportScheduler(1);
+        scheduler.setJitter(0.5);
+        scheduler.setPhaseMode(ReportScheduler.PhaseMode.EVEN);
+        final AtomicInteger runCount = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(5);
+        ReportScheduler.ScheduledReport report = scheduler.scheduleReport("unit", new Runnable() {
+
+            @Override
+            public void run() {
+                runCount.incrementAndGet();
+                latch.countDown();
+            }
+
+        }, 20);
+        try {
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            report.cancel();
+            Assert.assertTrue(report.isCancelled());
+            Thread.sleep(50);
+            int count = runCount.get();
+            Thread.sleep(100);
+            Assert.assertEquals(count, runCount.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+}
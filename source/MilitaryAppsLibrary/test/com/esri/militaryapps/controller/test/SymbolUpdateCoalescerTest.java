@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.ReportScheduler;
+import com.esri.militaryapps.controller.SymbolUpdateCoalescer;
+import com.esri.militaryapps.model.Geomessage;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the SymbolUpdateCoalescer class.
+ * @see com.esri.militaryapps.controller.SymbolUpdateCoalescer
+ */
+public class SymbolUpdateCoalescerTest {
+
+    /**
+     * Test that the latest update wins and that removals are delivered in order.
+     */
+    @Test
+    public void testCoalesce() {
+        AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl symbolController
+                = new AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl(null);
+        SymbolUpdateCoalescer coalescer = new SymbolUpdateCoalescer(symbolController);
+        for (int i = 0; i < 10; i++) {
+            coalescer.submit(AdvancedSymbolControllerTest.createMessage("a", "update", i + ",0"));
+        }
+        coalescer.submit(AdvancedSymbolControllerTest.createMessage("b", "update", "5,5"));
+        coalescer.submit(AdvancedSymbolControllerTest.createMessage("b", "remove", "5,5"));
+        coalescer.submit(AdvancedSymbolControllerTest.createMessage("b", "update", "6,6"));
+        Assert.assertEquals(3, coalescer.getPendingCount());
+        Assert.assertEquals(10, coalescer.getCoalescedCount());
+        Assert.assertTrue(symbolController.processed.isEmpty());
+
+        Assert.assertEquals(3, coalescer.flush());
+        Assert.assertEquals(Arrays.asList("a@9,0", "b@5,5", "b@6,6"), symbolController.processed);
+        Assert.assertEquals(0, coalescer.getPendingCount());
+        Assert.assertEquals(0, coalescer.flush());
+    }
+
+    /**
+     * Test that removeall drops the pending messages of its type only.
+     */
+    @Test
+    public void testRemoveAll() {
+        AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl symbolController
+                = new AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl(null);
+        SymbolUpdateCoalescer coalescer = new SymbolUpdateCoalescer(symbolController);
+        coalescer.submit(AdvancedSymbolControllerTest.createMessage("a", "update", "1,1"));
+        Geomessage chemLight = AdvancedSymbolControllerTest.createMessage("c", "update", "2,2");
+        chemLight.setProperty(Geomessage.TYPE_FIELD_NAME, "chemlight");
+        coalescer.submit(chemLight);
+        coalescer.submit(AdvancedSymbolControllerTest.createMessage(null, Geomessage.ACTION_REMOVE_ALL, null));
+        Assert.assertEquals(2, coalescer.getPendingCount());
+
+        coalescer.flush();
+        Assert.assertEquals(Arrays.asList("c@2,2", "null@null"), symbolController.processed);
+    }
+
+    /**
+     * Test that pending messages are delivered at the frame rate when enabled.
+     */
+    @Test
+    public void testFrames() throws InterruptedException {
+        AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl symbolController
+                = new AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl(null);
+        ReportScheduler scheduler = new ReportScheduler(1);
+        try {
+            SymbolUpdateCoalescer coalescer = new SymbolUpdateCoalescer(symbolController, scheduler);
+            coalescer.setFrameRate(50);
+            coalescer.setEnabled(true);
+            coalescer.submit(AdvancedSymbolControllerTest.createMessage("a", "update", "1,1"));
+            coalescer.submit(AdvancedSymbolControllerTest.createMessage("a", "update", "2,2"));
+            Thread.sleep(200);
+            Assert.assertEquals(Arrays.asList("a@2,2"), symbolController.processed);
+
+            coalescer.setEnabled(false);
+            coalescer.submit(AdvancedSymbolControllerTest.createMessage("a", "update", "3,3"));
+            Thread.sleep(100);
+            Assert.assertEquals(1, symbolController.processed.size());
+            Assert.assertEquals(1, coalescer.getPendingCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.TrackExpiry;
+import com.esri.militaryapps.controller.TrackExpiryListener;
+import com.esri.militaryapps.controller.TrackRegistry;
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the TrackExpiry class.
+ * @see com.esri.militaryapps.controller.TrackExpiry
+ */
+public class TrackExpiryTest {
+
+    private static Geomessage createMessage(String type, String id) {
+        Geomessage message = new Geomessage();
+        message.setId(id);
+        message.setProperty(Geomessage.TYPE_FIELD_NAME, type);
+        return message;
+    }
+
+    /**
+     * Test that position reports expire, refreshed tracks and chem lights do not,
+     * and listeners hear about expired tracks.
+     */
+    @Test
+    public void testExpire() {
+        TrackRegistry registry = new TrackRegistry();
+        TrackExpiry expiry = new TrackExpiry(registry);
+        final List<String> expiredIds = new ArrayList<String>();
+        expiry.addListener(new TrackExpiryListener() {
+
+            @Override
+            public void trackExpired(Geomessage expired) {
+                expiredIds.add(expired.getId());
+            }
+
+        });
+        Assert.assertEquals(TrackExpiry.DEFAULT_POSITION_REPORT_TTL, expiry.getTimeToLive("position_report"));
+        Assert.assertEquals(0, expiry.getTimeToLive("chemlight"));
+
+        expiry.setTimeToLive("position_report", 200);
+        long start = System.currentTimeMillis();
+        registry.update(createMessage("trackrep", "stale"));
+        registry.update(createMessage("trackrep", "fresh"));
+        registry.update(createMessage("chemlight", "light"));
+        registry.update(createMessage("spotrep", "spot"));
+        Assert.assertEquals(2, expiry.getScheduledCount());
+
+        Assert.assertEquals(0, expiry.expire(start + 100));
+        try {
+            Thread.sleep(600);
+        } catch (InterruptedException ie) {
+            Assert.fail("Interrupted");
+        }
+        registry.update(createMessage("trackrep", "fresh"));
+        Assert.assertEquals(1, expiry.expire(System.currentTimeMillis()));
+        Assert.assertEquals(1, expiredIds.size());
+        Assert.assertEquals("stale", expiredIds.get(0));
+        Assert.assertNull(registry.getTrack("position_report", "stale"));
+        Assert.assertNotNull(registry.getTrack("position_report", "fresh"));
+
+        Assert.assertEquals(1, expiry.expire(start + 100000));
+        Assert.assertEquals(2, registry.getTrackCount());
+        Assert.assertEquals(0, expiry.getScheduledCount());
+    }
+
+    /**
+     * Test that removing a track cancels its expiry and that TTLs can change.
+     */
+    @Test
+    public void testRemoveAndTimeToLive() {
+        TrackRegistry registry = new TrackRegistry();
+        TrackExpiry expiry = new TrackExpiry(registry);
+        expiry.setTimeToLive("chemlight", 1000);
+        registry.update(createMessage("chemlight", "light"));
+        registry.update(createMessage("trackrep", "unit"));
+        Assert.assertEquals(2, expiry.getScheduledCount());
+        registry.remove("position_report", "unit");
+        Assert.assertEquals(1, expiry.getScheduledCount());
+
+        expiry.setTimeToLive("chemlight", 0);
+        registry.update(createMessage("chemlight", "light"));
+        Assert.assertEquals(0, expiry.getScheduledCount());
+        Assert.assertEquals(0, expiry.expire(System.currentTimeMillis() + 1000000));
+        Assert.assertEquals(1, registry.getTrackCount());
+    }
+
+    /**
+     * Test that an expired track is removed through the AdvancedSymbolController's
+     * usual message handling, so a deferred update for it is never drawn later.
+     */
+    @Test
+    public void testExpireRemovesSymbol() {
+        AdvancedSymbolControllerTest.MapControllerImpl mapController = new AdvancedSymbolControllerTest.MapControllerImpl();
+        AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl symbols
+                = new AdvancedSymbolControllerTest.AdvancedSymbolControllerImpl(mapController);
+        symbols.setCullingMargin(0);
+        TrackRegistry registry = new TrackRegistry();
+        TrackExpiry expiry = new TrackExpiry(registry);
+        expiry.setAdvancedSymbolController(symbols);
+
+        Geomessage track = AdvancedSymbolControllerTest.createMessage("gone", "update", "170,80");
+        registry.update(track);
+        symbols.handleGeomessage(track);
+        Assert.assertEquals(1, symbols.getDeferredMessageCount());
+        Assert.assertTrue(symbols.processed.isEmpty());
+
+        Assert.assertEquals(1, expiry.expire(System.currentTimeMillis() + 100000));
+        Assert.assertEquals(0, symbols.getDeferredMessageCount());
+        Assert.assertEquals(1, symbols.processed.size());
+        Assert.assertEquals("gone@null", symbols.processed.get(0));
+
+        //The deferred update must not come back when the map moves over it
+        mapController.panToCorner(140, 60);
+        Assert.assertEquals(1, symbols.processed.size());
+    }
+
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.TrackHistoryStore;
+import com.esri.militaryapps.controller.TrackRegistry;
+import com.esri.militaryapps.model.Geomessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the TrackHistoryStore class.
+ * @see com.esri.militaryapps.controller.TrackHistoryStore
+ */
+public class TrackHistoryStoreTest {
+
+    /**
+     * Test that the ring keeps the newest points and copies them oldest first.
+     */
+    @Test
+    public void testRetentionByCount() {
+        TrackHistoryStore store = new TrackHistoryStore(5);
+        for (int i = 0; i < 12; i++) {
+            Assert.assertTrue(store.addPoint("a", i, -i, 1000L * i, i, Float.NaN));
+        }
+        Assert.assertFalse(store.addPoint("a", 0, 0, 0, 0, 0));
+        Assert.assertEquals(5, store.getHistorySize("a"));
+
+        double[] lons = new double[10];
+        long[] times = new long[10];
+        Assert.assertEquals(5, store.getHistory("a", 11000L, lons, null, times, null, null));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(7 + i, lons[i], 0);
+            Assert.assertEquals(1000L * (7 + i), times[i]);
+        }
+        float[] headings = new float[3];
+        Assert.assertEquals(3, store.getHistory("a", 11000L, null, null, null, headings, null));
+        Assert.assertArrayEquals(new float[] {9, 10, 11}, headings, 0);
+    }
+
+    /**
+     * Test that points older than the maximum age are dropped and left out of queries.
+     */
+    @Test
+    public void testRetentionByAge() {
+        TrackHistoryStore store = new TrackHistoryStore(100);
+        store.setMaxAge(5000);
+        for (int i = 0; i < 10; i++) {
+            store.addPoint("a", i, i, 1000L * i, 0, 0);
+        }
+        Assert.assertEquals(6, store.getHistorySize("a"));
+        long[] times = new long[100];
+        Assert.assertEquals(3, store.getHistory("a", 12000L, null, null, times, null, null));
+        Assert.assertEquals(7000L, times[0]);
+        Assert.assertEquals(0, store.getHistory("a", 20000L, null, null, times, null, null));
+    }
+
+    /**
+     * Test that the store follows a TrackRegistry.
+     */
+    @Test
+    public void testRegistry() {
+        TrackRegistry registry = new TrackRegistry();
+        TrackHistoryStore store = new TrackHistoryStore(10);
+        registry.addListener(store);
+        for (int i = 0; i < 3; i++) {
+            Geomessage message = new Geomessage();
+            message.setId("unit");
+            message.setProperty(Geomessage.TYPE_FIELD_NAME, "trackrep");
+            message.setProperty(Geomessage.WKID_FIELD_NAME, "4326");
+            message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, (-117 + i * 0.001) + ",34");
+            message.setProperty("datetimevalid", "2015-03-0" + (i + 1) + " 12:00:00");
+            message.setProperty("direction", "90");
+            registry.update(message);
+        }
+        double[] lons = new double[10];
+        float[] headings = new float[10];
+        float[] speeds = new float[10];
+        Assert.assertEquals(3, store.getHistory("position_report", "unit", lons, null, null, headings, speeds));
+        Assert.assertEquals(-116.998, lons[2], 1e-9);
+        Assert.assertEquals(90, headings[0], 0);
+        Assert.assertTrue(Float.isNaN(speeds[0]));
+
+        //Removing another type's track with the same ID leaves this history alone
+        Geomessage chemLight = new Geomessage();
+        chemLight.setId("unit");
+        chemLight.setProperty(Geomessage.TYPE_FIELD_NAME, "chemlight");
+        chemLight.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, "-117,34");
+        registry.update(chemLight);
+        registry.remove("chemlight", "unit");
+        Assert.assertEquals(3, store.getHistorySize("position_report", "unit"));
+        Assert.assertEquals(1, store.getTrackCount());
+
+        //A removal of a replaced track is stale and is ignored
+        Geomessage stale = registry.getTrack("position_report", "unit");
+        Geomessage moved = stale.clone();
+        moved.setProperty("datetimevalid", "2015-03-05 12:00:00");
+        registry.update(moved);
+        store.trackRemoved(stale);
+        Assert.assertEquals(4, store.getHistorySize("position_report", "unit"));
+
+        registry.remove("position_report", "unit");
+        Assert.assertEquals(0, store.getTrackCount());
+    }
+
+}
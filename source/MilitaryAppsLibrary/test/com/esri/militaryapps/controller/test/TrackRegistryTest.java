@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.TrackExpiry;
+import com.esri.militaryapps.controller.TrackRegistry;
+import com.esri.militaryapps.controller.TrackRegistryListener;
+import com.esri.militaryapps.controller.TrackSpatialIndex;
+import com.esri.militaryapps.model.Geomessage;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the TrackRegistry class.
+ * @see com.esri.militaryapps.controller.TrackRegistry
+ */
+public class TrackRegistryTest {
+
+    private static Geomessage createMessage(String type, String id, String action, String controlPoints) {
+        Geomessage message = new Geomessage();
+        message.setId(id);
+        message.setProperty(Geomessage.TYPE_FIELD_NAME, type);
+        message.setProperty(Geomessage.ACTION_FIELD_NAME, action);
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, controlPoints);
+        return message;
+    }
+
+    /**
+     * Test UPDATE, REMOVE, and removeall semantics and the events they fire.
+     */
+    @Test
+    public void testActions() {
+        TrackRegistry registry = new TrackRegistry();
+        final int[] counts = new int[4];
+        registry.addListener(new TrackRegistryListener() {
+
+            @Override
+            public void trackUpdated(Geomessage current, Geomessage previous) {
+                counts[null == previous ? 0 : 1]++;
+            }
+
+            @Override
+            public void trackRemoved(Geomessage removed) {
+                counts[2]++;
+            }
+
+            @Override
+            public void allTracksRemoved(String messageType, Collection<Geomessage> removed) {
+                counts[3] += removed.size();
+            }
+
+        });
+
+        Geomessage message = createMessage("trackrep", "a", "UPDATE", "1,2");
+        registry.update(message);
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, "changed by caller");
+        registry.update(createMessage("trackrep", "b", "UPDATE", "3,4"));
+        registry.update(createMessage("trackrep", "a", "UPDATE", "5,6"));
+        registry.update(createMessage("chemlight", "c", "UPDATE", "7,8"));
+        Assert.assertEquals(3, registry.getTrackCount());
+        Assert.assertEquals(2, registry.getTrackCount("position_report"));
+        Assert.assertEquals("5,6", registry.getTrack("position_report", "a")
+                .getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+
+        Map<String, Map<String, Geomessage>> snapshot = registry.getSnapshot();
+        registry.update(createMessage("trackrep", "b", "REMOVE", null));
+        Assert.assertNull(registry.getTrack("position_report", "b"));
+        Assert.assertEquals(2, snapshot.get("position_report").size());
+
+        registry.update(createMessage("trackrep", null, Geomessage.ACTION_REMOVE_ALL, null));
+        Assert.assertEquals(0, registry.getTrackCount("position_report"));
+        Assert.assertEquals(1, registry.getTrackCount());
+
+        Assert.assertArrayEquals(new int[] {3, 1, 1, 1}, counts);
+    }
+
+    /**
+     * Test that listeners see the changes to one track in the order the registry
+     * applied them when several threads update and remove the same ID.
+     */
+    @Test
+    public void testConcurrentChangesToOneTrack() throws Exception {
+        final TrackRegistry registry = new TrackRegistry();
+        TrackSpatialIndex index = new TrackSpatialIndex();
+        registry.addListener(index);
+        TrackExpiry expiry = new TrackExpiry(registry);
+        final HashMap<String, Geomessage> seen = new HashMap<String, Geomessage>();
+        registry.addListener(new TrackRegistryListener() {
+
+            @Override
+            public void trackUpdated(Geomessage current, Geomessage previous) {
+                synchronized (seen) {
+                    Assert.assertSame(seen.get(current.getId()), previous);
+                    seen.put(current.getId(), current);
+                }
+            }
+
+            @Override
+            public void trackRemoved(Geomessage removed) {
+                synchronized (seen) {
+                    Assert.assertSame(seen.get(removed.getId()), removed);
+                    seen.remove(removed.getId());
+                }
+            }
+
+            @Override
+            public void allTracksRemoved(String messageType, Collection<Geomessage> removed) {
+
+            }
+
+        });
+
+        final String[] ids = { "shared", "other" };
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            String id = ids[i % ids.length];
+                            if (0 == (i + threadIndex) % 3) {
+                                registry.update(createMessage("trackrep", id, "REMOVE", null));
+                            } else {
+                                registry.update(createMessage("trackrep", id, "UPDATE", threadIndex + "," + (i % 80)));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(String.valueOf(failure[0]), failure[0]);
+
+        int trackCount = registry.getTrackCount("position_report");
+        for (String id : ids) {
+            Assert.assertSame(registry.getTrack("position_report", id), seen.get(id));
+        }
+        Assert.assertEquals(trackCount, index.size());
+        Assert.assertEquals(trackCount, expiry.getScheduledCount());
+    }
+
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.TrackRegistry;
+import com.esri.militaryapps.controller.TrackSnapshotStore;
+import com.esri.militaryapps.model.Geomessage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the TrackSnapshotStore class.
+ * @see com.esri.militaryapps.controller.TrackSnapshotStore
+ */
+public class TrackSnapshotStoreTest {
+
+    private static Geomessage createMessage(String type, String id, String action) {
+        Geomessage message = new Geomessage();
+        message.setId(id);
+        message.setProperty(Geomessage.TYPE_FIELD_NAME, type);
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, "-117.1,34.05");
+        if (null != action) {
+            message.setProperty(Geomessage.ACTION_FIELD_NAME, action);
+        }
+        return message;
+    }
+
+    /**
+     * Deletes a snapshot file and all of its generations.
+     */
+    private static void deleteSnapshot(File file) {
+        File[] siblings = file.getAbsoluteFile().getParentFile().listFiles();
+        for (File sibling : siblings) {
+            if (sibling.getName().startsWith(file.getName())) {
+                sibling.delete();
+            }
+        }
+    }
+
+    /**
+     * Test that updates, removals, and removeall survive a restart.
+     */
+    @Test
+    public void testRestart() throws IOException {
+        File file = File.createTempFile("tracks", ".snapshot");
+        file.delete();
+        try {
+            TrackRegistry registry = new TrackRegistry();
+            TrackSnapshotStore store = new TrackSnapshotStore(file, registry);
+            Assert.assertEquals(0, store.open());
+            registry.update(createMessage("trackrep", "unit1", null));
+            registry.update(createMessage("trackrep", "unit2", null));
+            registry.update(createMessage("chemlight", "light", null));
+            Geomessage spot = createMessage("spotrep", "spot", null);
+            spot.setProperty("size", "\u00e9quipe");
+            spot.setProperty("remarks", null);
+            registry.update(spot);
+            Assert.assertEquals(4, store.getPendingChangeCount());
+            store.flush();
+            Assert.assertEquals(0, store.getPendingChangeCount());
+
+            registry.update(createMessage("trackrep", "unit1", "remove"));
+            registry.update(createMessage("chemlight", null, "removeall"));
+            registry.update(createMessage("chemlight", "light2", null));
+            store.close();
+
+            Map<String, Map<String, Geomessage>> tracks = TrackSnapshotStore.read(file);
+            Assert.assertEquals(1, tracks.get("position_report").size());
+            Assert.assertTrue(tracks.get("position_report").containsKey("unit2"));
+            Assert.assertTrue(tracks.get("chemlight").containsKey("light2"));
+            Geomessage readSpot = tracks.get("spot_report").get("spot");
+            Assert.assertEquals("\u00e9quipe", readSpot.getProperty("size"));
+            Assert.assertTrue(readSpot.getProperties().containsKey("remarks"));
+            Assert.assertNull(readSpot.getProperty("remarks"));
+
+            TrackRegistry restarted = new TrackRegistry();
+            TrackSnapshotStore restartedStore = new TrackSnapshotStore(file, restarted);
+            Assert.assertEquals(3, restartedStore.open());
+            Assert.assertEquals("-117.1,34.05", restarted.getTrack("position_report", "unit2")
+                    .getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+            Assert.assertNull(restarted.getTrack("chemlight", "light"));
+            restartedStore.close();
+        } finally {
+            deleteSnapshot(file);
+        }
+    }
+
+    /**
+     * Test that repeated updates are compacted and do not grow the file without bound.
+     */
+    @Test
+    public void testCompaction() throws IOException {
+        File file = File.createTempFile("tracks", ".snapshot");
+        file.delete();
+        try {
+            TrackRegistry registry = new TrackRegistry();
+            TrackSnapshotStore store = new TrackSnapshotStore(file, registry);
+            store.open();
+            for (int round = 0; round < 200; round++) {
+                for (int i = 0; i < 100; i++) {
+                    Geomessage message = createMessage("trackrep", "unit" + i, null);
+                    message.setProperty("datetimevalid", "round " + round);
+                    registry.update(message);
+                }
+                store.flush();
+            }
+            store.close();
+            Map<String, Map<String, Geomessage>> tracks = TrackSnapshotStore.read(file);
+            Assert.assertEquals(100, tracks.get("position_report").size());
+            Assert.assertEquals("round 199", tracks.get("position_report").get("unit42").getProperty("datetimevalid"));
+        } finally {
+            deleteSnapshot(file);
+        }
+    }
+
+    /**
+     * Test that a compaction that fails leaves recording in the current generation
+     * without losing changes.
+     */
+    @Test
+    public void testFailedCompaction() throws IOException {
+        File file = File.createTempFile("tracks", ".snapshot");
+        file.delete();
+        //A directory where the next generation's temporary file would go
+        File blocker = new File(file.getPath() + ".1.tmp");
+        try {
+            TrackRegistry registry = new TrackRegistry();
+            TrackSnapshotStore store = new TrackSnapshotStore(file, registry);
+            store.open();
+            Assert.assertTrue(blocker.mkdir());
+            registry.update(createMessage("trackrep", "unit1", null));
+            try {
+                store.compact();
+                Assert.fail("Compaction should have failed");
+            } catch (IOException expected) {
+                //Expected
+            }
+            Assert.assertEquals(1, store.getPendingChangeCount());
+            registry.update(createMessage("chemlight", "light", null));
+            store.flush();
+            Assert.assertEquals(0, store.getPendingChangeCount());
+            Assert.assertTrue(blocker.delete());
+
+            store.compact();
+            registry.update(createMessage("trackrep", "unit2", null));
+            store.close();
+            Assert.assertFalse(file.exists());
+            Map<String, Map<String, Geomessage>> tracks = TrackSnapshotStore.read(file);
+            Assert.assertEquals(2, tracks.get("position_report").size());
+            Assert.assertTrue(tracks.get("chemlight").containsKey("light"));
+        } finally {
+            blocker.delete();
+            deleteSnapshot(file);
+        }
+    }
+
+}
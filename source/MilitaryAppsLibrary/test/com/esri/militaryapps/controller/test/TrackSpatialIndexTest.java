@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.NearestTracksQuery;
+import com.esri.militaryapps.controller.TrackRegistry;
+import com.esri.militaryapps.controller.TrackSpatialIndex;
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the TrackSpatialIndex class.
+ * @see com.esri.militaryapps.controller.TrackSpatialIndex
+ */
+public class TrackSpatialIndexTest {
+
+    private static Geomessage createMessage(String id, String wkid, String controlPoints) {
+        Geomessage message = new Geomessage();
+        message.setId(id);
+        message.setProperty(Geomessage.TYPE_FIELD_NAME, "trackrep");
+        message.setProperty(Geomessage.ACTION_FIELD_NAME, "UPDATE");
+        message.setProperty(Geomessage.WKID_FIELD_NAME, wkid);
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, controlPoints);
+        return message;
+    }
+
+    /**
+     * Test that the index follows registry updates and answers box and radius queries.
+     */
+    @Test
+    public void testQueries() {
+        TrackRegistry registry = new TrackRegistry();
+        TrackSpatialIndex index = new TrackSpatialIndex();
+        registry.addListener(index);
+
+        registry.update(createMessage("a", "4326", "-117.19,34.05"));
+        registry.update(createMessage("b", "4326", "-117.10,34.05"));
+        //Web Mercator for about -117.15, 34.06
+        registry.update(createMessage("c", "102100", "-13041096.3,4037190.5"));
+        registry.update(createMessage("d", "4326", "179.99,0"));
+        //California State Plane zone 5, which is not supported
+        registry.update(createMessage("e", "2229", "6500000,1800000"));
+        Assert.assertEquals(4, index.size());
+
+        ArrayList<Geomessage> results = new ArrayList<Geomessage>();
+        Assert.assertEquals(3, index.queryBox(-117.2, 34, -117, 34.1, results));
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(2, index.queryRadius(-117.19, 34.05, 5000, null));
+        Assert.assertEquals(1, index.queryBox(179, -1, -179, 1, null));
+        Assert.assertEquals(1, index.queryRadius(-179.99, 0, 5000, null));
+
+        registry.update(createMessage("a", "4326", "-100,40"));
+        Assert.assertEquals(1, index.queryRadius(-117.19, 34.05, 5000, null));
+        registry.update(createMessage("b", "4326", null));
+        Assert.assertEquals(1, index.queryBox(-117.2, 34, -117, 34.1, null));
+        registry.update(createMessage("x", "4326", null));
+        registry.update(createMessage(null, null, null));
+        Geomessage removeAll = createMessage(null, null, null);
+        removeAll.setProperty(Geomessage.ACTION_FIELD_NAME, Geomessage.ACTION_REMOVE_ALL);
+        registry.update(removeAll);
+        Assert.assertEquals(0, index.size());
+    }
+
+    /**
+     * Test nearest-track queries, with a filter and as the location moves.
+     */
+    @Test
+    public void testNearest() {
+        TrackRegistry registry = new TrackRegistry();
+        TrackSpatialIndex index = new TrackSpatialIndex();
+        registry.addListener(index);
+        for (int i = 0; i < 100; i++) {
+            registry.update(createMessage("unit-" + i, "4326", (-117 + i * 0.01) + ",34"));
+        }
+        Geomessage emergency = createMessage("unit-90", "4326", "-116.1,34");
+        emergency.setProperty("status911", "1");
+        registry.update(emergency);
+
+        ArrayList<Geomessage> results = new ArrayList<Geomessage>();
+        double[] distances = new double[3];
+        Assert.assertEquals(3, index.queryNearest(-116.5, 34, 3, Double.POSITIVE_INFINITY, null, results, distances));
+        Assert.assertEquals("unit-50", results.get(0).getId());
+        Assert.assertTrue(distances[0] <= distances[1] && distances[1] <= distances[2]);
+        results.clear();
+        Assert.assertEquals(1, index.queryNearest(-117, 34, 3, Double.POSITIVE_INFINITY,
+                TrackSpatialIndex.STATUS_911, results, null));
+        Assert.assertEquals("unit-90", results.get(0).getId());
+
+        NearestTracksQuery query = new NearestTracksQuery(index, 2, null);
+        List<Geomessage> nearest = query.update(-117, 34);
+        Assert.assertEquals("unit-0", nearest.get(0).getId());
+        Assert.assertEquals("unit-1", nearest.get(1).getId());
+        nearest = query.update(-116.9, 34);
+        Assert.assertEquals("unit-10", nearest.get(0).getId());
+        //The nearest track moves away, so the bounded search falls back to an unlimited one
+        registry.update(createMessage("unit-10", "4326", "-100,34"));
+        registry.update(createMessage("unit-9", "4326", "-100,34"));
+        registry.update(createMessage("unit-11", "4326", "-100,34"));
+        nearest = query.update(-116.9, 34);
+        Assert.assertEquals(2, nearest.size());
+        Assert.assertEquals(2, query.getDistances().length);
+        Assert.assertTrue(query.getDistances()[0] < 2000);
+    }
+
+}
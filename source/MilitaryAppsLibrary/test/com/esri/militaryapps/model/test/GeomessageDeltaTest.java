@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageDeltaDecoder;
+import com.esri.militaryapps.model.GeomessageDeltaEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the GeomessageDeltaEncoder and GeomessageDeltaDecoder classes.
+ * @see com.esri.militaryapps.model.GeomessageDeltaEncoder
+ * @see com.esri.militaryapps.model.GeomessageDeltaDecoder
+ */
+public class GeomessageDeltaTest {
+
+    private static final String ID = "{3a8e2f4b-0000-4d5c-9a36-000000000042}";
+
+    private static LinkedHashMap<String, String> createFields(String controlPoints) {
+        LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put(Geomessage.TYPE_FIELD_NAME, "trackrep");
+        fields.put(Geomessage.SIC_FIELD_NAME, "SFGPEVCAH------");
+        fields.put(Geomessage.WKID_FIELD_NAME, "4326");
+        fields.put(Geomessage.ACTION_FIELD_NAME, "UPDATE");
+        fields.put(Geomessage.CONTROL_POINTS_FIELD_NAME, controlPoints);
+        return fields;
+    }
+
+    private static Geomessage toGeomessage(Map<String, String> fields) {
+        Geomessage message = new Geomessage();
+        message.setId(ID);
+        message.getProperties().putAll(fields);
+        return message;
+    }
+
+    /**
+     * Test that deltas carry only changed fields and decode to full messages.
+     */
+    @Test
+    public void testKeyframesAndDeltas() {
+        GeomessageDeltaEncoder encoder = new GeomessageDeltaEncoder(3);
+        GeomessageDeltaDecoder decoder = new GeomessageDeltaDecoder();
+
+        Map<String, String> keyframe = encoder.encode(ID, createFields("1,2"));
+        Assert.assertNotNull(keyframe.get(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME));
+        Geomessage decoded = decoder.decode(toGeomessage(keyframe));
+        Assert.assertNull(decoded.getProperty(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME));
+
+        Map<String, String> delta = encoder.encode(ID, createFields("3,4"));
+        Assert.assertNotNull(delta.get(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+        Assert.assertNull(delta.get(Geomessage.SIC_FIELD_NAME));
+        Assert.assertEquals("3,4", delta.get(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        decoded = decoder.decode(toGeomessage(delta));
+        Assert.assertEquals("SFGPEVCAH------", decoded.getProperty(Geomessage.SIC_FIELD_NAME));
+        Assert.assertEquals("3,4", decoded.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        Assert.assertNull(decoded.getProperty(GeomessageDeltaEncoder.DELTA_FIELD_NAME));
+
+        encoder.encode(ID, createFields("5,6"));
+        Map<String, String> nextKeyframe = encoder.encode(ID, createFields("7,8"));
+        Assert.assertNotNull(nextKeyframe.get(GeomessageDeltaEncoder.KEYFRAME_FIELD_NAME));
+    }
+
+    /**
+     * Test that a delta without its keyframe is dropped and plain messages pass through.
+     */
+    @Test
+    public void testMissingKeyframe() {
+        GeomessageDeltaEncoder encoder = new GeomessageDeltaEncoder(10);
+        encoder.encode(ID, createFields("1,2"));
+        Map<String, String> delta = encoder.encode(ID, createFields("3,4"));
+        GeomessageDeltaDecoder decoder = new GeomessageDeltaDecoder();
+        Assert.assertNull(decoder.decode(toGeomessage(delta)));
+
+        Geomessage plain = toGeomessage(createFields("1,2"));
+        Assert.assertSame(plain, decoder.decode(plain));
+    }
+
+    /**
+     * Test that an interval of 1 sends every message in full without markers.
+     */
+    @Test
+    public void testDisabled() {
+        GeomessageDeltaEncoder encoder = new GeomessageDeltaEncoder(1);
+        LinkedHashMap<String, String> fields = createFields("1,2");
+        Assert.assertSame(fields, encoder.encode(ID, fields));
+        Assert.assertSame(fields, encoder.encode(ID, fields));
+    }
+
+}
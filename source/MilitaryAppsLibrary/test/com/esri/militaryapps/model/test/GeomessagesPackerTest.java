@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.DomNodeAndDocument;
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessagesPacker;
+import com.esri.militaryapps.model.GeomessagesReader;
+import com.esri.militaryapps.util.Utilities;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the GeomessagesPacker class.
+ * @see com.esri.militaryapps.model.GeomessagesPacker
+ */
+public class GeomessagesPackerTest {
+
+    private static String createElement(int index) throws Exception {
+        DomNodeAndDocument nodeAndDocument = Utilities.createGeomessageDocument();
+        Utilities.addTextElement(nodeAndDocument.getDocument(), nodeAndDocument.getNode(),
+                Geomessage.ID_FIELD_NAME, "report-" + index);
+        Utilities.addTextElement(nodeAndDocument.getDocument(), nodeAndDocument.getNode(),
+                Geomessage.TYPE_FIELD_NAME, "spotrep");
+        return Utilities.nodeToString(nodeAndDocument.getNode());
+    }
+
+    /**
+     * Test that packed datagrams respect the maximum length and contain every message.
+     */
+    @Test
+    public void testPack() throws Exception {
+        GeomessagesPacker packer = new GeomessagesPacker(500);
+        for (int i = 0; i < 50; i++) {
+            packer.add(createElement(i));
+        }
+        List<byte[]> datagrams = packer.finish();
+        Assert.assertTrue(1 < datagrams.size());
+        Assert.assertTrue(50 > datagrams.size());
+
+        GeomessagesReader reader = new GeomessagesReader();
+        int index = 0;
+        for (byte[] datagram : datagrams) {
+            Assert.assertTrue(500 >= datagram.length);
+            for (Geomessage message : reader.parseMessages(new String(datagram))) {
+                Assert.assertEquals("report-" + index++, message.getId());
+            }
+        }
+        Assert.assertEquals(50, index);
+        Assert.assertTrue(packer.finish().isEmpty());
+    }
+
+}
@@ -16,6 +16,7 @@
 package com.esri.militaryapps.model.test;
 
 import com.esri.militaryapps.model.Location;
+import java.util.Calendar;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -63,4 +64,23 @@ public class LocationTest {
         Assert.assertEquals(123.031, instance.getSpeedMph(), 0.001);
     }
     
-}
\ No newline at end of file
+    /**
+     * Test that the copy constructor makes an independent copy.
+     */
+    @Test
+    public void testCopy() {
+        Calendar timestamp = Calendar.getInstance();
+        timestamp.setTimeInMillis(1000000L);
+        Location original = new Location(-117.2, 34.1, timestamp, 12.5, 270);
+        Location copy = new Location(original);
+        original.setLongitude(0);
+        timestamp.setTimeInMillis(2000000L);
+        Assert.assertEquals(-117.2, copy.getLongitude(), 0);
+        Assert.assertEquals(34.1, copy.getLatitude(), 0);
+        Assert.assertEquals(12.5, copy.getSpeed(), 0);
+        Assert.assertEquals(270, copy.getHeading(), 0);
+        Assert.assertEquals(1000000L, copy.getTimestamp().getTimeInMillis());
+        Assert.assertNull(new Location(new Location()).getTimestamp());
+    }
+    
+}
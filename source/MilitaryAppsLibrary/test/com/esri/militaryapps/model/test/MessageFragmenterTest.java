@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.MessageFragmenter;
+import com.esri.militaryapps.model.MessageReassembler;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the MessageFragmenter and MessageReassembler classes.
+ * @see com.esri.militaryapps.model.MessageFragmenter
+ * @see com.esri.militaryapps.model.MessageReassembler
+ */
+public class MessageFragmenterTest {
+
+    private static byte[] createMessage(int length) {
+        byte[] message = new byte[length];
+        new Random(length).nextBytes(message);
+        //Make it look like text so it isn't mistaken for a fragment
+        message[0] = '<';
+        return message;
+    }
+
+    /**
+     * Test that a short message is not fragmented.
+     */
+    @Test
+    public void testShortMessage() {
+        MessageFragmenter fragmenter = new MessageFragmenter(100);
+        byte[] message = createMessage(100);
+        List<byte[]> datagrams = fragmenter.fragment(message);
+        Assert.assertEquals(1, datagrams.size());
+        Assert.assertSame(message, datagrams.get(0));
+        Assert.assertFalse(MessageFragmenter.isFragment(message, 0, message.length));
+    }
+
+    /**
+     * Test that fragments arriving out of order produce the original message.
+     */
+    @Test
+    public void testOutOfOrderReassembly() {
+        MessageFragmenter fragmenter = new MessageFragmenter(100);
+        byte[] message = createMessage(1000);
+        List<byte[]> datagrams = fragmenter.fragment(message);
+        Assert.assertEquals(12, datagrams.size());
+        MessageReassembler reassembler = new MessageReassembler();
+        byte[] result = null;
+        for (int i = datagrams.size() - 1; i >= 0; i--) {
+            byte[] datagram = datagrams.get(i);
+            Assert.assertTrue(100 >= datagram.length);
+            Assert.assertTrue(MessageFragmenter.isFragment(datagram, 0, datagram.length));
+            Assert.assertNull(result);
+            if (0 < i) {
+                //Duplicates are ignored
+                Assert.assertNull(reassembler.addFragment("sender", datagram, 0, datagram.length, 0));
+            }
+            result = reassembler.addFragment("sender", datagram, 0, datagram.length, 0);
+        }
+        Assert.assertArrayEquals(message, result);
+        Assert.assertEquals(0, reassembler.getPendingMessageCount());
+    }
+
+    /**
+     * Test that incomplete messages time out and that the buffer is bounded.
+     */
+    @Test
+    public void testTimeoutAndBound() {
+        MessageFragmenter fragmenter = new MessageFragmenter(100);
+        MessageReassembler reassembler = new MessageReassembler(2, 1000);
+        List<byte[]> first = fragmenter.fragment(createMessage(300));
+        reassembler.addFragment("sender", first.get(0), 0, first.get(0).length, 0);
+        Assert.assertEquals(1, reassembler.getPendingMessageCount());
+
+        //The first message times out before its second fragment arrives
+        List<byte[]> second = fragmenter.fragment(createMessage(300));
+        reassembler.addFragment("sender", second.get(0), 0, second.get(0).length, 2000);
+        Assert.assertEquals(1, reassembler.getPendingMessageCount());
+        Assert.assertNull(reassembler.addFragment("sender", first.get(1), 0, first.get(1).length, 2000));
+        Assert.assertEquals(2, reassembler.getPendingMessageCount());
+
+        //A third message pushes out the oldest
+        List<byte[]> third = fragmenter.fragment(createMessage(300));
+        reassembler.addFragment("sender", third.get(0), 0, third.get(0).length, 2000);
+        Assert.assertEquals(2, reassembler.getPendingMessageCount());
+
+        //Same message ID from another sender is a different message
+        Assert.assertNull(reassembler.addFragment("other", third.get(1), 0, third.get(1).length, 2000));
+    }
+
+}
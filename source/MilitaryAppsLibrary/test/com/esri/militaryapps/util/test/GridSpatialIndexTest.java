@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util.test;
+
+import com.esri.militaryapps.util.GridSpatialIndex;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the GridSpatialIndex class.
+ * @see com.esri.militaryapps.util.GridSpatialIndex
+ */
+public class GridSpatialIndexTest {
+
+    private static HashSet<Integer> query(GridSpatialIndex index, double minX, double minY, double maxX, double maxY) {
+        final HashSet<Integer> found = new HashSet<Integer>();
+        index.queryBox(minX, minY, maxX, maxY, new GridSpatialIndex.Visitor() {
+
+            @Override
+            public void visit(int item, double x, double y) {
+                Assert.assertTrue(found.add(item));
+            }
+
+        });
+        return found;
+    }
+
+    /**
+     * Test box and radius queries against a brute-force scan while items move
+     * and are removed.
+     */
+    @Test
+    public void testQueries() {
+        final int itemCount = 2000;
+        Random random = new Random(42);
+        GridSpatialIndex index = new GridSpatialIndex(0.5);
+        double[] xs = new double[itemCount];
+        double[] ys = new double[itemCount];
+        boolean[] present = new boolean[itemCount];
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < itemCount; i++) {
+                if (0 == random.nextInt(10)) {
+                    Assert.assertEquals(present[i], index.remove(i));
+                    present[i] = false;
+                } else {
+                    xs[i] = random.nextDouble() * 20 - 10;
+                    ys[i] = random.nextDouble() * 20 - 10;
+                    index.put(i, xs[i], ys[i]);
+                    present[i] = true;
+                }
+            }
+            for (int q = 0; q < 20; q++) {
+                double minX = random.nextDouble() * 20 - 10;
+                double minY = random.nextDouble() * 20 - 10;
+                double maxX = minX + random.nextDouble() * (0 == q ? 100 : 5);
+                double maxY = minY + random.nextDouble() * (0 == q ? 100 : 5);
+                HashSet<Integer> expected = new HashSet<Integer>();
+                int expectedInRadius = 0;
+                for (int i = 0; i < itemCount; i++) {
+                    if (present[i] && minX <= xs[i] && xs[i] <= maxX && minY <= ys[i] && ys[i] <= maxY) {
+                        expected.add(i);
+                    }
+                    if (present[i] && Math.hypot(xs[i] - minX, ys[i] - minY) <= 2) {
+                        expectedInRadius++;
+                    }
+                }
+                Assert.assertEquals(expected, query(index, minX, minY, maxX, maxY));
+                Assert.assertEquals(expectedInRadius, index.queryRadius(minX, minY, 2, null));
+            }
+        }
+        index.clear();
+        Assert.assertEquals(0, index.size());
+        Assert.assertTrue(query(index, -100, -100, 100, 100).isEmpty());
+    }
+
+    /**
+     * Test nearest-neighbor queries against a brute-force sort, with both metrics,
+     * a filter, and a maximum distance.
+     */
+    @Test
+    public void testQueryNearest() {
+        final int itemCount = 3000;
+        Random random = new Random(7);
+        GridSpatialIndex index = new GridSpatialIndex(1);
+        double[] xs = new double[itemCount];
+        double[] ys = new double[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            xs[i] = random.nextDouble() * 360 - 180;
+            ys[i] = random.nextDouble() * 160 - 80;
+            index.put(i, xs[i], ys[i]);
+        }
+        GridSpatialIndex.Filter evenOnly = new GridSpatialIndex.Filter() {
+
+            @Override
+            public boolean accept(int item) {
+                return 0 == item % 2;
+            }
+
+        };
+        int[] items = new int[10];
+        double[] distances = new double[10];
+        GridSpatialIndex.Metric[] metrics = {GridSpatialIndex.EUCLIDEAN, GridSpatialIndex.GREAT_CIRCLE_METERS};
+        for (GridSpatialIndex.Metric metric : metrics) {
+            for (int q = 0; q < 50; q++) {
+                double x = 0 == q ? 179.9 : random.nextDouble() * 360 - 180;
+                double y = random.nextDouble() * 180 - 90;
+                boolean filtered = 0 == q % 3;
+                double[] expected = new double[itemCount];
+                int expectedCount = 0;
+                for (int i = 0; i < itemCount; i++) {
+                    if (!filtered || 0 == i % 2) {
+                        expected[expectedCount++] = metric.distance(x, y, xs[i], ys[i]);
+                    }
+                }
+                Arrays.sort(expected, 0, expectedCount);
+
+                int found = index.queryNearest(x, y, 10, Double.POSITIVE_INFINITY, metric,
+                        filtered ? evenOnly : null, items, distances);
+                Assert.assertEquals(10, found);
+                for (int i = 0; i < found; i++) {
+                    Assert.assertEquals(expected[i], distances[i], 1e-9 * Math.max(1, expected[i]));
+                    Assert.assertEquals(distances[i], metric.distance(x, y, xs[items[i]], ys[items[i]]), 0);
+                    Assert.assertTrue(!filtered || 0 == items[i] % 2);
+                }
+
+                double maxDistance = expected[4];
+                Assert.assertEquals(5, index.queryNearest(x, y, 10, maxDistance, metric,
+                        filtered ? evenOnly : null, items, distances));
+            }
+        }
+    }
+
+}
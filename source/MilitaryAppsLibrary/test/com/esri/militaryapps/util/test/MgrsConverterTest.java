@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util.test;
+
+import com.esri.militaryapps.util.MgrsConverter;
+import com.esri.militaryapps.util.Utilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the MgrsConverter class.
+ * @see com.esri.militaryapps.util.MgrsConverter
+ */
+public class MgrsConverterTest {
+
+    /**
+     * Test encoding known points, including the polar regions and the Norway and
+     * Svalbard zone exceptions.
+     */
+    @Test
+    public void testEncode() {
+        MgrsConverter converter = new MgrsConverter();
+        Assert.assertEquals("31NAA6602100000", converter.encode(0, 0));
+        Assert.assertEquals("31NEA0000000000", converter.encode(3, 0));
+        Assert.assertEquals("ZAH0000000000", converter.encode(0, 90));
+        Assert.assertEquals("BAN0000000000", converter.encode(0, -90));
+        Assert.assertTrue(converter.encode(5, 60).startsWith("32V"));
+        Assert.assertTrue(converter.encode(2, 60).startsWith("31V"));
+        Assert.assertTrue(converter.encode(10, 78).startsWith("33X"));
+        Assert.assertTrue(converter.encode(-100, 84).startsWith("Y"));
+        Assert.assertTrue(converter.encode(100, -80.5).startsWith("B"));
+        Assert.assertTrue(converter.encode(180, 10).startsWith("1P"));
+        Assert.assertNull(converter.encode(0, 91));
+        Assert.assertNull(converter.encode(Double.NaN, 0));
+
+        MgrsConverter coarse = new MgrsConverter(2);
+        Assert.assertEquals("38SMB4484", coarse.encode(44.4, 33.3));
+        Assert.assertEquals("38SMB", new MgrsConverter(0).encode(44.4, 33.3));
+
+        StringBuilder builder = new StringBuilder("at ");
+        Assert.assertTrue(coarse.appendMgrs(builder, 44.4, 33.3));
+        Assert.assertFalse(coarse.appendMgrs(builder, 0, -100));
+        Assert.assertEquals("at 38SMB4484", builder.toString());
+
+        String[] mgrs = coarse.encode(new double[] { 44.4, 33.3, 0, 95, 0, 0 });
+        Assert.assertArrayEquals(new String[] { "38SMB4484", null, "31NAA6600" }, mgrs);
+    }
+
+    /**
+     * Test decoding to the centers of squares, and rejecting invalid strings.
+     */
+    @Test
+    public void testDecode() {
+        MgrsConverter converter = new MgrsConverter();
+        double[] lonLat = new double[4];
+        Assert.assertTrue(converter.decode("38SMB4484", lonLat, 2));
+        //The center of the square is within a kilometer of the point it came from
+        Assert.assertTrue(Utilities.calculateDistanceMeters(44.4, 33.3, lonLat[2], lonLat[3]) < 1000);
+        Assert.assertEquals("38SMB4484", new MgrsConverter(2).encode(lonLat[2], lonLat[3]));
+        Assert.assertTrue(converter.decode("31n aa 66021 00000", lonLat, 0));
+        Assert.assertEquals(0, lonLat[0], 1e-5);
+        Assert.assertEquals(0, lonLat[1], 1e-5);
+        Assert.assertTrue(converter.decode("ZAH0000000000", lonLat, 0));
+        Assert.assertEquals(90, lonLat[1], 1e-4);
+
+        double[] decoded = converter.decode(new String[] {
+            "4QFJ1234567890", null, "61NAA", "31NIA", "31NAA123", "ZAZ", "31NAA1x", "4QFJ"
+        });
+        Assert.assertFalse(Double.isNaN(decoded[0]));
+        for (int i = 2; i < 14; i++) {
+            Assert.assertTrue(Double.isNaN(decoded[i]));
+        }
+        Assert.assertFalse(Double.isNaN(decoded[14]));
+    }
+
+    /**
+     * Test that decoding an encoded point lands within the precision, everywhere
+     * on Earth, and that encoding the result gives the same string.
+     */
+    @Test
+    public void testRoundTrip() {
+        MgrsConverter converter = new MgrsConverter();
+        double[] lonLat = new double[2];
+        //Stay off the latitude band lines, where the center of a square may be in the next band
+        for (double lat = -89.95; lat < 90; lat += 0.7) {
+            for (double lon = -179.95; lon < 180; lon += 1.3) {
+                String mgrs = converter.encode(lon, lat);
+                Assert.assertTrue(mgrs, converter.decode(mgrs, lonLat, 0));
+                Assert.assertTrue(mgrs, Utilities.calculateDistanceMeters(lon, lat, lonLat[0], lonLat[1]) < 2);
+                Assert.assertEquals(mgrs, converter.encode(lonLat[0], lonLat[1]));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util.test;
+
+import com.esri.militaryapps.util.ProjectionEngine;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the ProjectionEngine class.
+ * @see com.esri.militaryapps.util.ProjectionEngine
+ */
+public class ProjectionEngineTest {
+
+    /**
+     * Test Web Mercator against known coordinates.
+     */
+    @Test
+    public void testWebMercator() {
+        double[] xy = ProjectionEngine.projectPoint(-117.195, 34.057, 4326, 102100);
+        Assert.assertEquals(-13046087.72, xy[0], 0.01);
+        Assert.assertEquals(4036458.30, xy[1], 0.01);
+        xy = ProjectionEngine.projectPoint(xy[0], xy[1], 3857, 4326);
+        Assert.assertEquals(-117.195, xy[0], 1e-9);
+        Assert.assertEquals(34.057, xy[1], 1e-9);
+        //Clamped at the edge of the square extent
+        Assert.assertEquals(20037508.34, ProjectionEngine.projectPoint(0, 90, 4326, 3857)[1], 0.01);
+    }
+
+    /**
+     * Test UTM against known coordinates and round trips across zones and hemispheres.
+     */
+    @Test
+    public void testUtm() {
+        double[] xy = { 3, 0, 0, 0, 3, 45, -117, 34 };
+        ProjectionEngine.project(xy, 0, 4, 4326, 32631);
+        Assert.assertEquals(500000, xy[0], 0.001);
+        Assert.assertEquals(0, xy[1], 0.001);
+        Assert.assertEquals(166021.443, xy[2], 0.001);
+        Assert.assertEquals(0, xy[3], 0.001);
+        Assert.assertEquals(500000, xy[4], 0.001);
+        Assert.assertEquals(4982950.400, xy[5], 0.001);
+
+        xy = ProjectionEngine.projectPoint(-70.6483, -33.4569, 4326, 32719);
+        Assert.assertEquals(346000, xy[0], 1000);
+        Assert.assertEquals(6297000, xy[1], 1000);
+        Assert.assertEquals(32719, ProjectionEngine.getUtmWkid(-70.6483, -33.4569));
+        Assert.assertEquals(32611, ProjectionEngine.getUtmWkid(-117, 34));
+        Assert.assertEquals(32660, ProjectionEngine.getUtmWkid(180, 1));
+
+        for (double lat = -80; lat <= 84; lat += 8) {
+            for (double lon = -179.5; lon < 180; lon += 7.3) {
+                int wkid = ProjectionEngine.getUtmWkid(lon, lat);
+                double[] point = ProjectionEngine.projectPoint(lon, lat, 4326, wkid);
+                point = ProjectionEngine.projectPoint(point[0], point[1], wkid, 3857);
+                point = ProjectionEngine.projectPoint(point[0], point[1], 3857, 4326);
+                Assert.assertEquals(lon, point[0], 1e-8);
+                Assert.assertEquals(lat, point[1], 1e-8);
+            }
+        }
+    }
+
+    /**
+     * Test transforms and unsupported spatial references.
+     */
+    @Test
+    public void testTransforms() {
+        ProjectionEngine.Transform transform = ProjectionEngine.getTransform(32611, 4326);
+        Assert.assertEquals(32611, transform.getFromWkid());
+        Assert.assertEquals(4326, transform.getToWkid());
+        double[] xy = { 0, 0, 500000, 3762155.0 };
+        transform.transform(xy, 2, 1);
+        Assert.assertEquals(0, xy[0], 0);
+        Assert.assertEquals(-117, xy[2], 1e-9);
+        Assert.assertEquals(34, xy[3], 1e-5);
+
+        Assert.assertNull(ProjectionEngine.getTransform(2229, 4326));
+        Assert.assertFalse(ProjectionEngine.isSupported(32662));
+        Assert.assertTrue(ProjectionEngine.isSupported(32760));
+        xy = new double[] { 1, 2 };
+        Assert.assertFalse(ProjectionEngine.project(xy, 0, 1, 4326, 2229));
+        Assert.assertArrayEquals(new double[] { 1, 2 }, xy, 0);
+        Assert.assertNull(ProjectionEngine.projectPoint(1, 2, 2229, 2229 + 1));
+    }
+
+    /**
+     * Test UPS against known coordinates and round trips.
+     */
+    @Test
+    public void testUps() {
+        double[] xy = ProjectionEngine.projectPoint(0, 90, 4326, 32661);
+        Assert.assertEquals(2000000, xy[0], 0.001);
+        Assert.assertEquals(2000000, xy[1], 0.001);
+        //84 degrees north on the 90th meridians and the prime meridian
+        xy = new double[] { 90, 84, -90, 84, 0, 84 };
+        ProjectionEngine.project(xy, 0, 3, 4326, 32661);
+        double rho = xy[0] - 2000000;
+        Assert.assertEquals(2000000, xy[1], 0.001);
+        Assert.assertEquals(2000000 - rho, xy[2], 0.001);
+        Assert.assertEquals(2000000 - rho, xy[5], 0.001);
+        //84N 0E is UPS north 2000000 1333272.30
+        Assert.assertEquals(666727.70, rho, 0.01);
+
+        for (double lat = -89.5; lat <= 89.5; lat += 1.7) {
+            if (-60 < lat && lat < 60) {
+                continue;
+            }
+            for (double lon = -179; lon < 180; lon += 11) {
+                int wkid = 0 > lat ? 32761 : 32661;
+                double[] point = ProjectionEngine.projectPoint(lon, lat, 4326, wkid);
+                point = ProjectionEngine.projectPoint(point[0], point[1], wkid, 4326);
+                Assert.assertEquals(lon, point[0], 1e-9);
+                Assert.assertEquals(lat, point[1], 1e-9);
+            }
+        }
+        //South: the prime meridian points north of the pole
+        xy = ProjectionEngine.projectPoint(0, -85, 4326, 32761);
+        Assert.assertEquals(2000000, xy[0], 0.001);
+        Assert.assertTrue(xy[1] > 2000000);
+    }
+
+}
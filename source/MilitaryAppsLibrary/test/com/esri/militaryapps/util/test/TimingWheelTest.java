@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2015 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util.test;
+
+import com.esri.militaryapps.util.TimingWheel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A test for the TimingWheel class.
+ * @see com.esri.militaryapps.util.TimingWheel
+ */
+public class TimingWheelTest {
+
+    private static class RecordingExpirer implements TimingWheel.Expirer {
+
+        private final List<Integer> handles = new ArrayList<Integer>();
+        private long now;
+
+        @Override
+        public void expired(int handle, long deadline) {
+            Assert.assertTrue("Expired early", deadline <= now);
+            handles.add(handle);
+        }
+
+    }
+
+    /**
+     * Test scheduling, lazy refresh, moving a deadline earlier, and canceling.
+     */
+    @Test
+    public void testSchedule() {
+        TimingWheel wheel = new TimingWheel(10, 1000);
+        RecordingExpirer expirer = new RecordingExpirer();
+        wheel.schedule(1, 1050);
+        wheel.schedule(2, 1100);
+        wheel.schedule(3, 1200);
+        wheel.schedule(4, 1000);
+        Assert.assertEquals(4, wheel.size());
+
+        //Refresh 1 later and move 3 earlier
+        wheel.schedule(1, 1500);
+        wheel.schedule(3, 1080);
+        Assert.assertEquals(1500, wheel.getDeadline(1));
+        Assert.assertTrue(wheel.cancel(2));
+        Assert.assertFalse(wheel.cancel(2));
+
+        expirer.now = 1095;
+        Assert.assertEquals(2, wheel.advance(expirer.now, expirer));
+        Assert.assertTrue(expirer.handles.contains(3));
+        Assert.assertTrue(expirer.handles.contains(4));
+        Assert.assertTrue(wheel.isScheduled(1));
+        Assert.assertFalse(wheel.isScheduled(3));
+
+        expirer.now = 1499;
+        Assert.assertEquals(0, wheel.advance(expirer.now, expirer));
+        expirer.now = 1500;
+        Assert.assertEquals(1, wheel.advance(expirer.now, expirer));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Test that random deadlines across every level expire on time, with refreshes.
+     */
+    @Test
+    public void testLevels() {
+        Random random = new Random(39);
+        long start = 0;
+        TimingWheel wheel = new TimingWheel(1, start);
+        int count = 2000;
+        long[] deadlines = new long[count];
+        for (int i = 0; i < count; i++) {
+            //Up to 2^26 ticks, beyond the top level
+            deadlines[i] = start + 1 + (long) Math.pow(2, random.nextDouble() * 26);
+            wheel.schedule(i, deadlines[i]);
+        }
+        for (int i = 0; i < count; i += 3) {
+            deadlines[i] += random.nextInt(100000);
+            wheel.schedule(i, deadlines[i]);
+        }
+        final long[] expiredAt = new long[count];
+        final long[] now = new long[1];
+        TimingWheel.Expirer expirer = new TimingWheel.Expirer() {
+
+            @Override
+            public void expired(int handle, long deadline) {
+                expiredAt[handle] = now[0];
+            }
+
+        };
+        int expired = 0;
+        for (now[0] = start; expired < count; now[0] += 1 + random.nextInt(5000)) {
+            expired += wheel.advance(now[0], expirer);
+        }
+        for (int i = 0; i < count; i++) {
+            Assert.assertTrue(expiredAt[i] >= deadlines[i]);
+            Assert.assertTrue("Handle " + i + " expired late", expiredAt[i] - deadlines[i] < 5000);
+        }
+    }
+
+}
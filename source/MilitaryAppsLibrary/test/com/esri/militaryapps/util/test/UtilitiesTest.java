@@ -18,11 +18,15 @@ package com.esri.militaryapps.util.test;
 import com.esri.militaryapps.util.Utilities;
 import java.awt.Color;
 import java.util.Calendar;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.Assert;
 
@@ -183,6 +187,40 @@ public class UtilitiesTest {
         Assert.assertEquals(expResult, result, 0.001);
     }
 
+    /**
+     * Test of calculateDistanceMeters method, of class Utilities.
+     */
+    @Test
+    public void testCalculateDistanceMeters() {
+        //One degree of latitude
+        Assert.assertEquals(111195.08, Utilities.calculateDistanceMeters(0, 0, 0, 1), 0.01);
+        //One degree of longitude at 60N is half a degree at the equator
+        Assert.assertEquals(111195.08 / 2.0, Utilities.calculateDistanceMeters(10, 60, 11, 60), 50);
+        //Across the antimeridian
+        Assert.assertEquals(Utilities.calculateDistanceMeters(-0.5, 0, 0.5, 0),
+                Utilities.calculateDistanceMeters(179.5, 0, -179.5, 0), 0.001);
+        Assert.assertEquals(0, Utilities.calculateDistanceMeters(-77, 38, -77, 38), 0.0);
+    }
+
+    /**
+     * Test of calculateDestination method, of class Utilities.
+     */
+    @Test
+    public void testCalculateDestination() {
+        double[] lonLat = new double[2];
+        Utilities.calculateDestination(0, 0, 0, 111195.08, lonLat);
+        Assert.assertEquals(0, lonLat[0], 1e-9);
+        Assert.assertEquals(1, lonLat[1], 1e-6);
+
+        Utilities.calculateDestination(179.9, 0, 90, 111195.08, lonLat);
+        Assert.assertEquals(-179.1, lonLat[0], 1e-6);
+
+        //Round trip from Monterey
+        Utilities.calculateDestination(-121.89, 36.6, 37, 5000, lonLat);
+        Assert.assertEquals(5000, Utilities.calculateDistanceMeters(-121.89, 36.6, lonLat[0], lonLat[1]), 0.001);
+        Assert.assertEquals(37, Utilities.calculateBearingDegrees(-121.89, 36.6, lonLat[0], lonLat[1]), 0.01);
+    }
+
     /**
      * Test of fixAngleDegrees method, of class Utilities.
      */
@@ -300,6 +338,161 @@ public class UtilitiesTest {
         Assert.assertEquals(expected, Utilities.convertToValidMgrs(input, referenceMgrs));
     }
     
+    @Test
+    public void testAppendValidMgrs() {
+        StringBuilder sb = new StringBuilder("Grid: ");
+        Assert.assertTrue(Utilities.appendValidMgrs("42s xd 1234", null, sb));
+        Assert.assertEquals("Grid: 42SXD1234", sb.toString());
+        
+        //Append nothing for an invalid string
+        Assert.assertFalse(Utilities.appendValidMgrs("42SXD12345", null, sb));
+        Assert.assertFalse(Utilities.appendValidMgrs("42SXDE1234", null, sb));
+        Assert.assertFalse(Utilities.appendValidMgrs(null, null, sb));
+        Assert.assertEquals("Grid: 42SXD1234", sb.toString());
+        
+        //Add the grid zone and strip polar digits in place
+        sb.setLength(0);
+        Assert.assertTrue(Utilities.appendValidMgrs("XD 12", "42SXD567890", sb));
+        Assert.assertTrue(Utilities.appendValidMgrs("12ABC", null, sb));
+        Assert.assertEquals("42SXD12ABC", sb.toString());
+    }
+    
+    @Test
+    public void testConvertAllToValidMgrs() {
+        String[] valid = Utilities.convertAllToValidMgrs(
+                new String[] { "42SXD1234", null, "XD 5678", "62SXD1234", "12ABC456789" }, "42SXD567890");
+        Assert.assertArrayEquals(new String[] { "42SXD1234", null, "42SXD5678", null, "ABC456789" }, valid);
+    }
+    
+    /**
+     * Checks that convertToValidMgrs gives the same results as the regular
+     * expression implementation it replaced, for strings built from MGRS-like pieces.
+     */
+    @Test
+    public void testConvertToValidMgrsMatchesRegex() {
+        String[] references = { null, "42SXD567890", "4QFJ12", "ZAB123", "123SXD", "xd12", "" };
+        String[] inputs = createMgrsLikeStrings(20000);
+        for (String reference : references) {
+            String[] valid = Utilities.convertAllToValidMgrs(inputs, reference);
+            for (int i = 0; i < inputs.length; i++) {
+                String expected = convertToValidMgrsWithRegex(inputs[i], reference);
+                Assert.assertEquals("Input \"" + inputs[i] + "\", reference \"" + reference + "\"",
+                        expected, Utilities.convertToValidMgrs(inputs[i], reference));
+                Assert.assertEquals(expected, valid[i]);
+            }
+        }
+    }
+    
+    /**
+     * Compares the speed of convertToValidMgrs with the regular expression
+     * implementation. It is a benchmark rather than a test, so it is ignored
+     * in the unit test suite; remove the Ignore annotation to run it by hand.
+     */
+    @Test
+    @Ignore("Benchmark")
+    public void benchmarkConvertToValidMgrs() {
+        System.out.println("convertToValidMgrs benchmark");
+        String[] inputs = createMgrsLikeStrings(2000);
+        String reference = "42SXD567890";
+        int rounds = 20;
+        int checksum = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (String input : inputs) {
+                    String valid = convertToValidMgrsWithRegex(input, reference);
+                    checksum += null == valid ? 0 : valid.length();
+                }
+            }
+            long regexNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (String input : inputs) {
+                    String valid = Utilities.convertToValidMgrs(input, reference);
+                    checksum -= null == valid ? 0 : valid.length();
+                }
+            }
+            long scannerNanos = System.nanoTime() - start;
+            int calls = rounds * inputs.length;
+            System.out.println(String.format("  regex: %d ns/call, scanner: %d ns/call",
+                    regexNanos / calls, scannerNanos / calls));
+        }
+        Assert.assertEquals(0, checksum);
+    }
+    
+    private static String[] createMgrsLikeStrings(int count) {
+        String[] pieces = { "", "1", "4", "42", "60", "61", "00", "123", "S", "s", "A", "z", "C", "I",
+            "XD", "xd", "ABC", "YXW", "CBC", "Q", "12", "1234", "12345", "123456", " ", ", ", "-", ":",
+            "\u00e9", "\uff11", "SXDE", "\t" };
+        Random random = new Random(2015);
+        String[] strings = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            int pieceCount = random.nextInt(6);
+            for (int j = 0; j < pieceCount; j++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+            strings[i] = sb.toString();
+        }
+        return strings;
+    }
+    
+    /**
+     * The regular expression implementation of convertToValidMgrs that the
+     * single-pass implementation replaced, kept for comparison.
+     */
+    private static String convertToValidMgrsWithRegex(String mgrs, String referenceMgrs) {
+        if (null == mgrs) {
+            return null;
+        }
+        mgrs = mgrs.replaceAll("[^a-zA-Z0-9]", "").toUpperCase();
+        Matcher gzlessMatcher = Pattern.compile("[A-Z]{2}[0-9]*").matcher(mgrs);
+        if (null != referenceMgrs && gzlessMatcher.matches()) {
+            Matcher gzMatcher = Pattern.compile("[0-9]{0,2}[A-Z]").matcher(referenceMgrs);
+            if (gzMatcher.find() && 0 == gzMatcher.start()) {
+                mgrs = referenceMgrs.substring(0, gzMatcher.end()) + mgrs;
+            }
+        }
+        Pattern pattern = Pattern.compile("[A-Z]+");
+        Matcher matcher = pattern.matcher(mgrs);
+        if (!matcher.find()) {
+            return null;
+        }
+        Pattern polarPattern = Pattern.compile("[ABYZ][A-Z]{2}[0-9]*");
+        if (0 == matcher.start()) {
+            if (!polarPattern.matcher(mgrs).matches()) {
+                return null;
+            }
+        } else {
+            char firstLetter = mgrs.charAt(matcher.start());
+            if ('A' == firstLetter || 'B' == firstLetter || 'Y' == firstLetter || 'Z' == firstLetter) {
+                mgrs = mgrs.substring(matcher.start());
+                if (!polarPattern.matcher(mgrs).matches()) {
+                    return null;
+                }
+            } else {
+                Matcher nonPolarMatcher = Pattern.compile("[0-9]{1,2}[C-X][A-Z]{2}[0-9]*").matcher(mgrs);
+                if (!nonPolarMatcher.matches()) {
+                    return null;
+                }
+                int gridZoneNumber = Integer.parseInt(mgrs.substring(0, matcher.start()));
+                if (0 >= gridZoneNumber || 60 < gridZoneNumber) {
+                    return null;
+                }
+            }
+        }
+        Matcher threeLetters = Pattern.compile("[A-Z]{3}").matcher(mgrs);
+        threeLetters.find();
+        if (threeLetters.end() < mgrs.length()) {
+            String eastingNorthing = mgrs.substring(threeLetters.end());
+            if (1 == eastingNorthing.length() % 2) {
+                return null;
+            }
+        }
+        return mgrs;
+    }
+    
     @Test
     public void testParseXmlDateTime() {
         String input;